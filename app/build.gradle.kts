@@ -45,7 +45,7 @@ dependencies {
     implementation(libs.googleid)
     implementation("org.osmdroid:osmdroid-android:6.1.16")
     implementation("com.google.android.gms:play-services-auth:21.2.0")
-    implementation("com.google.code.gson:gson:2.10.1")
+    implementation(project(":core"))
     testImplementation(libs.junit)
     androidTestImplementation(libs.ext.junit)
     androidTestImplementation(libs.espresso.core)
@@ -0,0 +1,156 @@
+package com.example.appmap;
+
+import android.Manifest;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.location.Location;
+import android.location.LocationListener;
+import android.location.LocationManager;
+import android.os.BatteryManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.appmap.core.Counter;
+import com.example.appmap.core.Gauge;
+import com.example.appmap.core.LocationSampling;
+import com.example.appmap.core.Metrics;
+
+/**
+ * Keeps a single location request registered for {@link LocationSampling}'s current plan and
+ * registers it again whenever a fix, the filter mode, the battery or the passing of time changes
+ * the plan. Providers the app may not use, or that are off, are swapped for the closest one
+ * available. Used from the UI thread only.
+ */
+final class AdaptiveLocation {
+
+    private static final int LOW_BATTERY_PERCENT = 20;
+    private static final Counter REPLANS = Metrics.counter("location.replans");
+    private static final Gauge INTERVAL = Metrics.gauge("location.interval_ms");
+
+    private final Context context;
+    private final LocationManager locationManager;
+    private final LocationListener listener;
+    private final LocationSampling sampling = new LocationSampling();
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable recheck = this::replan;
+    private final BroadcastReceiver batteryReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            updateBattery();
+            replan();
+        }
+    };
+
+    private boolean started;
+    private LocationSampling.Plan activePlan;
+    private String activeProvider;
+
+    AdaptiveLocation(Context context, LocationManager locationManager, LocationListener listener) {
+        this.context = context;
+        this.locationManager = locationManager;
+        this.listener = listener;
+    }
+
+    void start() {
+        if (started) return;
+        started = true;
+        sampling.reset(SystemClock.elapsedRealtime());
+        IntentFilter filter = new IntentFilter(Intent.ACTION_BATTERY_CHANGED);
+        filter.addAction(PowerManager.ACTION_POWER_SAVE_MODE_CHANGED);
+        context.registerReceiver(batteryReceiver, filter);
+        updateBattery();
+        replan();
+    }
+
+    void stop() {
+        if (!started) return;
+        started = false;
+        context.unregisterReceiver(batteryReceiver);
+        handler.removeCallbacks(recheck);
+        locationManager.removeUpdates(listener);
+        activePlan = null;
+        activeProvider = null;
+    }
+
+    void setZoneMode(boolean zoneMode) {
+        sampling.setZoneMode(zoneMode);
+        replan();
+    }
+
+    void onFix(Location location) {
+        sampling.onFix(SystemClock.elapsedRealtime(), location.getLatitude(), location.getLongitude(),
+                location.hasAccuracy() ? location.getAccuracy() : 0f,
+                location.hasSpeed() ? location.getSpeed() : Float.NaN,
+                location.hasBearing() ? location.getBearing() : Float.NaN);
+        replan();
+    }
+
+    /** The fix's speed in m/s, or one estimated from earlier fixes when it has none. */
+    float speed() {
+        return sampling.speed();
+    }
+
+    /** The fix's bearing, or one estimated from earlier fixes; NaN while unknown. */
+    float bearing() {
+        return sampling.bearing();
+    }
+
+    private void updateBattery() {
+        Intent battery = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        boolean low = context.getSystemService(PowerManager.class).isPowerSaveMode();
+        boolean charging = false;
+        if (battery != null) {
+            int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+            int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+            low |= level >= 0 && scale > 0 && level * 100 / scale <= LOW_BATTERY_PERCENT;
+            charging = battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+        }
+        sampling.setBattery(low, charging);
+    }
+
+    private void replan() {
+        if (!started) return;
+        long now = SystemClock.elapsedRealtime();
+        handler.removeCallbacks(recheck);
+        long untilStationary = sampling.millisUntilStationary(now);
+        if (untilStationary > 0) {
+            // Without new fixes nothing else notices the user has stopped.
+            handler.postDelayed(recheck, untilStationary);
+        }
+        LocationSampling.Plan plan = sampling.plan(now);
+        String provider = available(plan.provider);
+        if (plan.equals(activePlan) && provider.equals(activeProvider)) return;
+        try {
+            locationManager.removeUpdates(listener);
+            locationManager.requestLocationUpdates(provider, plan.intervalMs, plan.minDistanceMeters, listener);
+        } catch (SecurityException | IllegalArgumentException e) {
+            e.printStackTrace();
+            return;
+        }
+        activePlan = plan;
+        activeProvider = provider;
+        REPLANS.increment();
+        INTERVAL.set(plan.intervalMs);
+        Log.d("AdaptiveLocation", plan + (provider.equals(plan.provider) ? "" : " vía " + provider));
+    }
+
+    /** {@code wanted}, or the nearest provider the app has permission for and that is on. */
+    private String available(String wanted) {
+        // With only coarse permission neither GPS nor passive fixes are allowed.
+        if (context.checkSelfPermission(Manifest.permission.ACCESS_FINE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
+            return LocationManager.NETWORK_PROVIDER;
+        }
+        boolean network = locationManager.isProviderEnabled(LocationManager.NETWORK_PROVIDER);
+        if (wanted.equals(LocationSampling.GPS) && !locationManager.isProviderEnabled(LocationManager.GPS_PROVIDER) && network) {
+            return LocationManager.NETWORK_PROVIDER;
+        }
+        if (wanted.equals(LocationSampling.NETWORK) && !network) return LocationManager.GPS_PROVIDER;
+        return wanted;
+    }
+}
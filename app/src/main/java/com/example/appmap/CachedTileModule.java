@@ -0,0 +1,81 @@
+package com.example.appmap;
+
+import android.graphics.drawable.Drawable;
+
+import com.example.appmap.core.TilePrefetcher;
+
+import org.osmdroid.tileprovider.modules.CantContinueException;
+import org.osmdroid.tileprovider.modules.MapTileModuleProviderBase;
+import org.osmdroid.tileprovider.tilesource.BitmapTileSourceBase;
+import org.osmdroid.tileprovider.tilesource.ITileSource;
+import org.osmdroid.util.MapTileIndex;
+
+import java.io.ByteArrayInputStream;
+
+/**
+ * Map tile module backed by the app's own bounded {@link com.example.appmap.core.TileCache}, so
+ * tiles prefetched around the user and saved points are what the map draws when offline. Misses
+ * are downloaded through the same {@link TilePrefetcher} and cached on the way.
+ */
+class CachedTileModule extends MapTileModuleProviderBase {
+
+    private static final int THREADS = 2;
+    private static final int PENDING_TILES = 40;
+
+    private final TilePrefetcher tiles;
+    private volatile ITileSource tileSource;
+
+    CachedTileModule(TilePrefetcher tiles, ITileSource tileSource) {
+        super(THREADS, PENDING_TILES);
+        this.tiles = tiles;
+        this.tileSource = tileSource;
+    }
+
+    @Override
+    public boolean getUsesDataConnection() {
+        return true;
+    }
+
+    @Override
+    public int getMinimumZoomLevel() {
+        return tileSource.getMinimumZoomLevel();
+    }
+
+    @Override
+    public int getMaximumZoomLevel() {
+        return tileSource.getMaximumZoomLevel();
+    }
+
+    @Override
+    protected String getName() {
+        return "Cached tile module";
+    }
+
+    @Override
+    protected String getThreadGroupName() {
+        return "cachedtiles";
+    }
+
+    @Override
+    public TileLoader getTileLoader() {
+        return new Loader();
+    }
+
+    @Override
+    public void setTileSource(ITileSource tileSource) {
+        this.tileSource = tileSource;
+    }
+
+    private class Loader extends TileLoader {
+        @Override
+        public Drawable loadTile(long index) throws CantContinueException {
+            byte[] data = tiles.fetch(MapTileIndex.getZoom(index), MapTileIndex.getX(index), MapTileIndex.getY(index));
+            if (data == null) return null;
+            try {
+                return tileSource.getDrawable(new ByteArrayInputStream(data));
+            } catch (BitmapTileSourceBase.LowMemoryException e) {
+                throw new CantContinueException(e);
+            }
+        }
+    }
+}
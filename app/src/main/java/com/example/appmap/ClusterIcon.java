@@ -0,0 +1,100 @@
+package com.example.appmap;
+
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.Paint;
+import android.graphics.PixelFormat;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.graphics.drawable.Drawable;
+
+/**
+ * Cluster marker icon: a ring split into one arc per status, sized by its member count, with the
+ * total in the middle. Drawn directly on the map canvas, so no bitmap is allocated per cluster.
+ */
+class ClusterIcon extends Drawable {
+
+    private final int[] counts;
+    private final int[] colors;
+    private final int total;
+    private final String label;
+    private final int size;
+    private final Paint ringPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint fillPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint textPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final RectF arcBounds = new RectF();
+
+    /**
+     * {@code counts} and {@code colors} are parallel arrays, one entry per status; the icon keeps
+     * both without copying.
+     */
+    ClusterIcon(int[] counts, int[] colors, float density) {
+        this.counts = counts;
+        this.colors = colors;
+        int sum = 0;
+        for (int count : counts) {
+            sum += count;
+        }
+        total = sum;
+        label = total >= 10000 ? (total / 1000) + "k" : String.valueOf(total);
+        size = Math.round(density * (32 + 6 * (float) Math.log10(Math.max(1, total))));
+
+        ringPaint.setStyle(Paint.Style.STROKE);
+        ringPaint.setStrokeWidth(size * 0.18f);
+        fillPaint.setColor(0xF0FFFFFF);
+        textPaint.setColor(0xFF212121);
+        textPaint.setTextAlign(Paint.Align.CENTER);
+        textPaint.setFakeBoldText(true);
+        textPaint.setTextSize(size * (label.length() > 3 ? 0.28f : 0.34f));
+    }
+
+    @Override
+    public void draw(Canvas canvas) {
+        Rect bounds = getBounds();
+        float cx = bounds.exactCenterX();
+        float cy = bounds.exactCenterY();
+        float stroke = ringPaint.getStrokeWidth();
+        float radius = Math.min(bounds.width(), bounds.height()) / 2f;
+
+        canvas.drawCircle(cx, cy, radius - stroke, fillPaint);
+        arcBounds.set(cx - radius + stroke / 2, cy - radius + stroke / 2, cx + radius - stroke / 2, cy + radius - stroke / 2);
+        float start = -90f;
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] == 0) continue;
+            float sweep = 360f * counts[i] / total;
+            ringPaint.setColor(colors[i]);
+            canvas.drawArc(arcBounds, start, sweep, false, ringPaint);
+            start += sweep;
+        }
+        canvas.drawText(label, cx, cy - (textPaint.descent() + textPaint.ascent()) / 2, textPaint);
+    }
+
+    @Override
+    public int getIntrinsicWidth() {
+        return size;
+    }
+
+    @Override
+    public int getIntrinsicHeight() {
+        return size;
+    }
+
+    @Override
+    public void setAlpha(int alpha) {
+        ringPaint.setAlpha(alpha);
+        fillPaint.setAlpha(alpha);
+        textPaint.setAlpha(alpha);
+    }
+
+    @Override
+    public void setColorFilter(ColorFilter colorFilter) {
+        ringPaint.setColorFilter(colorFilter);
+        fillPaint.setColorFilter(colorFilter);
+        textPaint.setColorFilter(colorFilter);
+    }
+
+    @Override
+    public int getOpacity() {
+        return PixelFormat.TRANSLUCENT;
+    }
+}
@@ -1,5 +1,6 @@
 package com.example.appmap;
 
+import android.content.Context;
 import android.content.Intent;
 import android.os.Bundle;
 import android.util.Log;
@@ -16,6 +17,11 @@ import com.google.android.gms.auth.api.signin.GoogleSignInClient;
 import com.google.android.gms.auth.api.signin.GoogleSignInOptions;
 import com.google.android.gms.common.api.ApiException;
 import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ExecutionException;
 
 public class LoginActivity extends AppCompatActivity {
 
@@ -25,18 +31,45 @@ public class LoginActivity extends AppCompatActivity {
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        Startup.begin(this);
+        GoogleSignInAccount account = GoogleSignIn.getLastSignedInAccount(this);
+        if (account != null) {
+            // Already signed in: straight to the map, without inflating the sign-in screen.
+            updateUI(account);
+            return;
+        }
         setContentView(R.layout.activity_login);
 
-        GoogleSignInOptions gso = new GoogleSignInOptions.Builder(GoogleSignInOptions.DEFAULT_SIGN_IN)
-                .requestEmail()
-                .build();
-
-        mGoogleSignInClient = GoogleSignIn.getClient(this, gso);
+        mGoogleSignInClient = GoogleSignIn.getClient(this, signInOptions(this));
 
         Button signInButton = findViewById(R.id.sign_in_button);
         signInButton.setOnClickListener(v -> signIn());
     }
 
+    /** The ID token lets the sync backend verify who is signed in. */
+    static GoogleSignInOptions signInOptions(Context context) {
+        return new GoogleSignInOptions.Builder(GoogleSignInOptions.DEFAULT_SIGN_IN)
+                .requestEmail()
+                .requestIdToken(context.getString(R.string.default_web_client_id))
+                .build();
+    }
+
+    /**
+     * A current ID token for the signed-in user, refreshed silently when the cached one has
+     * expired. Blocks, so never call it on the UI thread.
+     */
+    static String idToken(Context context) throws IOException {
+        try {
+            GoogleSignInAccount account = Tasks.await(GoogleSignIn.getClient(context, signInOptions(context)).silentSignIn());
+            return account.getIdToken();
+        } catch (ExecutionException e) {
+            throw new IOException("No se pudo renovar la sesión de Google", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
     private void signIn() {
         Intent signInIntent = mGoogleSignInClient.getSignInIntent();
         startActivityForResult(signInIntent, RC_SIGN_IN);
@@ -1,85 +1,287 @@
 package com.example.appmap;
 
 import android.Manifest;
+import android.app.ActivityManager;
 import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
+import android.database.Cursor;
 import android.location.Location;
 import android.location.LocationListener;
 import android.location.LocationManager;
+import android.net.Uri;
+import android.net.ConnectivityManager;
+import android.net.Network;
 import android.os.Bundle;
-import android.preference.PreferenceManager;
+import android.os.Trace;
+import android.provider.OpenableColumns;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
+import android.view.ViewTreeObserver;
+import android.view.inputmethod.InputMethodManager;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
+import android.widget.CheckBox;
+import android.widget.ListView;
+import android.widget.ProgressBar;
 import android.widget.EditText;
 import android.widget.Spinner;
 import android.widget.TextView;
+import android.widget.Toast;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 
+import com.example.appmap.core.ClusterIndex;
+import com.example.appmap.core.Gauge;
+import com.example.appmap.core.LocationHistory;
+import com.example.appmap.core.LocationImporter;
+import com.example.appmap.core.LocationJournal;
+import com.example.appmap.core.LocationPartitions;
+import com.example.appmap.core.LocationRecord;
+import com.example.appmap.core.LocationSnapshot;
+import com.example.appmap.core.LocationStatus;
+import com.example.appmap.core.LocationStore;
+import com.example.appmap.core.LocationSync;
+import com.example.appmap.core.MappedSnapshot;
+import com.example.appmap.core.Metrics;
+import com.example.appmap.core.MetricsReporter;
+import com.example.appmap.core.PartitionPager;
+import com.example.appmap.core.RefreshPipeline;
+import com.example.appmap.core.RouteCorridor;
+import com.example.appmap.core.SearchIndex;
+import com.example.appmap.core.SpatialGrid;
+import com.example.appmap.core.TileCache;
+import com.example.appmap.core.TilePrefetcher;
+import com.example.appmap.core.Timer;
+import com.google.android.gms.auth.api.signin.GoogleSignIn;
 import com.google.android.material.floatingactionbutton.FloatingActionButton;
+import com.google.android.material.snackbar.Snackbar;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
+import org.osmdroid.api.IGeoPoint;
 import org.osmdroid.config.Configuration;
+import org.osmdroid.events.DelayedMapListener;
 import org.osmdroid.events.MapEventsReceiver;
+import org.osmdroid.events.MapListener;
+import org.osmdroid.events.ScrollEvent;
+import org.osmdroid.events.ZoomEvent;
+import org.osmdroid.tileprovider.MapTileProviderArray;
+import org.osmdroid.tileprovider.modules.MapTileModuleProviderBase;
+import org.osmdroid.tileprovider.tilesource.TileSourceFactory;
+import org.osmdroid.tileprovider.util.SimpleRegisterReceiver;
+import org.osmdroid.util.BoundingBox;
 import org.osmdroid.util.GeoPoint;
 import org.osmdroid.views.MapView;
 import org.osmdroid.views.overlay.MapEventsOverlay;
 import org.osmdroid.views.overlay.Marker;
+import org.osmdroid.views.overlay.Polyline;
 import org.osmdroid.views.overlay.compass.CompassOverlay;
+import org.osmdroid.views.overlay.compass.IOrientationConsumer;
+import org.osmdroid.views.overlay.compass.IOrientationProvider;
 import org.osmdroid.views.overlay.compass.InternalCompassOrientationProvider;
 import org.osmdroid.views.overlay.infowindow.InfoWindow;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.IntPredicate;
 
 public class MainActivity extends AppCompatActivity implements LocationListener {
 
+    private static final double ZONE_RADIUS_METERS = 4000;
+    // The zone follows the user in steps this long, not on every fix.
+    private static final double ZONE_REQUERY_METERS = ZONE_RADIUS_METERS * 0.05;
+    private static final int LOAD_CHUNK_SIZE = 2000;
+    private static final double VIEWPORT_MARGIN = 0.25;
+    private static final long VIEWPORT_DEBOUNCE_MS = 200;
+    private static final long CLUSTER_ZOOM_ANIMATION_MS = 400;
+    private static final String MULTI_STATUS_FILTER = "Varios...";
+    private static final long METRICS_REPORT_PERIOD_MS = 60_000;
+    private static final long TILE_CACHE_BYTES = 100L * 1024 * 1024;
+    private static final int PREFETCH_MIN_ZOOM = 12;
+    private static final int PREFETCH_MAX_ZOOM = 16;
+    private static final double PREFETCH_MOVE_METERS = 1000;
+    private static final int PREFETCH_VIEWED_LOCATIONS = 3;
+    private static final int RC_IMPORT = 2;
+    // About 300 bytes per resident record with its strings and index entries: under a third of the heap.
+    private static final int PAGED_RECORDS_PER_HEAP_MB = 1000;
+    private static final int PAGING_MIN_ZOOM = 11;
+    private static final double IMPORT_DEDUPE_METERS = 25;
+    private static final int NEAREST_COUNT = 5;
+    private static final int NEAREST_STATUS_MASK = LocationStatus.maskAtLeast(LocationStatus.BUENO);
+    private static final double NEAREST_ZOOM = 17.0;
+    private static final String[] IMPORT_MIME_TYPES = {"application/geo+json", "application/json",
+            "text/csv", "text/comma-separated-values", "text/plain", "application/octet-stream"};
+    private static final int RC_ROUTE = 3;
+    private static final String[] ROUTE_MIME_TYPES = {"application/gpx+xml", "application/xml", "text/xml",
+            "application/octet-stream"};
+    private static final int[] CORRIDOR_METERS = {250, 500, 1000, 2000};
+
+    private static final Timer LOAD_TIMER = Metrics.timer("locations.load");
+    private static final Timer CLUSTER_BUILD_TIMER = Metrics.timer("clusters.build");
+    private static final Timer COMPUTE_TIMER = Metrics.timer("markers.compute");
+    private static final Timer APPLY_TIMER = Metrics.timer("markers.apply");
+    private static final Gauge LOCATION_COUNT = Metrics.gauge("locations.count");
+    private static final Gauge OVERLAY_COUNT = Metrics.gauge("overlays.count");
+    private static final float HEADING_FROM_FIX_MIN_SPEED = 1.5f;
+    private static final String SYNC_STATE_NAME = "locations.sync";
+    private static final long SYNC_DELAY_MS = 5000;
+    private static final Timer IMPORT_BATCH_TIMER = Metrics.timer("import.apply_batch");
+    private static final Timer NEAREST_TIMER = Metrics.timer("nearest.query");
+    private static final Timer SEARCH_TIMER = Metrics.timer("search.query");
+    private static final Timer SEARCH_BUILD_TIMER = Metrics.timer("search.build");
+    private static final Timer CORRIDOR_TIMER = Metrics.timer("route.corridor");
+    private static final int SEARCH_RESULTS = 20;
+
+    private static LocationJournal journal;
+    private static MetricsReporter metricsReporter;
+    private static TilePrefetcher tilePrefetcher;
+
     private MapView map;
-    private JSONArray locationsArray;
+    // Guards store, spatialIndex and clusterIndex. The UI thread is their only writer and holds it
+    // while writing; the filter worker holds it while reading.
+    private final Object dataLock = new Object();
+    private final LocationStore store = new LocationStore();
+    // Published copy of the store that any thread may read without dataLock, with the undo stack.
+    private final LocationHistory history = new LocationHistory();
+    private boolean locationsLoaded = false;
+    private boolean firstFrameShown = false;
+    // Dataset callbacks that arrived before the map's first frame; run right after it.
+    private final List<Runnable> untilFirstFrame = new ArrayList<>();
+    private boolean markersShown = false;
+    private SpatialGrid spatialIndex = new SpatialGrid();
+    private MarkerLayer<Integer> markerLayer;
+    private MarkerLayer<Long> clusterLayer;
+    private final ExecutorService clusterExecutor = Executors.newSingleThreadExecutor();
+    private ClusterIndex clusterIndex;
+    private int clusterGeneration;
+    private final List<Consumer<ClusterIndex>> pendingClusterUpdates = new ArrayList<>();
+    private int[] statusColors;
+    private final ExecutorService filterExecutor = Executors.newSingleThreadExecutor();
+    private final ExecutorService importExecutor = Executors.newSingleThreadExecutor();
+    private final ExecutorService pagingExecutor = Executors.newSingleThreadExecutor();
+    // Set when the dataset is too large to hold in memory. The store then only has the partitions
+    // around what is shown, paged in and out on pagingExecutor; clusters still cover everything.
+    private LocationPartitions partitions;
+    private PartitionPager pager;
+    // Records edited since the partitions were written stay in the store and override their copy on
+    // disk. Guarded by dataLock.
+    private final Set<Integer> editedIds = new HashSet<>();
+    // Latest box to page in while one is waiting for pagingExecutor.
+    private final AtomicReference<double[]> pendingPage = new AtomicReference<>();
+    private boolean pagingChangedStore;
+    private int pagedOutSinceTrim;
+    private RefreshPipeline<FilterRequest, VisibleSet> refreshPipeline;
+    private boolean refreshPending = false;
+    private CustomInfoWindow infoWindow;
     private LocationManager locationManager;
     private GeoPoint myLocation;
-    private Marker myLocationMarker;
+    private AdaptiveLocation adaptiveLocation;
+    // Centre of the 4 km zone; lags myLocation by up to ZONE_REQUERY_METERS.
+    private GeoPoint zoneCenter;
+    private MyLocationOverlay myLocationOverlay;
+    // Moving fixes carry a reliable course; otherwise the arrow follows the compass.
+    private boolean headingFromFix = false;
     private boolean isFirstLocationUpdate = true;
+    private GeoPoint lastPrefetchCenter;
+    private final int[] nearestSlots = new int[NEAREST_COUNT];
+    private final double[] nearestDistances = new double[NEAREST_COUNT];
+    private final int[] nearestIds = new int[NEAREST_COUNT];
+    private int nearestCount;
+    private final SpatialGrid.SlotFilter nearestFilter =
+            slot -> (NEAREST_STATUS_MASK & LocationStatus.mask(store.statusCode(slot))) != 0;
+    // Non-null while the nearest-points list is showing; refreshed on every location fix.
+    private ArrayAdapter<String> nearestAdapter;
+    private Polyline routeLine;
+    // Vertices tapped so far while a route is being drawn; null otherwise.
+    private List<GeoPoint> routePoints;
+    private Snackbar routeHint;
+    private Snackbar writeFailingHint;
+    private SearchIndex searchIndex;
+    // Edits made while the search index is built, replayed onto it once it is ready.
+    private final List<Consumer<SearchIndex>> pendingSearchUpdates = new ArrayList<>();
+    private EditText searchInput;
+    private CheckBox searchUseFilters;
+    private ListView searchResults;
+    private ArrayAdapter<String> searchAdapter;
+    private final List<Integer> searchHitIds = new ArrayList<>();
+    private SharedPreferences viewCounts;
+    private LocationSync locationSync;
+    private ConnectivityManager.NetworkCallback networkCallback;
+    private final Runnable syncRunnable = () -> locationSync.requestSync();
     private CompassOverlay mCompassOverlay;
     private Spinner distanceFilterSpinner;
     private Spinner statusFilterSpinner;
     private String currentDistanceFilter = "Mundial";
-    private String currentStatusFilter = "Todos";
+    private int currentStatusMask = LocationStatus.ALL_MASK;
+    private int statusFilterPosition = 0;
+    private boolean hasViewport = false;
+    private double viewSouth;
+    private double viewWest;
+    private double viewNorth;
+    private double viewEast;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
-
-        Configuration.getInstance().load(getApplicationContext(),
-                PreferenceManager.getDefaultSharedPreferences(getApplicationContext()));
+        Trace.beginSection("MainActivity.onCreate");
+        // The dataset starts loading while osmdroid finishes configuring; its callbacks are held
+        // until the map has drawn its first frame.
+        Startup.begin(this);
+        setupMetrics();
+        loadLocations();
+        Startup.awaitConfiguration();
 
         setContentView(R.layout.activity_main);
 
         map = findViewById(R.id.map);
         map.setMultiTouchControls(true);
-
-        mCompassOverlay = new CompassOverlay(this, new InternalCompassOrientationProvider(this), map);
-        mCompassOverlay.enableCompass();
-        map.getOverlays().add(mCompassOverlay);
+        watchFirstFrame();
+        setupTiles();
+        infoWindow = new CustomInfoWindow(R.layout.custom_info_window, map);
+        markerLayer = new MarkerLayer<>(map, this::bindMarker);
+        clusterLayer = new MarkerLayer<>(map, this::bindCluster);
+        myLocationOverlay = new MyLocationOverlay(map, getResources().getDisplayMetrics().density);
+        map.getOverlays().add(myLocationOverlay);
+        markerLayer.keepBelow(myLocationOverlay);
+        clusterLayer.keepBelow(myLocationOverlay);
+        refreshPipeline = new RefreshPipeline<>(filterExecutor, this::runOnUiThread, this::computeVisible, this::applyVisible);
+        // Indexed by status code + 1, matching ClusterIndex's status slots.
+        statusColors = new int[]{0xFF9E9E9E, getColor(R.color.status_excelente), getColor(R.color.status_bueno),
+                getColor(R.color.status_decente), getColor(R.color.status_deplorable)};
+
+        afterFirstFrame(this::setupCompass);
 
         distanceFilterSpinner = findViewById(R.id.distance_filter_spinner);
         statusFilterSpinner = findViewById(R.id.status_filter_spinner);
         setupFilters();
+        setupSearch();
 
         FloatingActionButton fab = findViewById(R.id.fab_my_location);
         fab.setOnClickListener(v -> {
@@ -87,6 +289,15 @@ public class MainActivity extends AppCompatActivity implements LocationListener
                 map.getController().animateTo(myLocation);
             }
         });
+        findViewById(R.id.fab_import).setOnClickListener(v -> pickImportFile());
+        findViewById(R.id.fab_nearest).setOnClickListener(v -> showNearestDialog());
+        findViewById(R.id.fab_route).setOnClickListener(v -> onRouteClicked());
+        if (Metrics.isEnabled()) {
+            fab.setOnLongClickListener(v -> {
+                startActivity(new Intent(this, MetricsActivity.class));
+                return true;
+            });
+        }
 
         if (ActivityCompat.checkSelfPermission(this, Manifest.permission.ACCESS_FINE_LOCATION) != PackageManager.PERMISSION_GRANTED && ActivityCompat.checkSelfPermission(this, Manifest.permission.ACCESS_COARSE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
             ActivityCompat.requestPermissions(this, new String[]{Manifest.permission.ACCESS_FINE_LOCATION, Manifest.permission.ACCESS_COARSE_LOCATION}, 1);
@@ -97,6 +308,12 @@ public class MainActivity extends AppCompatActivity implements LocationListener
         MapEventsReceiver mReceive = new MapEventsReceiver() {
             @Override
             public boolean singleTapConfirmedHelper(GeoPoint p) {
+                if (routePoints != null) {
+                    routePoints.add(p);
+                    routeLine.addPoint(p);
+                    map.invalidate();
+                    return true;
+                }
                 InfoWindow.closeAllInfoWindowsOn(map);
                 return true;
             }
@@ -110,7 +327,176 @@ public class MainActivity extends AppCompatActivity implements LocationListener
         MapEventsOverlay OverlayEvents = new MapEventsOverlay(mReceive);
         map.getOverlays().add(0, OverlayEvents); // Add at the beginning
 
-        loadLocations();
+        map.addOnFirstLayoutListener((v, left, top, right, bottom) -> refreshMarkers());
+        map.addMapListener(new DelayedMapListener(new MapListener() {
+            @Override
+            public boolean onScroll(ScrollEvent event) {
+                onViewportChanged();
+                return false;
+            }
+
+            @Override
+            public boolean onZoom(ZoomEvent event) {
+                onViewportChanged();
+                return false;
+            }
+        }, VIEWPORT_DEBOUNCE_MS));
+        Trace.endSection();
+    }
+
+    /** One sensor feeds both the compass rose and, while standing still, the location arrow. */
+    private void setupCompass() {
+        if (isDestroyed()) return;
+        InternalCompassOrientationProvider sensor = new InternalCompassOrientationProvider(this);
+        int displayRotation = 90 * getWindowManager().getDefaultDisplay().getRotation();
+        mCompassOverlay = new CompassOverlay(this, new IOrientationProvider() {
+            @Override
+            public boolean startOrientationProvider(IOrientationConsumer consumer) {
+                return sensor.startOrientationProvider((orientation, source) -> {
+                    consumer.onOrientationChanged(orientation, source);
+                    if (!headingFromFix) {
+                        myLocationOverlay.setBearing(orientation + displayRotation);
+                    }
+                });
+            }
+
+            @Override
+            public void stopOrientationProvider() {
+                sensor.stopOrientationProvider();
+            }
+
+            @Override
+            public float getLastKnownOrientation() {
+                return sensor.getLastKnownOrientation();
+            }
+
+            @Override
+            public void destroy() {
+                sensor.destroy();
+            }
+        }, map);
+        mCompassOverlay.enableCompass();
+        map.getOverlays().add(mCompassOverlay);
+    }
+
+    private void watchFirstFrame() {
+        map.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                map.getViewTreeObserver().removeOnPreDrawListener(this);
+                // Posted from the pre-draw pass, so it runs once this frame is on screen.
+                map.post(() -> {
+                    firstFrameShown = true;
+                    Startup.mapShown();
+                    for (Runnable task : untilFirstFrame) {
+                        task.run();
+                    }
+                    untilFirstFrame.clear();
+                });
+                return true;
+            }
+        });
+    }
+
+    /** Runs {@code task} on the UI thread, but not before the map's first frame. */
+    private void afterFirstFrame(Runnable task) {
+        runOnUiThread(() -> {
+            if (firstFrameShown) {
+                task.run();
+            } else {
+                untilFirstFrame.add(task);
+            }
+        });
+    }
+
+    private void onMarkersShown() {
+        if (markersShown) return;
+        markersShown = true;
+        Startup.firstMarker();
+        reportFullyDrawn();
+    }
+
+    /**
+     * Metrics are only collected in debuggable builds; release builds pay a volatile read per
+     * recording site. Reports go to logcat and to {@code metrics.txt} every minute while visible.
+     */
+    private void setupMetrics() {
+        Metrics.setEnabled((getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0);
+        if (metricsReporter == null) {
+            File reportFile = new File(getApplicationContext().getFilesDir(), "metrics.txt");
+            metricsReporter = new MetricsReporter(report -> {
+                Log.i("AppMapMetrics", report);
+                try (Writer out = new FileWriter(reportFile)) {
+                    out.write(report);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+        }
+    }
+
+    /**
+     * Tiles come from a bounded cache in {@code files/tiles}, filled on demand and by
+     * {@link #prefetchTiles()}. The tile server is {@code R.string.tile_url_template}; while it is
+     * empty osmdroid's default provider is left in place and nothing is prefetched.
+     */
+    private void setupTiles() {
+        viewCounts = getSharedPreferences("location_views", MODE_PRIVATE);
+        String urlTemplate = getString(R.string.tile_url_template);
+        if (urlTemplate.isEmpty()) return;
+        if (tilePrefetcher == null) {
+            Context appContext = getApplicationContext();
+            TileCache cache = new TileCache(new File(appContext.getFilesDir(), "tiles"), TILE_CACHE_BYTES);
+            tilePrefetcher = new TilePrefetcher(cache, urlTemplate, Configuration.getInstance().getUserAgentValue());
+        }
+        map.setTileProvider(new MapTileProviderArray(TileSourceFactory.MAPNIK, new SimpleRegisterReceiver(this),
+                new MapTileModuleProviderBase[]{new CachedTileModule(tilePrefetcher, TileSourceFactory.MAPNIK)}));
+    }
+
+    /**
+     * Caches the 4 km zone around the user and the most viewed saved points for offline use.
+     * Only with a tile server configured and on unmetered networks; each run replaces the previous one.
+     */
+    private void prefetchTiles() {
+        if (tilePrefetcher == null) return;
+        ConnectivityManager connectivity = getSystemService(ConnectivityManager.class);
+        if (connectivity == null || connectivity.isActiveNetworkMetered()) return;
+
+        List<GeoPoint> centers = new ArrayList<>();
+        if (myLocation != null) {
+            centers.add(myLocation);
+        }
+        for (int id : mostViewedIds(PREFETCH_VIEWED_LOCATIONS)) {
+            int slot = store.slotOf(id);
+            if (slot >= 0) {
+                centers.add(new GeoPoint(store.latitude(slot), store.longitude(slot)));
+            }
+        }
+        if (centers.isEmpty()) return;
+
+        double[] latitudes = new double[centers.size()];
+        double[] longitudes = new double[centers.size()];
+        for (int i = 0; i < centers.size(); i++) {
+            latitudes[i] = centers.get(i).getLatitude();
+            longitudes[i] = centers.get(i).getLongitude();
+        }
+        tilePrefetcher.prefetch(latitudes, longitudes, ZONE_RADIUS_METERS, PREFETCH_MIN_ZOOM, PREFETCH_MAX_ZOOM);
+        lastPrefetchCenter = myLocation;
+    }
+
+    private List<Integer> mostViewedIds(int limit) {
+        List<Map.Entry<String, ?>> entries = new ArrayList<>(viewCounts.getAll().entrySet());
+        entries.sort((a, b) -> Integer.compare((Integer) b.getValue(), (Integer) a.getValue()));
+        List<Integer> ids = new ArrayList<>();
+        for (int i = 0; i < entries.size() && i < limit; i++) {
+            ids.add(Integer.parseInt(entries.get(i).getKey()));
+        }
+        return ids;
+    }
+
+    private void recordView(int id) {
+        String key = String.valueOf(id);
+        viewCounts.edit().putInt(key, viewCounts.getInt(key, 0) + 1).apply();
     }
 
     private void setupFilters() {
@@ -128,8 +514,17 @@ public class MainActivity extends AppCompatActivity implements LocationListener
             @Override
             public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
                 currentDistanceFilter = distanceFilterSpinner.getSelectedItem().toString();
-                currentStatusFilter = statusFilterSpinner.getSelectedItem().toString();
-                refreshMarkers();
+                if (parent == statusFilterSpinner) {
+                    String statusFilter = statusFilterSpinner.getSelectedItem().toString();
+                    if (statusFilter.equals(MULTI_STATUS_FILTER)) {
+                        showStatusChoiceDialog();
+                        return;
+                    }
+                    statusFilterPosition = position;
+                    currentStatusMask = statusFilter.equals("Todos")
+                            ? LocationStatus.ALL_MASK : LocationStatus.mask(LocationStatus.codeOf(statusFilter));
+                }
+                applyFilters();
             }
 
             @Override
@@ -141,44 +536,403 @@ public class MainActivity extends AppCompatActivity implements LocationListener
         statusFilterSpinner.setOnItemSelectedListener(filterListener);
     }
 
+    private void applyFilters() {
+        refreshMarkers();
+        clusterLayer.rebindAll();
+        if (searchUseFilters.isChecked()) {
+            runSearch();
+        }
+        if (adaptiveLocation != null) {
+            adaptiveLocation.setZoneMode(currentDistanceFilter.equals("Por Zona (4km)"));
+        }
+    }
+
+    private void setupSearch() {
+        searchInput = findViewById(R.id.search_input);
+        searchUseFilters = findViewById(R.id.search_use_filters);
+        searchResults = findViewById(R.id.search_results);
+        searchAdapter = new ArrayAdapter<>(this, android.R.layout.simple_list_item_1, new ArrayList<>());
+        searchResults.setAdapter(searchAdapter);
+        searchResults.setOnItemClickListener((parent, view, position, id) -> goToSearchHit(position));
+        searchUseFilters.setOnCheckedChangeListener((button, checked) -> runSearch());
+        searchInput.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                runSearch();
+            }
+        });
+    }
+
+    /**
+     * Runs on every keystroke: the index answers in a few milliseconds, so there is no debounce.
+     * With "Con filtros" checked only locations passing the status filter, and the zone in zone
+     * mode, are listed.
+     */
+    private void runSearch() {
+        String query = searchInput.getText().toString();
+        searchAdapter.setNotifyOnChange(false);
+        searchAdapter.clear();
+        searchHitIds.clear();
+        if (searchIndex != null && !query.trim().isEmpty()) {
+            long start = SEARCH_TIMER.start();
+            List<SearchIndex.Hit> hits = searchIndex.search(query, SEARCH_RESULTS,
+                    searchUseFilters.isChecked() ? this::matchesSearchFilters : null);
+            SEARCH_TIMER.stop(start);
+            for (SearchIndex.Hit hit : hits) {
+                int slot = store.slotOf(hit.id);
+                String status = LocationStatus.labelOf(store.statusCode(slot));
+                searchHitIds.add(hit.id);
+                searchAdapter.add(store.title(slot) + (status != null ? " · " + status : ""));
+            }
+        }
+        searchAdapter.notifyDataSetChanged();
+        searchResults.setVisibility(searchHitIds.isEmpty() ? View.GONE : View.VISIBLE);
+    }
+
+    private boolean matchesSearchFilters(int id) {
+        int slot = store.slotOf(id);
+        if (slot < 0 || !matchesStatus(slot, currentStatusMask)) return false;
+        if (!currentDistanceFilter.equals("Por Zona (4km)")) return true;
+        return zoneCenter != null && SpatialGrid.distanceMeters(zoneCenter.getLatitude(), zoneCenter.getLongitude(),
+                store.latitude(slot), store.longitude(slot)) <= ZONE_RADIUS_METERS;
+    }
+
+    private void goToSearchHit(int position) {
+        int slot = position < searchHitIds.size() ? store.slotOf(searchHitIds.get(position)) : -1;
+        if (slot < 0) return;
+        searchResults.setVisibility(View.GONE);
+        searchInput.clearFocus();
+        getSystemService(InputMethodManager.class).hideSoftInputFromWindow(searchInput.getWindowToken(), 0);
+        map.getController().animateTo(new GeoPoint(store.latitude(slot), store.longitude(slot)), NEAREST_ZOOM,
+                CLUSTER_ZOOM_ANIMATION_MS);
+    }
+
+    /** Indexes the published snapshot off the UI thread; edits made meanwhile are queued. */
+    private void buildSearchIndex() {
+        LocationSnapshot snapshot = history.snapshot();
+        importExecutor.execute(() -> {
+            long start = SEARCH_BUILD_TIMER.start();
+            SearchIndex built = new SearchIndex();
+            snapshot.forEach(record -> built.put(record.id, record.title, record.descripcion));
+            SEARCH_BUILD_TIMER.stop(start);
+            runOnUiThread(() -> {
+                if (isDestroyed()) return;
+                for (Consumer<SearchIndex> update : pendingSearchUpdates) {
+                    update.accept(built);
+                }
+                pendingSearchUpdates.clear();
+                searchIndex = built;
+                runSearch();
+            });
+        });
+    }
+
+    private void updateSearch(Consumer<SearchIndex> update) {
+        if (searchIndex != null) {
+            update.accept(searchIndex);
+        } else {
+            pendingSearchUpdates.add(update);
+        }
+    }
+
+    private void indexForSearch(LocationRecord record) {
+        int id = record.id;
+        String title = record.title;
+        String description = record.descripcion;
+        updateSearch(index -> index.put(id, title, description));
+    }
+
+    private void showStatusChoiceDialog() {
+        LocationStatus[] statuses = LocationStatus.values();
+        boolean[] checked = new boolean[statuses.length];
+        for (LocationStatus status : statuses) {
+            checked[status.code()] = (currentStatusMask & LocationStatus.mask(status.code())) != 0;
+        }
+        boolean[] applied = {false};
+        new AlertDialog.Builder(this)
+                .setTitle("Filtrar por estado")
+                .setMultiChoiceItems(R.array.status_array, checked, (dialog, which, isChecked) -> checked[which] = isChecked)
+                .setPositiveButton("Aplicar", (dialog, which) -> {
+                    int mask = 0;
+                    for (LocationStatus status : statuses) {
+                        if (checked[status.code()]) {
+                            mask |= LocationStatus.mask(status.code());
+                        }
+                    }
+                    applied[0] = true;
+                    currentStatusMask = mask;
+                    applyFilters();
+                })
+                .setNegativeButton("Cancelar", null)
+                .setOnDismissListener(dialog -> {
+                    if (!applied[0]) {
+                        statusFilterSpinner.setSelection(statusFilterPosition);
+                    }
+                })
+                .show();
+    }
+
+    /** Provider and rate follow the filter mode, movement and battery; see {@link AdaptiveLocation}. */
     private void setupLocation() {
         locationManager = (LocationManager) getSystemService(Context.LOCATION_SERVICE);
         if (ActivityCompat.checkSelfPermission(this, Manifest.permission.ACCESS_FINE_LOCATION) == PackageManager.PERMISSION_GRANTED || ActivityCompat.checkSelfPermission(this, Manifest.permission.ACCESS_COARSE_LOCATION) == PackageManager.PERMISSION_GRANTED) {
-            locationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, 1000, 5, this);
+            adaptiveLocation = new AdaptiveLocation(this, locationManager, this);
+            adaptiveLocation.setZoneMode(currentDistanceFilter.equals("Por Zona (4km)"));
+            adaptiveLocation.start();
         }
     }
 
     @Override
     public void onLocationChanged(Location location) {
         myLocation = new GeoPoint(location.getLatitude(), location.getLongitude());
+        adaptiveLocation.onFix(location);
         if (isFirstLocationUpdate && map != null) {
             map.getController().setCenter(myLocation);
             map.getController().setZoom(15.0);
             isFirstLocationUpdate = false;
         }
-        updateMyLocationMarker(location.getBearing());
+        // Network fixes carry no speed or bearing; both are then estimated from earlier fixes.
+        float bearing = adaptiveLocation.bearing();
+        headingFromFix = !Float.isNaN(bearing) && adaptiveLocation.speed() >= HEADING_FROM_FIX_MIN_SPEED;
+        if (headingFromFix) {
+            myLocationOverlay.setBearing(bearing);
+        }
+        myLocationOverlay.setLocation(myLocation);
+        if (locationsLoaded && (lastPrefetchCenter == null || SpatialGrid.distanceMeters(lastPrefetchCenter.getLatitude(),
+                lastPrefetchCenter.getLongitude(), myLocation.getLatitude(), myLocation.getLongitude()) > PREFETCH_MOVE_METERS)) {
+            prefetchTiles();
+        }
 
-        if (currentDistanceFilter.equals("Por Zona (4km)")) {
-            refreshMarkers();
+        if (zoneCenter == null || SpatialGrid.distanceMeters(zoneCenter.getLatitude(), zoneCenter.getLongitude(),
+                myLocation.getLatitude(), myLocation.getLongitude()) >= ZONE_REQUERY_METERS) {
+            zoneCenter = myLocation;
+            if (currentDistanceFilter.equals("Por Zona (4km)")) {
+                refreshMarkers();
+            }
+        }
+        if (nearestAdapter != null) {
+            updateNearest(myLocation);
+            showNearest();
         }
     }
 
-    private void updateMyLocationMarker(float bearing) {
-        if (map == null) return;
-        if (myLocationMarker == null) {
-            myLocationMarker = new Marker(map);
-            myLocationMarker.setAnchor(Marker.ANCHOR_CENTER, Marker.ANCHOR_CENTER);
-            myLocationMarker.setTitle("Mi Ubicación");
-            myLocationMarker.setIcon(getResources().getDrawable(android.R.drawable.ic_menu_send));
-            map.getOverlays().add(myLocationMarker);
-        } else {
-             if(!map.getOverlays().contains(myLocationMarker)){
-                  map.getOverlays().add(myLocationMarker);
-             }
+    private void showNearestDialog() {
+        GeoPoint centre = myLocation;
+        if (centre == null) {
+            IGeoPoint mapCentre = map.getMapCenter();
+            centre = new GeoPoint(mapCentre.getLatitude(), mapCentre.getLongitude());
         }
-        myLocationMarker.setPosition(myLocation);
-        myLocationMarker.setRotation(bearing);
-        map.invalidate();
+        updateNearest(centre);
+        if (nearestCount == 0) {
+            Toast.makeText(this, "No hay puntos en estado Bueno o mejor", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        nearestAdapter = new ArrayAdapter<>(this, android.R.layout.simple_list_item_1, new ArrayList<>());
+        showNearest();
+        new AlertDialog.Builder(this)
+                .setTitle(myLocation != null ? "Más cercanos (Bueno o mejor)" : "Más cercanos al centro del mapa")
+                .setAdapter(nearestAdapter, (dialog, which) -> goToNearest(which))
+                .setNegativeButton("Cerrar", null)
+                .setOnDismissListener(dialog -> nearestAdapter = null)
+                .show();
+    }
+
+    /** Cheap enough to run on every location fix: a ring search over the grid, nothing allocated per point. */
+    private void updateNearest(GeoPoint centre) {
+        long start = NEAREST_TIMER.start();
+        nearestCount = spatialIndex.nearest(centre.getLatitude(), centre.getLongitude(), NEAREST_COUNT, Double.POSITIVE_INFINITY,
+                store.latitudes(), store.longitudes(), nearestFilter, nearestSlots, nearestDistances);
+        for (int i = 0; i < nearestCount; i++) {
+            nearestIds[i] = store.id(nearestSlots[i]);
+        }
+        NEAREST_TIMER.stop(start);
+    }
+
+    private void showNearest() {
+        nearestAdapter.setNotifyOnChange(false);
+        nearestAdapter.clear();
+        for (int i = 0; i < nearestCount; i++) {
+            int slot = nearestSlots[i];
+            double meters = nearestDistances[i];
+            String distance = meters < 1000 ? Math.round(meters) + " m" : String.format("%.1f km", meters / 1000);
+            nearestAdapter.add(store.title(slot) + " · " + distance + " · " + store.status(slot).label());
+        }
+        nearestAdapter.notifyDataSetChanged();
+    }
+
+    private void goToNearest(int position) {
+        int slot = position < nearestCount ? store.slotOf(nearestIds[position]) : -1;
+        if (slot < 0) return;
+        map.getController().animateTo(new GeoPoint(store.latitude(slot), store.longitude(slot)), NEAREST_ZOOM,
+                CLUSTER_ZOOM_ANIMATION_MS);
+    }
+
+    private void onRouteClicked() {
+        if (routePoints != null) {
+            finishDrawnRoute();
+            return;
+        }
+        if (!checkLocationsLoaded()) return;
+        List<String> options = new ArrayList<>(Arrays.asList("Dibujar ruta en el mapa", "Cargar GPX"));
+        if (routeLine != null) options.add("Quitar ruta");
+        new AlertDialog.Builder(this)
+                .setTitle("Puntos en una ruta")
+                .setItems(options.toArray(new String[0]), (dialog, which) -> {
+                    clearRoute();
+                    if (which == 0) {
+                        startDrawingRoute();
+                    } else if (which == 1) {
+                        Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
+                        intent.addCategory(Intent.CATEGORY_OPENABLE);
+                        intent.setType("*/*");
+                        intent.putExtra(Intent.EXTRA_MIME_TYPES, ROUTE_MIME_TYPES);
+                        startActivityForResult(intent, RC_ROUTE);
+                    }
+                })
+                .show();
+    }
+
+    /** Kept up while edits cannot be saved; the journal retries them until they are. */
+    private void showWriteFailing(boolean failing) {
+        if (isDestroyed()) return;
+        if (!failing) {
+            if (writeFailingHint != null) writeFailingHint.dismiss();
+            writeFailingHint = null;
+        } else if (writeFailingHint == null) {
+            writeFailingHint = Snackbar.make(map, "No se pudieron guardar los cambios. Se reintentará.",
+                    Snackbar.LENGTH_INDEFINITE);
+            writeFailingHint.show();
+        }
+    }
+
+    private void startDrawingRoute() {
+        routePoints = new ArrayList<>();
+        routeLine = newRouteLine();
+        routeHint = Snackbar.make(map, "Toca el mapa para trazar la ruta", Snackbar.LENGTH_INDEFINITE)
+                .setAction("Buscar", v -> finishDrawnRoute());
+        routeHint.show();
+    }
+
+    private void finishDrawnRoute() {
+        List<GeoPoint> points = routePoints;
+        routePoints = null;
+        routeHint.dismiss();
+        if (points.size() < 2) {
+            Toast.makeText(this, "La ruta necesita al menos dos puntos", Toast.LENGTH_SHORT).show();
+            clearRoute();
+            return;
+        }
+        double[] latitudes = new double[points.size()];
+        double[] longitudes = new double[points.size()];
+        for (int i = 0; i < points.size(); i++) {
+            latitudes[i] = points.get(i).getLatitude();
+            longitudes[i] = points.get(i).getLongitude();
+        }
+        askCorridorWidth(new RouteCorridor(latitudes, longitudes, points.size()));
+    }
+
+    private void loadRoute(Uri uri) {
+        importExecutor.execute(() -> {
+            try (InputStream in = getContentResolver().openInputStream(uri)) {
+                RouteCorridor route = RouteCorridor.readGpx(in);
+                runOnUiThread(() -> {
+                    routeLine = newRouteLine();
+                    double[][] vertices = route.vertices();
+                    List<GeoPoint> points = new ArrayList<>(vertices[0].length);
+                    for (int i = 0; i < vertices[0].length; i++) {
+                        points.add(new GeoPoint(vertices[0][i], vertices[1][i]));
+                    }
+                    routeLine.setPoints(points);
+                    map.invalidate();
+                    askCorridorWidth(route);
+                });
+            } catch (IOException e) {
+                e.printStackTrace();
+                runOnUiThread(() -> Toast.makeText(this, "No se pudo leer la ruta: " + e.getMessage(),
+                        Toast.LENGTH_LONG).show());
+            }
+        });
+    }
+
+    private Polyline newRouteLine() {
+        Polyline line = new Polyline(map);
+        line.getOutlinePaint().setColor(0xCC1976D2);
+        line.getOutlinePaint().setStrokeWidth(6 * getResources().getDisplayMetrics().density);
+        // Drawn under the markers, just above the tap handler at index 0.
+        map.getOverlays().add(1, line);
+        return line;
+    }
+
+    private void clearRoute() {
+        routePoints = null;
+        if (routeLine != null) {
+            map.getOverlays().remove(routeLine);
+            routeLine = null;
+            map.invalidate();
+        }
+    }
+
+    private void askCorridorWidth(RouteCorridor route) {
+        String[] labels = new String[CORRIDOR_METERS.length];
+        for (int i = 0; i < labels.length; i++) {
+            int meters = CORRIDOR_METERS[i];
+            labels[i] = "A menos de " + (meters < 1000 ? meters + " m" : meters / 1000 + " km");
+        }
+        new AlertDialog.Builder(this)
+                .setTitle(String.format("Ruta de %.1f km", route.length() / 1000))
+                .setItems(labels, (dialog, which) -> queryCorridor(route, CORRIDOR_METERS[which]))
+                .show();
+    }
+
+    /** Runs the corridor query off the UI thread; titles are read back on it, since they decode lazily. */
+    private void queryCorridor(RouteCorridor route, double meters) {
+        int statusMask = currentStatusMask;
+        filterExecutor.execute(() -> {
+            int[] ids;
+            RouteCorridor.Hits hits;
+            synchronized (dataLock) {
+                long start = CORRIDOR_TIMER.start();
+                hits = route.query(spatialIndex, store.latitudes(), store.longitudes(), meters,
+                        slot -> matchesStatus(slot, statusMask));
+                ids = new int[hits.count];
+                for (int i = 0; i < hits.count; i++) {
+                    ids[i] = store.id(hits.slots[i]);
+                }
+                CORRIDOR_TIMER.stop(start);
+            }
+            runOnUiThread(() -> showCorridor(ids, hits));
+        });
+    }
+
+    private void showCorridor(int[] ids, RouteCorridor.Hits hits) {
+        if (ids.length == 0) {
+            Toast.makeText(this, "No hay puntos cerca de la ruta", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        List<String> rows = new ArrayList<>(ids.length);
+        for (int i = 0; i < ids.length; i++) {
+            int slot = store.slotOf(ids[i]);
+            String title = slot >= 0 ? store.title(slot) : "(eliminado)";
+            rows.add(String.format("%s · km %.1f · a %d m", title, hits.along[i] / 1000, Math.round(hits.offsets[i])));
+        }
+        new AlertDialog.Builder(this)
+                .setTitle(ids.length + " puntos en la ruta")
+                .setItems(rows.toArray(new String[0]), (dialog, which) -> {
+                    int slot = store.slotOf(ids[which]);
+                    if (slot < 0) return;
+                    map.getController().animateTo(new GeoPoint(store.latitude(slot), store.longitude(slot)), NEAREST_ZOOM,
+                            CLUSTER_ZOOM_ANIMATION_MS);
+                })
+                .setNegativeButton("Cerrar", null)
+                .show();
     }
 
     @Override
@@ -212,167 +966,931 @@ public class MainActivity extends AppCompatActivity implements LocationListener
             String newTitle = editTitle.getText().toString();
             String newDescription = editDescription.getText().toString();
             String newStatus = statusSpinner.getSelectedItem().toString();
-            saveLocation(newTitle, newStatus, newDescription, p, true, null);
+            saveLocation(newTitle, newStatus, newDescription, p, true, 0);
         });
         builder.setNegativeButton("Cancelar", (dialog, which) -> dialog.cancel());
 
         builder.show();
     }
 
-    private void saveLocation(String title, String status, String description, GeoPoint p, boolean isPublic, JSONObject existingLocation) {
-        try {
-            JSONObject locationToSave;
-            if (existingLocation == null) {
-                locationToSave = new JSONObject();
-            } else {
-                locationToSave = existingLocation;
-            }
-
-            locationToSave.put("title", title);
-            locationToSave.put("estado", status);
-            locationToSave.put("descripcion", description);
-            locationToSave.put("latitude", p.getLatitude());
-            locationToSave.put("longitude", p.getLongitude());
-            locationToSave.put("es_publico", isPublic);
+    private void saveLocation(String title, String status, String description, GeoPoint p, boolean isPublic, int existingId) {
+        if (!checkLocationsLoaded()) return;
+        LocationRecord locationToSave = new LocationRecord(title, status, description, p.getLatitude(), p.getLongitude(), isPublic);
+        int id = putLocation(locationToSave, existingId, true);
+        if (locationSync != null) {
+            locationSync.recordChanged(id);
+            scheduleSync();
+        }
+        refreshMarkers();
+        clusterLayer.rebindAll();
+        showUndo(existingId > 0 ? "Ubicación actualizada" : "Ubicación guardada");
+    }
 
-            if (existingLocation == null) {
-                locationsArray.put(locationToSave);
+    /**
+     * Adds {@code record}, or replaces the one with {@code existingId} if there is one. Returns its id.
+     * Undoable edits can be reverted from the snackbar.
+     */
+    private int putLocation(LocationRecord record, int existingId, boolean undoable) {
+        int existingSlot = store.slotOf(existingId);
+        if (existingSlot < 0) {
+            synchronized (dataLock) {
+                int slot = store.add(record);
+                spatialIndex.insert(slot, record.latitude, record.longitude);
+                addToClusters(slot);
+                if (partitions != null) editedIds.add(record.id);
             }
-
-            writeLocationsToFile();
-            refreshMarkers();
-
-        } catch (JSONException e) {
-            e.printStackTrace();
+            journal.appendAdd(record);
+        } else {
+            record.id = existingId;
+            rememberBeforeEdit(existingSlot);
+            synchronized (dataLock) {
+                if (partitions != null) editedIds.add(existingId);
+                spatialIndex.move(existingSlot, store.latitude(existingSlot), store.longitude(existingSlot),
+                        record.latitude, record.longitude);
+                removeFromClusters(existingSlot);
+                store.set(existingSlot, record);
+                addToClusters(existingSlot);
+            }
+            markerLayer.rebind(existingId);
+            journal.appendUpdate(record);
         }
+        history.put(record, undoable);
+        indexForSearch(record);
+        return record.id;
     }
 
-    private void deleteLocation(JSONObject locationToDelete) {
+    private void deleteLocation(int id) {
          new AlertDialog.Builder(this)
                 .setTitle("Eliminar Ubicación")
                 .setMessage("¿Estás seguro de que quieres eliminar esta ubicación?")
                 .setPositiveButton("Eliminar", (dialog, which) -> {
-                    JSONArray newArray = new JSONArray();
-                    for (int i = 0; i < locationsArray.length(); i++) {
-                        try {
-                            if (!locationsArray.getJSONObject(i).toString().equals(locationToDelete.toString())) {
-                                newArray.put(locationsArray.getJSONObject(i));
-                            }
-                        } catch (JSONException e) {
-                            e.printStackTrace();
-                        }
+                    if (!checkLocationsLoaded() || !removeLocation(id, true)) return;
+                    if (locationSync != null) {
+                        locationSync.recordDeleted(id);
+                        scheduleSync();
                     }
-                    locationsArray = newArray;
-                    writeLocationsToFile();
                     refreshMarkers();
+                    clusterLayer.rebindAll();
+                    showUndo("Ubicación eliminada");
                 })
                 .setNegativeButton("Cancelar", null)
                 .show();
     }
 
+    private boolean removeLocation(int id, boolean undoable) {
+        int slot = store.slotOf(id);
+        if (slot < 0) return false;
+        rememberBeforeEdit(slot);
+        synchronized (dataLock) {
+            if (partitions != null) editedIds.add(id);
+            spatialIndex.remove(slot, store.latitude(slot), store.longitude(slot));
+            removeFromClusters(slot);
+            int moved = store.remove(slot);
+            if (moved >= 0) {
+                spatialIndex.renumber(moved, slot, store.latitude(slot), store.longitude(slot));
+            }
+        }
+        journal.appendDelete(id);
+        history.remove(id, undoable);
+        updateSearch(index -> index.remove(id));
+        viewCounts.edit().remove(String.valueOf(id)).apply();
+        return true;
+    }
+
+    private void showUndo(String message) {
+        Snackbar.make(map, message, Snackbar.LENGTH_LONG)
+                .setAction("Deshacer", v -> undoEdit())
+                .show();
+    }
+
+    private void undoEdit() {
+        LocationHistory.Edit edit = history.undo();
+        if (edit == null || isDestroyed()) return;
+        applyEdit(edit.id, edit.before);
+        Snackbar.make(map, "Cambio deshecho", Snackbar.LENGTH_LONG)
+                .setAction("Rehacer", v -> redoEdit())
+                .show();
+    }
+
+    private void redoEdit() {
+        LocationHistory.Edit edit = history.redo();
+        if (edit == null || isDestroyed()) return;
+        applyEdit(edit.id, edit.after);
+        showUndo("Cambio rehecho");
+    }
+
+    /** Brings location {@code id} back to {@code state}, or deletes it if null, without a new undo entry. */
+    private void applyEdit(int id, LocationRecord state) {
+        if (state == null) {
+            if (!removeLocation(id, false)) return;
+            if (locationSync != null) locationSync.recordDeleted(id);
+        } else {
+            // Copied: the store keeps what it is given, and the history's copy must stay as it was.
+            putLocation(new LocationRecord(state), id, false);
+            if (locationSync != null) locationSync.recordChanged(id);
+        }
+        if (locationSync != null) {
+            scheduleSync();
+        }
+        refreshMarkers();
+        clusterLayer.rebindAll();
+    }
+
     private void loadLocations() {
-        try {
-            File file = new File(getFilesDir(), "locations.json");
-            InputStream is;
-            if (file.exists() && file.length() > 0) {
-                is = new FileInputStream(file);
-            } else {
-                is = getResources().openRawResource(R.raw.locations);
-                FileOutputStream fos = openFileOutput("locations.json", Context.MODE_PRIVATE);
-                byte[] buffer = new byte[1024];
-                int bytesRead;
-                while ((bytesRead = is.read(buffer)) != -1) {
-                    fos.write(buffer, 0, bytesRead);
+        if (journal == null) {
+            Context appContext = getApplicationContext();
+            journal = new LocationJournal(appContext.getFilesDir(),
+                    () -> appContext.getResources().openRawResource(R.raw.locations), seedVersion());
+        }
+        journal.setWriteListener(failing -> runOnUiThread(() -> showWriteFailing(failing)));
+        if (journal.isFailing()) {
+            afterFirstFrame(() -> showWriteFailing(journal.isFailing()));
+        }
+        long loadStart = LOAD_TIMER.start();
+        journal.load(LOAD_CHUNK_SIZE, new LocationJournal.LoadListener() {
+            @Override
+            public boolean onPartitions(LocationPartitions loaded) {
+                if (loaded.totalCount() <= pagingBudget()) return false;
+                afterFirstFrame(() -> startPaging(loaded));
+                return true;
+            }
+
+            @Override
+            public void onSnapshot(MappedSnapshot snapshot) {
+                afterFirstFrame(() -> loadSnapshot(snapshot));
+            }
+
+            @Override
+            public void onChunk(List<LocationRecord> chunk) {
+                // Only when the journal could not write partitions to page from.
+                afterFirstFrame(() -> appendLoadedLocations(chunk));
+            }
+
+            @Override
+            public void onReplay(List<LocationJournal.Entry> entries) {
+                if (!entries.isEmpty()) {
+                    afterFirstFrame(() -> replayJournal(entries));
                 }
-                fos.close();
-                is.close();
-                is = new FileInputStream(file);
             }
 
-            BufferedReader reader = new BufferedReader(new InputStreamReader(is));
-            StringBuilder sb = new StringBuilder();
-            String line;
-            while ((line = reader.readLine()) != null) {
-                sb.append(line);
+            @Override
+            public void onLoaded() {
+                afterFirstFrame(() -> {
+                    LOAD_TIMER.stop(loadStart);
+                    onLocationsLoaded();
+                });
             }
-            is.close();
+        });
+    }
 
-            locationsArray = new JSONArray(sb.toString());
+    /** The bundled seed changes only with the app, so its last update time versions it. */
+    private long seedVersion() {
+        try {
+            return getPackageManager().getPackageInfo(getPackageName(), 0).lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            e.printStackTrace();
+            return 0;
+        }
+    }
+
+    private void loadSnapshot(MappedSnapshot snapshot) {
+        if (isDestroyed()) return;
+        synchronized (dataLock) {
+            store.load(snapshot);
+            rebuildSpatialIndex();
+        }
+        markerLayer.clear();
+        refreshMarkers();
+    }
+
+    private void appendLoadedLocations(List<LocationRecord> chunk) {
+        if (isDestroyed()) return;
+        markerLayer.beginAppend();
+        boolean appended = false;
+        synchronized (dataLock) {
+            for (LocationRecord location : chunk) {
+                int slot = store.add(location);
+                spatialIndex.insert(slot, location.latitude, location.longitude);
+                if (matchesFilters(slot)) {
+                    markerLayer.append(store.id(slot));
+                    appended = true;
+                }
+            }
+        }
+        markerLayer.commitAppend();
+        map.invalidate();
+        if (appended) {
+            onMarkersShown();
+        }
+        if (refreshPending) {
+            // A refresh computed before this chunk would drop the markers just appended.
             refreshMarkers();
+        }
+    }
 
-        } catch (IOException | JSONException e) {
-            e.printStackTrace();
-            locationsArray = new JSONArray();
+    private void replayJournal(List<LocationJournal.Entry> entries) {
+        if (isDestroyed()) return;
+        synchronized (dataLock) {
+            for (LocationJournal.Entry entry : entries) {
+                if (partitions != null) {
+                    replayOverPartitions(entry);
+                } else {
+                    entry.applyTo(store);
+                }
+            }
+            rebuildSpatialIndex();
         }
+        markerLayer.clear();
+        refreshMarkers();
     }
 
-    private void writeLocationsToFile() {
-        try {
-            FileOutputStream fos = openFileOutput("locations.json", Context.MODE_PRIVATE);
-            fos.write(locationsArray.toString(2).getBytes());
-            fos.close();
-        } catch (IOException | JSONException e) {
-            e.printStackTrace();
+    /** Nothing is paged in before the replay, so an update adds the record and a delete only marks it. */
+    private void replayOverPartitions(LocationJournal.Entry entry) {
+        editedIds.add(entry.id);
+        int slot = store.slotOf(entry.id);
+        if (entry.record == null) {
+            if (slot >= 0) store.remove(slot);
+        } else if (slot >= 0) {
+            store.set(slot, entry.record);
+        } else {
+            store.add(entry.record);
         }
     }
 
-    private void refreshMarkers() {
-        if (map == null) return;
-        List<org.osmdroid.views.overlay.Overlay> overlaysToKeep = new ArrayList<>();
-        for (org.osmdroid.views.overlay.Overlay overlay : map.getOverlays()){
-            if (overlay instanceof MapEventsOverlay || overlay instanceof CompassOverlay || overlay == myLocationMarker) {
-                 overlaysToKeep.add(overlay);
+    /** Records the store may hold while paging: {@link #PAGED_RECORDS_PER_HEAP_MB} per MB of heap. */
+    private long pagingBudget() {
+        return (long) getSystemService(ActivityManager.class).getMemoryClass() * PAGED_RECORDS_PER_HEAP_MB;
+    }
+
+    private void startPaging(LocationPartitions loaded) {
+        if (isDestroyed()) return;
+        partitions = loaded;
+        synchronized (dataLock) {
+            // Ids of records not paged in yet must not be handed out again.
+            store.reserveIds(loaded.maxId());
+        }
+        pager = new PartitionPager(loaded, pagingBudget(), new PartitionPager.Loader() {
+            @Override
+            public void pageIn(int partition) throws IOException {
+                List<LocationRecord> records = loaded.read(partition);
+                onUiThread(() -> {
+                    addPagedIn(records);
+                    return null;
+                });
+            }
+
+            @Override
+            public void evict(int partition) throws IOException {
+                int[] ids = residentIdsIn(loaded, partition);
+                onUiThread(() -> {
+                    removePagedOut(ids);
+                    return null;
+                });
+            }
+        });
+    }
+
+    /** Pages in the partitions around the box on {@link #pagingExecutor}, merging calls made meanwhile. */
+    private void pageAround(double south, double west, double north, double east) {
+        if (pager == null || !locationsLoaded) return;
+        if (pendingPage.getAndSet(new double[]{south, west, north, east}) != null) return;
+        PartitionPager current = pager;
+        pagingExecutor.execute(() -> {
+            double[] box = pendingPage.getAndSet(null);
+            current.show(box[0], box[1], box[2], box[3]);
+            runOnUiThread(() -> {
+                if (pagingChangedStore && !isDestroyed()) {
+                    pagingChangedStore = false;
+                    refreshMarkers();
+                }
+            });
+        });
+    }
+
+    private void addPagedIn(List<LocationRecord> records) {
+        if (isDestroyed()) return;
+        List<LocationRecord> added = new ArrayList<>(records.size());
+        synchronized (dataLock) {
+            for (LocationRecord record : records) {
+                // Edited records are in the store already, or deleted, and newer than the copy on disk.
+                if (editedIds.contains(record.id) || store.slotOf(record.id) >= 0) continue;
+                int slot = store.add(record);
+                spatialIndex.insert(slot, record.latitude, record.longitude);
+                added.add(record);
+            }
+        }
+        for (LocationRecord record : added) {
+            indexForSearch(record);
+        }
+        pagingChangedStore = true;
+    }
+
+    /** Ids of the unedited records of {@code partition} in the store. Runs on {@link #pagingExecutor}. */
+    private int[] residentIdsIn(LocationPartitions loaded, int partition) {
+        synchronized (dataLock) {
+            int[] ids = new int[store.size()];
+            int count = 0;
+            for (int slot = 0; slot < store.size(); slot++) {
+                int id = store.id(slot);
+                if (!editedIds.contains(id) && loaded.partitionOf(store.latitude(slot), store.longitude(slot)) == partition) {
+                    ids[count++] = id;
+                }
+            }
+            return Arrays.copyOf(ids, count);
+        }
+    }
+
+    private void removePagedOut(int[] ids) {
+        if (isDestroyed()) return;
+        List<Integer> removed = new ArrayList<>(ids.length);
+        synchronized (dataLock) {
+            for (int id : ids) {
+                int slot = store.slotOf(id);
+                if (slot < 0 || editedIds.contains(id)) continue;
+                spatialIndex.remove(slot, store.latitude(slot), store.longitude(slot));
+                int moved = store.remove(slot);
+                if (moved >= 0) {
+                    spatialIndex.renumber(moved, slot, store.latitude(slot), store.longitude(slot));
+                }
+                removed.add(id);
+            }
+            // Once about as many strings are dead as alive, the pool is worth rebuilding.
+            pagedOutSinceTrim += removed.size();
+            if (pagedOutSinceTrim > store.size()) {
+                store.trimStringPool();
+                pagedOutSinceTrim = 0;
             }
         }
-        map.getOverlays().clear();
-        map.getOverlays().addAll(overlaysToKeep);
+        if (!removed.isEmpty()) {
+            // A result computed before this may still list the removed ids; the next one will not.
+            refreshPipeline.invalidate();
+        }
+        for (int id : removed) {
+            updateSearch(index -> index.remove(id));
+        }
+        pagingChangedStore = true;
+    }
 
+    /** Paged-in records are not in the history until first edited; this gives that edit its before state. */
+    private void rememberBeforeEdit(int slot) {
+        if (partitions != null && !history.snapshot().contains(store.id(slot))) {
+            history.put(store.toRecord(slot), false);
+        }
+    }
+
+    private void onLocationsLoaded() {
+        if (isDestroyed()) return;
+        locationsLoaded = true;
+        Startup.locationsLoaded();
+        history.reset(LocationSnapshot.of(store));
+        buildSearchIndex();
+        rebuildClusters();
+        prefetchTiles();
+        setupSync();
+        if (partitions != null) {
+            refreshMarkers();
+        }
+    }
+
+    /**
+     * Syncs the public locations with the backend at {@code sync_base_url} as the signed-in Google
+     * user, whenever a network becomes available and shortly after each edit. Off while the URL is
+     * empty or nobody is signed in, and while the dataset is paged, since a sync pass compares every
+     * local record.
+     */
+    private void setupSync() {
+        String baseUrl = getString(R.string.sync_base_url);
+        if (baseUrl.isEmpty() || GoogleSignIn.getLastSignedInAccount(this) == null || partitions != null) return;
+        Context appContext = getApplicationContext();
+        locationSync = new LocationSync(new File(appContext.getFilesDir(), SYNC_STATE_NAME), baseUrl,
+                () -> LoginActivity.idToken(appContext), new SyncedLocations(), LocationSync.LAST_WRITER_WINS);
+        LocationSync sync = locationSync;
+        networkCallback = new ConnectivityManager.NetworkCallback() {
+            @Override
+            public void onAvailable(Network network) {
+                sync.requestSync();
+            }
+        };
+        // Also called right away when already online, which runs the first pass.
+        getSystemService(ConnectivityManager.class).registerDefaultNetworkCallback(networkCallback);
+    }
+
+    /** Coalesces a burst of edits into one sync pass. */
+    private void scheduleSync() {
+        map.removeCallbacks(syncRunnable);
+        map.postDelayed(syncRunnable, SYNC_DELAY_MS);
+    }
+
+    /** Runs {@code task} on the UI thread and waits for its result. */
+    private <T> T onUiThread(Callable<T> task) throws IOException {
+        FutureTask<T> future = new FutureTask<>(() -> {
+            if (isDestroyed()) throw new IOException("La actividad ya no existe");
+            return task.call();
+        });
+        runOnUiThread(future);
         try {
-            for (int i = 0; i < locationsArray.length(); i++) {
-                JSONObject location = locationsArray.getJSONObject(i);
+            return future.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    private void pickImportFile() {
+        if (!checkLocationsLoaded()) return;
+        Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
+        intent.addCategory(Intent.CATEGORY_OPENABLE);
+        intent.setType("*/*");
+        intent.putExtra(Intent.EXTRA_MIME_TYPES, IMPORT_MIME_TYPES);
+        startActivityForResult(intent, RC_IMPORT);
+    }
+
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, @Nullable Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+        if (requestCode == RC_IMPORT && resultCode == RESULT_OK && data != null && data.getData() != null) {
+            importLocations(data.getData());
+        } else if (requestCode == RC_ROUTE && resultCode == RESULT_OK && data != null && data.getData() != null) {
+            loadRoute(data.getData());
+        }
+    }
 
-                if (!currentStatusFilter.equals("Todos") && !location.getString("estado").equals(currentStatusFilter)) {
-                    continue;
+    /**
+     * Streams a GeoJSON or CSV file into the store on {@link #importExecutor}. Each batch is applied
+     * on the UI thread before the next one is parsed, so at most one batch is in memory at a time.
+     */
+    private void importLocations(Uri uri) {
+        if (!checkLocationsLoaded()) return;
+        String name = null;
+        long size = -1;
+        try (Cursor cursor = getContentResolver().query(uri, null, null, null, null)) {
+            if (cursor != null && cursor.moveToFirst()) {
+                int nameColumn = cursor.getColumnIndex(OpenableColumns.DISPLAY_NAME);
+                int sizeColumn = cursor.getColumnIndex(OpenableColumns.SIZE);
+                if (nameColumn >= 0) name = cursor.getString(nameColumn);
+                if (sizeColumn >= 0 && !cursor.isNull(sizeColumn)) size = cursor.getLong(sizeColumn);
+            }
+        }
+        LocationImporter.Format format = LocationImporter.Format.guess(name != null ? name : getContentResolver().getType(uri));
+        long totalBytes = size;
+        int count = store.size();
+        double[] latitudes = Arrays.copyOf(store.latitudes(), count);
+        double[] longitudes = Arrays.copyOf(store.longitudes(), count);
+
+        LocationImporter importer = new LocationImporter(new LocationImporter.FieldMapping(), IMPORT_DEDUPE_METERS, LOAD_CHUNK_SIZE);
+        View progressView = LayoutInflater.from(this).inflate(R.layout.import_progress_dialog, null);
+        ProgressBar progressBar = progressView.findViewById(R.id.import_progress_bar);
+        TextView progressText = progressView.findViewById(R.id.import_progress_text);
+        progressText.setText("Leyendo " + (name != null ? name : "archivo") + "...");
+        AlertDialog dialog = new AlertDialog.Builder(this)
+                .setTitle("Importando ubicaciones")
+                .setView(progressView)
+                .setCancelable(false)
+                .setNegativeButton("Cancelar", (d, which) -> importer.cancel())
+                .show();
+
+        importExecutor.execute(() -> {
+            try (InputStream in = getContentResolver().openInputStream(uri)) {
+                LocationImporter.Progress result = importer.run(in, totalBytes, format, latitudes, longitudes, count,
+                        (batch, progress) -> {
+                            CountDownLatch applied = new CountDownLatch(1);
+                            runOnUiThread(() -> {
+                                try {
+                                    applyImportBatch(batch);
+                                    showImportProgress(progressBar, progressText, progress);
+                                } finally {
+                                    applied.countDown();
+                                }
+                            });
+                            try {
+                                applied.await();
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                                importer.cancel();
+                            }
+                        });
+                runOnUiThread(() -> finishImport(dialog, result));
+            } catch (IOException | RuntimeException e) {
+                e.printStackTrace();
+                runOnUiThread(() -> {
+                    dialog.dismiss();
+                    Toast.makeText(this, "No se pudo importar el archivo", Toast.LENGTH_LONG).show();
+                });
+            }
+        });
+    }
+
+    private void applyImportBatch(List<LocationRecord> batch) {
+        if (isDestroyed() || batch.isEmpty()) return;
+        long start = IMPORT_BATCH_TIMER.start();
+        synchronized (dataLock) {
+            for (LocationRecord record : batch) {
+                int slot = store.add(record);
+                spatialIndex.insert(slot, record.latitude, record.longitude);
+                addToClusters(slot);
+                if (partitions != null) editedIds.add(record.id);
+            }
+        }
+        for (LocationRecord record : batch) {
+            journal.appendAdd(record);
+            history.put(record, false);
+            indexForSearch(record);
+            if (locationSync != null) {
+                locationSync.recordChanged(record.id);
+            }
+        }
+        if (locationSync != null) {
+            scheduleSync();
+        }
+        refreshMarkers();
+        clusterLayer.rebindAll();
+        IMPORT_BATCH_TIMER.stop(start);
+    }
+
+    /**
+     * The store as {@link LocationSync} sees it. Reads come from the published snapshot on the sync
+     * thread; changes are applied on the UI thread.
+     */
+    private final class SyncedLocations implements LocationSync.Local {
+        @Override
+        public int[] ids() {
+            return history.snapshot().ids();
+        }
+
+        @Override
+        public LocationRecord[] read(int[] ids) {
+            LocationSnapshot snapshot = history.snapshot();
+            LocationRecord[] records = new LocationRecord[ids.length];
+            for (int i = 0; i < ids.length; i++) {
+                records[i] = snapshot.get(ids[i]);
+            }
+            return records;
+        }
+
+        @Override
+        public int[] apply(int[] localIds, List<LocationSync.Change> changes, IntPredicate editedMeanwhile)
+                throws IOException {
+            return onUiThread(() -> {
+                int[] applied = new int[changes.size()];
+                for (int i = 0; i < applied.length; i++) {
+                    LocationSync.Change change = changes.get(i);
+                    if (localIds[i] >= 0 && editedMeanwhile.test(localIds[i])) {
+                        applied[i] = LocationSync.SKIPPED;
+                    } else if (change.deleted) {
+                        removeLocation(localIds[i], false);
+                        applied[i] = -1;
+                    } else {
+                        applied[i] = putLocation(change.record, localIds[i], false);
+                    }
                 }
+                refreshMarkers();
+                clusterLayer.rebindAll();
+                return applied;
+            });
+        }
+    }
 
-                GeoPoint point = new GeoPoint(location.getDouble("latitude"), location.getDouble("longitude"));
+    private static void showImportProgress(ProgressBar bar, TextView text, LocationImporter.Progress progress) {
+        bar.setIndeterminate(progress.percent() < 0);
+        bar.setProgress(Math.max(0, progress.percent()));
+        text.setText(progress.imported + " importadas, " + progress.merged + " fusionadas, "
+                + progress.skipped + " omitidas");
+    }
 
-                if (currentDistanceFilter.equals("Por Zona (4km)")) {
-                    if (myLocation == null) continue;
-                    Location loc1 = new Location("");
-                    loc1.setLatitude(myLocation.getLatitude());
-                    loc1.setLongitude(myLocation.getLongitude());
+    private void finishImport(AlertDialog dialog, LocationImporter.Progress result) {
+        if (isDestroyed()) return;
+        dialog.dismiss();
+        new AlertDialog.Builder(this)
+                .setTitle(result.cancelled ? "Importación cancelada" : "Importación completada")
+                .setMessage(result.imported + " ubicaciones nuevas\n"
+                        + result.merged + " duplicadas fusionadas con una existente\n"
+                        + result.skipped + " sin coordenadas válidas")
+                .setPositiveButton("Aceptar", null)
+                .show();
+    }
 
-                    Location loc2 = new Location("");
-                    loc2.setLatitude(point.getLatitude());
-                    loc2.setLongitude(point.getLongitude());
+    private boolean checkLocationsLoaded() {
+        if (!locationsLoaded) {
+            // Ids are assigned from the highest one seen, so nothing may be added before all are known.
+            Toast.makeText(this, "Cargando ubicaciones, inténtalo de nuevo en un momento", Toast.LENGTH_SHORT).show();
+        }
+        return locationsLoaded;
+    }
+
+    private void rebuildSpatialIndex() {
+        spatialIndex = SpatialGrid.build(store.latitudes(), store.longitudes(), store.size());
+    }
 
-                    if (loc1.distanceTo(loc2) > 4000) {
-                        continue;
+    /**
+     * Builds the cluster hierarchy on {@link #clusterExecutor} from a copy of the store's columns.
+     * Edits made while it runs are queued and replayed on the new index before it is used.
+     */
+    private void rebuildClusters() {
+        int generation = ++clusterGeneration;
+        synchronized (dataLock) {
+            clusterIndex = null;
+        }
+        pendingClusterUpdates.clear();
+        int count = store.size();
+        double[] latitudes = Arrays.copyOf(store.latitudes(), count);
+        double[] longitudes = Arrays.copyOf(store.longitudes(), count);
+        byte[] statuses = Arrays.copyOf(store.statusCodes(), count);
+        int[] ids = Arrays.copyOf(store.ids(), count);
+        LocationPartitions source = partitions;
+        Set<Integer> edited = new HashSet<>(editedIds);
+        clusterExecutor.execute(() -> {
+            long start = CLUSTER_BUILD_TIMER.start();
+            ClusterIndex built;
+            if (source == null) {
+                built = ClusterIndex.build(latitudes, longitudes, statuses, ids, count);
+            } else {
+                // Paged: every record on disk except edited ones, which are added as they are now.
+                built = new ClusterIndex();
+                try {
+                    source.addTo(built, edited::contains);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                for (int i = 0; i < count; i++) {
+                    if (edited.contains(ids[i])) {
+                        built.add(latitudes[i], longitudes[i], statuses[i], ids[i]);
                     }
                 }
-                addMarker(point, location);
             }
-        } catch (JSONException e) {
-            e.printStackTrace();
+            CLUSTER_BUILD_TIMER.stop(start);
+            runOnUiThread(() -> {
+                if (isDestroyed() || generation != clusterGeneration) return;
+                for (Consumer<ClusterIndex> update : pendingClusterUpdates) {
+                    update.accept(built);
+                }
+                pendingClusterUpdates.clear();
+                synchronized (dataLock) {
+                    clusterIndex = built;
+                }
+                refreshMarkers();
+            });
+        });
+    }
+
+    private void addToClusters(int slot) {
+        double latitude = store.latitude(slot);
+        double longitude = store.longitude(slot);
+        byte status = store.statusCode(slot);
+        int id = store.id(slot);
+        updateClusters(index -> index.add(latitude, longitude, status, id));
+    }
+
+    private void removeFromClusters(int slot) {
+        double latitude = store.latitude(slot);
+        double longitude = store.longitude(slot);
+        byte status = store.statusCode(slot);
+        int id = store.id(slot);
+        updateClusters(index -> index.remove(latitude, longitude, status, id));
+    }
+
+    private void updateClusters(Consumer<ClusterIndex> update) {
+        if (clusterIndex != null) {
+            update.accept(clusterIndex);
+        } else {
+            pendingClusterUpdates.add(update);
+        }
+    }
+
+    /**
+     * Captures the current filters and viewport and hands them to {@link #refreshPipeline}. The
+     * matching markers are computed on {@link #filterExecutor}; calls arriving before it gets to
+     * them are merged into one pass for the latest state.
+     */
+    private void refreshMarkers() {
+        if (map == null || isDestroyed()) return;
+        FilterRequest request = new FilterRequest();
+        request.statusMask = currentStatusMask;
+        if (currentDistanceFilter.equals("Por Zona (4km)")) {
+            request.zone = true;
+            if (zoneCenter != null) {
+                request.hasLocation = true;
+                request.latitude = zoneCenter.getLatitude();
+                request.longitude = zoneCenter.getLongitude();
+            }
+        } else if (updateViewport()) {
+            request.hasViewport = true;
+            request.south = viewSouth;
+            request.west = viewWest;
+            request.north = viewNorth;
+            request.east = viewEast;
+            request.zoom = (int) Math.floor(map.getZoomLevelDouble());
         }
+        refreshPending = true;
+        refreshPipeline.submit(request);
+        if (request.zone && request.hasLocation) {
+            double latDelta = Math.toDegrees(ZONE_RADIUS_METERS / SpatialGrid.EARTH_RADIUS_METERS);
+            double lonDelta = latDelta / Math.max(0.01, Math.cos(Math.toRadians(request.latitude)));
+            pageAround(request.latitude - latDelta, normalizeLongitude(request.longitude - lonDelta),
+                    request.latitude + latDelta, normalizeLongitude(request.longitude + lonDelta));
+        } else if (request.hasViewport && request.zoom >= PAGING_MIN_ZOOM) {
+            pageAround(request.south, request.west, request.north, request.east);
+        }
+    }
+
+    /** Runs on {@link #filterExecutor}. */
+    private VisibleSet computeVisible(FilterRequest request, RefreshPipeline.Cancellation cancellation) {
+        VisibleSet visible = new VisibleSet();
+        long start = COMPUTE_TIMER.start();
+        synchronized (dataLock) {
+            SpatialGrid.SlotVisitor locationVisitor = slot -> {
+                cancellation.throwIfCancelled();
+                if (matchesStatus(slot, request.statusMask)) {
+                    visible.addLocation(store.id(slot));
+                }
+            };
+            if (request.zone) {
+                if (request.hasLocation) {
+                    spatialIndex.queryRadius(request.latitude, request.longitude, ZONE_RADIUS_METERS,
+                            store.latitudes(), store.longitudes(), locationVisitor);
+                }
+            } else if (request.hasViewport) {
+                ClusterIndex clusters = clusterIndex;
+                if (clusters != null && request.zoom <= ClusterIndex.MAX_ZOOM) {
+                    double[] cellBounds = new double[4];
+                    clusters.query(request.zoom, request.south, request.west, request.north, request.east, cluster -> {
+                        cancellation.throwIfCancelled();
+                        collectCluster(clusters, request.zoom, cluster, request.statusMask, cellBounds, locationVisitor, visible);
+                    });
+                } else if (store.countWithStatus(request.statusMask) < spatialIndex.countBox(request.south, request.west, request.north, request.east)) {
+                    // Fewer records have the selected statuses than the grid would offer: walk their bitmaps instead.
+                    store.forEachWithStatus(request.statusMask, slot -> {
+                        cancellation.throwIfCancelled();
+                        if (SpatialGrid.inBox(store.latitude(slot), store.longitude(slot),
+                                request.south, request.west, request.north, request.east)) {
+                            visible.addLocation(store.id(slot));
+                        }
+                    });
+                } else {
+                    spatialIndex.queryBox(request.south, request.west, request.north, request.east,
+                            store.latitudes(), store.longitudes(), locationVisitor);
+                }
+            }
+        }
+        COMPUTE_TIMER.stop(start);
+        return visible;
+    }
+
+    private void collectCluster(ClusterIndex clusters, int zoom, int cluster, int statusMask, double[] cellBounds,
+                                SpatialGrid.SlotVisitor locationVisitor, VisibleSet visible) {
+        int count = clusters.count(zoom, cluster, statusMask);
+        if (count == 0) return;
+        if (count > 1) {
+            visible.addCluster(clusters.key(zoom, cluster));
+        } else if (clusters.count(zoom, cluster) == 1) {
+            int id = clusters.singleId(zoom, cluster);
+            // A paged store may not hold it; it is then drawn as a cluster of one.
+            if (store.slotOf(id) >= 0) {
+                visible.addLocation(id);
+            } else {
+                visible.addCluster(clusters.key(zoom, cluster));
+            }
+        } else {
+            // The one location passing the filter shares its cell with others; find it in the grid.
+            clusters.cellBounds(zoom, cluster, cellBounds);
+            int found = visible.locationCount;
+            spatialIndex.queryBox(cellBounds[0], cellBounds[1], cellBounds[2], cellBounds[3],
+                    store.latitudes(), store.longitudes(), locationVisitor);
+            if (visible.locationCount == found) {
+                visible.addCluster(clusters.key(zoom, cluster));
+            }
+        }
+    }
+
+    private void applyVisible(VisibleSet visible) {
+        if (isDestroyed()) return;
+        long start = APPLY_TIMER.start();
+        refreshPending = false;
+        markerLayer.beginUpdate();
+        for (int i = 0; i < visible.locationCount; i++) {
+            int id = visible.locationIds[i];
+            // Computed before a page-out that removed it.
+            if (store.slotOf(id) >= 0) markerLayer.keep(id);
+        }
+        clusterLayer.beginUpdate();
+        for (int i = 0; i < visible.clusterCount; i++) {
+            clusterLayer.keep(visible.clusterKeys[i]);
+        }
+        clusterLayer.commitUpdate();
+        markerLayer.commitUpdate();
         map.invalidate();
+        APPLY_TIMER.stop(start);
+        if (visible.locationCount + visible.clusterCount > 0) {
+            onMarkersShown();
+        }
+        LOCATION_COUNT.set(store.size());
+        OVERLAY_COUNT.set(map.getOverlays().size());
+    }
+
+    private boolean matchesStatus(int slot, int statusMask) {
+        return (statusMask & LocationStatus.mask(store.statusCode(slot))) != 0;
+    }
+
+    private boolean matchesFilters(int slot) {
+        if (!matchesStatus(slot, currentStatusMask)) return false;
+        if (!currentDistanceFilter.equals("Por Zona (4km)")) return isInViewport(slot);
+        return zoneCenter != null && SpatialGrid.distanceMeters(zoneCenter.getLatitude(), zoneCenter.getLongitude(),
+                store.latitude(slot), store.longitude(slot)) <= ZONE_RADIUS_METERS;
+    }
+
+    private void onViewportChanged() {
+        if (!currentDistanceFilter.equals("Por Zona (4km)")) {
+            refreshMarkers();
+        }
+    }
+
+    /**
+     * Recomputes the area markers are materialized for: the visible bounding box grown by
+     * {@link #VIEWPORT_MARGIN} of its size on every side, so short pans don't need a refresh.
+     * Returns false until the map has been laid out.
+     */
+    private boolean updateViewport() {
+        if (map.getWidth() == 0 || map.getHeight() == 0) {
+            hasViewport = false;
+            return false;
+        }
+        BoundingBox box = map.getBoundingBox();
+        double latMargin = (box.getLatNorth() - box.getLatSouth()) * VIEWPORT_MARGIN;
+        viewSouth = Math.max(-90.0, box.getLatSouth() - latMargin);
+        viewNorth = Math.min(90.0, box.getLatNorth() + latMargin);
+
+        double west = box.getLonWest();
+        double east = box.getLonEast();
+        double width = east >= west ? east - west : east - west + 360.0;
+        double lonMargin = width * VIEWPORT_MARGIN;
+        if (width + 2 * lonMargin >= 360.0) {
+            viewWest = -180.0;
+            viewEast = 180.0;
+        } else {
+            viewWest = normalizeLongitude(west - lonMargin);
+            viewEast = normalizeLongitude(east + lonMargin);
+        }
+        hasViewport = true;
+        return true;
+    }
+
+    private boolean isInViewport(int slot) {
+        if (!hasViewport) return false;
+        double lat = store.latitude(slot);
+        double lon = store.longitude(slot);
+        if (lat < viewSouth || lat > viewNorth) return false;
+        return viewWest <= viewEast ? lon >= viewWest && lon <= viewEast : lon >= viewWest || lon <= viewEast;
+    }
+
+    private static double normalizeLongitude(double longitude) {
+        return ((longitude + 180.0) % 360.0 + 360.0) % 360.0 - 180.0;
     }
 
-    private void addMarker(GeoPoint p, final JSONObject location) {
-        Marker marker = new Marker(map);
-        marker.setPosition(p);
+    private void bindMarker(Marker marker, Integer id) {
+        int slot = store.slotOf(id);
+        // Paged out while shown; the refresh that follows drops the marker.
+        if (slot < 0) return;
+        marker.setPosition(new GeoPoint(store.latitude(slot), store.longitude(slot)));
         marker.setAnchor(Marker.ANCHOR_CENTER, Marker.ANCHOR_BOTTOM);
-        try {
-            marker.setTitle(location.getString("title"));
-            marker.setInfoWindow(new CustomInfoWindow(R.layout.custom_info_window, map, location));
-        } catch (JSONException e) {
-            e.printStackTrace();
+        marker.setRelatedObject(id);
+        marker.setInfoWindow(infoWindow);
+    }
+
+    private void bindCluster(Marker marker, Long key) {
+        int cluster = clusterIndex == null ? -1 : clusterIndex.find(key);
+        if (cluster < 0) return;
+        int zoom = ClusterIndex.zoomOf(key);
+        int mask = currentStatusMask;
+        int[] counts = new int[statusColors.length];
+        for (int status = 0; status < counts.length; status++) {
+            byte code = (byte) (status - 1);
+            if ((mask & LocationStatus.mask(code)) != 0) {
+                counts[status] = clusterIndex.statusCount(zoom, cluster, code);
+            }
         }
-        map.getOverlays().add(marker);
+        marker.setPosition(new GeoPoint(clusterIndex.latitude(zoom, cluster), clusterIndex.longitude(zoom, cluster)));
+        marker.setAnchor(Marker.ANCHOR_CENTER, Marker.ANCHOR_CENTER);
+        marker.setIcon(new ClusterIcon(counts, statusColors, getResources().getDisplayMetrics().density));
+        marker.setInfoWindow(null);
+        marker.setOnMarkerClickListener((m, mapView) -> {
+            zoomIntoCluster(key);
+            return true;
+        });
     }
 
-    private void showEditLocationDialog(final JSONObject location) {
+    private void zoomIntoCluster(long key) {
+        int cluster = clusterIndex == null ? -1 : clusterIndex.find(key);
+        if (cluster < 0) return;
+        int zoom = ClusterIndex.zoomOf(key);
+        GeoPoint center = new GeoPoint(clusterIndex.latitude(zoom, cluster), clusterIndex.longitude(zoom, cluster));
+        map.getController().animateTo(center, (double) clusterIndex.expansionZoom(zoom, cluster), CLUSTER_ZOOM_ANIMATION_MS);
+    }
+
+    private void showEditLocationDialog(final int id) {
+        int slot = store.slotOf(id);
+        if (slot < 0) return;
+
         AlertDialog.Builder builder = new AlertDialog.Builder(this);
         builder.setTitle("Editar Ubicación");
 
@@ -389,31 +1907,23 @@ public class MainActivity extends AppCompatActivity implements LocationListener
         adapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
         statusSpinner.setAdapter(adapter);
 
-        try {
-            editTitle.setText(location.getString("title"));
-            editDescription.setText(location.getString("descripcion"));
-            String status = location.getString("estado");
-            if (status != null) {
-                int spinnerPosition = adapter.getPosition(status);
-                statusSpinner.setSelection(spinnerPosition);
-            }
-        } catch (JSONException e) {
-            e.printStackTrace();
+        editTitle.setText(store.title(slot));
+        editDescription.setText(store.description(slot));
+        LocationStatus status = store.status(slot);
+        if (status != null) {
+            int spinnerPosition = adapter.getPosition(status.label());
+            statusSpinner.setSelection(spinnerPosition);
         }
 
         builder.setPositiveButton("Guardar", (dialog, which) -> {
-            try {
-                String newTitle = editTitle.getText().toString();
-                String newDescription = editDescription.getText().toString();
-                String newStatus = statusSpinner.getSelectedItem().toString();
-                GeoPoint point = new GeoPoint(location.getDouble("latitude"), location.getDouble("longitude"));
-                boolean isPublic = location.getBoolean("es_publico");
-
-                saveLocation(newTitle, newStatus, newDescription, point, isPublic, location);
+            String newTitle = editTitle.getText().toString();
+            String newDescription = editDescription.getText().toString();
+            String newStatus = statusSpinner.getSelectedItem().toString();
+            int currentSlot = store.slotOf(id);
+            if (currentSlot < 0) return;
+            GeoPoint point = new GeoPoint(store.latitude(currentSlot), store.longitude(currentSlot));
 
-            } catch (JSONException e) {
-                e.printStackTrace();
-            }
+            saveLocation(newTitle, newStatus, newDescription, point, store.isPublic(currentSlot), id);
         });
         builder.setNegativeButton("Cancelar", (dialog, which) -> dialog.cancel());
 
@@ -421,42 +1931,87 @@ public class MainActivity extends AppCompatActivity implements LocationListener
     }
 
     private class CustomInfoWindow extends InfoWindow {
-        private final JSONObject location;
+        private final TextView title;
+        private final TextView description;
+        private final TextView status;
+        private Integer id;
 
-        public CustomInfoWindow(int layoutResId, MapView mapView, JSONObject location) {
+        public CustomInfoWindow(int layoutResId, MapView mapView) {
             super(layoutResId, mapView);
-            this.location = location;
-        }
-
-        @Override
-        public void onOpen(Object arg0) {
-            TextView title = mView.findViewById(R.id.info_title);
-            TextView description = mView.findViewById(R.id.info_description);
-            TextView status = mView.findViewById(R.id.info_status);
+            title = mView.findViewById(R.id.info_title);
+            description = mView.findViewById(R.id.info_description);
+            status = mView.findViewById(R.id.info_status);
             Button editButton = mView.findViewById(R.id.info_edit_button);
             Button deleteButton = mView.findViewById(R.id.info_delete_button);
 
-            try {
-                title.setText(location.getString("title"));
-                description.setText(location.getString("descripcion"));
-                status.setText("Estado: " + location.getString("estado"));
-            } catch (JSONException e) {
-                e.printStackTrace();
-            }
-
             editButton.setOnClickListener(v -> {
-                showEditLocationDialog(location);
+                if (id != null) {
+                    showEditLocationDialog(id);
+                }
                 close();
             });
 
             deleteButton.setOnClickListener(v -> {
-                deleteLocation(location);
+                if (id != null) {
+                    deleteLocation(id);
+                }
                 close();
             });
         }
 
+        @Override
+        public void onOpen(Object item) {
+            id = (Integer) ((Marker) item).getRelatedObject();
+            int slot = id == null ? -1 : store.slotOf(id);
+            if (slot < 0) return;
+            recordView(id);
+
+            LocationStatus locationStatus = store.status(slot);
+            title.setText(store.title(slot));
+            description.setText(store.description(slot));
+            status.setText("Estado: " + (locationStatus == null ? "" : locationStatus.label()));
+        }
+
         @Override
         public void onClose() {
+            id = null;
+        }
+    }
+
+    /** Filter state for one refresh, captured on the UI thread. */
+    private static final class FilterRequest {
+        int statusMask;
+        boolean zone;
+        boolean hasLocation;
+        double latitude;
+        double longitude;
+        boolean hasViewport;
+        double south;
+        double west;
+        double north;
+        double east;
+        int zoom;
+    }
+
+    /** Ids of the location markers and keys of the cluster markers a refresh should show. */
+    private static final class VisibleSet {
+        int[] locationIds = new int[64];
+        int locationCount;
+        long[] clusterKeys = new long[16];
+        int clusterCount;
+
+        void addLocation(int id) {
+            if (locationCount == locationIds.length) {
+                locationIds = Arrays.copyOf(locationIds, locationCount * 2);
+            }
+            locationIds[locationCount++] = id;
+        }
+
+        void addCluster(long key) {
+            if (clusterCount == clusterKeys.length) {
+                clusterKeys = Arrays.copyOf(clusterKeys, clusterCount * 2);
+            }
+            clusterKeys[clusterCount++] = key;
         }
     }
 
@@ -464,13 +2019,15 @@ public class MainActivity extends AppCompatActivity implements LocationListener
     public void onResume() {
         super.onResume();
         map.onResume();
+        metricsReporter.start(METRICS_REPORT_PERIOD_MS);
+        if (locationSync != null) {
+            locationSync.requestSync();
+        }
         if (mCompassOverlay != null) {
             mCompassOverlay.enableCompass();
         }
-        if (locationManager != null) {
-            if (ActivityCompat.checkSelfPermission(this, Manifest.permission.ACCESS_FINE_LOCATION) == PackageManager.PERMISSION_GRANTED || ActivityCompat.checkSelfPermission(this, Manifest.permission.ACCESS_COARSE_LOCATION) == PackageManager.PERMISSION_GRANTED) {
-                locationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, 1000, 5, this);
-            }
+        if (adaptiveLocation != null) {
+            adaptiveLocation.start();
         }
     }
 
@@ -478,11 +2035,37 @@ public class MainActivity extends AppCompatActivity implements LocationListener
     public void onPause() {
         super.onPause();
         map.onPause();
+        metricsReporter.stop();
         if (mCompassOverlay != null) {
             mCompassOverlay.disableCompass();
         }
-        if (locationManager != null) {
-            locationManager.removeUpdates(this);
+        if (adaptiveLocation != null) {
+            adaptiveLocation.stop();
+        }
+        if (journal != null) {
+            journal.flush();
+        }
+        if (tilePrefetcher != null) {
+            tilePrefetcher.cancel();
+        }
+        lastPrefetchCenter = null;
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        clusterExecutor.shutdownNow();
+        filterExecutor.shutdownNow();
+        importExecutor.shutdownNow();
+        pagingExecutor.shutdownNow();
+        if (journal != null) {
+            journal.setWriteListener(null);
+        }
+        if (locationSync != null) {
+            map.removeCallbacks(syncRunnable);
+            getSystemService(ConnectivityManager.class).unregisterNetworkCallback(networkCallback);
+            // Saves on the sync thread; a pass waiting on this thread in onUiThread gives up instead.
+            locationSync.close();
         }
     }
 }
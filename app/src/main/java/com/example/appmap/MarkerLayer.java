@@ -0,0 +1,166 @@
+package com.example.appmap;
+
+import com.example.appmap.core.Counter;
+import com.example.appmap.core.Metrics;
+import com.example.appmap.core.Timer;
+
+import org.osmdroid.views.MapView;
+import org.osmdroid.views.overlay.Marker;
+import org.osmdroid.views.overlay.Overlay;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps the map's location markers in sync with the set of visible keys. Each refresh pass only
+ * adds markers for keys that became visible and removes the ones that dropped out; removed
+ * markers go back to a pool and are rebound instead of being allocated again.
+ */
+class MarkerLayer<K> {
+
+    interface Binder<K> {
+        void bind(Marker marker, K key);
+    }
+
+    private static final Counter CREATED = Metrics.counter("markers.created");
+    private static final Counter REUSED = Metrics.counter("markers.reused");
+    private static final Timer BIND_TIMER = Metrics.timer("markers.bind");
+
+    private final MapView map;
+    private final Binder<K> binder;
+    private final ArrayDeque<Marker> pool = new ArrayDeque<>();
+    private final List<Marker> added = new ArrayList<>();
+    private final Set<Overlay> removed = Collections.newSetFromMap(new IdentityHashMap<>());
+    private Map<K, Marker> visible = new HashMap<>();
+    private Map<K, Marker> next = new HashMap<>();
+    private Overlay ceiling;
+
+    MarkerLayer(MapView map, Binder<K> binder) {
+        this.map = map;
+        this.binder = binder;
+    }
+
+    /** New markers are inserted beneath {@code overlay}, so it stays drawn on top of them. */
+    void keepBelow(Overlay overlay) {
+        ceiling = overlay;
+    }
+
+    void beginUpdate() {
+        next.clear();
+        added.clear();
+        removed.clear();
+    }
+
+    void keep(K key) {
+        Marker marker = visible.remove(key);
+        if (marker == null) {
+            marker = next.get(key);
+            if (marker != null) return;
+            marker = obtain();
+            bind(marker, key);
+            added.add(marker);
+        }
+        next.put(key, marker);
+    }
+
+    void commitUpdate() {
+        for (Marker marker : visible.values()) {
+            recycle(marker);
+            removed.add(marker);
+        }
+        visible.clear();
+        Map<K, Marker> swap = visible;
+        visible = next;
+        next = swap;
+
+        // The overlay list is copy-on-write, so apply the whole diff as one removal and one append.
+        List<Overlay> overlays = map.getOverlays();
+        if (!removed.isEmpty()) {
+            overlays.removeAll(removed);
+        }
+        if (!added.isEmpty()) {
+            insert(overlays);
+        }
+        added.clear();
+        removed.clear();
+    }
+
+    void beginAppend() {
+        added.clear();
+    }
+
+    void append(K key) {
+        if (visible.containsKey(key)) return;
+        Marker marker = obtain();
+        bind(marker, key);
+        visible.put(key, marker);
+        added.add(marker);
+    }
+
+    void commitAppend() {
+        if (!added.isEmpty()) {
+            insert(map.getOverlays());
+        }
+        added.clear();
+    }
+
+    private void insert(List<Overlay> overlays) {
+        int index = ceiling == null ? -1 : overlays.indexOf(ceiling);
+        if (index < 0) {
+            overlays.addAll(added);
+        } else {
+            overlays.addAll(index, added);
+        }
+    }
+
+    void rebind(K key) {
+        Marker marker = visible.get(key);
+        if (marker != null) {
+            bind(marker, key);
+        }
+    }
+
+    void rebindAll() {
+        for (Map.Entry<K, Marker> entry : visible.entrySet()) {
+            bind(entry.getValue(), entry.getKey());
+        }
+    }
+
+    void clear() {
+        beginUpdate();
+        commitUpdate();
+    }
+
+    int size() {
+        return visible.size();
+    }
+
+    private void bind(Marker marker, K key) {
+        long start = BIND_TIMER.start();
+        binder.bind(marker, key);
+        BIND_TIMER.stop(start);
+    }
+
+    private Marker obtain() {
+        if (pool.isEmpty()) {
+            CREATED.increment();
+            return new Marker(map);
+        }
+        REUSED.increment();
+        return pool.pop();
+    }
+
+    private void recycle(Marker marker) {
+        if (marker.isInfoWindowOpen()) {
+            marker.closeInfoWindow();
+        }
+        marker.setRelatedObject(null);
+        pool.push(marker);
+    }
+}
@@ -0,0 +1,56 @@
+package com.example.appmap;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.widget.Button;
+import android.widget.TextView;
+
+import androidx.appcompat.app.AppCompatActivity;
+
+import com.example.appmap.core.Metrics;
+
+/** Debug screen showing {@link Metrics#report()}, refreshed every second. */
+public class MetricsActivity extends AppCompatActivity {
+
+    private static final long REFRESH_PERIOD_MS = 1000;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private TextView metricsText;
+
+    private final Runnable refresh = new Runnable() {
+        @Override
+        public void run() {
+            String report = Metrics.report();
+            metricsText.setText(report.isEmpty() ? "Sin métricas todavía" : report);
+            handler.postDelayed(this, REFRESH_PERIOD_MS);
+        }
+    };
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_metrics);
+        setTitle("Métricas");
+
+        metricsText = findViewById(R.id.metrics_text);
+        Button resetButton = findViewById(R.id.metrics_reset_button);
+        resetButton.setOnClickListener(v -> {
+            Metrics.reset();
+            handler.removeCallbacks(refresh);
+            refresh.run();
+        });
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        refresh.run();
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        handler.removeCallbacks(refresh);
+    }
+}
@@ -0,0 +1,221 @@
+package com.example.appmap;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.Point;
+import android.os.SystemClock;
+import android.view.Choreographer;
+import android.view.View;
+import android.view.ViewGroup;
+
+import com.example.appmap.core.Metrics;
+import com.example.appmap.core.Timer;
+
+import org.osmdroid.util.GeoPoint;
+import org.osmdroid.views.MapView;
+import org.osmdroid.views.Projection;
+import org.osmdroid.views.overlay.Overlay;
+
+/**
+ * The user's position and heading, drawn as an arrow. The arrow is a small view of its own laid
+ * over the map, drawn once; moving or turning it only changes its translation and rotation, so
+ * neither the map nor the arrow is redrawn. A new fix or heading eases the arrow from where it is
+ * shown to the new target over {@link #EASE_MS}, one step per display frame. Steps that would move
+ * it less than a pixel or a degree are skipped, so a still phone with a jittery compass costs
+ * nothing.
+ *
+ * <p>As an overlay it draws nothing: each time the map draws, it puts the arrow back over the
+ * position, so it follows scrolling and zooming. The arrow sits above the map's info windows.
+ * {@code my_location.frame_interval} records the time between animation frames while easing.
+ */
+class MyLocationOverlay extends Overlay {
+
+    private static final long EASE_MS = 800;
+    private static final float MIN_STEP_DEGREES = 1f;
+    private static final Timer FRAME_INTERVAL_TIMER = Metrics.timer("my_location.frame_interval");
+
+    private final MapView map;
+    private final ArrowView arrowView;
+    private final Point pixel = new Point();
+    private final Point screen = new Point();
+    private final GeoPoint current = new GeoPoint(0.0, 0.0);
+    private final Choreographer.FrameCallback step = this::step;
+
+    private boolean hasFix;
+    private double fromLatitude;
+    private double fromLongitude;
+    private double toLatitude;
+    private double toLongitude;
+    private float fromBearing;
+    private float toBearing;
+    private long easeStart;
+    private boolean stepPosted;
+    private long lastFrameNanos;
+
+    /** Adds the arrow's view to the map's parent, right above the map. */
+    MyLocationOverlay(MapView map, float density) {
+        this.map = map;
+        arrowView = new ArrowView(map.getContext(), density);
+        arrowView.setVisibility(View.INVISIBLE);
+        ViewGroup parent = (ViewGroup) map.getParent();
+        parent.addView(arrowView, parent.indexOfChild(map) + 1,
+                new ViewGroup.LayoutParams(arrowView.size, arrowView.size));
+    }
+
+    boolean hasFix() {
+        return hasFix;
+    }
+
+    void setLocation(GeoPoint point) {
+        if (!hasFix) {
+            hasFix = true;
+            fromLatitude = toLatitude = point.getLatitude();
+            fromLongitude = toLongitude = point.getLongitude();
+            fromBearing = toBearing;
+            easeStart = 0;
+            arrowView.setVisibility(View.VISIBLE);
+            postStep();
+            return;
+        }
+        long now = SystemClock.uptimeMillis();
+        float bearing = bearingAt(now);
+        positionAt(now);
+        fromLatitude = current.getLatitude();
+        fromLongitude = current.getLongitude();
+        fromBearing = bearing;
+        toLatitude = point.getLatitude();
+        toLongitude = point.getLongitude();
+        easeStart = now;
+        postStep();
+    }
+
+    /** Heading in degrees clockwise from north. */
+    void setBearing(float bearing) {
+        long now = SystemClock.uptimeMillis();
+        positionAt(now);
+        fromBearing = bearingAt(now);
+        fromLatitude = current.getLatitude();
+        fromLongitude = current.getLongitude();
+        toBearing = bearing;
+        easeStart = now;
+        if (hasFix) {
+            postStep();
+        }
+    }
+
+    @Override
+    public void draw(Canvas canvas, Projection projection) {
+        if (!hasFix) return;
+        long now = SystemClock.uptimeMillis();
+        positionAt(now);
+        place(projection, bearingAt(now));
+    }
+
+    @Override
+    public void onDetach(MapView mapView) {
+        Choreographer.getInstance().removeFrameCallback(step);
+        stepPosted = false;
+        ViewGroup parent = (ViewGroup) arrowView.getParent();
+        if (parent != null) {
+            parent.removeView(arrowView);
+        }
+    }
+
+    private void postStep() {
+        if (stepPosted) return;
+        stepPosted = true;
+        Choreographer.getInstance().postFrameCallback(step);
+    }
+
+    /** One animation frame: moves and turns the arrow's view towards the eased target. */
+    private void step(long frameTimeNanos) {
+        stepPosted = false;
+        if (lastFrameNanos != 0) {
+            FRAME_INTERVAL_TIMER.record(frameTimeNanos - lastFrameNanos);
+        }
+        long now = SystemClock.uptimeMillis();
+        positionAt(now);
+        place(map.getProjection(), bearingAt(now));
+        if (now < easeStart + EASE_MS) {
+            lastFrameNanos = frameTimeNanos;
+            postStep();
+        } else {
+            lastFrameNanos = 0;
+        }
+    }
+
+    /** Puts the arrow's view over {@link #current}, if it would move a pixel or turn a degree. */
+    private void place(Projection projection, float bearing) {
+        projection.toPixels(current, pixel);
+        projection.rotateAndScalePoint(pixel.x, pixel.y, screen);
+        float x = map.getLeft() + screen.x - arrowView.size / 2f;
+        float y = map.getTop() + screen.y - arrowView.size / 2f;
+        float rotation = bearing + map.getMapOrientation();
+        if (Math.abs(x - arrowView.getTranslationX()) >= 1f || Math.abs(y - arrowView.getTranslationY()) >= 1f) {
+            arrowView.setTranslationX(x);
+            arrowView.setTranslationY(y);
+        }
+        if (Math.abs(shortestTurn(arrowView.getRotation(), rotation)) >= MIN_STEP_DEGREES) {
+            arrowView.setRotation(rotation);
+        }
+    }
+
+    private void positionAt(long now) {
+        float t = progress(now);
+        current.setCoords(fromLatitude + (toLatitude - fromLatitude) * t,
+                fromLongitude + (toLongitude - fromLongitude) * t);
+    }
+
+    private float bearingAt(long now) {
+        return fromBearing + shortestTurn(fromBearing, toBearing) * progress(now);
+    }
+
+    /** Eased 0..1 progress from the last retarget; decelerates into the new fix. */
+    private float progress(long now) {
+        float t = Math.min(1f, (now - easeStart) / (float) EASE_MS);
+        return t * (2 - t);
+    }
+
+    private static float shortestTurn(float from, float to) {
+        float delta = (to - from) % 360;
+        if (delta > 180) delta -= 360;
+        if (delta < -180) delta += 360;
+        return delta;
+    }
+
+    /** The arrow pointing up, centred in a square just large enough for any rotation. */
+    private static final class ArrowView extends View {
+        final int size;
+        private final Path arrow = new Path();
+        private final Paint fillPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        private final Paint outlinePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+
+        ArrowView(Context context, float density) {
+            super(context);
+            float radius = 14 * density;
+            size = 2 * (int) Math.ceil(radius + 2 * density);
+            arrow.moveTo(0, -radius * 0.9f);
+            arrow.lineTo(radius * 0.65f, radius * 0.7f);
+            arrow.lineTo(0, radius * 0.35f);
+            arrow.lineTo(-radius * 0.65f, radius * 0.7f);
+            arrow.close();
+            fillPaint.setColor(0xFF1E88E5);
+            outlinePaint.setColor(0xFFFFFFFF);
+            outlinePaint.setStyle(Paint.Style.STROKE);
+            outlinePaint.setStrokeWidth(2 * density);
+            outlinePaint.setStrokeJoin(Paint.Join.ROUND);
+            // Never in the way of the map's gestures.
+            setClickable(false);
+            setFocusable(false);
+        }
+
+        @Override
+        protected void onDraw(Canvas canvas) {
+            canvas.translate(size / 2f, size / 2f);
+            canvas.drawPath(arrow, fillPaint);
+            canvas.drawPath(arrow, outlinePaint);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.example.appmap;
+
+import android.content.Context;
+import android.os.Process;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import com.example.appmap.core.Gauge;
+import com.example.appmap.core.Metrics;
+
+import org.osmdroid.config.Configuration;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Cold-start work shared by the launch path. {@link #begin} loads osmdroid's configuration on a
+ * background thread as soon as the process starts an activity, so it overlaps with the sign-in
+ * check and the dataset load instead of blocking {@code MainActivity.onCreate}.
+ *
+ * <p>Milestones are logged once per process as milliseconds since the process started, under the
+ * {@code AppMapStartup} tag, and kept as {@code startup.*} gauges.
+ */
+final class Startup {
+
+    static final Gauge MAP_SHOWN = Metrics.gauge("startup.map_shown_ms");
+    static final Gauge FIRST_MARKER = Metrics.gauge("startup.first_marker_ms");
+    static final Gauge LOCATIONS_LOADED = Metrics.gauge("startup.locations_loaded_ms");
+
+    private static Future<?> configuration;
+    private static boolean mapShown;
+    private static boolean firstMarker;
+    private static boolean locationsLoaded;
+
+    private Startup() {
+    }
+
+    static synchronized void begin(Context context) {
+        if (configuration != null) return;
+        Context appContext = context.getApplicationContext();
+        FutureTask<Void> load = new FutureTask<>(() -> Configuration.getInstance()
+                .load(appContext, PreferenceManager.getDefaultSharedPreferences(appContext)), null);
+        new Thread(load, "osmdroid-config").start();
+        configuration = load;
+    }
+
+    /** Blocks until osmdroid is configured; needed before the first {@code MapView} is created. */
+    static void awaitConfiguration() {
+        Future<?> pending;
+        synchronized (Startup.class) {
+            pending = configuration;
+        }
+        try {
+            pending.get();
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    static synchronized void mapShown() {
+        if (mapShown) return;
+        mapShown = true;
+        mark("mapa visible", MAP_SHOWN);
+    }
+
+    static synchronized void firstMarker() {
+        if (firstMarker) return;
+        firstMarker = true;
+        mark("primer marcador", FIRST_MARKER);
+    }
+
+    static synchronized void locationsLoaded() {
+        if (locationsLoaded) return;
+        locationsLoaded = true;
+        mark("ubicaciones cargadas", LOCATIONS_LOADED);
+    }
+
+    private static void mark(String milestone, Gauge gauge) {
+        long elapsed = SystemClock.uptimeMillis() - Process.getStartUptimeMillis();
+        Log.i("AppMapStartup", milestone + ": " + elapsed + " ms");
+        gauge.set(elapsed);
+    }
+}
@@ -0,0 +1,66 @@
+package com.example.appmap.core;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Deterministic synthetic datasets for the benchmarks: most points spread around a handful of
+ * cities, the rest anywhere on land-ish latitudes, with a realistic mix of statuses and a small
+ * vocabulary of titles and descriptions.
+ */
+final class Datasets {
+
+    static final double[][] CITIES = {
+            {-33.45, -70.66}, {40.42, -3.70}, {19.43, -99.13}, {-34.60, -58.38}, {4.71, -74.07}, {48.86, 2.35},
+    };
+
+    private static final String[] STATUSES = {"Excelente", "Bueno", "Bueno", "Decente", "Decente", "Inutilizable"};
+    private static final String[] TITLES = {"Cargador rápido", "Punto de recarga", "Estación municipal", "Centro comercial", "Estacionamiento"};
+    private static final String[] DESCRIPTIONS = {
+            "Punto de recarga en zona residencial.", "Dos conectores, acceso las 24 horas.",
+            "Dentro del estacionamiento subterráneo.", "Suele estar ocupado en horario punta.",
+    };
+
+    private Datasets() {
+    }
+
+    static LocationRecord record(Random random) {
+        double latitude;
+        double longitude;
+        if (random.nextInt(10) < 8) {
+            double[] city = CITIES[random.nextInt(CITIES.length)];
+            latitude = city[0] + random.nextGaussian() * 0.3;
+            longitude = city[1] + random.nextGaussian() * 0.3;
+        } else {
+            latitude = random.nextDouble() * 120.0 - 60.0;
+            longitude = random.nextDouble() * 360.0 - 180.0;
+        }
+        return new LocationRecord(TITLES[random.nextInt(TITLES.length)], STATUSES[random.nextInt(STATUSES.length)],
+                DESCRIPTIONS[random.nextInt(DESCRIPTIONS.length)], latitude, longitude, random.nextBoolean());
+    }
+
+    static LocationStore store(int size, long seed) {
+        Random random = new Random(seed);
+        LocationStore store = new LocationStore();
+        for (int i = 0; i < size; i++) {
+            store.add(record(random));
+        }
+        return store;
+    }
+
+    static byte[] json(LocationStore store) throws IOException {
+        StringWriter out = new StringWriter();
+        LocationJson.write(out, store);
+        return out.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    static SpatialGrid grid(LocationStore store) {
+        return SpatialGrid.build(store.latitudes(), store.longitudes(), store.size());
+    }
+
+    static ClusterIndex clusters(LocationStore store) {
+        return ClusterIndex.build(store.latitudes(), store.longitudes(), store.statusCodes(), store.ids(), store.size());
+    }
+}
@@ -0,0 +1,78 @@
+package com.example.appmap.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/** Cold start: parsing or mapping the snapshot into a store and building the indexes over it. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class LoadBenchmark {
+
+    private static final int CHUNK_SIZE = 2000;
+
+    @Param({"10000", "100000", "1000000"})
+    public int size;
+
+    private byte[] json;
+    private File binary;
+    private LocationStore loaded;
+
+    @Setup
+    public void setUp() throws IOException {
+        loaded = Datasets.store(size, 1);
+        json = Datasets.json(loaded);
+        binary = File.createTempFile("locations", ".bin");
+        MappedSnapshot.write(binary, loaded, -1, 0, 0);
+    }
+
+    @TearDown
+    public void tearDown() {
+        binary.delete();
+    }
+
+    @Benchmark
+    public LocationStore parse() throws IOException {
+        LocationStore store = new LocationStore();
+        try (Reader in = new InputStreamReader(new ByteArrayInputStream(json), StandardCharsets.UTF_8)) {
+            LocationJson.read(in, CHUNK_SIZE, chunk -> {
+                for (LocationRecord record : chunk) {
+                    store.add(record);
+                }
+            });
+        }
+        return store;
+    }
+
+    @Benchmark
+    public LocationStore map() throws IOException {
+        LocationStore store = new LocationStore();
+        store.load(MappedSnapshot.open(binary));
+        return store;
+    }
+
+    @Benchmark
+    public SpatialGrid buildGrid() {
+        return Datasets.grid(loaded);
+    }
+
+    @Benchmark
+    public ClusterIndex buildClusters() {
+        return Datasets.clusters(loaded);
+    }
+}
@@ -0,0 +1,118 @@
+package com.example.appmap.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single-record edits as {@code saveLocation} and {@code deleteLocation} apply them to the store
+ * and both indexes, plus what persisting them costs: one journal frame, or a full snapshot.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MutationBenchmark {
+
+    @Param({"10000", "100000", "1000000"})
+    public int size;
+
+    private LocationStore store;
+    private SpatialGrid grid;
+    private ClusterIndex clusters;
+    private LocationRecord[] records;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        store = Datasets.store(size, 4);
+        grid = Datasets.grid(store);
+        clusters = Datasets.clusters(store);
+        Random random = new Random(5);
+        records = new LocationRecord[1024];
+        for (int i = 0; i < records.length; i++) {
+            records[i] = Datasets.record(random);
+        }
+    }
+
+    /** Adds a record and deletes another, so the dataset keeps its size across iterations. */
+    @Benchmark
+    public int addThenDelete() {
+        LocationRecord record = records[next++ & (records.length - 1)];
+        record.id = 0;
+        int slot = store.add(record);
+        grid.insert(slot, record.latitude, record.longitude);
+        clusters.add(record.latitude, record.longitude, store.statusCode(slot), record.id);
+
+        int victim = (next * 7919) % store.size();
+        grid.remove(victim, store.latitude(victim), store.longitude(victim));
+        clusters.remove(store.latitude(victim), store.longitude(victim), store.statusCode(victim), store.id(victim));
+        int moved = store.remove(victim);
+        if (moved >= 0) {
+            grid.renumber(moved, victim, store.latitude(victim), store.longitude(victim));
+        }
+        return store.size();
+    }
+
+    @Benchmark
+    public int edit() {
+        int slot = (next++ * 7919) % store.size();
+        LocationRecord record = records[next & (records.length - 1)];
+        grid.move(slot, store.latitude(slot), store.longitude(slot), record.latitude, record.longitude);
+        clusters.remove(store.latitude(slot), store.longitude(slot), store.statusCode(slot), store.id(slot));
+        store.set(slot, record);
+        clusters.add(record.latitude, record.longitude, store.statusCode(slot), store.id(slot));
+        return slot;
+    }
+
+    @Benchmark
+    public byte[] journalFrame() {
+        LocationRecord record = records[next++ & (records.length - 1)];
+        return LocationJournal.encodeFrame(LocationJournal.Entry.UPDATE, 1 + (next & 0xFFFF), record);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long snapshot() throws IOException {
+        CountingWriter out = new CountingWriter();
+        LocationJson.write(out, store);
+        return out.count;
+    }
+
+    private static final class CountingWriter extends Writer {
+        long count;
+
+        @Override
+        public void write(char[] buffer, int offset, int length) {
+            count += length;
+        }
+
+        @Override
+        public void write(int c) {
+            count++;
+        }
+
+        @Override
+        public void write(String value, int offset, int length) {
+            count += length;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
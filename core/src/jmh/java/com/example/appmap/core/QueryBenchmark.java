@@ -0,0 +1,126 @@
+package com.example.appmap.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The queries behind a marker refresh: zone radius, status filters, nearest points and cluster
+ * lookups; plus the corridor along a long drive.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class QueryBenchmark {
+
+    private static final double ZONE_RADIUS_METERS = 4000;
+    private static final int QUERY_POINTS = 256;
+    private static final int NEAREST = 5;
+    private static final int ROUTE_VERTICES = 5000;
+    private static final double CORRIDOR_METERS = 1000;
+
+    @Param({"10000", "100000", "1000000"})
+    public int size;
+
+    private LocationStore store;
+    private SpatialGrid grid;
+    private ClusterIndex clusters;
+    private RouteCorridor route;
+    private double[] queryLatitudes;
+    private double[] queryLongitudes;
+    private int next;
+    private final int[] nearestSlots = new int[NEAREST];
+    private final double[] nearestDistances = new double[NEAREST];
+    private final int inutilizable = LocationStatus.mask(LocationStatus.INUTILIZABLE.code());
+    private final int excelenteOrBueno = LocationStatus.mask(LocationStatus.EXCELENTE.code()) | LocationStatus.mask(LocationStatus.BUENO.code());
+
+    @Setup
+    public void setUp() {
+        store = Datasets.store(size, 2);
+        grid = Datasets.grid(store);
+        clusters = Datasets.clusters(store);
+        Random random = new Random(3);
+        queryLatitudes = new double[QUERY_POINTS];
+        queryLongitudes = new double[QUERY_POINTS];
+        for (int i = 0; i < QUERY_POINTS; i++) {
+            double[] city = Datasets.CITIES[random.nextInt(Datasets.CITIES.length)];
+            queryLatitudes[i] = city[0] + random.nextGaussian() * 0.2;
+            queryLongitudes[i] = city[1] + random.nextGaussian() * 0.2;
+        }
+        // About 800 km wandering south of Santiago, a vertex every ~200 m.
+        double[] routeLatitudes = new double[ROUTE_VERTICES];
+        double[] routeLongitudes = new double[ROUTE_VERTICES];
+        routeLatitudes[0] = Datasets.CITIES[0][0];
+        routeLongitudes[0] = Datasets.CITIES[0][1];
+        for (int i = 1; i < ROUTE_VERTICES; i++) {
+            routeLatitudes[i] = routeLatitudes[i - 1] - 0.0015 + random.nextGaussian() * 0.0005;
+            routeLongitudes[i] = routeLongitudes[i - 1] + random.nextGaussian() * 0.001;
+        }
+        route = new RouteCorridor(routeLatitudes, routeLongitudes, ROUTE_VERTICES);
+    }
+
+    @Benchmark
+    public int zone(Blackhole blackhole) {
+        int q = next++ & (QUERY_POINTS - 1);
+        return grid.queryRadius(queryLatitudes[q], queryLongitudes[q], ZONE_RADIUS_METERS,
+                store.latitudes(), store.longitudes(), blackhole::consume);
+    }
+
+    @Benchmark
+    public void zoneWithStatus(Blackhole blackhole) {
+        int q = next++ & (QUERY_POINTS - 1);
+        grid.queryRadius(queryLatitudes[q], queryLongitudes[q], ZONE_RADIUS_METERS, store.latitudes(), store.longitudes(), slot -> {
+            if ((excelenteOrBueno & LocationStatus.mask(store.statusCode(slot))) != 0) {
+                blackhole.consume(slot);
+            }
+        });
+    }
+
+    /** A rare status over a whole continent, where walking the status bitmap beats the grid. */
+    @Benchmark
+    public void viewportWithRareStatus(Blackhole blackhole) {
+        store.forEachWithStatus(inutilizable, slot -> {
+            if (SpatialGrid.inBox(store.latitude(slot), store.longitude(slot), -56.0, -82.0, 13.0, -34.0)) {
+                blackhole.consume(slot);
+            }
+        });
+    }
+
+    @Benchmark
+    public void viewportWithRareStatusViaGrid(Blackhole blackhole) {
+        grid.queryBox(-56.0, -82.0, 13.0, -34.0, store.latitudes(), store.longitudes(), slot -> {
+            if ((inutilizable & LocationStatus.mask(store.statusCode(slot))) != 0) {
+                blackhole.consume(slot);
+            }
+        });
+    }
+
+    /** What every location fix re-runs: the five nearest points rated Bueno or better. */
+    @Benchmark
+    public int nearestGoodOrBetter() {
+        int q = next++ & (QUERY_POINTS - 1);
+        byte[] statuses = store.statusCodes();
+        return grid.nearest(queryLatitudes[q], queryLongitudes[q], NEAREST, Double.POSITIVE_INFINITY,
+                store.latitudes(), store.longitudes(), slot -> (excelenteOrBueno & LocationStatus.mask(statuses[slot])) != 0,
+                nearestSlots, nearestDistances);
+    }
+
+    @Benchmark
+    public void worldClusters(Blackhole blackhole) {
+        clusters.query(3, -85.0, -180.0, 85.0, 180.0, cluster -> blackhole.consume(clusters.count(3, cluster, excelenteOrBueno)));
+    }
+
+    @Benchmark
+    public int corridor() {
+        return route.query(grid, store.latitudes(), store.longitudes(), CORRIDOR_METERS, slot -> true).count;
+    }
+}
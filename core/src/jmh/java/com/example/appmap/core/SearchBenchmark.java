@@ -0,0 +1,60 @@
+package com.example.appmap.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/** One keystroke of search as you type, typing "punto rec" one character at a time. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SearchBenchmark {
+
+    private static final String TYPED = "punto rec";
+    private static final int RESULTS = 20;
+
+    @Param({"10000", "200000"})
+    public int size;
+
+    private LocationStore store;
+    private SearchIndex index;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        store = Datasets.store(size, 6);
+        index = new SearchIndex();
+        for (int slot = 0; slot < store.size(); slot++) {
+            index.put(store.id(slot), store.title(slot), store.description(slot));
+        }
+    }
+
+    @Benchmark
+    public List<SearchIndex.Hit> keystroke() {
+        int length = 1 + next++ % TYPED.length();
+        return index.search(TYPED.substring(0, length), RESULTS, null);
+    }
+
+    /** The same keystrokes restricted to the Bueno-or-better status filter. */
+    @Benchmark
+    public List<SearchIndex.Hit> keystrokeWithStatus() {
+        int length = 1 + next++ % TYPED.length();
+        int goodOrBetter = LocationStatus.maskAtLeast(LocationStatus.BUENO);
+        return index.search(TYPED.substring(0, length), RESULTS,
+                id -> (goodOrBetter & LocationStatus.mask(store.statusCode(store.slotOf(id)))) != 0);
+    }
+
+    @Benchmark
+    public void reindexOne() {
+        int slot = next++ % store.size();
+        index.put(store.id(slot), store.title(slot), store.description(slot));
+    }
+}
@@ -0,0 +1,271 @@
+package com.example.appmap.core;
+
+import java.util.Arrays;
+
+/**
+ * Per-zoom hierarchy of location clusters. Level {@code z} cuts the Web Mercator square into
+ * {@code 2^(z + 2)} cells per side, roughly 64 screen pixels at that zoom, so every cell is exactly
+ * four cells of the level below and a cluster is always the union of its children.
+ *
+ * <p>Clusters only hold aggregates: member count, projected coordinate sums for the centroid,
+ * per-status counts and the sum of member ids, which is the id itself for single-member clusters.
+ * Adding or removing a location therefore touches one cluster per level instead of rebuilding.
+ */
+public class ClusterIndex {
+
+    /** Deepest clustered zoom; past it every location is shown on its own. */
+    public static final int MAX_ZOOM = 12;
+    private static final int CELL_BITS = 2;
+    private static final int STATUS_SLOTS = LocationStatus.MASK_BITS;
+    private static final double MAX_LATITUDE = 85.05112878;
+
+    public interface ClusterVisitor {
+        void visit(int cluster);
+    }
+
+    private final Level[] levels = new Level[MAX_ZOOM + 1];
+
+    public ClusterIndex() {
+        for (int zoom = 0; zoom <= MAX_ZOOM; zoom++) {
+            levels[zoom] = new Level(1 << (zoom + CELL_BITS));
+        }
+    }
+
+    public static ClusterIndex build(double[] latitudes, double[] longitudes, byte[] statuses, int[] ids, int count) {
+        ClusterIndex index = new ClusterIndex();
+        for (int i = 0; i < count; i++) {
+            index.add(latitudes[i], longitudes[i], statuses[i], ids[i]);
+        }
+        return index;
+    }
+
+    public void add(double latitude, double longitude, byte statusCode, int id) {
+        update(latitude, longitude, statusCode, id, 1);
+    }
+
+    public void remove(double latitude, double longitude, byte statusCode, int id) {
+        update(latitude, longitude, statusCode, id, -1);
+    }
+
+    private void update(double latitude, double longitude, byte statusCode, int id, int sign) {
+        double x = projectX(longitude);
+        double y = projectY(latitude);
+        int status = statusCode + 1;
+        for (Level level : levels) {
+            int cluster = level.clusterFor(level.cellOf(x, y));
+            int count = level.counts[cluster] += sign;
+            level.statusCounts[cluster * STATUS_SLOTS + status] += sign;
+            level.idSums[cluster] += sign * (long) id;
+            if (count == 0) {
+                // Reset instead of subtracting so rounding errors don't pile up in empty cells.
+                level.sumX[cluster] = 0;
+                level.sumY[cluster] = 0;
+            } else {
+                level.sumX[cluster] += sign * x;
+                level.sumY[cluster] += sign * y;
+            }
+        }
+    }
+
+    /**
+     * Visits every non-empty cluster of {@code zoom} whose cell intersects the box. A box with
+     * {@code west > east} crosses the antimeridian.
+     */
+    public void query(int zoom, double south, double west, double north, double east, ClusterVisitor visitor) {
+        Level level = levels[zoom];
+        int n = level.cellsPerSide;
+        int top = level.cell(projectY(north));
+        int bottom = level.cell(projectY(south));
+        int left = level.cell(projectX(west));
+        int right = level.cell(projectX(east));
+        boolean wraps = west > east;
+        long columns = wraps ? (n - left) + (right + 1) : right - left + 1;
+        long cells = columns * (bottom - top + 1);
+
+        if (cells > level.size) {
+            for (int cluster = 0; cluster < level.size; cluster++) {
+                if (level.counts[cluster] == 0) continue;
+                long cell = level.cells[cluster];
+                int row = (int) (cell / n);
+                int column = (int) (cell % n);
+                boolean inColumns = wraps ? column >= left || column <= right : column >= left && column <= right;
+                if (row >= top && row <= bottom && inColumns) {
+                    visitor.visit(cluster);
+                }
+            }
+            return;
+        }
+        for (int row = top; row <= bottom; row++) {
+            if (wraps) {
+                visitRow(level, row, left, n - 1, visitor);
+                visitRow(level, row, 0, right, visitor);
+            } else {
+                visitRow(level, row, left, right, visitor);
+            }
+        }
+    }
+
+    private static void visitRow(Level level, int row, int from, int to, ClusterVisitor visitor) {
+        long base = (long) row * level.cellsPerSide;
+        for (int column = from; column <= to; column++) {
+            int cluster = level.clustersByCell.get(base + column);
+            if (cluster >= 0 && level.counts[cluster] > 0) {
+                visitor.visit(cluster);
+            }
+        }
+    }
+
+    public int count(int zoom, int cluster) {
+        return levels[zoom].counts[cluster];
+    }
+
+    /** Members of {@code cluster} whose status is in {@code statusMask}, see {@link LocationStatus#mask(byte)}. */
+    public int count(int zoom, int cluster, int statusMask) {
+        if (statusMask == LocationStatus.ALL_MASK) return levels[zoom].counts[cluster];
+        int[] statusCounts = levels[zoom].statusCounts;
+        int base = cluster * STATUS_SLOTS;
+        int count = 0;
+        for (int status = 0; status < STATUS_SLOTS; status++) {
+            if ((statusMask & (1 << status)) != 0) {
+                count += statusCounts[base + status];
+            }
+        }
+        return count;
+    }
+
+    public int statusCount(int zoom, int cluster, byte statusCode) {
+        return levels[zoom].statusCounts[cluster * STATUS_SLOTS + statusCode + 1];
+    }
+
+    /** Id of the only member of a cluster whose {@link #count(int, int)} is 1. */
+    public int singleId(int zoom, int cluster) {
+        return (int) levels[zoom].idSums[cluster];
+    }
+
+    public double latitude(int zoom, int cluster) {
+        Level level = levels[zoom];
+        return unprojectY(level.sumY[cluster] / level.counts[cluster]);
+    }
+
+    public double longitude(int zoom, int cluster) {
+        Level level = levels[zoom];
+        return unprojectX(level.sumX[cluster] / level.counts[cluster]);
+    }
+
+    /** Fills {@code bounds} with the cell of {@code cluster} as south, west, north, east. */
+    public void cellBounds(int zoom, int cluster, double[] bounds) {
+        Level level = levels[zoom];
+        int n = level.cellsPerSide;
+        long cell = level.cells[cluster];
+        int row = (int) (cell / n);
+        int column = (int) (cell % n);
+        bounds[0] = unprojectY((row + 1) / (double) n);
+        bounds[1] = unprojectX(column / (double) n);
+        bounds[2] = unprojectY(row / (double) n);
+        bounds[3] = unprojectX((column + 1) / (double) n);
+    }
+
+    /** Key that identifies a cluster across updates and levels. */
+    public long key(int zoom, int cluster) {
+        return ((long) zoom << 40) | levels[zoom].cells[cluster];
+    }
+
+    public static int zoomOf(long key) {
+        return (int) (key >>> 40);
+    }
+
+    /** Returns the cluster for {@code key}, or -1 if it is gone or empty. */
+    public int find(long key) {
+        Level level = levels[zoomOf(key)];
+        int cluster = level.clustersByCell.get(key & ((1L << 40) - 1));
+        return cluster >= 0 && level.counts[cluster] > 0 ? cluster : -1;
+    }
+
+    /**
+     * First zoom at which the members of {@code cluster} no longer share one cluster, or
+     * {@code MAX_ZOOM + 1} if they stay together down to the deepest level.
+     */
+    public int expansionZoom(int zoom, int cluster) {
+        long cell = levels[zoom].cells[cluster];
+        for (int z = zoom + 1; z <= MAX_ZOOM; z++) {
+            Level parent = levels[z - 1];
+            Level level = levels[z];
+            long row = cell / parent.cellsPerSide * 2;
+            long column = cell % parent.cellsPerSide * 2;
+            long only = -1;
+            int nonEmpty = 0;
+            for (int dy = 0; dy < 2; dy++) {
+                for (int dx = 0; dx < 2; dx++) {
+                    long child = (row + dy) * level.cellsPerSide + column + dx;
+                    int c = level.clustersByCell.get(child);
+                    if (c >= 0 && level.counts[c] > 0) {
+                        nonEmpty++;
+                        only = child;
+                    }
+                }
+            }
+            if (nonEmpty != 1) return z;
+            cell = only;
+        }
+        return MAX_ZOOM + 1;
+    }
+
+    static double projectX(double longitude) {
+        return (longitude + 180.0) / 360.0;
+    }
+
+    static double projectY(double latitude) {
+        double sin = Math.sin(Math.toRadians(Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, latitude))));
+        return 0.5 - Math.log((1 + sin) / (1 - sin)) / (4 * Math.PI);
+    }
+
+    static double unprojectX(double x) {
+        return x * 360.0 - 180.0;
+    }
+
+    static double unprojectY(double y) {
+        return 90.0 - Math.toDegrees(2 * Math.atan(Math.exp((y - 0.5) * 2 * Math.PI)));
+    }
+
+    private static final class Level {
+        final int cellsPerSide;
+        final LongIntMap clustersByCell = new LongIntMap();
+        long[] cells = new long[16];
+        int[] counts = new int[16];
+        double[] sumX = new double[16];
+        double[] sumY = new double[16];
+        long[] idSums = new long[16];
+        int[] statusCounts = new int[16 * STATUS_SLOTS];
+        int size;
+
+        Level(int cellsPerSide) {
+            this.cellsPerSide = cellsPerSide;
+        }
+
+        int cell(double projected) {
+            return Math.max(0, Math.min(cellsPerSide - 1, (int) Math.floor(projected * cellsPerSide)));
+        }
+
+        long cellOf(double x, double y) {
+            return (long) cell(y) * cellsPerSide + cell(x);
+        }
+
+        int clusterFor(long cell) {
+            int cluster = clustersByCell.get(cell);
+            if (cluster >= 0) return cluster;
+            if (size == cells.length) {
+                int capacity = size * 2;
+                cells = Arrays.copyOf(cells, capacity);
+                counts = Arrays.copyOf(counts, capacity);
+                sumX = Arrays.copyOf(sumX, capacity);
+                sumY = Arrays.copyOf(sumY, capacity);
+                idSums = Arrays.copyOf(idSums, capacity);
+                statusCounts = Arrays.copyOf(statusCounts, capacity * STATUS_SLOTS);
+            }
+            cluster = size++;
+            cells[cluster] = cell;
+            clustersByCell.put(cell, cluster);
+            return cluster;
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.example.appmap.core;
+
+import java.util.concurrent.atomic.LongAdder;
+
+public final class Counter {
+
+    private final String name;
+    private final LongAdder value = new LongAdder();
+
+    Counter(String name) {
+        this.name = name;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public void increment() {
+        if (Metrics.isEnabled()) value.increment();
+    }
+
+    public void add(long amount) {
+        if (Metrics.isEnabled()) value.add(amount);
+    }
+
+    public long value() {
+        return value.sum();
+    }
+
+    void reset() {
+        value.reset();
+    }
+}
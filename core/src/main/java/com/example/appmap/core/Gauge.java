@@ -0,0 +1,31 @@
+package com.example.appmap.core;
+
+/** Last value reported for something that goes up and down, such as the dataset size. */
+public final class Gauge {
+
+    private final String name;
+    private volatile long value;
+    private volatile boolean set;
+
+    Gauge(String name) {
+        this.name = name;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public void set(long newValue) {
+        if (!Metrics.isEnabled()) return;
+        value = newValue;
+        set = true;
+    }
+
+    public long value() {
+        return value;
+    }
+
+    boolean isSet() {
+        return set;
+    }
+}
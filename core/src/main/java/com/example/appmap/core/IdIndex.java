@@ -0,0 +1,115 @@
+package com.example.appmap.core;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash map from location id to store slot, with primitive keys and values.
+ * Deletion uses backward shifting, so lookups never have to skip tombstones.
+ */
+public class IdIndex {
+
+    private static final int FREE = 0;
+
+    private int[] keys;
+    private int[] values;
+    private int size;
+
+    public IdIndex() {
+        this(64);
+    }
+
+    public IdIndex(int expected) {
+        int capacity = Integer.highestOneBit(Math.max(4, expected) * 2 - 1) << 1;
+        keys = new int[capacity];
+        values = new int[capacity];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /** Returns the slot for {@code id}, or -1. Ids must be positive. */
+    public int get(int id) {
+        int mask = keys.length - 1;
+        int index = mix(id) & mask;
+        while (true) {
+            int key = keys[index];
+            if (key == id) return values[index];
+            if (key == FREE) return -1;
+            index = (index + 1) & mask;
+        }
+    }
+
+    public void put(int id, int slot) {
+        int mask = keys.length - 1;
+        int index = mix(id) & mask;
+        while (true) {
+            int key = keys[index];
+            if (key == id) {
+                values[index] = slot;
+                return;
+            }
+            if (key == FREE) break;
+            index = (index + 1) & mask;
+        }
+        keys[index] = id;
+        values[index] = slot;
+        if (++size * 4 > keys.length * 3) {
+            rehash(keys.length * 2);
+        }
+    }
+
+    public boolean remove(int id) {
+        int mask = keys.length - 1;
+        int index = mix(id) & mask;
+        while (true) {
+            int key = keys[index];
+            if (key == FREE) return false;
+            if (key == id) break;
+            index = (index + 1) & mask;
+        }
+        // Pull later entries of the probe chain back into the hole.
+        int hole = index;
+        int next = (hole + 1) & mask;
+        while (keys[next] != FREE) {
+            int home = mix(keys[next]) & mask;
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                keys[hole] = keys[next];
+                values[hole] = values[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        keys[hole] = FREE;
+        size--;
+        return true;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, FREE);
+        size = 0;
+    }
+
+    private void rehash(int capacity) {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new int[capacity];
+        values = new int[capacity];
+        int mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            int key = oldKeys[i];
+            if (key == FREE) continue;
+            int index = mix(key) & mask;
+            while (keys[index] != FREE) {
+                index = (index + 1) & mask;
+            }
+            keys[index] = key;
+            values[index] = oldValues[i];
+        }
+    }
+
+    private static int mix(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
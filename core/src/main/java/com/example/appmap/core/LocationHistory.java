@@ -0,0 +1,91 @@
+package com.example.appmap.core;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The current {@link LocationSnapshot}, published atomically so any thread can read a consistent
+ * dataset without locking, plus undo and redo stacks of the user's edits. One thread writes; the
+ * stacks are only touched from it.
+ */
+public class LocationHistory {
+
+    static final int MAX_UNDO = 50;
+
+    /** One edit: the record before and after it. {@code before} is null for an add, {@code after} for a delete. */
+    public static final class Edit {
+        public final int id;
+        public final LocationRecord before;
+        public final LocationRecord after;
+
+        Edit(int id, LocationRecord before, LocationRecord after) {
+            this.id = id;
+            this.before = before;
+            this.after = after;
+        }
+    }
+
+    private final AtomicReference<LocationSnapshot> current = new AtomicReference<>(LocationSnapshot.EMPTY);
+    private final Deque<Edit> undo = new ArrayDeque<>();
+    private final Deque<Edit> redo = new ArrayDeque<>();
+
+    public LocationSnapshot snapshot() {
+        return current.get();
+    }
+
+    /** Starts over from {@code snapshot}, forgetting every edit. */
+    public void reset(LocationSnapshot snapshot) {
+        current.set(snapshot);
+        undo.clear();
+        redo.clear();
+    }
+
+    /** Publishes {@code record} (which must have its id); undoable edits can be undone later. */
+    public void put(LocationRecord record, boolean undoable) {
+        LocationRecord after = new LocationRecord(record);
+        LocationSnapshot before = current.getAndUpdate(snapshot -> snapshot.with(after));
+        if (undoable) {
+            push(new Edit(after.id, before.get(after.id), after));
+        }
+    }
+
+    public void remove(int id, boolean undoable) {
+        LocationSnapshot before = current.getAndUpdate(snapshot -> snapshot.without(id));
+        LocationRecord removed = before.get(id);
+        if (undoable && removed != null) {
+            push(new Edit(id, removed, null));
+        }
+    }
+
+    public boolean canUndo() {
+        return !undo.isEmpty();
+    }
+
+    public boolean canRedo() {
+        return !redo.isEmpty();
+    }
+
+    /**
+     * Moves the last edit to the redo stack and returns it, or null if there is none. The caller
+     * restores {@code before} with a non-undoable {@link #put} or {@link #remove}.
+     */
+    public Edit undo() {
+        Edit edit = undo.pollFirst();
+        if (edit != null) redo.push(edit);
+        return edit;
+    }
+
+    /** Moves the last undone edit back and returns it; the caller applies {@code after}. */
+    public Edit redo() {
+        Edit edit = redo.pollFirst();
+        if (edit != null) undo.push(edit);
+        return edit;
+    }
+
+    private void push(Edit edit) {
+        undo.push(edit);
+        if (undo.size() > MAX_UNDO) undo.removeLast();
+        redo.clear();
+    }
+}
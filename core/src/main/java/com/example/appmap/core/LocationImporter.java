@@ -0,0 +1,476 @@
+package com.example.appmap.core;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.BufferedReader;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Streaming bulk import of charging-station datasets: GeoJSON (a FeatureCollection of Point
+ * features, properties as fields) or CSV (a header row, then one station per line, separated by
+ * commas, semicolons or tabs). Source fields are mapped onto a {@link LocationRecord} through the
+ * aliases of a {@link FieldMapping}; rows without valid coordinates are skipped.
+ *
+ * <p>A station within the dedupe distance of an existing location, or of one imported earlier in
+ * the same run, is merged into it: the first one wins and the rest only count as merged. The
+ * check uses a {@link SpatialGrid} whose cells are about as wide as the dedupe distance.
+ *
+ * <p>{@link #run} reads on the calling thread and hands accepted records to the sink in batches,
+ * with the progress so far. Neither the input nor the records are held in memory beyond a batch.
+ */
+public class LocationImporter {
+
+    public enum Format {
+        GEOJSON, CSV;
+
+        /** Guesses the format from a file name or MIME type; anything not CSV is read as GeoJSON. */
+        public static Format guess(String nameOrType) {
+            String value = nameOrType == null ? "" : nameOrType.toLowerCase(Locale.ROOT);
+            return value.endsWith(".csv") || value.contains("csv") || value.contains("comma-separated")
+                    ? CSV : GEOJSON;
+        }
+    }
+
+    public interface BatchSink {
+        void accept(List<LocationRecord> batch, Progress progress);
+    }
+
+    public static final class Progress {
+        public final long bytesRead;
+        public final long totalBytes;
+        public final int read;
+        public final int imported;
+        public final int merged;
+        public final int skipped;
+        public final boolean cancelled;
+
+        Progress(long bytesRead, long totalBytes, int read, int imported, int merged, int skipped, boolean cancelled) {
+            this.bytesRead = bytesRead;
+            this.totalBytes = totalBytes;
+            this.read = read;
+            this.imported = imported;
+            this.merged = merged;
+            this.skipped = skipped;
+            this.cancelled = cancelled;
+        }
+
+        /** Share of the input read, 0..100, or -1 when its size is unknown. */
+        public int percent() {
+            return totalBytes <= 0 ? -1 : (int) Math.min(100, bytesRead * 100 / totalBytes);
+        }
+    }
+
+    /** Source field names accepted for each record field, matched case-insensitively. */
+    public static final class FieldMapping {
+        List<String> title = aliases("title", "name", "nombre", "titulo", "título");
+        List<String> status = aliases("estado", "status");
+        List<String> description = aliases("descripcion", "descripción", "description", "address", "direccion", "dirección");
+        List<String> latitude = aliases("latitude", "lat", "latitud", "y");
+        List<String> longitude = aliases("longitude", "lon", "lng", "long", "longitud", "x");
+        List<String> isPublic = aliases("es_publico", "publico", "público", "public");
+
+        public FieldMapping title(String... names) {
+            title = aliases(names);
+            return this;
+        }
+
+        public FieldMapping status(String... names) {
+            status = aliases(names);
+            return this;
+        }
+
+        public FieldMapping description(String... names) {
+            description = aliases(names);
+            return this;
+        }
+
+        public FieldMapping latitude(String... names) {
+            latitude = aliases(names);
+            return this;
+        }
+
+        public FieldMapping longitude(String... names) {
+            longitude = aliases(names);
+            return this;
+        }
+
+        public FieldMapping isPublic(String... names) {
+            isPublic = aliases(names);
+            return this;
+        }
+
+        private static List<String> aliases(String... names) {
+            List<String> lower = new ArrayList<>(names.length);
+            for (String name : names) {
+                lower.add(name.toLowerCase(Locale.ROOT));
+            }
+            return lower;
+        }
+    }
+
+    private static final double METERS_PER_DEGREE = 111_320;
+    private static final double MIN_CELL_SIZE_DEGREES = 0.0001;
+
+    private final FieldMapping mapping;
+    private final double dedupeMeters;
+    private final int batchSize;
+    private volatile boolean cancelled;
+
+    // Per-run state, confined to the importing thread.
+    private CountingInputStream counted;
+    private long totalBytes;
+    private BatchSink sink;
+    private SpatialGrid seen;
+    private double[] latitudes;
+    private double[] longitudes;
+    private int points;
+    private List<LocationRecord> batch;
+    private int read;
+    private int imported;
+    private int merged;
+    private int skipped;
+
+    /** One importer per run. {@code dedupeMeters} of 0 turns merging off. */
+    public LocationImporter(FieldMapping mapping, double dedupeMeters, int batchSize) {
+        this.mapping = mapping;
+        this.dedupeMeters = dedupeMeters;
+        this.batchSize = batchSize;
+    }
+
+    /** Stops a running import after the current record; batches already handed out stay. */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Imports {@code in} (closed afterwards), merging into the first {@code count} existing
+     * coordinates. {@code totalBytes} is only used for progress and may be -1. Returns the final
+     * progress, which is also passed with the last batch.
+     */
+    public Progress run(InputStream in, long totalBytes, Format format,
+                        double[] existingLatitudes, double[] existingLongitudes, int count, BatchSink sink) throws IOException {
+        this.totalBytes = totalBytes;
+        this.sink = sink;
+        seen = new SpatialGrid(Math.max(MIN_CELL_SIZE_DEGREES, dedupeMeters / METERS_PER_DEGREE));
+        latitudes = Arrays.copyOf(existingLatitudes, Math.max(count + batchSize, 16));
+        longitudes = Arrays.copyOf(existingLongitudes, latitudes.length);
+        points = 0;
+        if (dedupeMeters > 0) {
+            for (; points < count; points++) {
+                seen.insert(points, latitudes[points], longitudes[points]);
+            }
+        }
+        batch = new ArrayList<>(batchSize);
+        read = imported = merged = skipped = 0;
+
+        boolean stopped = false;
+        try (CountingInputStream counting = new CountingInputStream(in);
+             BufferedReader reader = new BufferedReader(new InputStreamReader(counting, StandardCharsets.UTF_8))) {
+            counted = counting;
+            if (format == Format.CSV) {
+                readCsv(reader);
+            } else {
+                readGeoJson(reader);
+            }
+        } catch (CancellationException e) {
+            stopped = true;
+        }
+        Progress last = progress(stopped);
+        sink.accept(batch, last);
+        batch = null;
+        seen = null;
+        return last;
+    }
+
+    private void readGeoJson(BufferedReader in) throws IOException {
+        JsonReader reader = new JsonReader(in);
+        if (reader.peek() == JsonToken.BEGIN_ARRAY) {
+            readFeatures(reader);
+            return;
+        }
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (reader.nextName().equals("features")) {
+                readFeatures(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private void readFeatures(JsonReader reader) throws IOException {
+        Map<String, String> fields = new HashMap<>();
+        double[] point = new double[2];
+        reader.beginArray();
+        while (reader.hasNext()) {
+            fields.clear();
+            point[0] = Double.NaN;
+            point[1] = Double.NaN;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (reader.peek() == JsonToken.NULL) {
+                    reader.nextNull();
+                } else if (name.equals("geometry")) {
+                    readPoint(reader, point);
+                } else if (name.equals("properties")) {
+                    readProperties(reader, fields);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            offer(fields, point[1], point[0]);
+        }
+        reader.endArray();
+    }
+
+    /** Reads a geometry into {@code lonLat}; anything but a position array leaves it NaN. */
+    private static void readPoint(JsonReader reader, double[] lonLat) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!reader.nextName().equals("coordinates") || reader.peek() != JsonToken.BEGIN_ARRAY) {
+                reader.skipValue();
+                continue;
+            }
+            reader.beginArray();
+            for (int i = 0; reader.hasNext(); i++) {
+                if (i < 2 && reader.peek() == JsonToken.NUMBER) {
+                    lonLat[i] = reader.nextDouble();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endArray();
+        }
+        reader.endObject();
+    }
+
+    private static void readProperties(JsonReader reader, Map<String, String> fields) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName().toLowerCase(Locale.ROOT);
+            JsonToken token = reader.peek();
+            if (token == JsonToken.STRING || token == JsonToken.NUMBER) {
+                fields.put(name, reader.nextString());
+            } else if (token == JsonToken.BOOLEAN) {
+                fields.put(name, String.valueOf(reader.nextBoolean()));
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private void readCsv(BufferedReader in) throws IOException {
+        CsvReader csv = new CsvReader(in);
+        List<String> header = csv.readRow();
+        if (header == null) return;
+        for (int i = 0; i < header.size(); i++) {
+            header.set(i, header.get(i).replace("\uFEFF", "").trim().toLowerCase(Locale.ROOT));
+        }
+        Map<String, String> fields = new HashMap<>();
+        List<String> row;
+        while ((row = csv.readRow()) != null) {
+            if (row.size() == 1 && row.get(0).trim().isEmpty()) continue;
+            fields.clear();
+            for (int i = 0; i < row.size() && i < header.size(); i++) {
+                fields.put(header.get(i), row.get(i));
+            }
+            offer(fields, Double.NaN, Double.NaN);
+        }
+    }
+
+    private void offer(Map<String, String> fields, double latitude, double longitude) {
+        if (cancelled) throw new CancellationException();
+        read++;
+        if (Double.isNaN(latitude) || Double.isNaN(longitude)) {
+            latitude = number(field(fields, mapping.latitude));
+            longitude = number(field(fields, mapping.longitude));
+        }
+        if (!(latitude >= -90 && latitude <= 90 && longitude >= -180 && longitude <= 180)) {
+            skipped++;
+            return;
+        }
+        if (dedupeMeters > 0) {
+            if (seen.queryRadius(latitude, longitude, dedupeMeters, latitudes, longitudes, slot -> { }) > 0) {
+                merged++;
+                return;
+            }
+            if (points == latitudes.length) {
+                latitudes = Arrays.copyOf(latitudes, points * 2);
+                longitudes = Arrays.copyOf(longitudes, points * 2);
+            }
+            latitudes[points] = latitude;
+            longitudes[points] = longitude;
+            seen.insert(points++, latitude, longitude);
+        }
+
+        batch.add(new LocationRecord(field(fields, mapping.title), status(field(fields, mapping.status)),
+                field(fields, mapping.description), latitude, longitude, isPublic(field(fields, mapping.isPublic))));
+        imported++;
+        if (batch.size() == batchSize) {
+            sink.accept(batch, progress(false));
+            batch = new ArrayList<>(batchSize);
+        }
+    }
+
+    private Progress progress(boolean stopped) {
+        return new Progress(counted.count, totalBytes, read, imported, merged, skipped, stopped);
+    }
+
+    private static String field(Map<String, String> fields, List<String> aliases) {
+        for (String alias : aliases) {
+            String value = fields.get(alias);
+            if (value != null && !value.trim().isEmpty()) return value.trim();
+        }
+        return null;
+    }
+
+    /** Parses a coordinate, accepting a decimal comma as spreadsheets export it. NaN if invalid. */
+    private static double number(String value) {
+        if (value == null) return Double.NaN;
+        try {
+            return Double.parseDouble(value.indexOf('.') < 0 ? value.replace(',', '.') : value);
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    /** The canonical label for a status given in any case, or null if it is not one. */
+    private static String status(String value) {
+        if (value == null) return null;
+        for (LocationStatus status : LocationStatus.values()) {
+            if (status.label().equalsIgnoreCase(value)) return status.label();
+        }
+        return null;
+    }
+
+    /** Public unless the source says otherwise: imported datasets are public station lists. */
+    private static boolean isPublic(String value) {
+        if (value == null) return true;
+        switch (value.toLowerCase(Locale.ROOT)) {
+            case "false":
+            case "0":
+            case "no":
+            case "n":
+            case "privado":
+            case "private":
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    /** Minimal RFC 4180 reader: quoted fields may hold separators, quotes ("") and line breaks. */
+    private static final class CsvReader {
+        private final BufferedReader in;
+        private char separator;
+
+        CsvReader(BufferedReader in) {
+            this.in = in;
+        }
+
+        List<String> readRow() throws IOException {
+            if (separator == 0) {
+                separator = detectSeparator();
+            }
+            List<String> row = new ArrayList<>();
+            StringBuilder field = new StringBuilder();
+            boolean quoted = false;
+            boolean any = false;
+            int c;
+            while ((c = in.read()) != -1) {
+                any = true;
+                if (quoted) {
+                    if (c != '"') {
+                        field.append((char) c);
+                        continue;
+                    }
+                    in.mark(1);
+                    if (in.read() == '"') {
+                        field.append('"');
+                    } else {
+                        quoted = false;
+                        in.reset();
+                    }
+                } else if (c == '"' && field.length() == 0) {
+                    quoted = true;
+                } else if (c == separator) {
+                    row.add(field.toString());
+                    field.setLength(0);
+                } else if (c == '\n') {
+                    break;
+                } else if (c != '\r') {
+                    field.append((char) c);
+                }
+            }
+            if (!any) return null;
+            row.add(field.toString());
+            return row;
+        }
+
+        /** The most frequent of comma, semicolon and tab in the header line. */
+        private char detectSeparator() throws IOException {
+            in.mark(64 * 1024);
+            String header = in.readLine();
+            in.reset();
+            if (header == null) return ',';
+            char best = ',';
+            int bestCount = 0;
+            for (char candidate : new char[]{',', ';', '\t'}) {
+                int count = 0;
+                for (int i = 0; i < header.length(); i++) {
+                    if (header.charAt(i) == candidate) count++;
+                }
+                if (count > bestCount) {
+                    best = candidate;
+                    bestCount = count;
+                }
+            }
+            return best;
+        }
+    }
+
+    private static final class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int n = super.read(buffer, offset, length);
+            if (n > 0) count += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+}
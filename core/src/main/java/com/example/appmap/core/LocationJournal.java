@@ -0,0 +1,667 @@
+package com.example.appmap.core;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Write-ahead persistence for the location list: a JSON snapshot ({@code locations.json}) plus an
+ * append-only journal of the mutations made since that snapshot was written.
+ *
+ * <p>Mutations are encoded on the caller's thread and appended by a single background writer,
+ * which batches everything queued within {@link #FLUSH_DELAY_MS} into one write and one fsync.
+ * Every journal frame carries its length and CRC32, so a torn tail left by a crash is detected
+ * and cut off on the next load. The journal header records the length and CRC of the snapshot it
+ * applies to; once the journal grows past {@link #COMPACT_THRESHOLD_BYTES} the writer folds it
+ * into a new snapshot, and a journal left behind by a crash mid-compaction no longer matches the
+ * snapshot and is discarded instead of being replayed twice.
+ *
+ * <p>A batch that fails to write is cut back off the journal and retried every
+ * {@link #RETRY_DELAY_MS} until it succeeds. The {@link WriteListener} is told once when writes
+ * start failing and once when they succeed again, not on every failed retry.
+ *
+ * <p>Next to the JSON snapshot the journal keeps a {@link MappedSnapshot} of the same records
+ * ({@code locations.bin}), stamped with the JSON file's length and modification time (or the seed
+ * version while there is no JSON file yet), and the same records split into
+ * {@link LocationPartitions} ({@code locations.parts}) for datasets too large to hold in memory at
+ * once. A load maps them instead of parsing JSON. When they are missing or stale, the JSON is
+ * streamed straight into new partitions and the binary snapshot is stitched together from those,
+ * so not even the first launch holds the whole dataset. Compaction likewise rewrites the JSON and
+ * both binary forms one partition at a time.
+ */
+public class LocationJournal {
+
+    public interface SeedSource {
+        InputStream open() throws IOException;
+    }
+
+    /**
+     * Gets either one {@link #onSnapshot}, or partitions it takes instead, or, only when the binary
+     * forms cannot be written, a series of {@link #onChunk} calls; then the replay.
+     */
+    public interface LoadListener {
+        /**
+         * Offered before the binary snapshot when partitions made from the same source are on disk.
+         * Returning true takes them instead, and {@link #onSnapshot} is not called.
+         */
+        default boolean onPartitions(LocationPartitions partitions) {
+            return false;
+        }
+
+        void onSnapshot(MappedSnapshot snapshot);
+
+        void onChunk(List<LocationRecord> chunk);
+
+        void onReplay(List<Entry> entries);
+
+        void onLoaded();
+    }
+
+    /** Called on the writer thread when appends stop reaching the disk, and again once they do. */
+    public interface WriteListener {
+        void onWriteFailing(boolean failing);
+    }
+
+    public static final class Entry {
+        public static final byte ADD = 1;
+        public static final byte UPDATE = 2;
+        public static final byte DELETE = 3;
+
+        public final byte type;
+        public final int id;
+        public final LocationRecord record;
+
+        Entry(byte type, int id, LocationRecord record) {
+            this.type = type;
+            this.id = id;
+            this.record = record;
+        }
+
+        public void applyTo(LocationStore store) {
+            if (type == ADD) {
+                store.add(record);
+                return;
+            }
+            int slot = store.slotOf(id);
+            if (slot < 0) return;
+            if (type == UPDATE) {
+                store.set(slot, record);
+            } else if (type == DELETE) {
+                store.remove(slot);
+            }
+        }
+    }
+
+    static final String SNAPSHOT_NAME = "locations.json";
+    static final String JOURNAL_NAME = "locations.journal";
+    static final String BINARY_SNAPSHOT_NAME = "locations.bin";
+    static final String PARTITIONS_NAME = "locations.parts";
+    static final long FLUSH_DELAY_MS = 200;
+    static final long RETRY_DELAY_MS = 5000;
+    static final long COMPACT_THRESHOLD_BYTES = 512 * 1024;
+
+    private static final int MAGIC = 0x4C4A524E;
+    private static final int VERSION = 2;
+    private static final int HEADER_BYTES = 24;
+    private static final int MAX_FRAME_BYTES = 1 << 20;
+    private static final int COMPACT_CHUNK_SIZE = 4096;
+
+    private static final Timer FLUSH_TIMER = Metrics.timer("journal.flush");
+    private static final Timer COMPACT_TIMER = Metrics.timer("journal.compact");
+    private static final Timer BINARY_WRITE_TIMER = Metrics.timer("snapshot.binary_write");
+    private static final Timer PARTITIONS_WRITE_TIMER = Metrics.timer("snapshot.partitions_write");
+    private static final Counter JOURNAL_BYTES = Metrics.counter("journal.bytes_written");
+    private static final Counter SNAPSHOT_BYTES = Metrics.counter("snapshot.bytes_written");
+    private static final Counter ERRORS = Metrics.counter("journal.errors");
+
+    private final File snapshotFile;
+    private final File journalFile;
+    private final File binaryFile;
+    private final File partitionsDirectory;
+    private final SeedSource seed;
+    private final long seedVersion;
+    private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor();
+    private final ConcurrentLinkedQueue<byte[]> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    // Frames taken from pending that are not on disk yet. Writer thread only.
+    private final List<byte[]> unwritten = new ArrayList<>();
+    private volatile WriteListener writeListener;
+    private volatile boolean failing;
+
+    private FileOutputStream journalOut;
+    private long journalLength;
+
+    public LocationJournal(File directory, SeedSource seed) {
+        this(directory, seed, 0);
+    }
+
+    /**
+     * {@code seedVersion} identifies the seed's contents, e.g. the install time of the app that
+     * bundles it, so a binary snapshot made from an older seed is not reused.
+     */
+    public LocationJournal(File directory, SeedSource seed, long seedVersion) {
+        this.snapshotFile = new File(directory, SNAPSHOT_NAME);
+        this.journalFile = new File(directory, JOURNAL_NAME);
+        this.binaryFile = new File(directory, BINARY_SNAPSHOT_NAME);
+        this.partitionsDirectory = new File(directory, PARTITIONS_NAME);
+        this.seed = seed;
+        this.seedVersion = seedVersion;
+    }
+
+    /**
+     * Hands the snapshot and then the journal entries to {@code listener} on the writer thread.
+     * Appends issued afterwards are queued behind the load.
+     */
+    public void load(int chunkSize, LoadListener listener) {
+        writer.execute(() -> {
+            try {
+                closeJournal();
+                long[] base;
+                MappedSnapshot mapped = openBinarySnapshot();
+                if (mapped == null) {
+                    writeBinarySnapshots(chunkSize);
+                    mapped = openBinarySnapshot();
+                }
+                if (mapped != null) {
+                    LocationPartitions partitions = openPartitions();
+                    if (partitions == null || !listener.onPartitions(partitions)) {
+                        listener.onSnapshot(mapped);
+                    }
+                    base = mapped.sourceBase();
+                } else {
+                    base = readSnapshot(chunkSize, listener::onChunk);
+                }
+                listener.onReplay(openJournal(base));
+            } catch (IOException | RuntimeException e) {
+                ERRORS.increment();
+                e.printStackTrace();
+            }
+            listener.onLoaded();
+        });
+    }
+
+    /** {@code record} must already carry the id the store assigned to it. */
+    public void appendAdd(LocationRecord record) {
+        append(Entry.ADD, record.id, record);
+    }
+
+    public void appendUpdate(LocationRecord record) {
+        append(Entry.UPDATE, record.id, record);
+    }
+
+    public void appendDelete(int id) {
+        append(Entry.DELETE, id, null);
+    }
+
+    public void flush() {
+        writer.execute(this::flushPending);
+    }
+
+    public void setWriteListener(WriteListener listener) {
+        writeListener = listener;
+    }
+
+    /** Whether the last write failed, so appends made since are only in memory. */
+    public boolean isFailing() {
+        return failing;
+    }
+
+    private void append(byte type, int id, LocationRecord record) {
+        pending.add(encodeFrame(type, id, record));
+        if (flushScheduled.compareAndSet(false, true)) {
+            writer.schedule(this::flushPending, FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void flushPending() {
+        flushScheduled.set(false);
+        byte[] frame;
+        while ((frame = pending.poll()) != null) {
+            unwritten.add(frame);
+        }
+        if (unwritten.isEmpty()) return;
+        ByteArrayOutputStream batch = new ByteArrayOutputStream();
+        for (byte[] queued : unwritten) {
+            batch.write(queued, 0, queued.length);
+        }
+        long start = FLUSH_TIMER.start();
+        try {
+            if (journalOut == null) {
+                openJournal(snapshotBase());
+            }
+            batch.writeTo(journalOut);
+            journalOut.getFD().sync();
+        } catch (IOException e) {
+            ERRORS.increment();
+            e.printStackTrace();
+            cutTornTail();
+            setFailing(true);
+            if (flushScheduled.compareAndSet(false, true)) {
+                writer.schedule(this::flushPending, RETRY_DELAY_MS, TimeUnit.MILLISECONDS);
+            }
+            return;
+        }
+        unwritten.clear();
+        journalLength += batch.size();
+        JOURNAL_BYTES.add(batch.size());
+        FLUSH_TIMER.stop(start);
+        setFailing(false);
+        if (journalLength > COMPACT_THRESHOLD_BYTES) {
+            try {
+                long compactStart = COMPACT_TIMER.start();
+                compact();
+                COMPACT_TIMER.stop(compactStart);
+            } catch (IOException e) {
+                ERRORS.increment();
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Drops whatever part of a failed batch reached the journal, so frames written after the retry
+     * are not hidden behind a torn one on the next load.
+     */
+    private void cutTornTail() {
+        if (journalOut == null) return;
+        try {
+            journalOut.getChannel().truncate(journalLength);
+        } catch (IOException e) {
+            e.printStackTrace();
+            // Reopening reads the journal back and cuts it at the last intact frame.
+            closeJournal();
+        }
+    }
+
+    private void setFailing(boolean now) {
+        if (failing == now) return;
+        failing = now;
+        WriteListener listener = writeListener;
+        if (listener != null) {
+            listener.onWriteFailing(now);
+        }
+    }
+
+    /**
+     * Folds the journal into a new JSON snapshot and new partitions, reading the old partitions one
+     * at a time. Only the records the journal touches are held besides the partition being read.
+     */
+    private void compact() throws IOException {
+        LocationPartitions partitions = openPartitions();
+        if (partitions == null) {
+            writeBinarySnapshots(COMPACT_CHUNK_SIZE);
+            partitions = openPartitions();
+            if (partitions == null) {
+                throw new IOException("No hay particiones de ubicaciones que compactar");
+            }
+        }
+        long[] base = partitions.sourceBase();
+        // Last state of every record the journal touches, null once deleted, as Entry#applyTo leaves it.
+        Map<Integer, LocationRecord> changes = new HashMap<>();
+        Set<Integer> added = new LinkedHashSet<>();
+        for (Entry entry : readEntries(base)) {
+            if (entry.type == Entry.ADD) {
+                changes.put(entry.id, entry.record);
+                added.add(entry.id);
+            } else if (entry.type == Entry.UPDATE) {
+                if (!changes.containsKey(entry.id) || changes.get(entry.id) != null) {
+                    changes.put(entry.id, entry.record);
+                }
+            } else if (entry.type == Entry.DELETE) {
+                changes.put(entry.id, null);
+            }
+        }
+
+        try (LocationPartitions.Writer parts = new LocationPartitions.Writer(partitionsDirectory)) {
+            File snapshotTmp = new File(snapshotFile.getPath() + ".tmp");
+            CRC32 crc = new CRC32();
+            try (FileOutputStream fos = new FileOutputStream(snapshotTmp)) {
+                CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(fos), crc);
+                JsonWriter out = new JsonWriter(new BufferedWriter(new OutputStreamWriter(checked, StandardCharsets.UTF_8)));
+                out.beginArray();
+                for (int partition = 0; partition < partitions.size(); partition++) {
+                    for (LocationRecord record : partitions.read(partition)) {
+                        LocationRecord kept = record;
+                        if (changes.containsKey(record.id)) {
+                            // Also covers a record deleted and then added back under its id.
+                            added.remove(record.id);
+                            kept = changes.remove(record.id);
+                        }
+                        if (kept != null) {
+                            LocationJson.writeRecord(out, kept);
+                            parts.add(kept);
+                        }
+                    }
+                }
+                for (int id : added) {
+                    LocationRecord record = changes.get(id);
+                    if (record != null) {
+                        LocationJson.writeRecord(out, record);
+                        parts.add(record);
+                    }
+                }
+                out.endArray();
+                out.flush();
+                fos.getFD().sync();
+            }
+            long[] newBase = {snapshotTmp.length(), crc.getValue()};
+            SNAPSHOT_BYTES.add(newBase[0]);
+
+            File journalTmp = new File(journalFile.getPath() + ".tmp");
+            try (FileOutputStream fos = new FileOutputStream(journalTmp)) {
+                fos.write(header(newBase));
+                fos.getFD().sync();
+            }
+
+            closeJournal();
+            // Dropped first, so a crash below cannot leave them looking current next to the new snapshot.
+            binaryFile.delete();
+            LocationPartitions.invalidate(partitionsDirectory);
+            // A crash between the two renames leaves the old journal next to the new snapshot; its base
+            // no longer matches, so the next load drops it rather than replaying it again.
+            if (!snapshotTmp.renameTo(snapshotFile) || !journalTmp.renameTo(journalFile)) {
+                throw new IOException("No se pudo reemplazar el snapshot de ubicaciones");
+            }
+            openJournal(newBase);
+            long start = PARTITIONS_WRITE_TIMER.start();
+            try {
+                LocationPartitions written = parts.finish(newBase[0], snapshotFile.lastModified(), newBase[1]);
+                PARTITIONS_WRITE_TIMER.stop(start);
+                writeBinarySnapshot(written);
+            } catch (IOException e) {
+                // Best effort: the next load writes them again from the new JSON snapshot.
+                ERRORS.increment();
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /** The binary snapshot, if there is one made from the current JSON snapshot or seed. */
+    private MappedSnapshot openBinarySnapshot() {
+        if (!binaryFile.exists()) return null;
+        try {
+            MappedSnapshot mapped = MappedSnapshot.open(binaryFile);
+            long[] source = currentSource();
+            return mapped.isFrom(source[0], source[1]) ? mapped : null;
+        } catch (IOException e) {
+            ERRORS.increment();
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /** The partitions, if there are some made from the current JSON snapshot or seed. */
+    private LocationPartitions openPartitions() {
+        if (!new File(partitionsDirectory, LocationPartitions.INDEX_NAME).exists()) return null;
+        try {
+            LocationPartitions partitions = LocationPartitions.open(partitionsDirectory);
+            long[] source = currentSource();
+            return partitions.isFrom(source[0], source[1]) ? partitions : null;
+        } catch (IOException e) {
+            ERRORS.increment();
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /** Length and modification time binary snapshots are stamped with: the JSON file's, or -1 and the seed version. */
+    private long[] currentSource() {
+        boolean fromFile = snapshotFile.exists() && snapshotFile.length() > 0;
+        return fromFile ? new long[]{snapshotFile.length(), snapshotFile.lastModified()} : new long[]{-1, seedVersion};
+    }
+
+    /**
+     * Streams the JSON snapshot or seed into new partitions and then the binary snapshot. Best
+     * effort: without them a load hands the records out in chunks instead.
+     */
+    private void writeBinarySnapshots(int chunkSize) {
+        long start = PARTITIONS_WRITE_TIMER.start();
+        LocationPartitions partitions;
+        try (LocationPartitions.Writer parts = new LocationPartitions.Writer(partitionsDirectory)) {
+            long[] base = readSnapshot(chunkSize, chunk -> {
+                for (LocationRecord record : chunk) {
+                    parts.assignId(record);
+                    parts.add(record);
+                }
+            });
+            long modified = base[0] < 0 ? seedVersion : snapshotFile.lastModified();
+            partitions = parts.finish(base[0], modified, base[1]);
+        } catch (IOException e) {
+            ERRORS.increment();
+            e.printStackTrace();
+            return;
+        }
+        PARTITIONS_WRITE_TIMER.stop(start);
+        writeBinarySnapshot(partitions);
+    }
+
+    private void writeBinarySnapshot(LocationPartitions partitions) {
+        long start = BINARY_WRITE_TIMER.start();
+        try {
+            partitions.writeCombined(binaryFile);
+            SNAPSHOT_BYTES.add(binaryFile.length());
+            BINARY_WRITE_TIMER.stop(start);
+        } catch (IOException e) {
+            ERRORS.increment();
+            e.printStackTrace();
+        }
+    }
+
+    private long[] readSnapshot(int chunkSize, LocationJson.ChunkConsumer consumer) throws IOException {
+        boolean fromFile = snapshotFile.exists() && snapshotFile.length() > 0;
+        CRC32 crc = new CRC32();
+        try (InputStream is = fromFile ? new FileInputStream(snapshotFile) : seed.open();
+             CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(is), crc);
+             BufferedReader reader = new BufferedReader(new InputStreamReader(checked, StandardCharsets.UTF_8))) {
+            LocationJson.read(reader, chunkSize, consumer);
+            // Consume trailing whitespace too, so the checksum covers the whole file.
+            char[] rest = new char[256];
+            while (reader.read(rest) != -1) {
+                // discard
+            }
+        }
+        return fromFile ? new long[]{snapshotFile.length(), crc.getValue()} : new long[]{-1, 0};
+    }
+
+    private long[] snapshotBase() throws IOException {
+        if (!snapshotFile.exists() || snapshotFile.length() == 0) {
+            return new long[]{-1, 0};
+        }
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[8192];
+        try (InputStream is = new FileInputStream(snapshotFile)) {
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                crc.update(buffer, 0, read);
+            }
+        }
+        return new long[]{snapshotFile.length(), crc.getValue()};
+    }
+
+    /**
+     * Reads the journal entries that apply to the snapshot identified by {@code base}, cuts off a
+     * torn tail, and leaves the journal open for appending.
+     */
+    private List<Entry> openJournal(long[] base) throws IOException {
+        List<Entry> entries = readEntries(base);
+        if (journalLength == 0) {
+            try (FileOutputStream fos = new FileOutputStream(journalFile)) {
+                fos.write(header(base));
+                fos.getFD().sync();
+            }
+            journalLength = HEADER_BYTES;
+        } else if (journalLength < journalFile.length()) {
+            try (RandomAccessFile raf = new RandomAccessFile(journalFile, "rw")) {
+                raf.setLength(journalLength);
+                raf.getFD().sync();
+            }
+        }
+        journalOut = new FileOutputStream(journalFile, true);
+        return entries;
+    }
+
+    /**
+     * Returns the valid entries of the journal and sets {@link #journalLength} to the offset just
+     * past the last intact frame, or to 0 when the journal is missing or belongs to another snapshot.
+     */
+    private List<Entry> readEntries(long[] base) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        journalLength = 0;
+        if (!journalFile.exists()) return entries;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)))) {
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION
+                        || in.readLong() != base[0] || in.readLong() != base[1]) {
+                    return entries;
+                }
+            } catch (EOFException e) {
+                return entries;
+            }
+            long offset = HEADER_BYTES;
+            CRC32 crc = new CRC32();
+            while (true) {
+                byte[] payload;
+                try {
+                    int length = in.readInt();
+                    int checksum = in.readInt();
+                    if (length <= 0 || length > MAX_FRAME_BYTES) break;
+                    payload = new byte[length];
+                    in.readFully(payload);
+                    crc.reset();
+                    crc.update(payload, 0, length);
+                    if ((int) crc.getValue() != checksum) break;
+                } catch (EOFException e) {
+                    break;
+                }
+                entries.add(decodeEntry(payload));
+                offset += 8 + payload.length;
+            }
+            journalLength = offset;
+        }
+        return entries;
+    }
+
+    private void closeJournal() {
+        if (journalOut != null) {
+            try {
+                journalOut.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            journalOut = null;
+        }
+    }
+
+    private static byte[] header(long[] base) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(HEADER_BYTES);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(base[0]);
+            out.writeLong(base[1]);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    static byte[] encodeFrame(byte type, int id, LocationRecord record) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0);
+            out.writeInt(0);
+            out.writeByte(type);
+            out.writeInt(id);
+            if (record != null) {
+                writeString(out, record.title);
+                writeString(out, record.estado);
+                writeString(out, record.descripcion);
+                out.writeDouble(record.latitude);
+                out.writeDouble(record.longitude);
+                out.writeBoolean(record.esPublico);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] frame = bytes.toByteArray();
+        int length = frame.length - 8;
+        CRC32 crc = new CRC32();
+        crc.update(frame, 8, length);
+        writeInt(frame, 0, length);
+        writeInt(frame, 4, (int) crc.getValue());
+        return frame;
+    }
+
+    private static Entry decodeEntry(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        byte type = in.readByte();
+        int id = in.readInt();
+        LocationRecord record = null;
+        if (type != Entry.DELETE) {
+            record = new LocationRecord(readString(in), readString(in), readString(in),
+                    in.readDouble(), in.readDouble(), in.readBoolean());
+            record.id = id;
+        }
+        return new Entry(type, id, record);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeInt(byte[] target, int offset, int value) {
+        target[offset] = (byte) (value >>> 24);
+        target[offset + 1] = (byte) (value >>> 16);
+        target[offset + 2] = (byte) (value >>> 8);
+        target[offset + 3] = (byte) value;
+    }
+}
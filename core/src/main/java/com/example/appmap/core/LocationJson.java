@@ -0,0 +1,118 @@
+package com.example.appmap.core;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streaming (de)serialization of the {@code locations.json} array. Records are decoded one at a
+ * time with {@link JsonReader} and handed out in chunks, so the file is never held in memory as
+ * text.
+ */
+public final class LocationJson {
+
+    public interface ChunkConsumer {
+        void accept(List<LocationRecord> chunk) throws IOException;
+    }
+
+    private LocationJson() {
+    }
+
+    public static int read(Reader in, int chunkSize, ChunkConsumer consumer) throws IOException {
+        JsonReader reader = new JsonReader(in);
+        int total = 0;
+        List<LocationRecord> chunk = new ArrayList<>(chunkSize);
+        reader.beginArray();
+        while (reader.hasNext()) {
+            chunk.add(readRecord(reader));
+            if (chunk.size() == chunkSize) {
+                total += chunk.size();
+                consumer.accept(chunk);
+                chunk = new ArrayList<>(chunkSize);
+            }
+        }
+        reader.endArray();
+        if (!chunk.isEmpty()) {
+            total += chunk.size();
+            consumer.accept(chunk);
+        }
+        return total;
+    }
+
+    public static LocationRecord readRecord(JsonReader reader) throws IOException {
+        LocationRecord record = new LocationRecord();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+                continue;
+            }
+            switch (name) {
+                case "id":
+                    record.id = reader.nextInt();
+                    break;
+                case "title":
+                    record.title = reader.nextString();
+                    break;
+                case "estado":
+                    record.estado = reader.nextString();
+                    break;
+                case "descripcion":
+                    record.descripcion = reader.nextString();
+                    break;
+                case "latitude":
+                    record.latitude = reader.nextDouble();
+                    break;
+                case "longitude":
+                    record.longitude = reader.nextDouble();
+                    break;
+                case "es_publico":
+                    record.esPublico = reader.nextBoolean();
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+        return record;
+    }
+
+    public static void write(Writer out, LocationStore store) throws IOException {
+        JsonWriter writer = new JsonWriter(out);
+        writer.beginArray();
+        for (int slot = 0; slot < store.size(); slot++) {
+            writer.beginObject();
+            writer.name("id").value(store.id(slot));
+            writer.name("title").value(store.title(slot));
+            writer.name("estado").value(LocationStatus.labelOf(store.statusCode(slot)));
+            writer.name("descripcion").value(store.description(slot));
+            writer.name("latitude").value(store.latitude(slot));
+            writer.name("longitude").value(store.longitude(slot));
+            writer.name("es_publico").value(store.isPublic(slot));
+            writer.endObject();
+        }
+        writer.endArray();
+        writer.flush();
+    }
+
+    /** Writes one element of the array, for callers that stream records instead of holding a store. */
+    public static void writeRecord(JsonWriter writer, LocationRecord record) throws IOException {
+        writer.beginObject();
+        writer.name("id").value(record.id);
+        writer.name("title").value(record.title);
+        writer.name("estado").value(LocationStatus.labelOf(LocationStatus.codeOf(record.estado)));
+        writer.name("descripcion").value(record.descripcion);
+        writer.name("latitude").value(record.latitude);
+        writer.name("longitude").value(record.longitude);
+        writer.name("es_publico").value(record.esPublico);
+        writer.endObject();
+    }
+}
@@ -0,0 +1,507 @@
+package com.example.appmap.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntPredicate;
+
+/**
+ * The location dataset split by geohash cell into one {@link MappedSnapshot} per non-empty cell,
+ * so a reader can page in just the cells around what it shows. Cells are {@link #PRECISION}
+ * geohash characters, about 39 by 20 km at the equator.
+ *
+ * <p>The directory holds {@code <geohash>.bin} per cell and {@code index.bin}: magic, version,
+ * precision, cell count, highest id and the stamp of the JSON snapshot it was made from, then each
+ * cell's geohash bits and record count in ascending order. Partitions are numbered by their place
+ * in the index.
+ *
+ * <p>A {@link Writer} builds them from records streamed in any order: each record is spilled to one
+ * of {@link #SPILL_BUCKETS} files by cell, and each bucket is then read back on its own and split
+ * into cells, so only one bucket is ever in memory.
+ */
+public final class LocationPartitions {
+
+    static final int PRECISION = 4;
+    static final String INDEX_NAME = "index.bin";
+    static final int SPILL_BUCKETS = 64;
+
+    private static final int MAGIC = 0x4C505254;
+    private static final int VERSION = 1;
+    private static final int BITS = PRECISION * 5;
+    // Geohash bits alternate starting with longitude, which gets the extra bit of an odd count.
+    private static final int LONGITUDE_BITS = (BITS + 1) / 2;
+    private static final int LATITUDE_BITS = BITS / 2;
+    private static final String BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz";
+
+    private final File directory;
+    private final int[] cells;
+    private final int[] counts;
+    private final int maxId;
+    private final long totalCount;
+    private final long sourceLength;
+    private final long sourceModified;
+    private final long sourceCrc;
+
+    private LocationPartitions(File directory, int[] cells, int[] counts, int maxId, long sourceLength, long sourceModified,
+                               long sourceCrc) {
+        this.directory = directory;
+        this.cells = cells;
+        this.counts = counts;
+        this.maxId = maxId;
+        this.sourceLength = sourceLength;
+        this.sourceModified = sourceModified;
+        this.sourceCrc = sourceCrc;
+        long total = 0;
+        for (int count : counts) {
+            total += count;
+        }
+        this.totalCount = total;
+    }
+
+    public static LocationPartitions open(File directory) throws IOException {
+        File index = new File(directory, INDEX_NAME);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(index)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readInt() != PRECISION) {
+                throw new IOException("Índice de particiones no reconocido");
+            }
+            int size = in.readInt();
+            int maxId = in.readInt();
+            long sourceLength = in.readLong();
+            long sourceModified = in.readLong();
+            long sourceCrc = in.readLong();
+            int[] cells = new int[size];
+            int[] counts = new int[size];
+            for (int i = 0; i < size; i++) {
+                cells[i] = in.readInt();
+                counts[i] = in.readInt();
+            }
+            return new LocationPartitions(directory, cells, counts, maxId, sourceLength, sourceModified, sourceCrc);
+        }
+    }
+
+    /**
+     * Replaces the partitions in {@code directory} with the records of {@code store}. They are
+     * written to a sibling directory first and swapped in whole. Decodes every lazy string.
+     */
+    public static void write(File directory, LocationStore store, long sourceLength, long sourceModified, long sourceCrc)
+            throws IOException {
+        try (Writer out = new Writer(directory)) {
+            for (int slot = 0; slot < store.size(); slot++) {
+                out.add(store.toRecord(slot));
+            }
+            out.finish(sourceLength, sourceModified, sourceCrc);
+        }
+    }
+
+    /** Makes the partitions in {@code directory} unusable until they are written again. */
+    public static void invalidate(File directory) {
+        new File(directory, INDEX_NAME).delete();
+    }
+
+    /** Whether these partitions were made from a JSON snapshot of this length and modification time. */
+    public boolean isFrom(long length, long modified) {
+        return sourceLength == length && sourceModified == modified;
+    }
+
+    /** Length and CRC of the JSON snapshot these were made from, as recorded in journal headers. */
+    long[] sourceBase() {
+        return new long[]{sourceLength, sourceCrc};
+    }
+
+    public int size() {
+        return cells.length;
+    }
+
+    public int count(int partition) {
+        return counts[partition];
+    }
+
+    public long totalCount() {
+        return totalCount;
+    }
+
+    /** The highest id in any partition. */
+    public int maxId() {
+        return maxId;
+    }
+
+    public String name(int partition) {
+        return geohash(cells[partition]);
+    }
+
+    /** The partition whose cell holds the point, or -1 if that cell has no partition. */
+    public int partitionOf(double latitude, double longitude) {
+        int i = Arrays.binarySearch(cells, cellOf(latitude, longitude));
+        return i >= 0 ? i : -1;
+    }
+
+    public double centerLatitude(int partition) {
+        return (latitudeIndex(cells[partition]) + 0.5) * 180.0 / (1 << LATITUDE_BITS) - 90.0;
+    }
+
+    public double centerLongitude(int partition) {
+        return (longitudeIndex(cells[partition]) + 0.5) * 360.0 / (1 << LONGITUDE_BITS) - 180.0;
+    }
+
+    /** Partitions whose cell intersects the box. A box with {@code west > east} crosses the antimeridian. */
+    public int[] overlapping(double south, double west, double north, double east) {
+        if (west > east) {
+            int[] western = overlapping(south, west, north, 180.0);
+            int[] eastern = overlapping(south, -180.0, north, east);
+            int[] both = Arrays.copyOf(western, western.length + eastern.length);
+            System.arraycopy(eastern, 0, both, western.length, eastern.length);
+            return both;
+        }
+        int x0 = index(west + 180.0, 360.0, LONGITUDE_BITS);
+        int x1 = index(east + 180.0, 360.0, LONGITUDE_BITS);
+        int y0 = index(south + 90.0, 180.0, LATITUDE_BITS);
+        int y1 = index(north + 90.0, 180.0, LATITUDE_BITS);
+        List<Integer> found = new ArrayList<>();
+        if ((long) (x1 - x0 + 1) * (y1 - y0 + 1) > cells.length) {
+            // A wide box has more cells than there are partitions: test those instead.
+            for (int i = 0; i < cells.length; i++) {
+                int x = longitudeIndex(cells[i]);
+                int y = latitudeIndex(cells[i]);
+                if (x >= x0 && x <= x1 && y >= y0 && y <= y1) found.add(i);
+            }
+        } else {
+            for (int y = y0; y <= y1; y++) {
+                for (int x = x0; x <= x1; x++) {
+                    int i = Arrays.binarySearch(cells, interleave(x, y));
+                    if (i >= 0) found.add(i);
+                }
+            }
+        }
+        return toArray(found);
+    }
+
+    /** Partitions of the up to eight cells around {@code partition}'s. */
+    public int[] neighbors(int partition) {
+        int x = longitudeIndex(cells[partition]);
+        int y = latitudeIndex(cells[partition]);
+        int columns = 1 << LONGITUDE_BITS;
+        List<Integer> found = new ArrayList<>();
+        for (int dy = -1; dy <= 1; dy++) {
+            int ny = y + dy;
+            if (ny < 0 || ny >= 1 << LATITUDE_BITS) continue;
+            for (int dx = -1; dx <= 1; dx++) {
+                if (dx == 0 && dy == 0) continue;
+                int i = Arrays.binarySearch(cells, interleave((x + dx + columns) % columns, ny));
+                if (i >= 0 && !found.contains(i)) found.add(i);
+            }
+        }
+        return toArray(found);
+    }
+
+    /** Reads every record of {@code partition}, strings decoded. */
+    public List<LocationRecord> read(int partition) throws IOException {
+        MappedSnapshot mapped = MappedSnapshot.open(file(partition));
+        int count = mapped.size();
+        int[] ids = new int[count];
+        double[] latitudes = new double[count];
+        double[] longitudes = new double[count];
+        byte[] statuses = new byte[count];
+        boolean[] publics = new boolean[count];
+        mapped.copyColumns(ids, latitudes, longitudes, statuses, publics);
+        List<LocationRecord> records = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            LocationRecord record = new LocationRecord(mapped.title(i), LocationStatus.labelOf(statuses[i]),
+                    mapped.description(i), latitudes[i], longitudes[i], publics[i]);
+            record.id = ids[i];
+            records.add(record);
+        }
+        return records;
+    }
+
+    /**
+     * Adds every record to {@code index} except those whose id {@code skip} accepts, mapping one
+     * partition at a time so the whole dataset is never in memory.
+     */
+    public void addTo(ClusterIndex index, IntPredicate skip) throws IOException {
+        int capacity = 0;
+        for (int count : counts) {
+            capacity = Math.max(capacity, count);
+        }
+        int[] ids = new int[capacity];
+        double[] latitudes = new double[capacity];
+        double[] longitudes = new double[capacity];
+        byte[] statuses = new byte[capacity];
+        boolean[] publics = new boolean[capacity];
+        for (int partition = 0; partition < cells.length; partition++) {
+            MappedSnapshot mapped = MappedSnapshot.open(file(partition));
+            mapped.copyColumns(ids, latitudes, longitudes, statuses, publics);
+            for (int i = 0; i < mapped.size(); i++) {
+                if (!skip.test(ids[i])) {
+                    index.add(latitudes[i], longitudes[i], statuses[i], ids[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes every partition, in order, into one {@link MappedSnapshot} with the same stamp. The
+     * columns are copied across without decoding a record.
+     */
+    void writeCombined(File file) throws IOException {
+        MappedSnapshot[] parts = new MappedSnapshot[cells.length];
+        for (int partition = 0; partition < cells.length; partition++) {
+            parts[partition] = MappedSnapshot.open(file(partition));
+        }
+        MappedSnapshot.write(file, parts, sourceLength, sourceModified, sourceCrc);
+    }
+
+    private File file(int partition) {
+        return new File(directory, geohash(cells[partition]) + ".bin");
+    }
+
+    static int cellOf(double latitude, double longitude) {
+        return interleave(index(longitude + 180.0, 360.0, LONGITUDE_BITS), index(latitude + 90.0, 180.0, LATITUDE_BITS));
+    }
+
+    /** Which of {@code 2^bits} equal steps of {@code range} holds {@code offset}, clamped to the range. */
+    private static int index(double offset, double range, int bits) {
+        int steps = 1 << bits;
+        return Math.max(0, Math.min(steps - 1, (int) Math.floor(offset / range * steps)));
+    }
+
+    private static int interleave(int x, int y) {
+        int cell = 0;
+        for (int bit = 0; bit < BITS; bit++) {
+            // Even geohash bits come from the longitude, most significant first.
+            int value = bit % 2 == 0 ? x >>> (LONGITUDE_BITS - 1 - bit / 2) : y >>> (LATITUDE_BITS - 1 - bit / 2);
+            cell = (cell << 1) | (value & 1);
+        }
+        return cell;
+    }
+
+    private static int longitudeIndex(int cell) {
+        int x = 0;
+        for (int bit = 0; bit < BITS; bit += 2) {
+            x = (x << 1) | ((cell >>> (BITS - 1 - bit)) & 1);
+        }
+        return x;
+    }
+
+    private static int latitudeIndex(int cell) {
+        int y = 0;
+        for (int bit = 1; bit < BITS; bit += 2) {
+            y = (y << 1) | ((cell >>> (BITS - 1 - bit)) & 1);
+        }
+        return y;
+    }
+
+    static String geohash(int cell) {
+        char[] name = new char[PRECISION];
+        for (int i = 0; i < PRECISION; i++) {
+            name[i] = BASE32.charAt((cell >>> (5 * (PRECISION - 1 - i))) & 31);
+        }
+        return new String(name);
+    }
+
+    private static int[] toArray(List<Integer> values) {
+        int[] array = new int[values.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = values.get(i);
+        }
+        return array;
+    }
+
+    private static void deleteTree(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteTree(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Writes partitions from records streamed in any order. Nothing is replaced until
+     * {@link #finish}; closing a writer that did not finish drops what it wrote.
+     */
+    static final class Writer implements Closeable {
+        private final File directory;
+        private final File tmp;
+        private final DataOutputStream[] spills = new DataOutputStream[SPILL_BUCKETS];
+        // Ids seen by assignId, so a repeated one is replaced the way LocationStore#add does.
+        private final IdIndex seenIds = new IdIndex();
+        private int nextId = 1;
+        private int maxId;
+        private boolean finished;
+
+        Writer(File directory) throws IOException {
+            this.directory = directory;
+            this.tmp = new File(directory.getPath() + ".tmp");
+            deleteTree(tmp);
+            if (!tmp.mkdirs()) {
+                throw new IOException("No se pudo crear " + tmp);
+            }
+        }
+
+        /**
+         * Gives {@code record} the id {@link LocationStore#add} would if the records were added to
+         * a store in this order: a fresh one when it has none or its id was already given out.
+         */
+        void assignId(LocationRecord record) {
+            int id = record.id;
+            if (id <= 0 || seenIds.get(id) >= 0) {
+                id = nextId;
+                record.id = id;
+            }
+            nextId = Math.max(nextId, id + 1);
+            seenIds.put(id, 0);
+        }
+
+        /** Spills {@code record}, which must carry a unique positive id. */
+        void add(LocationRecord record) throws IOException {
+            int bucket = cellOf(record.latitude, record.longitude) & (SPILL_BUCKETS - 1);
+            DataOutputStream out = spills[bucket];
+            if (out == null) {
+                out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillFile(bucket))));
+                spills[bucket] = out;
+            }
+            out.writeInt(record.id);
+            out.writeDouble(record.latitude);
+            out.writeDouble(record.longitude);
+            out.writeBoolean(record.esPublico);
+            writeString(out, record.title);
+            writeString(out, record.estado);
+            writeString(out, record.descripcion);
+            maxId = Math.max(maxId, record.id);
+        }
+
+        /** Splits each bucket into cells, writes the index and swaps the partitions in whole. */
+        LocationPartitions finish(long sourceLength, long sourceModified, long sourceCrc) throws IOException {
+            // Cell in the high half, record count in the low half, so sorting orders the index.
+            long[] index = new long[16];
+            int size = 0;
+            for (int bucket = 0; bucket < SPILL_BUCKETS; bucket++) {
+                if (spills[bucket] == null) continue;
+                spills[bucket].close();
+                spills[bucket] = null;
+                File spill = spillFile(bucket);
+                LocationStore store = readSpill(spill);
+                spill.delete();
+                int count = store.size();
+                // Cell in the high half, slot in the low half: sorting groups each cell's slots in order.
+                long[] keys = new long[count];
+                for (int slot = 0; slot < count; slot++) {
+                    keys[slot] = ((long) cellOf(store.latitude(slot), store.longitude(slot)) << 32) | slot;
+                }
+                Arrays.sort(keys);
+                int[] slots = new int[count];
+                for (int start = 0; start < count; ) {
+                    int cell = (int) (keys[start] >>> 32);
+                    int end = start;
+                    while (end < count && (int) (keys[end] >>> 32) == cell) {
+                        slots[end - start] = (int) keys[end];
+                        end++;
+                    }
+                    MappedSnapshot.write(new File(tmp, geohash(cell) + ".bin"), store, slots, end - start,
+                            sourceLength, sourceModified, sourceCrc);
+                    if (size == index.length) {
+                        index = Arrays.copyOf(index, size * 2);
+                    }
+                    index[size++] = ((long) cell << 32) | (end - start);
+                    start = end;
+                }
+            }
+            Arrays.sort(index, 0, size);
+
+            try (FileOutputStream fos = new FileOutputStream(new File(tmp, INDEX_NAME))) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(PRECISION);
+                out.writeInt(size);
+                out.writeInt(maxId);
+                out.writeLong(sourceLength);
+                out.writeLong(sourceModified);
+                out.writeLong(sourceCrc);
+                for (int i = 0; i < size; i++) {
+                    out.writeInt((int) (index[i] >>> 32));
+                    out.writeInt((int) index[i]);
+                }
+                out.flush();
+                fos.getFD().sync();
+            }
+            deleteTree(directory);
+            if (!tmp.renameTo(directory)) {
+                throw new IOException("No se pudo guardar " + directory);
+            }
+            finished = true;
+            return open(directory);
+        }
+
+        @Override
+        public void close() {
+            for (DataOutputStream spill : spills) {
+                if (spill == null) continue;
+                try {
+                    spill.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            if (!finished) {
+                deleteTree(tmp);
+            }
+        }
+
+        private File spillFile(int bucket) {
+            return new File(tmp, bucket + ".spill");
+        }
+
+        private static LocationStore readSpill(File spill) throws IOException {
+            LocationStore store = new LocationStore();
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(spill)))) {
+                while (true) {
+                    int id;
+                    try {
+                        id = in.readInt();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    double latitude = in.readDouble();
+                    double longitude = in.readDouble();
+                    boolean isPublic = in.readBoolean();
+                    LocationRecord record = new LocationRecord(readString(in), readString(in), readString(in),
+                            latitude, longitude, isPublic);
+                    record.id = id;
+                    store.add(record);
+                }
+            }
+            return store;
+        }
+
+        private static void writeString(DataOutputStream out, String value) throws IOException {
+            if (value == null) {
+                out.writeInt(-1);
+                return;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        private static String readString(DataInputStream in) throws IOException {
+            int length = in.readInt();
+            if (length < 0) return null;
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+}
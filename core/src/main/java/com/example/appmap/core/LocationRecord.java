@@ -0,0 +1,29 @@
+package com.example.appmap.core;
+
+public class LocationRecord {
+
+    public int id;
+    public String title;
+    public String estado;
+    public String descripcion;
+    public double latitude;
+    public double longitude;
+    public boolean esPublico;
+
+    public LocationRecord() {
+    }
+
+    public LocationRecord(String title, String estado, String descripcion, double latitude, double longitude, boolean esPublico) {
+        this.title = title;
+        this.estado = estado;
+        this.descripcion = descripcion;
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.esPublico = esPublico;
+    }
+
+    public LocationRecord(LocationRecord other) {
+        this(other.title, other.estado, other.descripcion, other.latitude, other.longitude, other.esPublico);
+        this.id = other.id;
+    }
+}
@@ -0,0 +1,191 @@
+package com.example.appmap.core;
+
+/**
+ * Decides how often, and from which provider, to ask for location fixes. In zone mode the
+ * position decides which markers are shown, so fixes come from GPS and faster the faster the user
+ * moves. Otherwise the position only moves the arrow, so the cheaper network provider is enough
+ * unless the user is driving and the arrow follows the course. Once the user has stayed within
+ * {@link #STATIONARY_METERS} for {@link #STATIONARY_MS}, fixes come from the network provider at
+ * long intervals, or passively when the battery is low and only the arrow needs them.
+ *
+ * <p>A low battery, or power saving mode, while not charging triples every interval and drops GPS
+ * outside zone mode. Times are milliseconds on any monotonic clock. Not thread-safe.
+ *
+ * <p>Network fixes rarely carry a speed or bearing, so when one lacks them they are estimated
+ * from the distance to an earlier fix, once that distance is larger than both fixes' accuracy.
+ */
+public class LocationSampling {
+
+    /** Provider names, as {@code android.location.LocationManager} spells them. */
+    public static final String GPS = "gps";
+    public static final String NETWORK = "network";
+    public static final String PASSIVE = "passive";
+
+    public static final class Plan {
+        public final String provider;
+        public final long intervalMs;
+        public final float minDistanceMeters;
+
+        Plan(String provider, long intervalMs, float minDistanceMeters) {
+            this.provider = provider;
+            this.intervalMs = intervalMs;
+            this.minDistanceMeters = minDistanceMeters;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Plan)) return false;
+            Plan plan = (Plan) other;
+            return provider.equals(plan.provider) && intervalMs == plan.intervalMs
+                    && minDistanceMeters == plan.minDistanceMeters;
+        }
+
+        @Override
+        public int hashCode() {
+            return provider.hashCode() * 31 + Long.hashCode(intervalMs);
+        }
+
+        @Override
+        public String toString() {
+            return provider + " cada " + intervalMs + " ms / " + minDistanceMeters + " m";
+        }
+    }
+
+    static final double STATIONARY_METERS = 50;
+    static final long STATIONARY_MS = 2 * 60_000;
+    static final float VEHICLE_SPEED = 8f;
+    static final long MIN_ESTIMATE_MS = 1_000;
+    // An older reference fix says little about the current speed.
+    static final long MAX_ESTIMATE_MS = 5 * 60_000;
+    private static final int LOW_BATTERY_INTERVAL_FACTOR = 3;
+
+    private boolean zoneMode;
+    private boolean lowBattery;
+    private boolean charging;
+    private float speed;
+    private float bearing = Float.NaN;
+    private boolean hasReference;
+    private long referenceAt;
+    private double referenceLatitude;
+    private double referenceLongitude;
+    private float referenceAccuracy;
+    private boolean hasAnchor;
+    private double anchorLatitude;
+    private double anchorLongitude;
+    private long lastMovedAt;
+
+    /** Starts over as if the user had just moved, so sampling begins at full rate. */
+    public void reset(long now) {
+        hasAnchor = false;
+        hasReference = false;
+        speed = 0;
+        bearing = Float.NaN;
+        lastMovedAt = now;
+    }
+
+    public void setZoneMode(boolean zoneMode) {
+        this.zoneMode = zoneMode;
+    }
+
+    public void setBattery(boolean low, boolean charging) {
+        this.lowBattery = low;
+        this.charging = charging;
+    }
+
+    /**
+     * Records a fix. Moving more than {@link #STATIONARY_METERS}, or the fix's accuracy if worse,
+     * away from where the user last stopped counts as movement. {@code speed} in m/s and
+     * {@code bearing} in degrees are NaN when the fix has none, and are then estimated.
+     */
+    public void onFix(long now, double latitude, double longitude, float accuracyMeters, float speed, float bearing) {
+        estimate(now, latitude, longitude, accuracyMeters);
+        if (!Float.isNaN(speed)) {
+            this.speed = speed;
+        }
+        if (!Float.isNaN(bearing)) {
+            this.bearing = bearing;
+        }
+        speed = this.speed;
+        double threshold = Math.max(STATIONARY_METERS, accuracyMeters);
+        if (!hasAnchor || SpatialGrid.distanceMeters(anchorLatitude, anchorLongitude, latitude, longitude) > threshold
+                || speed >= 1f) {
+            hasAnchor = true;
+            anchorLatitude = latitude;
+            anchorLongitude = longitude;
+            lastMovedAt = now;
+        }
+    }
+
+    /** Speed of the last fix, or the estimate, in m/s. */
+    public float speed() {
+        return speed;
+    }
+
+    /** Bearing of the last fix, or the estimate, in degrees; NaN while unknown. */
+    public float bearing() {
+        return bearing;
+    }
+
+    private void estimate(long now, double latitude, double longitude, float accuracyMeters) {
+        long elapsed = now - referenceAt;
+        if (hasReference && elapsed < MIN_ESTIMATE_MS) return;
+        if (!hasReference || elapsed > MAX_ESTIMATE_MS) {
+            speed = 0;
+            bearing = Float.NaN;
+        } else {
+            double distance = SpatialGrid.distanceMeters(referenceLatitude, referenceLongitude, latitude, longitude);
+            if (distance <= referenceAccuracy + accuracyMeters) {
+                // Within the fixes' error: report no speed, but keep the reference so slow movement adds up.
+                speed = 0;
+                bearing = Float.NaN;
+                return;
+            }
+            speed = (float) (distance * 1000 / elapsed);
+            bearing = (float) initialBearing(referenceLatitude, referenceLongitude, latitude, longitude);
+        }
+        hasReference = true;
+        referenceAt = now;
+        referenceLatitude = latitude;
+        referenceLongitude = longitude;
+        referenceAccuracy = accuracyMeters;
+    }
+
+    private static double initialBearing(double lat1, double lon1, double lat2, double lon2) {
+        double phi1 = Math.toRadians(lat1);
+        double phi2 = Math.toRadians(lat2);
+        double deltaLambda = Math.toRadians(lon2 - lon1);
+        double y = Math.sin(deltaLambda) * Math.cos(phi2);
+        double x = Math.cos(phi1) * Math.sin(phi2) - Math.sin(phi1) * Math.cos(phi2) * Math.cos(deltaLambda);
+        return (Math.toDegrees(Math.atan2(y, x)) + 360.0) % 360.0;
+    }
+
+    public boolean isStationary(long now) {
+        return now - lastMovedAt >= STATIONARY_MS;
+    }
+
+    /** How long until the user counts as stationary if no movement is seen; 0 if already. */
+    public long millisUntilStationary(long now) {
+        return Math.max(0, lastMovedAt + STATIONARY_MS - now);
+    }
+
+    public Plan plan(long now) {
+        boolean saving = lowBattery && !charging;
+        boolean vehicle = speed >= VEHICLE_SPEED;
+        Plan plan;
+        if (isStationary(now)) {
+            if (zoneMode) {
+                plan = new Plan(NETWORK, 30_000, 25);
+            } else if (saving) {
+                return new Plan(PASSIVE, 0, (float) STATIONARY_METERS);
+            } else {
+                plan = new Plan(NETWORK, 120_000, (float) STATIONARY_METERS);
+            }
+        } else if (zoneMode) {
+            plan = vehicle ? new Plan(GPS, 2_000, 20) : new Plan(GPS, 5_000, 10);
+        } else {
+            plan = vehicle && !saving ? new Plan(GPS, 3_000, 25) : new Plan(NETWORK, 10_000, 25);
+        }
+        if (!saving) return plan;
+        return new Plan(plan.provider, plan.intervalMs * LOW_BATTERY_INTERVAL_FACTOR, plan.minDistanceMeters);
+    }
+}
@@ -0,0 +1,289 @@
+package com.example.appmap.core;
+
+import java.util.Arrays;
+
+/**
+ * Immutable, versioned image of the location dataset, keyed by record id. Any thread may read it
+ * without locking, and it never changes after publication: {@link #with} and {@link #without}
+ * return a new version instead.
+ *
+ * <p>Records live in a 32-way trie over their ids, whose leaves hold 32 records each as small
+ * columns. A new version copies only the leaf it touches and the path above it, about 1.5 KB for
+ * a million ids, and shares everything else with the version it came from; that is what makes
+ * keeping a history of versions cheap.
+ *
+ * <p>Strings still sitting in a {@link MappedSnapshot} are decoded on every read instead of being
+ * cached, so reads stay free of side effects.
+ */
+public final class LocationSnapshot {
+
+    public interface Visitor {
+        void visit(LocationRecord record);
+    }
+
+    public static final LocationSnapshot EMPTY = new LocationSnapshot(0, 0, 0, null);
+
+    private static final int BITS = 5;
+    private static final int WIDTH = 1 << BITS;
+    private static final int MASK = WIDTH - 1;
+
+    private final long version;
+    private final int size;
+    // Bits of id consumed above the leaves; ids below 1 << (shift + BITS) fit.
+    private final int shift;
+    // A Leaf when shift is 0, otherwise an Object[] of WIDTH children one level down. Null if empty.
+    private final Object root;
+
+    private LocationSnapshot(long version, int size, int shift, Object root) {
+        this.version = version;
+        this.size = size;
+        this.shift = shift;
+        this.root = root;
+    }
+
+    /** The records currently in {@code store}, as version 1. Leaves lazy strings in the mapping. */
+    public static LocationSnapshot of(LocationStore store) {
+        int maxId = 0;
+        for (int slot = 0; slot < store.size(); slot++) {
+            maxId = Math.max(maxId, store.id(slot));
+        }
+        int shift = 0;
+        while ((maxId >>> (shift + BITS)) != 0) {
+            shift += BITS;
+        }
+        Object root = null;
+        // Every node is new here, so it is filled in place rather than copied per record.
+        for (int slot = 0; slot < store.size(); slot++) {
+            int id = store.id(slot);
+            if (shift == 0) {
+                root = root == null ? new Leaf() : root;
+                ((Leaf) root).writeFrom(id & MASK, store, slot);
+                continue;
+            }
+            Object[] node = (Object[]) (root == null ? (root = new Object[WIDTH]) : root);
+            for (int level = shift; level > BITS; level -= BITS) {
+                int index = (id >>> level) & MASK;
+                if (node[index] == null) node[index] = new Object[WIDTH];
+                node = (Object[]) node[index];
+            }
+            int index = (id >>> BITS) & MASK;
+            if (node[index] == null) node[index] = new Leaf();
+            ((Leaf) node[index]).writeFrom(id & MASK, store, slot);
+        }
+        return new LocationSnapshot(1, store.size(), shift, root);
+    }
+
+    public long version() {
+        return version;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean contains(int id) {
+        Leaf leaf = leafFor(id);
+        return leaf != null && (leaf.present & (1 << (id & MASK))) != 0;
+    }
+
+    /** A fresh copy of the record with {@code id}, or null if there is none. */
+    public LocationRecord get(int id) {
+        Leaf leaf = leafFor(id);
+        if (leaf == null || (leaf.present & (1 << (id & MASK))) == 0) return null;
+        return leaf.record(id & MASK, id);
+    }
+
+    /** Ids of every record, ascending. */
+    public int[] ids() {
+        int[] ids = new int[size];
+        int[] count = new int[1];
+        collectIds(root, shift, 0, ids, count);
+        return ids;
+    }
+
+    /** Visits a fresh copy of every record, in ascending id order. */
+    public void forEach(Visitor visitor) {
+        visit(root, shift, 0, visitor);
+    }
+
+    /** This snapshot with {@code record} added or replaced, as the next version. */
+    public LocationSnapshot with(LocationRecord record) {
+        int id = record.id;
+        if (id <= 0) {
+            throw new IllegalArgumentException("La ubicación no tiene id: " + id);
+        }
+        int newShift = shift;
+        Object newRoot = root;
+        while ((id >>> (newShift + BITS)) != 0) {
+            Object[] parent = new Object[WIDTH];
+            parent[0] = newRoot;
+            newRoot = parent;
+            newShift += BITS;
+        }
+        newRoot = set(newRoot, newShift, id, record);
+        return new LocationSnapshot(version + 1, contains(id) ? size : size + 1, newShift, newRoot);
+    }
+
+    /** This snapshot without the record with {@code id}, as the next version; itself if absent. */
+    public LocationSnapshot without(int id) {
+        if (!contains(id)) return this;
+        return new LocationSnapshot(version + 1, size - 1, shift, clear(root, shift, id));
+    }
+
+    private Leaf leafFor(int id) {
+        if (id <= 0 || (id >>> (shift + BITS)) != 0) return null;
+        Object node = root;
+        for (int level = shift; level > 0 && node != null; level -= BITS) {
+            node = ((Object[]) node)[(id >>> level) & MASK];
+        }
+        return (Leaf) node;
+    }
+
+    private static Object set(Object node, int level, int id, LocationRecord record) {
+        if (level == 0) {
+            Leaf leaf = node == null ? new Leaf() : new Leaf((Leaf) node);
+            leaf.write(id & MASK, record);
+            return leaf;
+        }
+        Object[] children = node == null ? new Object[WIDTH] : ((Object[]) node).clone();
+        int index = (id >>> level) & MASK;
+        children[index] = set(children[index], level - BITS, id, record);
+        return children;
+    }
+
+    /** Path-copies {@code node} without {@code id}, pruning nodes left empty. */
+    private static Object clear(Object node, int level, int id) {
+        if (level == 0) {
+            Leaf leaf = new Leaf((Leaf) node);
+            leaf.clear(id & MASK);
+            return leaf.present == 0 ? null : leaf;
+        }
+        Object[] children = ((Object[]) node).clone();
+        int index = (id >>> level) & MASK;
+        children[index] = clear(children[index], level - BITS, id);
+        for (Object child : children) {
+            if (child != null) return children;
+        }
+        return null;
+    }
+
+    private static void visit(Object node, int level, int base, Visitor visitor) {
+        if (node == null) return;
+        if (level == 0) {
+            Leaf leaf = (Leaf) node;
+            for (int i = 0; i < WIDTH; i++) {
+                if ((leaf.present & (1 << i)) != 0) {
+                    visitor.visit(leaf.record(i, base + i));
+                }
+            }
+            return;
+        }
+        Object[] children = (Object[]) node;
+        for (int i = 0; i < WIDTH; i++) {
+            visit(children[i], level - BITS, base + (i << level), visitor);
+        }
+    }
+
+    private static void collectIds(Object node, int level, int base, int[] ids, int[] count) {
+        if (node == null) return;
+        if (level == 0) {
+            int present = ((Leaf) node).present;
+            for (int i = 0; i < WIDTH; i++) {
+                if ((present & (1 << i)) != 0) {
+                    ids[count[0]++] = base + i;
+                }
+            }
+            return;
+        }
+        Object[] children = (Object[]) node;
+        for (int i = 0; i < WIDTH; i++) {
+            collectIds(children[i], level - BITS, base + (i << level), ids, count);
+        }
+    }
+
+    /** Up to 32 consecutive ids as columns; a bit per id says whether it is present and public. */
+    private static final class Leaf {
+        int present;
+        int publics;
+        final double[] latitudes;
+        final double[] longitudes;
+        final byte[] statuses;
+        final String[] titles;
+        final String[] descriptions;
+        // Record index in lazyStrings for entries whose strings are still in the mapping, or -1.
+        int[] stringRefs;
+        MappedSnapshot lazyStrings;
+
+        Leaf() {
+            latitudes = new double[WIDTH];
+            longitudes = new double[WIDTH];
+            statuses = new byte[WIDTH];
+            titles = new String[WIDTH];
+            descriptions = new String[WIDTH];
+        }
+
+        Leaf(Leaf other) {
+            present = other.present;
+            publics = other.publics;
+            latitudes = other.latitudes.clone();
+            longitudes = other.longitudes.clone();
+            statuses = other.statuses.clone();
+            titles = other.titles.clone();
+            descriptions = other.descriptions.clone();
+            stringRefs = other.stringRefs == null ? null : other.stringRefs.clone();
+            lazyStrings = other.lazyStrings;
+        }
+
+        void write(int i, LocationRecord record) {
+            present |= 1 << i;
+            publics = record.esPublico ? publics | (1 << i) : publics & ~(1 << i);
+            latitudes[i] = record.latitude;
+            longitudes[i] = record.longitude;
+            statuses[i] = LocationStatus.codeOf(record.estado);
+            titles[i] = record.title;
+            descriptions[i] = record.descripcion;
+            if (stringRefs != null) stringRefs[i] = -1;
+        }
+
+        void writeFrom(int i, LocationStore store, int slot) {
+            present |= 1 << i;
+            publics = store.isPublic(slot) ? publics | (1 << i) : publics & ~(1 << i);
+            latitudes[i] = store.latitude(slot);
+            longitudes[i] = store.longitude(slot);
+            statuses[i] = store.statusCode(slot);
+            int ref = store.stringRef(slot);
+            if (ref >= 0) {
+                if (stringRefs == null) {
+                    stringRefs = new int[WIDTH];
+                    Arrays.fill(stringRefs, -1);
+                }
+                stringRefs[i] = ref;
+                lazyStrings = store.lazyStrings();
+            } else {
+                titles[i] = store.rawTitle(slot);
+                descriptions[i] = store.rawDescription(slot);
+            }
+        }
+
+        void clear(int i) {
+            present &= ~(1 << i);
+            publics &= ~(1 << i);
+            titles[i] = null;
+            descriptions[i] = null;
+            if (stringRefs != null) stringRefs[i] = -1;
+        }
+
+        LocationRecord record(int i, int id) {
+            String title = titles[i];
+            String description = descriptions[i];
+            if (stringRefs != null && stringRefs[i] >= 0) {
+                title = lazyStrings.title(stringRefs[i]);
+                description = lazyStrings.description(stringRefs[i]);
+            }
+            LocationRecord record = new LocationRecord(title, LocationStatus.labelOf(statuses[i]), description,
+                    latitudes[i], longitudes[i], (publics & (1 << i)) != 0);
+            record.id = id;
+            return record;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.example.appmap.core;
+
+/**
+ * The four values of {@code R.array.status_array}, in the same order. {@link #code()} is what the
+ * location store keeps per record. Status filters are bit masks with one bit per code, plus one
+ * for {@link #NONE}; see {@link #mask(byte)}.
+ */
+public enum LocationStatus {
+    EXCELENTE("Excelente"),
+    BUENO("Bueno"),
+    DECENTE("Decente"),
+    INUTILIZABLE("Inutilizable");
+
+    public static final byte NONE = -1;
+
+    private static final LocationStatus[] VALUES = values();
+
+    /** Number of bits in a status mask: one per status plus one for {@link #NONE}. */
+    public static final int MASK_BITS = VALUES.length + 1;
+    /** Mask accepting every status, including records without one. */
+    public static final int ALL_MASK = (1 << MASK_BITS) - 1;
+
+    private final String label;
+
+    LocationStatus(String label) {
+        this.label = label;
+    }
+
+    public String label() {
+        return label;
+    }
+
+    public byte code() {
+        return (byte) ordinal();
+    }
+
+    public static LocationStatus fromCode(byte code) {
+        return code >= 0 && code < VALUES.length ? VALUES[code] : null;
+    }
+
+    public static byte codeOf(String label) {
+        if (label != null) {
+            for (LocationStatus status : VALUES) {
+                if (status.label.equals(label)) return status.code();
+            }
+        }
+        return NONE;
+    }
+
+    public static int mask(byte code) {
+        return 1 << (code + 1);
+    }
+
+    /** Mask accepting {@code worst} and every better status, as in "Bueno o mejor". */
+    public static int maskAtLeast(LocationStatus worst) {
+        int mask = 0;
+        for (int code = 0; code <= worst.code(); code++) {
+            mask |= mask((byte) code);
+        }
+        return mask;
+    }
+
+    public static String labelOf(byte code) {
+        LocationStatus status = fromCode(code);
+        return status == null ? null : status.label;
+    }
+}
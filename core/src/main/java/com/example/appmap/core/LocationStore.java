@@ -0,0 +1,321 @@
+package com.example.appmap.core;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Column-oriented location dataset. Each record is a slot across primitive columns: two doubles
+ * for the coordinates, one status byte and one public flag, plus references to pooled title and
+ * description strings, its stable id and a lazy-string index. That is 34 bytes per record with
+ * 4-byte references, before the unique strings, against roughly half a kilobyte for a
+ * {@code JSONObject} with six boxed entries.
+ *
+ * <p>Slots are dense and not stable: removing a record moves the last one into its slot. Anything
+ * that must survive a removal refers to records by id, which {@link #slotOf(int)} resolves in
+ * constant time.
+ *
+ * <p>Next to the status column the store keeps one bitmap of slots per status, so a status filter
+ * can walk just the matching records instead of testing every record it is offered.
+ *
+ * <p>A store filled from a {@link MappedSnapshot} leaves titles and descriptions in the mapping and
+ * decodes a record's strings the first time they are read, so reading them is not side-effect
+ * free and must happen on the thread that writes to the store.
+ */
+public class LocationStore {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private int[] ids = new int[INITIAL_CAPACITY];
+    private double[] latitudes = new double[INITIAL_CAPACITY];
+    private double[] longitudes = new double[INITIAL_CAPACITY];
+    private byte[] statuses = new byte[INITIAL_CAPACITY];
+    private boolean[] publics = new boolean[INITIAL_CAPACITY];
+    private String[] titles = new String[INITIAL_CAPACITY];
+    private String[] descriptions = new String[INITIAL_CAPACITY];
+    // Record index in lazyStrings whose strings are still undecoded, or -1.
+    private int[] stringRefs = new int[INITIAL_CAPACITY];
+    private MappedSnapshot lazyStrings;
+    private int size;
+    private int nextId = 1;
+
+    private final IdIndex slotsById = new IdIndex();
+    private final BitSet[] slotsByStatus = new BitSet[LocationStatus.MASK_BITS];
+    private final int[] statusCounts = new int[LocationStatus.MASK_BITS];
+    private final Map<String, String> stringPool = new HashMap<>();
+
+    public LocationStore() {
+        for (int i = 0; i < slotsByStatus.length; i++) {
+            slotsByStatus[i] = new BitSet();
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int id(int slot) {
+        return ids[slot];
+    }
+
+    /** Returns the slot currently holding {@code id}, or -1 if there is no such record. */
+    public int slotOf(int id) {
+        return id > 0 ? slotsById.get(id) : -1;
+    }
+
+    public double latitude(int slot) {
+        return latitudes[slot];
+    }
+
+    public double longitude(int slot) {
+        return longitudes[slot];
+    }
+
+    public byte statusCode(int slot) {
+        return statuses[slot];
+    }
+
+    public LocationStatus status(int slot) {
+        return LocationStatus.fromCode(statuses[slot]);
+    }
+
+    public String title(int slot) {
+        decodeStrings(slot);
+        return titles[slot];
+    }
+
+    public String description(int slot) {
+        decodeStrings(slot);
+        return descriptions[slot];
+    }
+
+    public boolean isPublic(int slot) {
+        return publics[slot];
+    }
+
+    /** Id column, valid up to {@link #size()}. Shared, not copied; callers must not modify it. */
+    public int[] ids() {
+        return ids;
+    }
+
+    /** Status code column, valid up to {@link #size()}. Shared, not copied; callers must not modify it. */
+    public byte[] statusCodes() {
+        return statuses;
+    }
+
+    /** Latitude column, valid up to {@link #size()}. Shared, not copied; callers must not modify it. */
+    public double[] latitudes() {
+        return latitudes;
+    }
+
+    /** Longitude column, valid up to {@link #size()}. Shared, not copied; callers must not modify it. */
+    public double[] longitudes() {
+        return longitudes;
+    }
+
+    /** Number of records whose status is in {@code statusMask}, see {@link LocationStatus#mask(byte)}. */
+    public int countWithStatus(int statusMask) {
+        if (statusMask == LocationStatus.ALL_MASK) return size;
+        int count = 0;
+        for (int i = 0; i < statusCounts.length; i++) {
+            if ((statusMask & (1 << i)) != 0) {
+                count += statusCounts[i];
+            }
+        }
+        return count;
+    }
+
+    /** Visits the slots whose status is in {@code statusMask}, one status bitmap at a time. */
+    public void forEachWithStatus(int statusMask, SpatialGrid.SlotVisitor visitor) {
+        for (int i = 0; i < slotsByStatus.length; i++) {
+            if ((statusMask & (1 << i)) == 0) continue;
+            BitSet slots = slotsByStatus[i];
+            for (int slot = slots.nextSetBit(0); slot >= 0; slot = slots.nextSetBit(slot + 1)) {
+                visitor.visit(slot);
+            }
+        }
+    }
+
+    /**
+     * Fills an empty store with the records of {@code snapshot}. The fixed-width columns are
+     * bulk-copied out of the mapping; titles and descriptions stay there until first read.
+     */
+    public void load(MappedSnapshot snapshot) {
+        if (size != 0) {
+            throw new IllegalStateException("El almacén de ubicaciones no está vacío");
+        }
+        int count = snapshot.size();
+        if (count > latitudes.length) {
+            grow(count);
+        }
+        snapshot.copyColumns(ids, latitudes, longitudes, statuses, publics);
+        lazyStrings = snapshot;
+        for (int slot = 0; slot < count; slot++) {
+            stringRefs[slot] = slot;
+            slotsById.put(ids[slot], slot);
+            nextId = Math.max(nextId, ids[slot] + 1);
+            trackStatus(slot);
+        }
+        size = count;
+    }
+
+    /**
+     * Appends {@code record} and returns its slot. Records without an id, or whose id is already
+     * taken, get a fresh one, which is written back to {@code record.id}.
+     */
+    public int add(LocationRecord record) {
+        if (size == latitudes.length) {
+            grow(size * 2);
+        }
+        int id = record.id;
+        if (id <= 0 || slotsById.get(id) >= 0) {
+            id = nextId;
+            record.id = id;
+        }
+        nextId = Math.max(nextId, id + 1);
+        int slot = size++;
+        ids[slot] = id;
+        slotsById.put(id, slot);
+        write(slot, record);
+        return slot;
+    }
+
+    /** Keeps ids up to {@code maxId} from being handed out, for records that live outside the store. */
+    public void reserveIds(int maxId) {
+        nextId = Math.max(nextId, maxId + 1);
+    }
+
+    public void set(int slot, LocationRecord record) {
+        untrackStatus(slot);
+        write(slot, record);
+    }
+
+    private void write(int slot, LocationRecord record) {
+        latitudes[slot] = record.latitude;
+        longitudes[slot] = record.longitude;
+        statuses[slot] = LocationStatus.codeOf(record.estado);
+        publics[slot] = record.esPublico;
+        titles[slot] = pooled(record.title);
+        descriptions[slot] = pooled(record.descripcion);
+        stringRefs[slot] = -1;
+        trackStatus(slot);
+    }
+
+    private void decodeStrings(int slot) {
+        int ref = stringRefs[slot];
+        if (ref < 0) return;
+        titles[slot] = pooled(lazyStrings.title(ref));
+        descriptions[slot] = pooled(lazyStrings.description(ref));
+        stringRefs[slot] = -1;
+    }
+
+    private void trackStatus(int slot) {
+        int bit = statuses[slot] + 1;
+        slotsByStatus[bit].set(slot);
+        statusCounts[bit]++;
+    }
+
+    private void untrackStatus(int slot) {
+        int bit = statuses[slot] + 1;
+        slotsByStatus[bit].clear(slot);
+        statusCounts[bit]--;
+    }
+
+    /**
+     * Removes the record in {@code slot} by moving the last record into it. Returns the slot the
+     * moved record used to occupy, or -1 if {@code slot} was the last one.
+     */
+    public int remove(int slot) {
+        slotsById.remove(ids[slot]);
+        untrackStatus(slot);
+        int last = --size;
+        int moved = -1;
+        if (slot != last) {
+            untrackStatus(last);
+            ids[slot] = ids[last];
+            latitudes[slot] = latitudes[last];
+            longitudes[slot] = longitudes[last];
+            statuses[slot] = statuses[last];
+            publics[slot] = publics[last];
+            titles[slot] = titles[last];
+            descriptions[slot] = descriptions[last];
+            stringRefs[slot] = stringRefs[last];
+            slotsById.put(ids[slot], slot);
+            trackStatus(slot);
+            moved = last;
+        }
+        titles[last] = null;
+        descriptions[last] = null;
+        return moved;
+    }
+
+    /** The title as stored, without decoding: null while {@link #stringRef} is still set. */
+    String rawTitle(int slot) {
+        return titles[slot];
+    }
+
+    String rawDescription(int slot) {
+        return descriptions[slot];
+    }
+
+    /** Record index in {@link #lazyStrings()} whose strings are still undecoded, or -1. */
+    int stringRef(int slot) {
+        return stringRefs[slot];
+    }
+
+    MappedSnapshot lazyStrings() {
+        return lazyStrings;
+    }
+
+    public LocationRecord toRecord(int slot) {
+        decodeStrings(slot);
+        LocationRecord record = new LocationRecord(titles[slot], LocationStatus.labelOf(statuses[slot]), descriptions[slot],
+                latitudes[slot], longitudes[slot], publics[slot]);
+        record.id = ids[slot];
+        return record;
+    }
+
+    /**
+     * Rough retained size of the store: the allocated columns plus every pooled string and its
+     * pool entry. Used to keep the per-record footprint in check.
+     */
+    public long approximateBytes() {
+        long bytes = (long) latitudes.length * (4 + 8 + 8 + 1 + 1 + 4 + 4 + 4);
+        for (BitSet slots : slotsByStatus) {
+            bytes += slots.size() / 8;
+        }
+        for (String value : stringPool.keySet()) {
+            bytes += 24 + 16 + 2L * value.length() + 32;
+        }
+        return bytes;
+    }
+
+    /** Drops pooled strings no record uses any more, after many records have been removed. */
+    public void trimStringPool() {
+        stringPool.clear();
+        for (int slot = 0; slot < size; slot++) {
+            titles[slot] = pooled(titles[slot]);
+            descriptions[slot] = pooled(descriptions[slot]);
+        }
+    }
+
+    private String pooled(String value) {
+        if (value == null) return null;
+        String existing = stringPool.get(value);
+        if (existing != null) return existing;
+        stringPool.put(value, value);
+        return value;
+    }
+
+    private void grow(int capacity) {
+        ids = Arrays.copyOf(ids, capacity);
+        latitudes = Arrays.copyOf(latitudes, capacity);
+        longitudes = Arrays.copyOf(longitudes, capacity);
+        statuses = Arrays.copyOf(statuses, capacity);
+        publics = Arrays.copyOf(publics, capacity);
+        titles = Arrays.copyOf(titles, capacity);
+        descriptions = Arrays.copyOf(descriptions, capacity);
+        stringRefs = Arrays.copyOf(stringRefs, capacity);
+    }
+}
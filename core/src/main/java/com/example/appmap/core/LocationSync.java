@@ -0,0 +1,815 @@
+package com.example.appmap.core;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntPredicate;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Incremental two-way sync of the public locations with a backend. Only records changed since the
+ * last exchange travel: a pass first pulls the server's changes after a version cursor, page by
+ * page, then pushes the local records marked dirty in batches. Both directions are gzipped JSON.
+ * Private records never leave the device; one made private after it was shared is deleted
+ * remotely.
+ *
+ * <p>Local ids are per device, so each shared record gets a random remote id and remembers the
+ * server version it was last in sync with. A push based on an older version is a conflict, settled
+ * per record by a {@link ConflictResolver}; by default the later edit wins. A failed pass (offline,
+ * server errors) is retried with exponential backoff until one succeeds.
+ *
+ * <p>All sync state lives on one worker thread and is saved to {@code stateFile}. Protocol, under
+ * {@code baseUrl}:
+ * <pre>
+ * GET  locations/changes?since=&lt;cursor&gt;&amp;limit=&lt;n&gt;
+ *      -&gt; {"version": v, "more": bool, "changes": [change, ...]}
+ * POST locations/changes  {"changes": [change with "base_version", ...]}
+ *      -&gt; {"results": [{"id", "status": "applied" | "conflict", "version", "current": change}, ...]}
+ * </pre>
+ * where a change is {@code {"id", "version", "deleted", "modified_at", "location": {...}}} and the
+ * location has the fields of {@code locations.json}.
+ */
+public class LocationSync {
+
+    public interface TokenProvider {
+        /** Bearer token for the signed-in user, or null to send requests unauthenticated. */
+        String token() throws IOException;
+    }
+
+    /**
+     * The app's side of the sync. Called on the sync thread; implementations hop to whichever
+     * thread owns the store, and throw if it is gone.
+     */
+    public interface Local {
+        int[] ids() throws IOException;
+
+        /** Current contents of each record, null for ones no longer in the store. */
+        LocationRecord[] read(int[] ids) throws IOException;
+
+        /**
+         * Applies remote changes to the records in {@code localIds} (-1 for a record new to this
+         * device) without marking them dirty. Returns the local id each change ended up in, or
+         * {@link #SKIPPED} for a record {@code editedMeanwhile} accepts: the user edited it after
+         * the pass chose the remote copy. Test it on the thread that edits, as part of applying.
+         */
+        int[] apply(int[] localIds, List<Change> changes, IntPredicate editedMeanwhile) throws IOException;
+    }
+
+    public interface ConflictResolver {
+        /** Whether a local edit, or deletion, made at {@code localModifiedAt} overrides {@code remote}. */
+        boolean keepLocal(long localModifiedAt, Change remote);
+    }
+
+    public static final ConflictResolver LAST_WRITER_WINS =
+            (localModifiedAt, remote) -> localModifiedAt > remote.modifiedAt;
+
+    public static final class Change {
+        public final String remoteId;
+        public final long version;
+        public final boolean deleted;
+        public final long modifiedAt;
+        /** Null when deleted. */
+        public final LocationRecord record;
+
+        public Change(String remoteId, long version, boolean deleted, long modifiedAt, LocationRecord record) {
+            this.remoteId = remoteId;
+            this.version = version;
+            this.deleted = deleted;
+            this.modifiedAt = modifiedAt;
+            this.record = record;
+        }
+    }
+
+    /** Returned by {@link Local#apply} for a change left unapplied; the local edit is pushed instead. */
+    public static final int SKIPPED = -2;
+
+    static final String CHANGES_PATH = "locations/changes";
+    static final int PULL_PAGE_SIZE = 500;
+    static final int PUSH_BATCH_SIZE = 200;
+
+    private static final int MAGIC = 0x4C53594E;
+    private static final int VERSION = 1;
+    private static final int MAX_PUSH_ROUNDS = 3;
+    private static final long SAVE_DELAY_MS = 2000;
+    private static final int CONNECT_TIMEOUT_MS = 10_000;
+    private static final int READ_TIMEOUT_MS = 30_000;
+
+    private static final Timer PASS_TIMER = Metrics.timer("sync.pass");
+    private static final Counter PULLED = Metrics.counter("sync.pulled");
+    private static final Counter PUSHED = Metrics.counter("sync.pushed");
+    private static final Counter CONFLICTS = Metrics.counter("sync.conflicts");
+    private static final Counter SKIPPED_CHANGES = Metrics.counter("sync.skipped");
+    private static final Counter FAILURES = Metrics.counter("sync.failures");
+    // A state that cannot be read means a full re-bootstrap, so it is counted apart from a failed save.
+    private static final Counter STATE_RESETS = Metrics.counter("sync.state_resets");
+    private static final Counter STATE_SAVE_FAILURES = Metrics.counter("sync.state_save_failures");
+    private static final Counter BYTES_SENT = Metrics.counter("sync.bytes_sent");
+    private static final Counter BYTES_RECEIVED = Metrics.counter("sync.bytes_received");
+
+    private final File stateFile;
+    private final String changesUrl;
+    private final TokenProvider tokens;
+    private final Local local;
+    private final ConflictResolver resolver;
+    private final ScheduledThreadPoolExecutor worker = new ScheduledThreadPoolExecutor(1, runnable -> {
+        Thread thread = new Thread(runnable, "location-sync");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicLong lastStamp = new AtomicLong();
+    // Stamp of each record's latest edit, set on the editing thread before the worker hears of it,
+    // so apply can tell edits the pass has not seen from the ones it has.
+    private final Map<Integer, Long> edits = new ConcurrentHashMap<>();
+    long retryBaseMs = 2000;
+    long retryMaxMs = 10 * 60_000;
+
+    // Worker thread only.
+    private boolean stateLoaded;
+    private boolean needsBootstrap;
+    private long cursor;
+    private final Map<Integer, Remote> remotes = new HashMap<>();
+    private final Map<String, Integer> localIds = new HashMap<>();
+    private final Map<Integer, Long> dirty = new HashMap<>();
+    private final Map<String, Tombstone> tombstones = new HashMap<>();
+    private boolean saveScheduled;
+    private volatile int failures;
+    private volatile boolean closing;
+    private Future<?> closed;
+    private ScheduledFuture<?> retry;
+
+    public LocationSync(File stateFile, String baseUrl, TokenProvider tokens, Local local, ConflictResolver resolver) {
+        this.stateFile = stateFile;
+        this.changesUrl = (baseUrl.endsWith("/") ? baseUrl : baseUrl + "/") + CHANGES_PATH;
+        this.tokens = tokens;
+        this.local = local;
+        this.resolver = resolver;
+        worker.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    }
+
+    /** Marks a record added or edited by the user since the last sync. */
+    public void recordChanged(int id) {
+        long at = stamp();
+        edits.put(id, at);
+        worker.execute(() -> {
+            loadState();
+            dirty.put(id, at);
+            scheduleSave();
+        });
+    }
+
+    /** Marks a record deleted by the user; if it was shared, the deletion is pushed too. */
+    public void recordDeleted(int id) {
+        long at = stamp();
+        edits.put(id, at);
+        worker.execute(() -> {
+            loadState();
+            dirty.remove(id);
+            Remote remote = remotes.remove(id);
+            if (remote != null) {
+                localIds.remove(remote.id);
+                tombstones.put(remote.id, new Tombstone(remote.baseVersion, at));
+            }
+            scheduleSave();
+        });
+    }
+
+    /**
+     * Runs a pass now, replacing any pending retry. The future tells whether it succeeded; if it
+     * didn't, another attempt is already scheduled.
+     */
+    public Future<Boolean> requestSync() {
+        return worker.submit(() -> {
+            if (retry != null) {
+                retry.cancel(false);
+            }
+            return attempt();
+        });
+    }
+
+    /**
+     * Saves the sync state on the worker and stops it, dropping any pending retry. Returns at once;
+     * the future completes once the state is saved. A pass under way gives up at its next request
+     * or apply, so it never holds the save back behind a thread that is closing too.
+     */
+    public synchronized Future<?> close() {
+        if (closed == null) {
+            closing = true;
+            closed = worker.submit(this::saveState);
+            worker.shutdown();
+        }
+        return closed;
+    }
+
+    int consecutiveFailures() {
+        return failures;
+    }
+
+    private boolean attempt() {
+        retry = null;
+        long start = PASS_TIMER.start();
+        try {
+            loadState();
+            if (needsBootstrap) {
+                // Records that predate sync are all candidates for the first push.
+                for (int id : local.ids()) {
+                    dirty.putIfAbsent(id, 0L);
+                }
+                needsBootstrap = false;
+            }
+            pull();
+            push();
+            saveState();
+            failures = 0;
+            PASS_TIMER.stop(start);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            saveState();
+            if (closing) return false;
+            FAILURES.increment();
+            long delay = Math.min(retryMaxMs, retryBaseMs << Math.min(failures, 20));
+            failures++;
+            delay = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+            retry = worker.schedule(this::attempt, delay, TimeUnit.MILLISECONDS);
+            return false;
+        }
+    }
+
+    private void pull() throws IOException {
+        boolean more = true;
+        while (more) {
+            Page page = get(cursor);
+            List<Change> changes = new ArrayList<>();
+            List<Integer> targets = new ArrayList<>();
+            List<Long> seen = new ArrayList<>();
+            for (Change change : page.changes) {
+                Tombstone tombstone = tombstones.get(change.remoteId);
+                Integer localId = localIds.get(change.remoteId);
+                if (tombstone != null) {
+                    if (change.deleted) {
+                        tombstones.remove(change.remoteId);
+                    } else if (change.version > tombstone.baseVersion) {
+                        CONFLICTS.increment();
+                        if (resolver.keepLocal(tombstone.deletedAt, change)) {
+                            tombstone.baseVersion = change.version;
+                        } else {
+                            tombstones.remove(change.remoteId);
+                            targets.add(-1);
+                            seen.add(0L);
+                            changes.add(change);
+                        }
+                    }
+                    continue;
+                }
+                if (localId == null) {
+                    if (!change.deleted) {
+                        targets.add(-1);
+                        seen.add(0L);
+                        changes.add(change);
+                    }
+                    continue;
+                }
+                Remote remote = remotes.get(localId);
+                if (change.version <= remote.baseVersion) {
+                    // Our own push coming back.
+                    continue;
+                }
+                Long localModifiedAt = dirty.get(localId);
+                if (localModifiedAt != null) {
+                    CONFLICTS.increment();
+                    if (resolver.keepLocal(localModifiedAt, change)) {
+                        remote.baseVersion = change.version;
+                        continue;
+                    }
+                    dirty.remove(localId);
+                }
+                targets.add(localId);
+                seen.add(localModifiedAt == null ? 0L : localModifiedAt);
+                changes.add(change);
+            }
+            applyRemote(targets, seen, changes);
+            PULLED.add(page.changes.size());
+            cursor = page.version;
+            more = page.more && !page.changes.isEmpty();
+        }
+    }
+
+    private void push() throws IOException {
+        for (int round = 0; round < MAX_PUSH_ROUNDS && (!dirty.isEmpty() || !tombstones.isEmpty()); round++) {
+            List<Outgoing> outgoing = collectOutgoing();
+            for (int from = 0; from < outgoing.size(); from += PUSH_BATCH_SIZE) {
+                List<Outgoing> batch = outgoing.subList(from, Math.min(outgoing.size(), from + PUSH_BATCH_SIZE));
+                Map<String, Result> results = post(batch);
+                List<Change> changes = new ArrayList<>();
+                List<Integer> targets = new ArrayList<>();
+                List<Long> seen = new ArrayList<>();
+                for (Outgoing out : batch) {
+                    Result result = results.get(out.remoteId);
+                    if (result == null) continue;
+                    if (result.applied || (out.record == null && result.current.deleted)) {
+                        PUSHED.increment();
+                        settle(out, result.version);
+                        continue;
+                    }
+                    CONFLICTS.increment();
+                    if (resolver.keepLocal(out.modifiedAt, result.current)) {
+                        // Retried next round against the version it overrides.
+                        if (out.localId < 0) {
+                            tombstones.get(out.remoteId).baseVersion = result.current.version;
+                        } else {
+                            remotes.get(out.localId).baseVersion = result.current.version;
+                        }
+                        continue;
+                    }
+                    if (out.localId < 0) {
+                        tombstones.remove(out.remoteId);
+                    } else {
+                        dirty.remove(out.localId);
+                    }
+                    if (out.localId >= 0 || !result.current.deleted) {
+                        targets.add(out.localId);
+                        seen.add(out.modifiedAt);
+                        changes.add(result.current);
+                    }
+                }
+                applyRemote(targets, seen, changes);
+            }
+        }
+    }
+
+    private List<Outgoing> collectOutgoing() throws IOException {
+        List<Outgoing> outgoing = new ArrayList<>();
+        int[] ids = new int[dirty.size()];
+        int count = 0;
+        for (int id : dirty.keySet()) {
+            ids[count++] = id;
+        }
+        LocationRecord[] records = count == 0 ? new LocationRecord[0] : local.read(ids);
+        for (int i = 0; i < count; i++) {
+            int id = ids[i];
+            LocationRecord record = records[i];
+            Remote remote = remotes.get(id);
+            if (record == null || (!record.esPublico && remote == null)) {
+                // Deleted (its tombstone is already queued) or never shared.
+                edits.remove(id, dirty.remove(id));
+                continue;
+            }
+            if (remote == null) {
+                remote = new Remote(UUID.randomUUID().toString(), 0);
+                remotes.put(id, remote);
+                localIds.put(remote.id, id);
+            }
+            outgoing.add(new Outgoing(id, remote.id, remote.baseVersion, dirty.get(id), record.esPublico ? record : null));
+        }
+        for (Map.Entry<String, Tombstone> entry : tombstones.entrySet()) {
+            Tombstone tombstone = entry.getValue();
+            outgoing.add(new Outgoing(-1, entry.getKey(), tombstone.baseVersion, tombstone.deletedAt, null));
+        }
+        return outgoing;
+    }
+
+    /** Records that {@code out} now matches server version {@code version}. */
+    private void settle(Outgoing out, long version) {
+        if (out.localId < 0) {
+            tombstones.remove(out.remoteId);
+            return;
+        }
+        dirty.remove(out.localId);
+        edits.remove(out.localId, out.modifiedAt);
+        if (out.record != null) {
+            remotes.get(out.localId).baseVersion = version;
+        } else {
+            // Made private: no longer shared.
+            remotes.remove(out.localId);
+            localIds.remove(out.remoteId);
+        }
+    }
+
+    /**
+     * {@code seen} holds, per target, the stamp of the latest edit this pass knew of when it chose
+     * the remote copy; a later edit makes apply skip the change.
+     */
+    private void applyRemote(List<Integer> targets, List<Long> seen, List<Change> changes) throws IOException {
+        if (changes.isEmpty()) return;
+        int[] localTargets = new int[targets.size()];
+        Map<Integer, Long> seenStamps = new HashMap<>();
+        for (int i = 0; i < localTargets.length; i++) {
+            localTargets[i] = targets.get(i);
+            seenStamps.put(localTargets[i], seen.get(i));
+        }
+        checkOpen();
+        int[] applied = local.apply(localTargets, changes,
+                id -> edits.getOrDefault(id, 0L) > seenStamps.getOrDefault(id, 0L));
+        for (int i = 0; i < changes.size(); i++) {
+            Change change = changes.get(i);
+            if (applied[i] == SKIPPED) {
+                // Still at its old base version, so pushing the queued edit meets the resolver.
+                SKIPPED_CHANGES.increment();
+                continue;
+            }
+            if (localTargets[i] >= 0) {
+                edits.remove(localTargets[i], seen.get(i));
+            }
+            if (change.deleted) {
+                if (localTargets[i] >= 0) {
+                    remotes.remove(localTargets[i]);
+                    localIds.remove(change.remoteId);
+                }
+                continue;
+            }
+            Remote remote = remotes.get(applied[i]);
+            if (remote == null) {
+                remotes.put(applied[i], new Remote(change.remoteId, change.version));
+                localIds.put(change.remoteId, applied[i]);
+            } else {
+                remote.baseVersion = change.version;
+            }
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (closing) throw new IOException("Sincronización cerrada");
+    }
+
+    private Page get(long since) throws IOException {
+        checkOpen();
+        HttpURLConnection connection = open(changesUrl + "?since=" + since + "&limit=" + PULL_PAGE_SIZE);
+        try {
+            Page page = new Page();
+            try (JsonReader reader = response(connection)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    switch (reader.nextName()) {
+                        case "version":
+                            page.version = reader.nextLong();
+                            break;
+                        case "more":
+                            page.more = reader.nextBoolean();
+                            break;
+                        case "changes":
+                            reader.beginArray();
+                            while (reader.hasNext()) {
+                                page.changes.add(readChange(reader));
+                            }
+                            reader.endArray();
+                            break;
+                        default:
+                            reader.skipValue();
+                            break;
+                    }
+                }
+                reader.endObject();
+            }
+            return page;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private Map<String, Result> post(List<Outgoing> batch) throws IOException {
+        checkOpen();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (Writer out = new OutputStreamWriter(new GZIPOutputStream(body), StandardCharsets.UTF_8)) {
+            JsonWriter writer = new JsonWriter(out);
+            writer.beginObject();
+            writer.name("changes").beginArray();
+            for (Outgoing change : batch) {
+                writer.beginObject();
+                writer.name("id").value(change.remoteId);
+                writer.name("base_version").value(change.baseVersion);
+                writer.name("deleted").value(change.record == null);
+                writer.name("modified_at").value(change.modifiedAt);
+                if (change.record != null) {
+                    writer.name("location");
+                    writeRecord(writer, change.record);
+                }
+                writer.endObject();
+            }
+            writer.endArray();
+            writer.endObject();
+            writer.flush();
+        }
+
+        HttpURLConnection connection = open(changesUrl);
+        try {
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+            connection.setRequestProperty("Content-Encoding", "gzip");
+            connection.setFixedLengthStreamingMode(body.size());
+            try (OutputStream out = connection.getOutputStream()) {
+                body.writeTo(out);
+            }
+            BYTES_SENT.add(body.size());
+
+            Map<String, Result> results = new HashMap<>();
+            try (JsonReader reader = response(connection)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if (!reader.nextName().equals("results")) {
+                        reader.skipValue();
+                        continue;
+                    }
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        Result result = readResult(reader);
+                        if (result.id != null) {
+                            results.put(result.id, result);
+                        }
+                    }
+                    reader.endArray();
+                }
+                reader.endObject();
+            }
+            return results;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private HttpURLConnection open(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        connection.setReadTimeout(READ_TIMEOUT_MS);
+        connection.setRequestProperty("Accept", "application/json");
+        connection.setRequestProperty("Accept-Encoding", "gzip");
+        String token = tokens.token();
+        if (token != null) {
+            connection.setRequestProperty("Authorization", "Bearer " + token);
+        }
+        return connection;
+    }
+
+    private static JsonReader response(HttpURLConnection connection) throws IOException {
+        int code = connection.getResponseCode();
+        if (code != HttpURLConnection.HTTP_OK) {
+            throw new IOException("Respuesta " + code + " del servidor de sincronización");
+        }
+        if (connection.getContentLength() > 0) {
+            BYTES_RECEIVED.add(connection.getContentLength());
+        }
+        InputStream in = new BufferedInputStream(connection.getInputStream());
+        if ("gzip".equalsIgnoreCase(connection.getContentEncoding())) {
+            in = new GZIPInputStream(in);
+        }
+        return new JsonReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+    }
+
+    private static Change readChange(JsonReader reader) throws IOException {
+        String id = null;
+        long version = 0;
+        boolean deleted = false;
+        long modifiedAt = 0;
+        LocationRecord record = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+                continue;
+            }
+            switch (name) {
+                case "id":
+                    id = reader.nextString();
+                    break;
+                case "version":
+                    version = reader.nextLong();
+                    break;
+                case "deleted":
+                    deleted = reader.nextBoolean();
+                    break;
+                case "modified_at":
+                    modifiedAt = reader.nextLong();
+                    break;
+                case "location":
+                    record = LocationJson.readRecord(reader);
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+        if (id == null || (!deleted && record == null)) {
+            throw new IOException("Cambio remoto incompleto");
+        }
+        if (record != null) {
+            // Only public records are ever shared.
+            record.id = 0;
+            record.esPublico = true;
+        }
+        return new Change(id, version, deleted, modifiedAt, deleted ? null : record);
+    }
+
+    private static Result readResult(JsonReader reader) throws IOException {
+        Result result = new Result();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+                continue;
+            }
+            switch (name) {
+                case "id":
+                    result.id = reader.nextString();
+                    break;
+                case "status":
+                    result.applied = reader.nextString().equals("applied");
+                    break;
+                case "version":
+                    result.version = reader.nextLong();
+                    break;
+                case "current":
+                    result.current = readChange(reader);
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+        if (!result.applied && result.current == null) {
+            throw new IOException("Conflicto sin versión remota");
+        }
+        return result;
+    }
+
+    private static void writeRecord(JsonWriter writer, LocationRecord record) throws IOException {
+        writer.beginObject();
+        writer.name("title").value(record.title);
+        writer.name("estado").value(record.estado);
+        writer.name("descripcion").value(record.descripcion);
+        writer.name("latitude").value(record.latitude);
+        writer.name("longitude").value(record.longitude);
+        writer.name("es_publico").value(true);
+        writer.endObject();
+    }
+
+    /** Wall-clock time of a local edit, strictly increasing so two edits never tie. */
+    private long stamp() {
+        long now = System.currentTimeMillis();
+        return lastStamp.updateAndGet(last -> Math.max(now, last + 1));
+    }
+
+    private void scheduleSave() {
+        if (saveScheduled) return;
+        saveScheduled = true;
+        worker.schedule(this::saveState, SAVE_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void loadState() {
+        if (stateLoaded) return;
+        stateLoaded = true;
+        if (!stateFile.exists()) {
+            needsBootstrap = true;
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(stateFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Estado de sincronización no reconocido");
+            }
+            cursor = in.readLong();
+            for (int i = in.readInt(); i > 0; i--) {
+                int id = in.readInt();
+                Remote remote = new Remote(in.readUTF(), in.readLong());
+                remotes.put(id, remote);
+                localIds.put(remote.id, id);
+            }
+            for (int i = in.readInt(); i > 0; i--) {
+                dirty.put(in.readInt(), in.readLong());
+            }
+            for (int i = in.readInt(); i > 0; i--) {
+                tombstones.put(in.readUTF(), new Tombstone(in.readLong(), in.readLong()));
+            }
+        } catch (IOException e) {
+            STATE_RESETS.increment();
+            e.printStackTrace();
+            cursor = 0;
+            remotes.clear();
+            localIds.clear();
+            dirty.clear();
+            tombstones.clear();
+            needsBootstrap = true;
+        }
+    }
+
+    private void saveState() {
+        saveScheduled = false;
+        if (!stateLoaded) return;
+        File tmp = new File(stateFile.getPath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(cursor);
+            out.writeInt(remotes.size());
+            for (Map.Entry<Integer, Remote> entry : remotes.entrySet()) {
+                out.writeInt(entry.getKey());
+                out.writeUTF(entry.getValue().id);
+                out.writeLong(entry.getValue().baseVersion);
+            }
+            out.writeInt(dirty.size());
+            for (Map.Entry<Integer, Long> entry : dirty.entrySet()) {
+                out.writeInt(entry.getKey());
+                out.writeLong(entry.getValue());
+            }
+            out.writeInt(tombstones.size());
+            for (Map.Entry<String, Tombstone> entry : tombstones.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue().baseVersion);
+                out.writeLong(entry.getValue().deletedAt);
+            }
+            out.flush();
+            fos.getFD().sync();
+        } catch (IOException e) {
+            STATE_SAVE_FAILURES.increment();
+            e.printStackTrace();
+            tmp.delete();
+            return;
+        }
+        if (!tmp.renameTo(stateFile)) {
+            STATE_SAVE_FAILURES.increment();
+            tmp.delete();
+        }
+    }
+
+    private static final class Remote {
+        final String id;
+        long baseVersion;
+
+        Remote(String id, long baseVersion) {
+            this.id = id;
+            this.baseVersion = baseVersion;
+        }
+    }
+
+    private static final class Tombstone {
+        long baseVersion;
+        final long deletedAt;
+
+        Tombstone(long baseVersion, long deletedAt) {
+            this.baseVersion = baseVersion;
+            this.deletedAt = deletedAt;
+        }
+    }
+
+    /** A local record, or a deletion when {@code record} is null, about to be pushed. */
+    private static final class Outgoing {
+        final int localId;
+        final String remoteId;
+        final long baseVersion;
+        final long modifiedAt;
+        final LocationRecord record;
+
+        Outgoing(int localId, String remoteId, long baseVersion, long modifiedAt, LocationRecord record) {
+            this.localId = localId;
+            this.remoteId = remoteId;
+            this.baseVersion = baseVersion;
+            this.modifiedAt = modifiedAt;
+            this.record = record;
+        }
+    }
+
+    private static final class Page {
+        long version;
+        boolean more;
+        final List<Change> changes = new ArrayList<>();
+    }
+
+    private static final class Result {
+        String id;
+        boolean applied;
+        long version;
+        Change current;
+    }
+}
@@ -0,0 +1,86 @@
+package com.example.appmap.core;
+
+import java.util.Arrays;
+
+/**
+ * Insert-only open-addressing hash map from non-negative {@code long} keys to {@code int} values,
+ * used to find grid and cluster cells without boxing.
+ */
+public class LongIntMap {
+
+    private static final long EMPTY = -1L;
+
+    private long[] keys;
+    private int[] values;
+    private int size;
+
+    public LongIntMap() {
+        this(32);
+    }
+
+    public LongIntMap(int expected) {
+        int capacity = Integer.highestOneBit(Math.max(4, expected) * 2 - 1) << 1;
+        keys = new long[capacity];
+        Arrays.fill(keys, EMPTY);
+        values = new int[capacity];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /** Returns the value for {@code key}, or -1. */
+    public int get(long key) {
+        int mask = keys.length - 1;
+        int index = mix(key) & mask;
+        while (true) {
+            long existing = keys[index];
+            if (existing == key) return values[index];
+            if (existing == EMPTY) return -1;
+            index = (index + 1) & mask;
+        }
+    }
+
+    public void put(long key, int value) {
+        int mask = keys.length - 1;
+        int index = mix(key) & mask;
+        while (true) {
+            long existing = keys[index];
+            if (existing == key) {
+                values[index] = value;
+                return;
+            }
+            if (existing == EMPTY) break;
+            index = (index + 1) & mask;
+        }
+        keys[index] = key;
+        values[index] = value;
+        if (++size * 2 > keys.length) {
+            rehash(keys.length * 2);
+        }
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new long[capacity];
+        Arrays.fill(keys, EMPTY);
+        values = new int[capacity];
+        int mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            long key = oldKeys[i];
+            if (key == EMPTY) continue;
+            int index = mix(key) & mask;
+            while (keys[index] != EMPTY) {
+                index = (index + 1) & mask;
+            }
+            keys[index] = key;
+            values[index] = oldValues[i];
+        }
+    }
+
+    private static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,334 @@
+package com.example.appmap.core;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Read-only binary image of the location dataset ({@code locations.bin}), opened with a memory
+ * mapping. The fixed-width columns come first so a store can bulk-copy them without parsing;
+ * titles and descriptions sit behind an offset table and are decoded one record at a time, on
+ * demand.
+ *
+ * <p>Layout, little-endian: a 40-byte header (magic, version, count, reserved, and the length,
+ * modification time and CRC of the JSON snapshot it was made from), then latitudes and longitudes
+ * as doubles, ids as ints, {@code 2 * count + 1} string offsets into the UTF-8 blob, one status
+ * byte and one flags byte per record, and the blob itself.
+ */
+public final class MappedSnapshot {
+
+    private static final int MAGIC = 0x4C534E42;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 40;
+    private static final int FIXED_BYTES_PER_RECORD = 8 + 8 + 4 + 8 + 1 + 1;
+
+    private static final int FLAG_PUBLIC = 1;
+    private static final int FLAG_NO_TITLE = 2;
+    private static final int FLAG_NO_DESCRIPTION = 4;
+
+    private final ByteBuffer buffer;
+    private final int count;
+    private final long sourceLength;
+    private final long sourceModified;
+    private final long sourceCrc;
+    private final int latitudesOffset;
+    private final int longitudesOffset;
+    private final int idsOffset;
+    private final int stringOffsetsOffset;
+    private final int statusesOffset;
+    private final int flagsOffset;
+    private final int blobOffset;
+
+    private MappedSnapshot(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("Snapshot binario no reconocido");
+        }
+        count = buffer.getInt(8);
+        sourceLength = buffer.getLong(16);
+        sourceModified = buffer.getLong(24);
+        sourceCrc = buffer.getLong(32);
+        if (count < 0 || (long) count * FIXED_BYTES_PER_RECORD + 4 + HEADER_BYTES > buffer.capacity()) {
+            throw new IOException("Snapshot binario truncado");
+        }
+        latitudesOffset = HEADER_BYTES;
+        longitudesOffset = latitudesOffset + 8 * count;
+        idsOffset = longitudesOffset + 8 * count;
+        stringOffsetsOffset = idsOffset + 4 * count;
+        statusesOffset = stringOffsetsOffset + 4 * (2 * count + 1);
+        flagsOffset = statusesOffset + count;
+        blobOffset = flagsOffset + count;
+        if ((long) blobOffset + blobLength() != buffer.capacity()) {
+            throw new IOException("Snapshot binario truncado");
+        }
+    }
+
+    public static MappedSnapshot open(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            mapped.order(ByteOrder.LITTLE_ENDIAN);
+            return new MappedSnapshot(mapped);
+        }
+    }
+
+    /**
+     * Writes the first {@code store.size()} records of {@code store} to {@code file} through a
+     * temporary file, so a reader never maps a half-written snapshot. Decodes every lazy string
+     * the store still holds.
+     */
+    public static void write(File file, LocationStore store, long sourceLength, long sourceModified, long sourceCrc)
+            throws IOException {
+        write(file, store, null, store.size(), sourceLength, sourceModified, sourceCrc);
+    }
+
+    /** Like {@link #write(File, LocationStore, long, long, long)}, for {@code slots[0..count)} only; all slots if null. */
+    static void write(File file, LocationStore store, int[] slots, int count, long sourceLength, long sourceModified,
+                      long sourceCrc) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp)) {
+            ColumnWriter out = new ColumnWriter(new BufferedOutputStream(fos));
+            out.putInt(MAGIC);
+            out.putInt(VERSION);
+            out.putInt(count);
+            out.putInt(0);
+            out.putLong(sourceLength);
+            out.putLong(sourceModified);
+            out.putLong(sourceCrc);
+            for (int i = 0; i < count; i++) {
+                out.putDouble(store.latitude(slot(slots, i)));
+            }
+            for (int i = 0; i < count; i++) {
+                out.putDouble(store.longitude(slot(slots, i)));
+            }
+            for (int i = 0; i < count; i++) {
+                out.putInt(store.id(slot(slots, i)));
+            }
+            int offset = 0;
+            out.putInt(offset);
+            for (int i = 0; i < count; i++) {
+                int slot = slot(slots, i);
+                offset += utf8Length(store.title(slot));
+                out.putInt(offset);
+                offset += utf8Length(store.description(slot));
+                out.putInt(offset);
+            }
+            for (int i = 0; i < count; i++) {
+                out.put(store.statusCode(slot(slots, i)));
+            }
+            for (int i = 0; i < count; i++) {
+                int slot = slot(slots, i);
+                int flags = store.isPublic(slot) ? FLAG_PUBLIC : 0;
+                if (store.title(slot) == null) flags |= FLAG_NO_TITLE;
+                if (store.description(slot) == null) flags |= FLAG_NO_DESCRIPTION;
+                out.put((byte) flags);
+            }
+            for (int i = 0; i < count; i++) {
+                int slot = slot(slots, i);
+                out.putString(store.title(slot));
+                out.putString(store.description(slot));
+            }
+            out.flush();
+            fos.getFD().sync();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("No se pudo guardar " + file);
+        }
+    }
+
+    /** Writes the records of {@code parts}, in order, to {@code file}, copying their columns across undecoded. */
+    static void write(File file, MappedSnapshot[] parts, long sourceLength, long sourceModified, long sourceCrc)
+            throws IOException {
+        int count = 0;
+        for (MappedSnapshot part : parts) {
+            count += part.count;
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp)) {
+            ColumnWriter out = new ColumnWriter(new BufferedOutputStream(fos));
+            out.putInt(MAGIC);
+            out.putInt(VERSION);
+            out.putInt(count);
+            out.putInt(0);
+            out.putLong(sourceLength);
+            out.putLong(sourceModified);
+            out.putLong(sourceCrc);
+            for (MappedSnapshot part : parts) {
+                out.put(part.buffer, part.latitudesOffset, 8 * part.count);
+            }
+            for (MappedSnapshot part : parts) {
+                out.put(part.buffer, part.longitudesOffset, 8 * part.count);
+            }
+            for (MappedSnapshot part : parts) {
+                out.put(part.buffer, part.idsOffset, 4 * part.count);
+            }
+            // Each part's offsets start at 0 in its own blob; shifted past the blobs before it.
+            int blobStart = 0;
+            out.putInt(0);
+            for (MappedSnapshot part : parts) {
+                for (int field = 1; field <= 2 * part.count; field++) {
+                    out.putInt(blobStart + part.buffer.getInt(part.stringOffsetsOffset + 4 * field));
+                }
+                blobStart += part.blobLength();
+            }
+            for (MappedSnapshot part : parts) {
+                out.put(part.buffer, part.statusesOffset, part.count);
+            }
+            for (MappedSnapshot part : parts) {
+                out.put(part.buffer, part.flagsOffset, part.count);
+            }
+            for (MappedSnapshot part : parts) {
+                out.put(part.buffer, part.blobOffset, part.blobLength());
+            }
+            out.flush();
+            fos.getFD().sync();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("No se pudo guardar " + file);
+        }
+    }
+
+    private static int slot(int[] slots, int i) {
+        return slots == null ? i : slots[i];
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /** Whether this snapshot was made from a JSON snapshot of this length and modification time. */
+    public boolean isFrom(long length, long modified) {
+        return sourceLength == length && sourceModified == modified;
+    }
+
+    /** Length and CRC of the JSON snapshot this was made from, as recorded in journal headers. */
+    long[] sourceBase() {
+        return new long[]{sourceLength, sourceCrc};
+    }
+
+    /** Bulk-copies the fixed-width columns into the first {@link #size()} entries of each array. */
+    void copyColumns(int[] ids, double[] latitudes, double[] longitudes, byte[] statuses, boolean[] publics) {
+        ByteBuffer view = view(latitudesOffset);
+        view.asDoubleBuffer().get(latitudes, 0, count);
+        view = view(longitudesOffset);
+        view.asDoubleBuffer().get(longitudes, 0, count);
+        view = view(idsOffset);
+        view.asIntBuffer().get(ids, 0, count);
+        view = view(statusesOffset);
+        view.get(statuses, 0, count);
+        for (int i = 0; i < count; i++) {
+            publics[i] = (buffer.get(flagsOffset + i) & FLAG_PUBLIC) != 0;
+        }
+    }
+
+    public String title(int index) {
+        return string(2 * index, (buffer.get(flagsOffset + index) & FLAG_NO_TITLE) != 0);
+    }
+
+    public String description(int index) {
+        return string(2 * index + 1, (buffer.get(flagsOffset + index) & FLAG_NO_DESCRIPTION) != 0);
+    }
+
+    private String string(int field, boolean isNull) {
+        if (isNull) return null;
+        int start = buffer.getInt(stringOffsetsOffset + 4 * field);
+        int end = buffer.getInt(stringOffsetsOffset + 4 * (field + 1));
+        byte[] bytes = new byte[end - start];
+        ByteBuffer view = view(blobOffset + start);
+        view.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private int blobLength() {
+        return buffer.getInt(stringOffsetsOffset + 8 * count);
+    }
+
+    /** Independent cursor at {@code offset}; the shared buffer is only read with absolute gets. */
+    private ByteBuffer view(int offset) {
+        ByteBuffer view = buffer.duplicate();
+        view.order(ByteOrder.LITTLE_ENDIAN);
+        view.position(offset);
+        return view;
+    }
+
+    private static int utf8Length(String value) {
+        return value == null ? 0 : value.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    /** Little-endian primitive writer over a stream, staging values in a small buffer. */
+    private static final class ColumnWriter {
+        private final OutputStream out;
+        private final ByteBuffer staging = ByteBuffer.allocate(8192).order(ByteOrder.LITTLE_ENDIAN);
+
+        ColumnWriter(OutputStream out) {
+            this.out = out;
+        }
+
+        void put(byte value) throws IOException {
+            reserve(1);
+            staging.put(value);
+        }
+
+        void putInt(int value) throws IOException {
+            reserve(4);
+            staging.putInt(value);
+        }
+
+        void putLong(long value) throws IOException {
+            reserve(8);
+            staging.putLong(value);
+        }
+
+        void putDouble(double value) throws IOException {
+            reserve(8);
+            staging.putDouble(value);
+        }
+
+        /** Copies {@code length} bytes of {@code source} from {@code offset}, as they are. */
+        void put(ByteBuffer source, int offset, int length) throws IOException {
+            ByteBuffer view = source.duplicate();
+            view.position(offset);
+            int end = offset + length;
+            while (view.position() < end) {
+                if (!staging.hasRemaining()) {
+                    drain();
+                }
+                int chunk = Math.min(end - view.position(), staging.remaining());
+                view.get(staging.array(), staging.position(), chunk);
+                staging.position(staging.position() + chunk);
+            }
+        }
+
+        void putString(String value) throws IOException {
+            if (value == null) return;
+            drain();
+            out.write(value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        void flush() throws IOException {
+            drain();
+            out.flush();
+        }
+
+        private void reserve(int bytes) throws IOException {
+            if (staging.remaining() < bytes) {
+                drain();
+            }
+        }
+
+        private void drain() throws IOException {
+            out.write(staging.array(), 0, staging.position());
+            staging.clear();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.example.appmap.core;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Process-wide registry of named {@link Timer}s, {@link Counter}s and {@link Gauge}s. Look a metric
+ * up once and keep it in a field; recording then costs a volatile read while metrics are disabled
+ * and a few atomic adds while they are enabled, with no allocation either way.
+ */
+public final class Metrics {
+
+    private static volatile boolean enabled;
+
+    private static final Map<String, Timer> timers = new ConcurrentHashMap<>();
+    private static final Map<String, Counter> counters = new ConcurrentHashMap<>();
+    private static final Map<String, Gauge> gauges = new ConcurrentHashMap<>();
+
+    private Metrics() {
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean value) {
+        enabled = value;
+    }
+
+    public static Timer timer(String name) {
+        return timers.computeIfAbsent(name, Timer::new);
+    }
+
+    public static Counter counter(String name) {
+        return counters.computeIfAbsent(name, Counter::new);
+    }
+
+    public static Gauge gauge(String name) {
+        return gauges.computeIfAbsent(name, Gauge::new);
+    }
+
+    public static void reset() {
+        for (Timer timer : timers.values()) {
+            timer.reset();
+        }
+        for (Counter counter : counters.values()) {
+            counter.reset();
+        }
+    }
+
+    /** One line per metric that has recorded something, sorted by name. */
+    public static String report() {
+        Map<String, String> lines = new ConcurrentSkipListMap<>();
+        for (Timer timer : timers.values()) {
+            if (timer.count() > 0) lines.put(timer.name(), timer.summary());
+        }
+        for (Counter counter : counters.values()) {
+            if (counter.value() != 0) lines.put(counter.name(), String.valueOf(counter.value()));
+        }
+        for (Gauge gauge : gauges.values()) {
+            if (gauge.isSet()) lines.put(gauge.name(), String.valueOf(gauge.value()));
+        }
+        StringBuilder report = new StringBuilder();
+        for (Map.Entry<String, String> line : lines.entrySet()) {
+            report.append(line.getKey()).append(": ").append(line.getValue()).append('\n');
+        }
+        return report.toString();
+    }
+}
@@ -0,0 +1,49 @@
+package com.example.appmap.core;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/** Periodically hands {@link Metrics#report()} to a sink, on its own daemon thread. */
+public class MetricsReporter {
+
+    public interface Sink {
+        void report(String report);
+    }
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "metrics-reporter");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Sink sink;
+    private ScheduledFuture<?> task;
+
+    public MetricsReporter(Sink sink) {
+        this.sink = sink;
+    }
+
+    public synchronized void start(long periodMs) {
+        if (task != null || !Metrics.isEnabled()) return;
+        task = scheduler.scheduleWithFixedDelay(this::reportNow, periodMs, periodMs, TimeUnit.MILLISECONDS);
+    }
+
+    /** Stops the periodic reports after writing a final one. */
+    public synchronized void stop() {
+        if (task == null) return;
+        task.cancel(false);
+        task = null;
+        scheduler.execute(this::reportNow);
+    }
+
+    private void reportNow() {
+        String report = Metrics.report();
+        if (report.isEmpty()) return;
+        try {
+            sink.report(report);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+}
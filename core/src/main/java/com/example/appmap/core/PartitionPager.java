@@ -0,0 +1,173 @@
+package com.example.appmap.core;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Decides which {@link LocationPartitions} are resident, within a budget of records. Each
+ * {@link #show} pages in the partitions overlapping what is shown, nearest its centre first, then
+ * prefetches their neighbours, those ahead in the direction the view last moved first, while the
+ * budget allows. Room is made by evicting the partitions least recently shown or prefetched.
+ *
+ * <p>The {@link Loader} does the actual work and is called on the thread calling {@link #show}.
+ * Not thread-safe.
+ */
+public class PartitionPager {
+
+    public interface Loader {
+        void pageIn(int partition) throws IOException;
+
+        void evict(int partition) throws IOException;
+    }
+
+    private static final Counter PAGE_INS = Metrics.counter("partitions.page_ins");
+    private static final Counter EVICTIONS = Metrics.counter("partitions.evictions");
+    private static final Counter ERRORS = Metrics.counter("partitions.errors");
+    private static final Gauge RESIDENT_RECORDS = Metrics.gauge("partitions.resident_records");
+    private static final Timer PAGE_IN_TIMER = Metrics.timer("partitions.page_in");
+
+    private final LocationPartitions partitions;
+    private final long maxRecords;
+    private final Loader loader;
+    // Access-ordered, so iteration starts at the least recently used partition.
+    private final LinkedHashMap<Integer, Boolean> resident = new LinkedHashMap<>(64, 0.75f, true);
+    private long residentRecords;
+    private boolean hasLastCenter;
+    private double lastLatitude;
+    private double lastLongitude;
+
+    public PartitionPager(LocationPartitions partitions, long maxRecords, Loader loader) {
+        this.partitions = partitions;
+        this.maxRecords = maxRecords;
+        this.loader = loader;
+    }
+
+    /**
+     * Makes the partitions overlapping the box resident, then as many of their neighbours as fit.
+     * Returns false if the box alone needs more than the budget, in which case only the partitions
+     * nearest its centre that fit are paged in and nothing is prefetched. A box with
+     * {@code west > east} crosses the antimeridian.
+     */
+    public boolean show(double south, double west, double north, double east) {
+        double latitude = (south + north) / 2;
+        double longitude = west <= east ? (west + east) / 2 : wrap((west + east + 360.0) / 2);
+        int[] wanted = partitions.overlapping(south, west, north, east);
+        sortByDistance(wanted, latitude, longitude);
+
+        // Everything this call keeps is chosen first, so making room never evicts part of it.
+        List<Integer> keep = new ArrayList<>();
+        long needed = 0;
+        boolean fits = true;
+        for (int partition : wanted) {
+            if (needed + partitions.count(partition) > maxRecords) {
+                fits = false;
+                break;
+            }
+            needed += partitions.count(partition);
+            keep.add(partition);
+        }
+        if (fits) {
+            // Aim the prefetch at where the view is heading: as far ahead again as it last moved.
+            double aheadLatitude = latitude;
+            double aheadLongitude = longitude;
+            if (hasLastCenter) {
+                aheadLatitude = Math.max(-90.0, Math.min(90.0, 2 * latitude - lastLatitude));
+                aheadLongitude = wrap(longitude + wrap(longitude - lastLongitude));
+            }
+            List<Integer> around = new ArrayList<>();
+            for (int partition : wanted) {
+                for (int neighbor : partitions.neighbors(partition)) {
+                    if (!keep.contains(neighbor) && !around.contains(neighbor)) around.add(neighbor);
+                }
+            }
+            int[] prefetch = new int[around.size()];
+            for (int i = 0; i < prefetch.length; i++) {
+                prefetch[i] = around.get(i);
+            }
+            sortByDistance(prefetch, aheadLatitude, aheadLongitude);
+            for (int partition : prefetch) {
+                if (needed + partitions.count(partition) > maxRecords) continue;
+                needed += partitions.count(partition);
+                keep.add(partition);
+            }
+        }
+        Set<Integer> pinned = new HashSet<>(keep);
+        for (int partition : keep) {
+            makeResident(partition, pinned);
+        }
+        // Touched last, nearest last, so what is shown is evicted after what was only prefetched.
+        int shown = fits ? wanted.length : keep.size();
+        for (int i = shown - 1; i >= 0; i--) {
+            resident.get(keep.get(i));
+        }
+        hasLastCenter = true;
+        lastLatitude = latitude;
+        lastLongitude = longitude;
+        RESIDENT_RECORDS.set(residentRecords);
+        return fits;
+    }
+
+    public boolean isResident(int partition) {
+        return resident.containsKey(partition);
+    }
+
+    public long residentRecords() {
+        return residentRecords;
+    }
+
+    private void makeResident(int partition, Set<Integer> pinned) {
+        if (resident.get(partition) != null) return;
+        int count = partitions.count(partition);
+        Iterator<Integer> oldest = resident.keySet().iterator();
+        while (residentRecords + count > maxRecords && oldest.hasNext()) {
+            int victim = oldest.next();
+            if (pinned.contains(victim)) continue;
+            oldest.remove();
+            residentRecords -= partitions.count(victim);
+            EVICTIONS.increment();
+            try {
+                loader.evict(victim);
+            } catch (IOException e) {
+                ERRORS.increment();
+                e.printStackTrace();
+            }
+        }
+        long start = PAGE_IN_TIMER.start();
+        try {
+            loader.pageIn(partition);
+        } catch (IOException e) {
+            ERRORS.increment();
+            e.printStackTrace();
+            return;
+        }
+        PAGE_IN_TIMER.stop(start);
+        PAGE_INS.increment();
+        resident.put(partition, Boolean.TRUE);
+        residentRecords += count;
+    }
+
+    private void sortByDistance(int[] order, double latitude, double longitude) {
+        Integer[] boxed = new Integer[order.length];
+        double[] distances = new double[partitions.size()];
+        for (int i = 0; i < order.length; i++) {
+            boxed[i] = order[i];
+            distances[order[i]] = SpatialGrid.distanceMeters(latitude, longitude,
+                    partitions.centerLatitude(order[i]), partitions.centerLongitude(order[i]));
+        }
+        Arrays.sort(boxed, (a, b) -> Double.compare(distances[a], distances[b]));
+        for (int i = 0; i < order.length; i++) {
+            order[i] = boxed[i];
+        }
+    }
+
+    /** {@code degrees} brought into [-180, 180). */
+    private static double wrap(double degrees) {
+        return degrees - 360.0 * Math.floor((degrees + 180.0) / 360.0);
+    }
+}
@@ -0,0 +1,104 @@
+package com.example.appmap.core;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs a computation for the latest submitted request on a worker executor and hands the result
+ * to a UI executor. Requests submitted while one is queued replace it, so a burst of events costs
+ * one computation; a result is dropped if a newer request or {@link #invalidate()} came after it.
+ */
+public class RefreshPipeline<Q, R> {
+
+    public interface Computation<Q, R> {
+        R compute(Q request, Cancellation cancellation);
+    }
+
+    public interface Sink<R> {
+        void apply(R result);
+    }
+
+    /** Lets a running computation stop early once its result can no longer be used. */
+    public interface Cancellation {
+        boolean isCancelled();
+
+        default void throwIfCancelled() {
+            if (isCancelled()) throw Cancelled.INSTANCE;
+        }
+    }
+
+    private static final class Cancelled extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        static final Cancelled INSTANCE = new Cancelled();
+
+        private Cancelled() {
+            super(null, null, false, false);
+        }
+    }
+
+    private static final class Ticket<Q> {
+        final Q request;
+        final int generation;
+
+        Ticket(Q request, int generation) {
+            this.request = request;
+            this.generation = generation;
+        }
+    }
+
+    private static final Counter CANCELLED = Metrics.counter("refresh.cancelled");
+    private static final Counter FAILED = Metrics.counter("refresh.failed");
+
+    private final Executor worker;
+    private final Executor ui;
+    private final Computation<Q, R> computation;
+    private final Sink<R> sink;
+    private final AtomicReference<Ticket<Q>> pending = new AtomicReference<>();
+    private final AtomicInteger generation = new AtomicInteger();
+
+    /** {@code worker} must run tasks one at a time, in order. */
+    public RefreshPipeline(Executor worker, Executor ui, Computation<Q, R> computation, Sink<R> sink) {
+        this.worker = worker;
+        this.ui = ui;
+        this.computation = computation;
+        this.sink = sink;
+    }
+
+    public void submit(Q request) {
+        Ticket<Q> ticket = new Ticket<>(request, generation.incrementAndGet());
+        if (pending.getAndSet(ticket) == null) {
+            worker.execute(this::drain);
+        }
+    }
+
+    /** Drops any result that is still being computed or waiting to be applied. */
+    public void invalidate() {
+        generation.incrementAndGet();
+    }
+
+    private void drain() {
+        Ticket<Q> ticket = pending.getAndSet(null);
+        if (ticket == null) return;
+        Cancellation cancellation = () -> generation.get() != ticket.generation;
+        if (cancellation.isCancelled()) return;
+
+        R result;
+        try {
+            result = computation.compute(ticket.request, cancellation);
+        } catch (Cancelled e) {
+            CANCELLED.increment();
+            return;
+        } catch (RuntimeException e) {
+            FAILED.increment();
+            e.printStackTrace();
+            return;
+        }
+        if (cancellation.isCancelled()) return;
+        ui.execute(() -> {
+            if (!cancellation.isCancelled()) {
+                sink.apply(result);
+            }
+        });
+    }
+}
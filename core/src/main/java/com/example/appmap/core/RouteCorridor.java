@@ -0,0 +1,263 @@
+package com.example.appmap.core;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+/**
+ * A route as a polyline, and the query for points within some distance of it, ordered by how far
+ * along the route they are. Segments are straight in latitude/longitude, as drawn on the map.
+ *
+ * <p>The route is cut into pieces of at most {@link #MAX_PIECE_METERS}, measured on a local flat
+ * projection, and consecutive pieces are grouped into runs about a kilometre across. Each run
+ * asks the {@link SpatialGrid} only for its own box grown by the buffer, so a long route touches
+ * the cells along it rather than its whole bounding box, and each candidate is measured against
+ * the few pieces of its run.
+ */
+public class RouteCorridor {
+
+    /** Matching slots, ordered by {@link #along}. */
+    public static final class Hits {
+        public int count;
+        public int[] slots = new int[16];
+        /** Meters from the start of the route to the point's closest approach. */
+        public double[] along = new double[16];
+        /** Meters between the point and the route. */
+        public double[] offsets = new double[16];
+    }
+
+    static final double MAX_PIECE_METERS = 1000;
+    // Shorter runs mean more grid lookups but fewer pieces per candidate; about 1 km wins.
+    private static final double RUN_DEGREES = 0.01;
+    private static final int MAX_RUN_PIECES = 8;
+
+    // Piece i goes from (latitudes[i], longitudes[i]) to (latitudes[i + 1], longitudes[i + 1]).
+    // Longitudes are unwrapped, so they may leave [-180, 180] on routes crossing the antimeridian.
+    private final double[] latitudes;
+    private final double[] longitudes;
+    private final double[] starts;
+    private final int pieces;
+
+    public RouteCorridor(double[] latitudes, double[] longitudes, int count) {
+        if (count < 2) {
+            throw new IllegalArgumentException("Una ruta necesita al menos dos puntos: " + count);
+        }
+        double[] lats = new double[count];
+        double[] lons = new double[count];
+        double[] starts = new double[count];
+        lats[0] = latitudes[0];
+        lons[0] = longitudes[0];
+        int size = 1;
+        for (int i = 1; i < count; i++) {
+            double fromLat = lats[size - 1];
+            double fromLon = lons[size - 1];
+            double lat = latitudes[i];
+            double lon = fromLon + wrap(longitudes[i] - fromLon);
+            double length = flatDistance(fromLat, fromLon, lat, lon);
+            if (length == 0) continue;
+            // Long segments are split so each piece stays short enough to measure flat.
+            int parts = (int) Math.ceil(length / MAX_PIECE_METERS);
+            if (size + parts > lats.length) {
+                int capacity = Math.max(lats.length * 2, size + parts);
+                lats = Arrays.copyOf(lats, capacity);
+                lons = Arrays.copyOf(lons, capacity);
+                starts = Arrays.copyOf(starts, capacity);
+            }
+            for (int part = 1; part <= parts; part++) {
+                double t = part / (double) parts;
+                lats[size] = fromLat + (lat - fromLat) * t;
+                lons[size] = fromLon + (lon - fromLon) * t;
+                starts[size] = starts[size - 1] + length / parts;
+                size++;
+            }
+        }
+        this.latitudes = lats;
+        this.longitudes = lons;
+        this.starts = starts;
+        this.pieces = size - 1;
+    }
+
+    /** Reads the track points, or failing that the route points, of a GPX file. */
+    public static RouteCorridor readGpx(InputStream in) throws IOException {
+        double[][] points = {new double[256], new double[256], new double[256], new double[256]};
+        int[] counts = new int[2];
+        try {
+            SAXParserFactory factory = SAXParserFactory.newInstance();
+            factory.setNamespaceAware(true);
+            factory.newSAXParser().parse(in, new DefaultHandler() {
+                @Override
+                public void startElement(String uri, String localName, String qName, Attributes attributes) {
+                    int kind = localName.equals("trkpt") ? 0 : localName.equals("rtept") ? 1 : -1;
+                    String lat = attributes.getValue("lat");
+                    String lon = attributes.getValue("lon");
+                    if (kind < 0 || lat == null || lon == null) return;
+                    int at = counts[kind]++;
+                    if (at == points[2 * kind].length) {
+                        points[2 * kind] = Arrays.copyOf(points[2 * kind], at * 2);
+                        points[2 * kind + 1] = Arrays.copyOf(points[2 * kind + 1], at * 2);
+                    }
+                    points[2 * kind][at] = Double.parseDouble(lat.trim());
+                    points[2 * kind + 1][at] = Double.parseDouble(lon.trim());
+                }
+            });
+        } catch (SAXException | ParserConfigurationException | NumberFormatException e) {
+            throw new IOException("GPX no válido", e);
+        }
+        int kind = counts[0] >= 2 ? 0 : 1;
+        if (counts[kind] < 2) {
+            throw new IOException("El GPX no tiene una ruta");
+        }
+        return new RouteCorridor(points[2 * kind], points[2 * kind + 1], counts[kind]);
+    }
+
+    /** Length in meters. */
+    public double length() {
+        return starts[pieces];
+    }
+
+    /** Vertices after splitting, for drawing; longitudes back in [-180, 180]. */
+    public double[][] vertices() {
+        double[] lons = new double[pieces + 1];
+        for (int i = 0; i <= pieces; i++) {
+            lons[i] = wrap(longitudes[i]);
+        }
+        return new double[][]{Arrays.copyOf(latitudes, pieces + 1), lons};
+    }
+
+    /**
+     * Finds the slots {@code filter} accepts within {@code bufferMeters} of the route, each with
+     * its closest approach. {@code latitudes} and {@code longitudes} are the grid's columns.
+     */
+    public Hits query(SpatialGrid grid, double[] latitudes, double[] longitudes, double bufferMeters,
+                      SpatialGrid.SlotFilter filter) {
+        Hits hits = new Hits();
+        // Slot + 1 -> index in hits, since runs overlap near their ends.
+        IdIndex seen = new IdIndex();
+        double[] measured = new double[2];
+        double bufferDegrees = Math.toDegrees(bufferMeters / SpatialGrid.EARTH_RADIUS_METERS);
+        int first = 0;
+        while (first < pieces) {
+            double south = Math.min(this.latitudes[first], this.latitudes[first + 1]);
+            double north = Math.max(this.latitudes[first], this.latitudes[first + 1]);
+            double west = Math.min(this.longitudes[first], this.longitudes[first + 1]);
+            double east = Math.max(this.longitudes[first], this.longitudes[first + 1]);
+            int end = first + 1;
+            while (end < pieces && end - first < MAX_RUN_PIECES) {
+                double lat = this.latitudes[end + 1];
+                double lon = this.longitudes[end + 1];
+                if (Math.max(north, lat) - Math.min(south, lat) > RUN_DEGREES
+                        || Math.max(east, lon) - Math.min(west, lon) > RUN_DEGREES) break;
+                south = Math.min(south, lat);
+                north = Math.max(north, lat);
+                west = Math.min(west, lon);
+                east = Math.max(east, lon);
+                end++;
+            }
+            int runFirst = first;
+            int runEnd = end;
+            double boxSouth = south - bufferDegrees;
+            double boxNorth = north + bufferDegrees;
+            double widestCos = Math.cos(Math.toRadians(Math.min(90.0, Math.max(Math.abs(boxSouth), Math.abs(boxNorth)))));
+            double lonBuffer = widestCos < 1e-9 ? 180.0 : bufferDegrees / widestCos;
+            double boxWest = west - lonBuffer;
+            double boxEast = east + lonBuffer;
+            if (boxEast - boxWest >= 360.0) {
+                boxWest = -180.0;
+                boxEast = 180.0;
+            } else {
+                boxWest = wrap(boxWest);
+                boxEast = wrap(boxEast);
+            }
+            grid.queryBox(boxSouth, boxWest, boxNorth, boxEast, latitudes, longitudes, slot -> {
+                if (!filter.accept(slot)) return;
+                double bestOffset = Double.POSITIVE_INFINITY;
+                double bestAlong = 0;
+                for (int piece = runFirst; piece < runEnd; piece++) {
+                    measure(piece, latitudes[slot], longitudes[slot], measured);
+                    if (measured[0] < bestOffset) {
+                        bestOffset = measured[0];
+                        bestAlong = measured[1];
+                    }
+                }
+                if (bestOffset > bufferMeters) return;
+                int index = seen.get(slot + 1);
+                if (index < 0) {
+                    add(hits, slot, bestAlong, bestOffset);
+                    seen.put(slot + 1, hits.count - 1);
+                } else if (bestOffset < hits.offsets[index]) {
+                    hits.along[index] = bestAlong;
+                    hits.offsets[index] = bestOffset;
+                }
+            });
+            first = end;
+        }
+        sortByAlong(hits);
+        return hits;
+    }
+
+    /** Writes the offset from piece {@code i}, and how far along the route its closest point is. */
+    private void measure(int i, double latitude, double longitude, double[] measured) {
+        double lat0 = latitudes[i];
+        double lon0 = longitudes[i];
+        double cos = Math.cos(Math.toRadians(lat0));
+        double dx = wrap(longitudes[i + 1] - lon0) * cos;
+        double dy = latitudes[i + 1] - lat0;
+        double px = wrap(longitude - lon0) * cos;
+        double py = latitude - lat0;
+        double lengthSquared = dx * dx + dy * dy;
+        double t = lengthSquared == 0 ? 0 : Math.max(0, Math.min(1, (px * dx + py * dy) / lengthSquared));
+        measured[0] = SpatialGrid.distanceMeters(latitude, longitude, lat0 + dy * t, lon0 + wrap(longitudes[i + 1] - lon0) * t);
+        measured[1] = starts[i] + (starts[i + 1] - starts[i]) * t;
+    }
+
+    private static void add(Hits hits, int slot, double along, double offset) {
+        if (hits.count == hits.slots.length) {
+            int capacity = hits.count * 2;
+            hits.slots = Arrays.copyOf(hits.slots, capacity);
+            hits.along = Arrays.copyOf(hits.along, capacity);
+            hits.offsets = Arrays.copyOf(hits.offsets, capacity);
+        }
+        hits.slots[hits.count] = slot;
+        hits.along[hits.count] = along;
+        hits.offsets[hits.count] = offset;
+        hits.count++;
+    }
+
+    private static void sortByAlong(Hits hits) {
+        Integer[] order = new Integer[hits.count];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Double.compare(hits.along[a], hits.along[b]));
+        int[] slots = new int[hits.count];
+        double[] along = new double[hits.count];
+        double[] offsets = new double[hits.count];
+        for (int i = 0; i < order.length; i++) {
+            slots[i] = hits.slots[order[i]];
+            along[i] = hits.along[order[i]];
+            offsets[i] = hits.offsets[order[i]];
+        }
+        hits.slots = slots;
+        hits.along = along;
+        hits.offsets = offsets;
+    }
+
+    /** Meters between two points on a flat projection around the first. */
+    private static double flatDistance(double lat1, double lon1, double lat2, double lon2) {
+        double dx = (lon2 - lon1) * Math.cos(Math.toRadians(lat1));
+        double dy = lat2 - lat1;
+        return Math.toRadians(Math.sqrt(dx * dx + dy * dy)) * SpatialGrid.EARTH_RADIUS_METERS;
+    }
+
+    /** {@code degrees} brought into [-180, 180). */
+    private static double wrap(double degrees) {
+        return degrees - 360.0 * Math.floor((degrees + 180.0) / 360.0);
+    }
+}
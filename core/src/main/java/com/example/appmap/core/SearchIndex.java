@@ -0,0 +1,437 @@
+package com.example.appmap.core;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Accent-insensitive text index over location titles and descriptions, for search as you type.
+ * Text is folded to lowercase letters and digits without accents and split into words, so
+ * "Estación Ñuñoa" is found by "estacion nun". Every word of a query has to match a word of the
+ * record: whole, as its prefix (through a trie over the vocabulary) or, from three characters on,
+ * anywhere inside it (through trigram postings over the vocabulary).
+ *
+ * <p>Hits are ranked by how well each query word matched, title words counting double, with a
+ * bonus when the title starts with the first query word; ties go to shorter titles. The vocabulary
+ * only grows, since words of removed records are cheap to keep. Not thread-safe.
+ */
+public class SearchIndex {
+
+    public interface IdFilter {
+        boolean accept(int id);
+    }
+
+    public static final class Hit {
+        public final int id;
+        public final int score;
+
+        Hit(int id, int score) {
+            this.id = id;
+            this.score = score;
+        }
+    }
+
+    private static final int EXACT = 4;
+    private static final int PREFIX = 2;
+    private static final int INFIX = 1;
+    private static final int TITLE_START_BONUS = 3;
+    private static final int MIN_INFIX_LENGTH = 3;
+    private static final int[] NO_TERMS = new int[0];
+    private static final char[] LATIN1_FOLDED = latin1Folded();
+
+    // Vocabulary: term id -> word and postings of (doc << 1 | in title).
+    private final Map<String, Integer> termIds = new HashMap<>();
+    private final List<String> terms = new ArrayList<>();
+    private int[][] postings = new int[64][];
+    private int[] postingSizes = new int[64];
+    private final TrieNode trie = new TrieNode();
+    private final LongIntMap trigramLists = new LongIntMap();
+    private int[][] trigramTerms = new int[64][];
+    private int[] trigramSizes = new int[64];
+
+    // Documents: dense numbers reused after removal, each with its (term << 1 | in title) entries,
+    // title words first and in order.
+    private final IdIndex docOf = new IdIndex();
+    private int[] docIds = new int[64];
+    private int[][] docTerms = new int[64][];
+    private int[] titleLengths = new int[64];
+    private int docCount;
+    private int[] freeDocs = new int[16];
+    private int freeCount;
+
+    // Query scratch, stamped per query instead of cleared.
+    private int[] docStamps = new int[64];
+    private int[] docScores = new int[64];
+    private int docStamp;
+    private int[] termStamps = new int[64];
+    private byte[] termQualities = new byte[64];
+    private int termStamp;
+
+    public int size() {
+        return docOf.size();
+    }
+
+    /** Indexes the record with {@code id}, replacing what was indexed for it before. */
+    public void put(int id, String title, String description) {
+        remove(id);
+        String[] titleWords = words(title);
+        String[] descriptionWords = words(description);
+        int[] entries = new int[titleWords.length + descriptionWords.length];
+        int count = 0;
+        for (int i = 0; i < titleWords.length + descriptionWords.length; i++) {
+            boolean inTitle = i < titleWords.length;
+            int term = termId(inTitle ? titleWords[i] : descriptionWords[i - titleWords.length]);
+            if (indexOfTerm(entries, count, term) < 0) {
+                entries[count++] = term << 1 | (inTitle ? 1 : 0);
+            }
+        }
+        int doc = freeCount > 0 ? freeDocs[--freeCount] : newDoc();
+        docIds[doc] = id;
+        docTerms[doc] = count == entries.length ? entries : Arrays.copyOf(entries, count);
+        titleLengths[doc] = title == null ? 0 : title.length();
+        docOf.put(id, doc);
+        for (int i = 0; i < count; i++) {
+            int term = entries[i] >>> 1;
+            if (postingSizes[term] == postings[term].length) {
+                postings[term] = Arrays.copyOf(postings[term], postings[term].length * 2);
+            }
+            postings[term][postingSizes[term]++] = doc << 1 | (entries[i] & 1);
+        }
+    }
+
+    public void remove(int id) {
+        int doc = docOf.get(id);
+        if (doc < 0) return;
+        docOf.remove(id);
+        for (int entry : docTerms[doc]) {
+            int term = entry >>> 1;
+            int[] list = postings[term];
+            int size = postingSizes[term];
+            for (int i = 0; i < size; i++) {
+                if (list[i] >>> 1 == doc) {
+                    list[i] = list[--size];
+                    break;
+                }
+            }
+            postingSizes[term] = size;
+        }
+        docTerms[doc] = NO_TERMS;
+        if (freeCount == freeDocs.length) {
+            freeDocs = Arrays.copyOf(freeDocs, freeCount * 2);
+        }
+        freeDocs[freeCount++] = doc;
+    }
+
+    /** Up to {@code limit} best hits for {@code query} among records {@code filter} accepts (null for all). */
+    public List<Hit> search(String query, int limit, IdFilter filter) {
+        String[] words = words(query);
+        List<Hit> hits = new ArrayList<>();
+        if (words.length == 0 || limit <= 0) return hits;
+        int[][] matches = new int[words.length][];
+        long[] costs = new long[words.length];
+        for (int w = 0; w < words.length; w++) {
+            matches[w] = matchingTerms(words[w]);
+            for (int i = 0; i < matches[w].length; i += 2) {
+                costs[w] += postingSizes[matches[w][i]];
+            }
+        }
+        String firstWord = words[0];
+
+        // Candidates come from the postings of the rarest word; the rest are checked per candidate.
+        int rarest = 0;
+        for (int w = 1; w < words.length; w++) {
+            if (costs[w] < costs[rarest]) rarest = w;
+        }
+        int stamp = ++docStamp;
+        int[] candidates = new int[(int) Math.min(costs[rarest], docCount)];
+        int candidateCount = 0;
+        int[] rarestMatches = matches[rarest];
+        for (int i = 0; i < rarestMatches.length; i += 2) {
+            int term = rarestMatches[i];
+            int quality = rarestMatches[i + 1];
+            int[] list = postings[term];
+            for (int p = 0, size = postingSizes[term]; p < size; p++) {
+                int doc = list[p] >>> 1;
+                int score = quality << (list[p] & 1);
+                if (docStamps[doc] != stamp) {
+                    docStamps[doc] = stamp;
+                    docScores[doc] = score;
+                    candidates[candidateCount++] = doc;
+                } else if (score > docScores[doc]) {
+                    docScores[doc] = score;
+                }
+            }
+        }
+        for (int w = 0; w < words.length && candidateCount > 0; w++) {
+            if (w == rarest) continue;
+            markTerms(matches[w]);
+            int kept = 0;
+            for (int c = 0; c < candidateCount; c++) {
+                int doc = candidates[c];
+                int best = 0;
+                for (int entry : docTerms[doc]) {
+                    int term = entry >>> 1;
+                    if (termStamps[term] == termStamp) {
+                        best = Math.max(best, termQualities[term] << (entry & 1));
+                    }
+                }
+                if (best > 0) {
+                    docScores[doc] += best;
+                    candidates[kept++] = doc;
+                }
+            }
+            candidateCount = kept;
+        }
+
+        // Keeps the best hits with the worst of them on top, to be replaced first.
+        PriorityQueue<int[]> top = new PriorityQueue<>(limit + 1, (a, b) -> compare(b, a));
+        for (int c = 0; c < candidateCount; c++) {
+            int doc = candidates[c];
+            int id = docIds[doc];
+            if (filter != null && !filter.accept(id)) continue;
+            int score = docScores[doc] + (startsTitle(doc, firstWord) ? TITLE_START_BONUS : 0);
+            if (top.size() < limit) {
+                top.add(new int[]{score, titleLengths[doc], id});
+            } else if (compare(score, titleLengths[doc], id, top.peek()) < 0) {
+                int[] worst = top.poll();
+                worst[0] = score;
+                worst[1] = titleLengths[doc];
+                worst[2] = id;
+                top.add(worst);
+            }
+        }
+        while (!top.isEmpty()) {
+            int[] hit = top.poll();
+            hits.add(new Hit(hit[2], hit[0]));
+        }
+        Collections.reverse(hits);
+        return hits;
+    }
+
+    /**
+     * Lowercase words of {@code text} with accents and other marks removed; anything that is not a
+     * letter or digit separates words.
+     */
+    static String[] words(String text) {
+        if (text == null || text.isEmpty()) return new String[0];
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) >= LATIN1_FOLDED.length) {
+                text = Normalizer.normalize(text, Normalizer.Form.NFD);
+                break;
+            }
+        }
+        List<String> words = new ArrayList<>();
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i <= text.length(); i++) {
+            char c = i < text.length() ? text.charAt(i) : ' ';
+            if (c < LATIN1_FOLDED.length) {
+                c = LATIN1_FOLDED[c];
+            } else if (Character.getType(c) == Character.NON_SPACING_MARK) {
+                continue;
+            } else if (Character.isLetterOrDigit(c)) {
+                c = Character.toLowerCase(c);
+            } else {
+                c = ' ';
+            }
+            if (c != ' ') {
+                word.append(c);
+            } else if (word.length() > 0) {
+                words.add(word.toString());
+                word.setLength(0);
+            }
+        }
+        return words.toArray(new String[0]);
+    }
+
+    /** Folded form of each Latin-1 character, or a space for separators; spares most text the normalizer. */
+    private static char[] latin1Folded() {
+        char[] folded = new char[256];
+        for (char c = 0; c < folded.length; c++) {
+            String base = Normalizer.normalize(String.valueOf(c), Normalizer.Form.NFD);
+            char first = base.charAt(0);
+            folded[c] = Character.isLetterOrDigit(first) ? Character.toLowerCase(first) : ' ';
+        }
+        return folded;
+    }
+
+    /** Terms {@code word} matches, as (term, quality) pairs. */
+    private int[] matchingTerms(String word) {
+        int[] found = new int[16];
+        int count = 0;
+        int stamp = ++termStamp;
+        ensureTermScratch();
+        TrieNode node = trie;
+        for (int i = 0; i < word.length() && node != null; i++) {
+            node = node.child(word.charAt(i));
+        }
+        if (node != null) {
+            List<TrieNode> stack = new ArrayList<>();
+            stack.add(node);
+            while (!stack.isEmpty()) {
+                TrieNode next = stack.remove(stack.size() - 1);
+                if (next.term >= 0) {
+                    if (count + 2 > found.length) found = Arrays.copyOf(found, found.length * 2);
+                    found[count++] = next.term;
+                    found[count++] = next == node ? EXACT : PREFIX;
+                    termStamps[next.term] = stamp;
+                }
+                for (int i = 0; i < next.size; i++) {
+                    stack.add(next.children[i]);
+                }
+            }
+        }
+        if (word.length() >= MIN_INFIX_LENGTH) {
+            // Terms holding every trigram of the word are checked for the word itself.
+            int shortest = -1;
+            for (int i = 0; i + 3 <= word.length(); i++) {
+                int list = trigramLists.get(trigram(word, i));
+                if (list < 0) return Arrays.copyOf(found, count);
+                if (shortest < 0 || trigramSizes[list] < trigramSizes[shortest]) shortest = list;
+            }
+            int[] candidates = trigramTerms[shortest];
+            for (int i = 0, size = trigramSizes[shortest]; i < size; i++) {
+                int term = candidates[i];
+                if (termStamps[term] != stamp && terms.get(term).contains(word)) {
+                    if (count + 2 > found.length) found = Arrays.copyOf(found, found.length * 2);
+                    found[count++] = term;
+                    found[count++] = INFIX;
+                }
+            }
+        }
+        return Arrays.copyOf(found, count);
+    }
+
+    /** Stamps the terms in {@code matches} with their quality for per-candidate checks. */
+    private void markTerms(int[] matches) {
+        int stamp = ++termStamp;
+        ensureTermScratch();
+        for (int i = 0; i < matches.length; i += 2) {
+            termStamps[matches[i]] = stamp;
+            termQualities[matches[i]] = (byte) matches[i + 1];
+        }
+    }
+
+    private boolean startsTitle(int doc, String word) {
+        int[] entries = docTerms[doc];
+        return entries.length > 0 && (entries[0] & 1) != 0 && terms.get(entries[0] >>> 1).startsWith(word);
+    }
+
+    private int termId(String word) {
+        Integer existing = termIds.get(word);
+        if (existing != null) return existing;
+        int term = terms.size();
+        terms.add(word);
+        termIds.put(word, term);
+        if (term == postings.length) {
+            postings = Arrays.copyOf(postings, term * 2);
+            postingSizes = Arrays.copyOf(postingSizes, term * 2);
+        }
+        postings[term] = new int[2];
+        trie.insert(word, term);
+        for (int i = 0; i + 3 <= word.length(); i++) {
+            long key = trigram(word, i);
+            int list = trigramLists.get(key);
+            if (list < 0) {
+                list = trigramLists.size();
+                trigramLists.put(key, list);
+                if (list == trigramTerms.length) {
+                    trigramTerms = Arrays.copyOf(trigramTerms, list * 2);
+                    trigramSizes = Arrays.copyOf(trigramSizes, list * 2);
+                }
+                trigramTerms[list] = new int[4];
+            }
+            int size = trigramSizes[list];
+            // A word repeating a trigram is listed once; its own entries are the last ones added.
+            if (size > 0 && trigramTerms[list][size - 1] == term) continue;
+            if (size == trigramTerms[list].length) {
+                trigramTerms[list] = Arrays.copyOf(trigramTerms[list], size * 2);
+            }
+            trigramTerms[list][trigramSizes[list]++] = term;
+        }
+        return term;
+    }
+
+    private int newDoc() {
+        int doc = docCount++;
+        if (doc == docIds.length) {
+            int capacity = doc * 2;
+            docIds = Arrays.copyOf(docIds, capacity);
+            docTerms = Arrays.copyOf(docTerms, capacity);
+            titleLengths = Arrays.copyOf(titleLengths, capacity);
+            docStamps = Arrays.copyOf(docStamps, capacity);
+            docScores = Arrays.copyOf(docScores, capacity);
+        }
+        return doc;
+    }
+
+    private void ensureTermScratch() {
+        if (termStamps.length < terms.size()) {
+            int capacity = Math.max(terms.size(), termStamps.length * 2);
+            termStamps = Arrays.copyOf(termStamps, capacity);
+            termQualities = Arrays.copyOf(termQualities, capacity);
+        }
+    }
+
+    private static int indexOfTerm(int[] entries, int count, int term) {
+        for (int i = 0; i < count; i++) {
+            if (entries[i] >>> 1 == term) return i;
+        }
+        return -1;
+    }
+
+    private static long trigram(String word, int start) {
+        return (long) word.charAt(start) << 32 | (long) word.charAt(start + 1) << 16 | word.charAt(start + 2);
+    }
+
+    /** Higher score first, then shorter title, then lower id. */
+    private static int compare(int[] a, int[] b) {
+        return compare(a[0], a[1], a[2], b);
+    }
+
+    private static int compare(int score, int titleLength, int id, int[] b) {
+        if (score != b[0]) return Integer.compare(b[0], score);
+        if (titleLength != b[1]) return Integer.compare(titleLength, b[1]);
+        return Integer.compare(id, b[2]);
+    }
+
+    /** Vocabulary trie node; children are kept sorted by character. */
+    private static final class TrieNode {
+        char[] keys = new char[0];
+        TrieNode[] children = new TrieNode[0];
+        int size;
+        int term = -1;
+
+        TrieNode child(char c) {
+            int index = Arrays.binarySearch(keys, 0, size, c);
+            return index < 0 ? null : children[index];
+        }
+
+        void insert(String word, int term) {
+            TrieNode node = this;
+            for (int i = 0; i < word.length(); i++) {
+                char c = word.charAt(i);
+                int index = Arrays.binarySearch(node.keys, 0, node.size, c);
+                if (index < 0) {
+                    index = -index - 1;
+                    if (node.size == node.keys.length) {
+                        int capacity = Math.max(2, node.size * 2);
+                        node.keys = Arrays.copyOf(node.keys, capacity);
+                        node.children = Arrays.copyOf(node.children, capacity);
+                    }
+                    System.arraycopy(node.keys, index, node.keys, index + 1, node.size - index);
+                    System.arraycopy(node.children, index, node.children, index + 1, node.size - index);
+                    node.keys[index] = c;
+                    node.children[index] = new TrieNode();
+                    node.size++;
+                }
+                node = node.children[index];
+            }
+            node.term = term;
+        }
+    }
+}
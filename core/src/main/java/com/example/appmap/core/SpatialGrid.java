@@ -0,0 +1,393 @@
+package com.example.appmap.core;
+
+import java.util.Arrays;
+
+/**
+ * Uniform latitude/longitude grid over slot numbers. The grid never holds coordinates itself:
+ * queries take the caller's primitive lat/lon columns and check exact distances against them,
+ * so a radius query touches only the buckets around the centre and allocates nothing per point.
+ */
+public class SpatialGrid {
+
+    public interface SlotVisitor {
+        void visit(int slot);
+    }
+
+    public interface SlotFilter {
+        boolean accept(int slot);
+    }
+
+    public static final double EARTH_RADIUS_METERS = 6371008.8;
+    public static final double DEFAULT_CELL_SIZE_DEGREES = 0.05;
+
+    private static final int INITIAL_BUCKET_CAPACITY = 4;
+
+    private final double cellSize;
+    private final int rows;
+    private final int columns;
+
+    private LongIntMap bucketsByCell;
+
+    private int[][] bucketSlots;
+    private int[] bucketSizes;
+    private long[] bucketKeys;
+    private int bucketCount;
+
+    public SpatialGrid() {
+        this(DEFAULT_CELL_SIZE_DEGREES);
+    }
+
+    public SpatialGrid(double cellSizeDegrees) {
+        this.cellSize = cellSizeDegrees;
+        this.rows = (int) Math.ceil(180.0 / cellSizeDegrees) + 1;
+        this.columns = (int) Math.ceil(360.0 / cellSizeDegrees);
+        clear();
+    }
+
+    public static SpatialGrid build(double[] latitudes, double[] longitudes, int count) {
+        SpatialGrid grid = new SpatialGrid();
+        for (int i = 0; i < count; i++) {
+            grid.insert(i, latitudes[i], longitudes[i]);
+        }
+        return grid;
+    }
+
+    public void clear() {
+        bucketsByCell = new LongIntMap();
+        bucketSlots = new int[32][];
+        bucketSizes = new int[32];
+        bucketKeys = new long[32];
+        bucketCount = 0;
+    }
+
+    public void insert(int slot, double latitude, double longitude) {
+        int bucket = bucketFor(cellKey(row(latitude), column(longitude)), true);
+        int size = bucketSizes[bucket];
+        int[] slots = bucketSlots[bucket];
+        if (size == slots.length) {
+            slots = Arrays.copyOf(slots, size * 2);
+            bucketSlots[bucket] = slots;
+        }
+        slots[size] = slot;
+        bucketSizes[bucket] = size + 1;
+    }
+
+    public boolean remove(int slot, double latitude, double longitude) {
+        int bucket = bucketFor(cellKey(row(latitude), column(longitude)), false);
+        if (bucket < 0) return false;
+        int[] slots = bucketSlots[bucket];
+        int size = bucketSizes[bucket];
+        for (int i = 0; i < size; i++) {
+            if (slots[i] == slot) {
+                slots[i] = slots[size - 1];
+                bucketSizes[bucket] = size - 1;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Re-keys a point whose slot number changed but whose position did not. */
+    public void renumber(int oldSlot, int newSlot, double latitude, double longitude) {
+        int bucket = bucketFor(cellKey(row(latitude), column(longitude)), false);
+        if (bucket < 0) return;
+        int[] slots = bucketSlots[bucket];
+        int size = bucketSizes[bucket];
+        for (int i = 0; i < size; i++) {
+            if (slots[i] == oldSlot) {
+                slots[i] = newSlot;
+                return;
+            }
+        }
+    }
+
+    public void move(int slot, double oldLatitude, double oldLongitude, double newLatitude, double newLongitude) {
+        if (cellKey(row(oldLatitude), column(oldLongitude)) == cellKey(row(newLatitude), column(newLongitude))) {
+            return;
+        }
+        remove(slot, oldLatitude, oldLongitude);
+        insert(slot, newLatitude, newLongitude);
+    }
+
+    /**
+     * Visits every slot within {@code radiusMeters} (great-circle) of the given centre and returns
+     * how many were visited.
+     */
+    public int queryRadius(double latitude, double longitude, double radiusMeters,
+                           double[] latitudes, double[] longitudes, SlotVisitor visitor) {
+        double latDelta = Math.toDegrees(radiusMeters / EARTH_RADIUS_METERS);
+        double south = Math.max(-90.0, latitude - latDelta);
+        double north = Math.min(90.0, latitude + latDelta);
+
+        double widestCos = Math.cos(Math.toRadians(Math.max(Math.abs(south), Math.abs(north))));
+        double lonDelta = widestCos < 1e-9 ? 180.0 : Math.toDegrees(radiusMeters / (EARTH_RADIUS_METERS * widestCos));
+
+        return forEachBucket(south, north, longitude - lonDelta, longitude + lonDelta, lonDelta >= 180.0, bucket -> {
+            int[] slots = bucketSlots[bucket];
+            int size = bucketSizes[bucket];
+            int visited = 0;
+            for (int i = 0; i < size; i++) {
+                int slot = slots[i];
+                if (distanceMeters(latitude, longitude, latitudes[slot], longitudes[slot]) <= radiusMeters) {
+                    visitor.visit(slot);
+                    visited++;
+                }
+            }
+            return visited;
+        });
+    }
+
+    /**
+     * Visits every slot inside the given box and returns how many were visited. A box whose
+     * {@code west} edge is greater than its {@code east} edge crosses the antimeridian.
+     */
+    public int queryBox(double south, double west, double north, double east,
+                        double[] latitudes, double[] longitudes, SlotVisitor visitor) {
+        boolean wraps = west > east;
+        boolean fullWidth = !wraps && east - west >= 360.0 - cellSize;
+        return forEachBucket(Math.max(-90.0, south), Math.min(90.0, north), west, east, fullWidth, bucket -> {
+            int[] slots = bucketSlots[bucket];
+            int size = bucketSizes[bucket];
+            int visited = 0;
+            for (int i = 0; i < size; i++) {
+                int slot = slots[i];
+                double lat = latitudes[slot];
+                if (lat < south || lat > north) continue;
+                double lon = longitudes[slot];
+                if (!fullWidth && (wraps ? (lon < west && lon > east) : (lon < west || lon > east))) continue;
+                visitor.visit(slot);
+                visited++;
+            }
+            return visited;
+        });
+    }
+
+    /**
+     * Number of slots in the buckets overlapping the box: what {@link #queryBox} would test,
+     * without looking at any coordinates.
+     */
+    public int countBox(double south, double west, double north, double east) {
+        boolean fullWidth = west <= east && east - west >= 360.0 - cellSize;
+        return forEachBucket(Math.max(-90.0, south), Math.min(90.0, north), west, east, fullWidth,
+                bucket -> bucketSizes[bucket]);
+    }
+
+    /** Whether a point is inside a box in the sense of {@link #queryBox}. */
+    public static boolean inBox(double latitude, double longitude, double south, double west, double north, double east) {
+        if (latitude < south || latitude > north) return false;
+        return west <= east ? longitude >= west && longitude <= east : longitude >= west || longitude <= east;
+    }
+
+    /**
+     * Finds up to {@code k} slots nearest (great-circle) to the centre among those {@code filter}
+     * accepts, within {@code maxRadiusMeters}. Writes them nearest first into {@code slots} and
+     * {@code distances}, which must hold {@code k} entries, and returns how many were found.
+     *
+     * <p>Cells are searched in square rings around the centre's cell until no unvisited cell can
+     * hold anything closer than the k-th candidate. Candidates are kept in a bounded max-heap in
+     * the output arrays, so nothing is allocated per point. Once a ring would probe more cells
+     * than there are buckets, the remaining buckets are scanned instead.
+     */
+    public int nearest(double latitude, double longitude, int k, double maxRadiusMeters,
+                       double[] latitudes, double[] longitudes, SlotFilter filter, int[] slots, double[] distances) {
+        if (k <= 0) return 0;
+        int centerRow = row(latitude);
+        int centerColumn = column(longitude);
+        int found = 0;
+        for (int ring = 0; ; ring++) {
+            if (ring > 0) {
+                double limit = found == k ? distances[0] : maxRadiusMeters;
+                if (gapDistanceBound(latitude, (ring - 1) * cellSize, limit) > limit) break;
+            }
+            if ((long) ring * 8 > bucketCount) {
+                for (int b = 0; b < bucketCount; b++) {
+                    long key = bucketKeys[b];
+                    int dc = Math.abs((int) (key % columns) - centerColumn);
+                    if (Math.max(Math.abs((int) (key / columns) - centerRow), Math.min(dc, columns - dc)) >= ring) {
+                        found = nearestInBucket(b, latitude, longitude, k, maxRadiusMeters, latitudes, longitudes,
+                                filter, found, slots, distances);
+                    }
+                }
+                break;
+            }
+            int rowMin = Math.max(0, centerRow - ring);
+            int rowMax = Math.min(rows - 1, centerRow + ring);
+            int span = Math.min(2 * ring + 1, columns);
+            for (int r = rowMin; r <= rowMax; r++) {
+                if (Math.abs(r - centerRow) == ring) {
+                    for (int c = 0; c < span; c++) {
+                        found = nearestInCell(r, Math.floorMod(centerColumn - ring + c, columns), latitude, longitude, k,
+                                maxRadiusMeters, latitudes, longitudes, filter, found, slots, distances);
+                    }
+                } else if (ring <= columns / 2) {
+                    found = nearestInCell(r, Math.floorMod(centerColumn - ring, columns), latitude, longitude, k,
+                            maxRadiusMeters, latitudes, longitudes, filter, found, slots, distances);
+                    if (2 * ring != columns) {
+                        found = nearestInCell(r, Math.floorMod(centerColumn + ring, columns), latitude, longitude, k,
+                                maxRadiusMeters, latitudes, longitudes, filter, found, slots, distances);
+                    }
+                }
+            }
+        }
+        // Heap sort: repeatedly move the farthest remaining candidate to the end.
+        for (int end = found - 1; end > 0; end--) {
+            int slot = slots[end];
+            double distance = distances[end];
+            slots[end] = slots[0];
+            distances[end] = distances[0];
+            siftDown(slot, distance, end, slots, distances);
+        }
+        return found;
+    }
+
+    private int nearestInCell(int row, int column, double latitude, double longitude, int k, double maxRadiusMeters,
+                              double[] latitudes, double[] longitudes, SlotFilter filter,
+                              int found, int[] slots, double[] distances) {
+        int bucket = bucketFor(cellKey(row, column), false);
+        if (bucket < 0) return found;
+        return nearestInBucket(bucket, latitude, longitude, k, maxRadiusMeters, latitudes, longitudes, filter,
+                found, slots, distances);
+    }
+
+    private int nearestInBucket(int bucket, double latitude, double longitude, int k, double maxRadiusMeters,
+                                double[] latitudes, double[] longitudes, SlotFilter filter,
+                                int found, int[] slots, double[] distances) {
+        int[] bucketSlots = this.bucketSlots[bucket];
+        int size = bucketSizes[bucket];
+        for (int i = 0; i < size; i++) {
+            int slot = bucketSlots[i];
+            if (!filter.accept(slot)) continue;
+            double distance = distanceMeters(latitude, longitude, latitudes[slot], longitudes[slot]);
+            if (distance > maxRadiusMeters) continue;
+            if (found < k) {
+                int at = found++;
+                while (at > 0) {
+                    int parent = (at - 1) >> 1;
+                    if (distances[parent] >= distance) break;
+                    slots[at] = slots[parent];
+                    distances[at] = distances[parent];
+                    at = parent;
+                }
+                slots[at] = slot;
+                distances[at] = distance;
+            } else if (distance < distances[0]) {
+                siftDown(slot, distance, found, slots, distances);
+            }
+        }
+        return found;
+    }
+
+    /** Puts {@code slot} at the root of the max-heap of the first {@code size} entries and restores it. */
+    private static void siftDown(int slot, double distance, int size, int[] slots, double[] distances) {
+        int at = 0;
+        while (true) {
+            int child = 2 * at + 1;
+            if (child >= size) break;
+            if (child + 1 < size && distances[child + 1] > distances[child]) child++;
+            if (distances[child] <= distance) break;
+            slots[at] = slots[child];
+            distances[at] = distances[child];
+            at = child;
+        }
+        slots[at] = slot;
+        distances[at] = distance;
+    }
+
+    /**
+     * Lower bound on the distance from a centre at {@code latitude} to any point that is at least
+     * {@code gapDegrees} away from it in latitude or in longitude, counting only points closer than
+     * {@code withinMeters}: those cannot be far enough towards a pole for their meridians to meet.
+     */
+    private static double gapDistanceBound(double latitude, double gapDegrees, double withinMeters) {
+        double gap = Math.toRadians(Math.min(gapDegrees, 180.0));
+        double maxLatitude = Math.min(Math.PI / 2, Math.abs(Math.toRadians(latitude)) + withinMeters / EARTH_RADIUS_METERS);
+        double alongMeridian = EARTH_RADIUS_METERS * gap;
+        double acrossMeridians = 2.0 * EARTH_RADIUS_METERS * Math.asin(Math.min(1.0, Math.cos(maxLatitude) * Math.sin(gap / 2)));
+        return Math.min(alongMeridian, acrossMeridians);
+    }
+
+    private interface BucketVisitor {
+        int visit(int bucket);
+    }
+
+    /**
+     * Calls {@code visitor} for each non-empty bucket overlapping the box. Small boxes probe the
+     * hash table cell by cell; boxes covering more cells than there are buckets scan the buckets.
+     */
+    private int forEachBucket(double south, double north, double west, double east, boolean fullWidth,
+                              BucketVisitor visitor) {
+        int rowMin = row(south);
+        int rowMax = row(north);
+        int colMin;
+        int colSpan;
+        if (fullWidth) {
+            colMin = 0;
+            colSpan = columns;
+        } else {
+            colMin = column(west);
+            colSpan = Math.floorMod(column(east) - colMin, columns) + 1;
+        }
+
+        int visited = 0;
+        long cellsInRange = (long) (rowMax - rowMin + 1) * colSpan;
+        if (cellsInRange <= bucketCount) {
+            for (int r = rowMin; r <= rowMax; r++) {
+                for (int c = 0; c < colSpan; c++) {
+                    int bucket = bucketFor(cellKey(r, (colMin + c) % columns), false);
+                    if (bucket >= 0) {
+                        visited += visitor.visit(bucket);
+                    }
+                }
+            }
+        } else {
+            for (int b = 0; b < bucketCount; b++) {
+                long key = bucketKeys[b];
+                int r = (int) (key / columns);
+                int c = (int) (key % columns);
+                if (r < rowMin || r > rowMax) continue;
+                if (Math.floorMod(c - colMin, columns) >= colSpan) continue;
+                visited += visitor.visit(b);
+            }
+        }
+        return visited;
+    }
+
+    public static double distanceMeters(double lat1, double lon1, double lat2, double lon2) {
+        double phi1 = Math.toRadians(lat1);
+        double phi2 = Math.toRadians(lat2);
+        double sinDLat = Math.sin((phi2 - phi1) * 0.5);
+        double sinDLon = Math.sin(Math.toRadians(lon2 - lon1) * 0.5);
+        double h = sinDLat * sinDLat + Math.cos(phi1) * Math.cos(phi2) * sinDLon * sinDLon;
+        return 2.0 * EARTH_RADIUS_METERS * Math.asin(Math.min(1.0, Math.sqrt(h)));
+    }
+
+    private int row(double latitude) {
+        int r = (int) Math.floor((latitude + 90.0) / cellSize);
+        return Math.max(0, Math.min(rows - 1, r));
+    }
+
+    private int column(double longitude) {
+        return Math.floorMod((int) Math.floor((longitude + 180.0) / cellSize), columns);
+    }
+
+    private long cellKey(int row, int column) {
+        return (long) row * columns + column;
+    }
+
+    private int bucketFor(long key, boolean create) {
+        int bucket = bucketsByCell.get(key);
+        if (bucket >= 0 || !create) return bucket;
+
+        if (bucketCount == bucketSlots.length) {
+            int capacity = bucketCount * 2;
+            bucketSlots = Arrays.copyOf(bucketSlots, capacity);
+            bucketSizes = Arrays.copyOf(bucketSizes, capacity);
+            bucketKeys = Arrays.copyOf(bucketKeys, capacity);
+        }
+        bucket = bucketCount++;
+        bucketSlots[bucket] = new int[INITIAL_BUCKET_CAPACITY];
+        bucketKeys[bucket] = key;
+        bucketsByCell.put(key, bucket);
+        return bucket;
+    }
+}
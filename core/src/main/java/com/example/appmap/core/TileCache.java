@@ -0,0 +1,238 @@
+package com.example.appmap.core;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * On-disk map tile cache with a byte budget and least-recently-used eviction. Tiles live at
+ * {@code <directory>/<z>/<x>/<y>.tile}; the recency order is kept in memory and seeded from the
+ * files' modification times when the cache is opened, so it survives restarts approximately.
+ *
+ * <p>A tile's modification time is also when it was fetched. Past {@code maxAgeMs} it is expired:
+ * still served, so the map works offline, but no longer {@link #isFresh fresh}, so it is fetched
+ * again when online.
+ *
+ * <p>The directory is scanned on first use, which should therefore not happen on the main thread.
+ */
+public class TileCache {
+
+    /** Tile servers such as OpenStreetMap's ask for tiles to be kept about a week. */
+    public static final long DEFAULT_MAX_AGE_MS = 7L * 24 * 60 * 60 * 1000;
+
+    private static final Counter HITS = Metrics.counter("tiles.hits");
+    private static final Counter MISSES = Metrics.counter("tiles.misses");
+    private static final Counter EVICTED = Metrics.counter("tiles.evicted");
+    private static final Gauge CACHE_BYTES = Metrics.gauge("tiles.cache_bytes");
+    private static final Gauge HIT_RATE = Metrics.gauge("tiles.hit_rate_pct");
+
+    private final File directory;
+    private final long maxBytes;
+    private final long maxAgeMs;
+    private final LinkedHashMap<Long, Integer> sizes = new LinkedHashMap<>(256, 0.75f, true);
+    private final Map<Long, Long> fetchedAt = new HashMap<>();
+    private boolean opened;
+    private long totalBytes;
+    private long hits;
+    private long misses;
+
+    public TileCache(File directory, long maxBytes) {
+        this(directory, maxBytes, DEFAULT_MAX_AGE_MS);
+    }
+
+    public TileCache(File directory, long maxBytes, long maxAgeMs) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.maxAgeMs = maxAgeMs;
+    }
+
+    private synchronized void open() {
+        if (opened) return;
+        opened = true;
+        List<File> files = new ArrayList<>();
+        collect(directory, files);
+        files.sort((a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (File file : files) {
+            long key = keyOf(file);
+            if (key < 0) continue;
+            sizes.put(key, (int) file.length());
+            fetchedAt.put(key, file.lastModified());
+            totalBytes += file.length();
+        }
+        trim();
+    }
+
+    public static long key(int zoom, int x, int y) {
+        return ((long) zoom << 58) | ((long) x << 29) | y;
+    }
+
+    /** Returns the cached tile, or null. Counts towards the hit rate. */
+    public byte[] get(int zoom, int x, int y) {
+        long key = key(zoom, x, y);
+        synchronized (this) {
+            open();
+            if (sizes.get(key) == null) {
+                misses++;
+                MISSES.increment();
+                updateHitRate();
+                return null;
+            }
+        }
+        byte[] data = read(file(zoom, x, y));
+        synchronized (this) {
+            if (data == null) {
+                // Evicted, or deleted behind our back, between the lookup and the read.
+                Integer size = sizes.remove(key);
+                fetchedAt.remove(key);
+                if (size != null) totalBytes -= size;
+                misses++;
+                MISSES.increment();
+            } else {
+                hits++;
+                HITS.increment();
+            }
+            updateHitRate();
+        }
+        return data;
+    }
+
+    /** Whether a tile is cached, without touching its recency or the hit rate. */
+    public synchronized boolean contains(int zoom, int x, int y) {
+        open();
+        return sizes.containsKey(key(zoom, x, y));
+    }
+
+    /** Whether a tile is cached and younger than the maximum age, without touching its recency. */
+    public synchronized boolean isFresh(int zoom, int x, int y) {
+        open();
+        Long fetched = fetchedAt.get(key(zoom, x, y));
+        return fetched != null && System.currentTimeMillis() - fetched < maxAgeMs;
+    }
+
+    public void put(int zoom, int x, int y, byte[] data) throws IOException {
+        open();
+        File file = file(zoom, x, y);
+        File parent = file.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("No se pudo crear " + parent);
+        }
+        File tmp = new File(parent, file.getName() + "." + Thread.currentThread().getId() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(data);
+        }
+        synchronized (this) {
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+                throw new IOException("No se pudo guardar " + file);
+            }
+            Integer previous = sizes.put(key(zoom, x, y), data.length);
+            fetchedAt.put(key(zoom, x, y), System.currentTimeMillis());
+            totalBytes += data.length - (previous == null ? 0 : previous);
+            trim();
+        }
+    }
+
+    public synchronized long sizeBytes() {
+        open();
+        return totalBytes;
+    }
+
+    public long maxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized int tileCount() {
+        open();
+        return sizes.size();
+    }
+
+    public synchronized long hits() {
+        return hits;
+    }
+
+    public synchronized long misses() {
+        return misses;
+    }
+
+    /** Share of {@link #get} calls served from disk, 0 before the first one. */
+    public synchronized double hitRate() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    private void trim() {
+        Iterator<Map.Entry<Long, Integer>> eldest = sizes.entrySet().iterator();
+        while (totalBytes > maxBytes && eldest.hasNext()) {
+            Map.Entry<Long, Integer> entry = eldest.next();
+            long key = entry.getKey();
+            file((int) (key >>> 58), (int) ((key >>> 29) & 0x1FFFFFFF), (int) (key & 0x1FFFFFFF)).delete();
+            totalBytes -= entry.getValue();
+            fetchedAt.remove(key);
+            eldest.remove();
+            EVICTED.increment();
+        }
+        CACHE_BYTES.set(totalBytes);
+    }
+
+    private void updateHitRate() {
+        HIT_RATE.set(Math.round(100 * hitRate()));
+    }
+
+    private File file(int zoom, int x, int y) {
+        return new File(directory, zoom + File.separator + x + File.separator + y + ".tile");
+    }
+
+    private static byte[] read(File file) {
+        long length = file.length();
+        if (length <= 0) return null;
+        byte[] data = new byte[(int) length];
+        try (InputStream in = new FileInputStream(file)) {
+            int offset = 0;
+            while (offset < data.length) {
+                int read = in.read(data, offset, data.length - offset);
+                if (read < 0) return null;
+                offset += read;
+            }
+            return data;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private long keyOf(File file) {
+        String name = file.getName();
+        if (!name.endsWith(".tile")) {
+            if (name.endsWith(".tmp")) file.delete();
+            return -1;
+        }
+        try {
+            int y = Integer.parseInt(name.substring(0, name.length() - ".tile".length()));
+            File xDir = file.getParentFile();
+            int x = Integer.parseInt(xDir.getName());
+            int zoom = Integer.parseInt(xDir.getParentFile().getName());
+            return key(zoom, x, y);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void collect(File dir, List<File> files) {
+        File[] children = dir.listFiles();
+        if (children == null) return;
+        for (File child : children) {
+            if (child.isDirectory()) {
+                collect(child, files);
+            } else {
+                files.add(child);
+            }
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package com.example.appmap.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Downloads map tiles into a {@link TileCache}: on demand for the map, and in the background for
+ * the area around a point. The tile server is a URL template with {@code {z}}, {@code {x}} and
+ * {@code {y}} placeholders.
+ *
+ * <p>A background run only spends up to half the cache budget, so it can't evict the tiles it
+ * has just fetched, and starting a new run abandons the previous one. Expired tiles are fetched
+ * again, but served while the server can't be reached.
+ *
+ * <p>Bulk downloads are against the usage policy of {@code tile.openstreetmap.org}; background runs
+ * belong on a server that allows them.
+ */
+public class TilePrefetcher {
+
+    public static final class Result {
+        public int downloaded;
+        public int cached;
+        public int failed;
+        public long bytes;
+        public boolean stopped;
+    }
+
+    private static final int CONNECT_TIMEOUT_MS = 10_000;
+    private static final int READ_TIMEOUT_MS = 15_000;
+    private static final int MAX_TILE_BYTES = 1 << 20;
+    private static final double MAX_LATITUDE = 85.05112878;
+
+    private static final Counter DOWNLOADED = Metrics.counter("tiles.downloaded");
+    private static final Counter DOWNLOAD_FAILURES = Metrics.counter("tiles.download_failures");
+    private static final Counter BYTES_DOWNLOADED = Metrics.counter("tiles.bytes_downloaded");
+    private static final Timer DOWNLOAD_TIMER = Metrics.timer("tiles.download");
+
+    private final TileCache cache;
+    private final String urlTemplate;
+    private final String userAgent;
+    private final ExecutorService background = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "tile-prefetch");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+    private final AtomicInteger generation = new AtomicInteger();
+
+    public TilePrefetcher(TileCache cache, String urlTemplate, String userAgent) {
+        this.cache = cache;
+        this.urlTemplate = urlTemplate;
+        this.userAgent = userAgent;
+    }
+
+    public TileCache cache() {
+        return cache;
+    }
+
+    /**
+     * Returns the tile from the cache, downloading and caching it on a miss or once it has expired.
+     * Null if unavailable.
+     */
+    public byte[] fetch(int zoom, int x, int y) {
+        byte[] cached = cache.get(zoom, x, y);
+        if (cached != null && cache.isFresh(zoom, x, y)) return cached;
+        byte[] data = download(zoom, x, y);
+        if (data == null) {
+            // Offline or failing: an expired tile beats none.
+            return cached;
+        }
+        store(zoom, x, y, data);
+        return data;
+    }
+
+    public Future<Result> prefetch(double latitude, double longitude, double radiusMeters, int minZoom, int maxZoom) {
+        return prefetch(new double[]{latitude}, new double[]{longitude}, radiusMeters, minZoom, maxZoom);
+    }
+
+    /**
+     * Queues a background run caching every tile within {@code radiusMeters} of each point for
+     * zoom levels {@code minZoom..maxZoom}. Earlier points come first, each coarsest zoom first.
+     */
+    public Future<Result> prefetch(double[] latitudes, double[] longitudes, double radiusMeters, int minZoom, int maxZoom) {
+        int run = generation.incrementAndGet();
+        return background.submit(() -> {
+            Result result = new Result();
+            long budget = cache.maxBytes() / 2;
+            for (int point = 0; point < latitudes.length; point++) {
+                if (!prefetchAround(latitudes[point], longitudes[point], radiusMeters, minZoom, maxZoom, run, budget, result)) {
+                    result.stopped = true;
+                    break;
+                }
+            }
+            return result;
+        });
+    }
+
+    private boolean prefetchAround(double latitude, double longitude, double radiusMeters, int minZoom, int maxZoom,
+                                   int run, long budget, Result result) {
+        for (int zoom = minZoom; zoom <= maxZoom; zoom++) {
+            int[] range = tileRange(latitude, longitude, radiusMeters, zoom);
+            for (int x = range[0]; x <= range[2]; x++) {
+                for (int y = range[1]; y <= range[3]; y++) {
+                    if (generation.get() != run || result.bytes >= budget) {
+                        return false;
+                    }
+                    int wrappedX = Math.floorMod(x, 1 << zoom);
+                    if (cache.isFresh(zoom, wrappedX, y)) {
+                        result.cached++;
+                        continue;
+                    }
+                    byte[] data = download(zoom, wrappedX, y);
+                    if (data != null && store(zoom, wrappedX, y, data)) {
+                        result.downloaded++;
+                        result.bytes += data.length;
+                    } else {
+                        result.failed++;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /** Abandons the current background run, if any. */
+    public void cancel() {
+        generation.incrementAndGet();
+    }
+
+    /**
+     * Tiles covering the circle at {@code zoom} as {x0, y0, x1, y1}, inclusive. x may fall outside
+     * 0..2^zoom-1 near the antimeridian and must be wrapped by the caller.
+     */
+    static int[] tileRange(double latitude, double longitude, double radiusMeters, int zoom) {
+        double latDelta = Math.toDegrees(radiusMeters / SpatialGrid.EARTH_RADIUS_METERS);
+        double cos = Math.max(1e-6, Math.cos(Math.toRadians(latitude)));
+        double lonDelta = Math.min(180.0, latDelta / cos);
+        int n = 1 << zoom;
+        int x0 = (int) Math.floor((longitude - lonDelta + 180.0) / 360.0 * n);
+        int x1 = (int) Math.floor((longitude + lonDelta + 180.0) / 360.0 * n);
+        if (x1 - x0 >= n) {
+            x0 = 0;
+            x1 = n - 1;
+        }
+        int y0 = tileY(Math.min(MAX_LATITUDE, latitude + latDelta), n);
+        int y1 = tileY(Math.max(-MAX_LATITUDE, latitude - latDelta), n);
+        return new int[]{x0, y0, x1, y1};
+    }
+
+    private static int tileY(double latitude, int n) {
+        double sin = Math.sin(Math.toRadians(latitude));
+        double y = 0.5 - Math.log((1 + sin) / (1 - sin)) / (4 * Math.PI);
+        return Math.max(0, Math.min(n - 1, (int) Math.floor(y * n)));
+    }
+
+    private boolean store(int zoom, int x, int y, byte[] data) {
+        try {
+            cache.put(zoom, x, y, data);
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    private byte[] download(int zoom, int x, int y) {
+        String url = urlTemplate.replace("{z}", String.valueOf(zoom))
+                .replace("{x}", String.valueOf(x))
+                .replace("{y}", String.valueOf(y));
+        long start = DOWNLOAD_TIMER.start();
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            connection.setReadTimeout(READ_TIMEOUT_MS);
+            connection.setRequestProperty("User-Agent", userAgent);
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                DOWNLOAD_FAILURES.increment();
+                return null;
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 * 1024);
+            try (InputStream in = connection.getInputStream()) {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    bytes.write(buffer, 0, read);
+                    if (bytes.size() > MAX_TILE_BYTES) {
+                        DOWNLOAD_FAILURES.increment();
+                        return null;
+                    }
+                }
+            }
+            DOWNLOADED.increment();
+            BYTES_DOWNLOADED.add(bytes.size());
+            DOWNLOAD_TIMER.stop(start);
+            return bytes.size() == 0 ? null : bytes.toByteArray();
+        } catch (IOException e) {
+            DOWNLOAD_FAILURES.increment();
+            return null;
+        } finally {
+            if (connection != null) connection.disconnect();
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.example.appmap.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ClusterIndexTest {
+
+    @Test
+    public void everyLevelAccountsForAllLocations() {
+        Random random = new Random(3);
+        int count = 5000;
+        double[] lats = new double[count];
+        double[] lons = new double[count];
+        byte[] statuses = new byte[count];
+        int[] ids = new int[count];
+        int[] perStatus = new int[4];
+        for (int i = 0; i < count; i++) {
+            lats[i] = random.nextDouble() * 160.0 - 80.0;
+            lons[i] = random.nextDouble() * 360.0 - 180.0;
+            statuses[i] = (byte) random.nextInt(4);
+            ids[i] = i + 1;
+            perStatus[statuses[i]]++;
+        }
+        ClusterIndex index = ClusterIndex.build(lats, lons, statuses, ids, count);
+
+        for (int zoom = 0; zoom <= ClusterIndex.MAX_ZOOM; zoom++) {
+            int z = zoom;
+            int[] total = new int[1];
+            int[] bueno = new int[1];
+            index.query(zoom, -90, -180, 90, 180, cluster -> {
+                total[0] += index.count(z, cluster);
+                bueno[0] += index.count(z, cluster, LocationStatus.mask(LocationStatus.BUENO.code()));
+            });
+            assertEquals(count, total[0]);
+            assertEquals(perStatus[LocationStatus.BUENO.code()], bueno[0]);
+        }
+    }
+
+    @Test
+    public void incrementalUpdatesMatchRebuild() {
+        ClusterIndex index = new ClusterIndex();
+        index.add(40.0, -3.0, LocationStatus.BUENO.code(), 1);
+        index.add(40.001, -3.001, LocationStatus.DECENTE.code(), 2);
+        index.add(-33.0, 151.0, LocationStatus.NONE, 3);
+
+        int zoom = ClusterIndex.MAX_ZOOM;
+        List<Integer> clusters = new ArrayList<>();
+        index.query(zoom, 39.0, -4.0, 41.0, -2.0, clusters::add);
+        assertEquals(1, clusters.size());
+        int cluster = clusters.get(0);
+        assertEquals(2, index.count(zoom, cluster));
+        assertEquals(40.0005, index.latitude(zoom, cluster), 1e-6);
+        assertEquals(ClusterIndex.MAX_ZOOM + 1, index.expansionZoom(zoom, cluster));
+        long key = index.key(zoom, cluster);
+
+        index.remove(40.0, -3.0, LocationStatus.BUENO.code(), 1);
+        assertEquals(cluster, index.find(key));
+        assertEquals(1, index.count(zoom, cluster));
+        assertEquals(2, index.singleId(zoom, cluster));
+        assertEquals(0, index.statusCount(zoom, cluster, LocationStatus.BUENO.code()));
+
+        index.remove(40.001, -3.001, LocationStatus.DECENTE.code(), 2);
+        assertEquals(-1, index.find(key));
+        clusters.clear();
+        index.query(0, -90, -180, 90, 180, clusters::add);
+        assertEquals(1, clusters.size());
+        assertEquals(3, index.singleId(0, clusters.get(0)));
+    }
+
+    @Test
+    public void expansionZoomIsWhereMembersSplit() {
+        ClusterIndex index = new ClusterIndex();
+        index.add(10.0, 10.0, LocationStatus.BUENO.code(), 1);
+        index.add(10.0, 10.5, LocationStatus.BUENO.code(), 2);
+
+        List<Integer> clusters = new ArrayList<>();
+        index.query(0, -90, -180, 90, 180, clusters::add);
+        int expansion = index.expansionZoom(0, clusters.get(0));
+
+        clusters.clear();
+        index.query(expansion, 9.0, 9.0, 11.0, 11.0, clusters::add);
+        assertEquals(2, clusters.size());
+        clusters.clear();
+        index.query(expansion - 1, 9.0, 9.0, 11.0, 11.0, clusters::add);
+        assertEquals(1, clusters.size());
+    }
+}
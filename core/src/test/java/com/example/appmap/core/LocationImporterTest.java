@@ -0,0 +1,100 @@
+package com.example.appmap.core;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LocationImporterTest {
+
+    @Test
+    public void geoJsonFeaturesAreMappedAndMergedWithExistingLocations() throws IOException {
+        String geoJson = "{\"type\":\"FeatureCollection\",\"features\":["
+                + "{\"type\":\"Feature\",\"properties\":{\"Name\":\"Copec Vitacura\",\"address\":\"Av. Vitacura 123\",\"status\":\"bueno\",\"public\":false},"
+                + "\"geometry\":{\"type\":\"Point\",\"coordinates\":[-70.60,-33.40]}},"
+                // 10 m from an existing location.
+                + "{\"type\":\"Feature\",\"geometry\":{\"type\":\"Point\",\"coordinates\":[-70.50009,-33.50]},\"properties\":{\"name\":\"Duplicado\"}},"
+                + "{\"type\":\"Feature\",\"geometry\":{\"type\":\"LineString\",\"coordinates\":[[0,0],[1,1]]},\"properties\":{}},"
+                + "{\"type\":\"Feature\",\"geometry\":{\"type\":\"Point\",\"coordinates\":[-70.70,-33.30,550]},\"properties\":null}"
+                + "]}";
+        List<LocationRecord> records = new ArrayList<>();
+        LocationImporter.Progress progress = new LocationImporter(new LocationImporter.FieldMapping(), 25, 100)
+                .run(stream(geoJson), geoJson.length(), LocationImporter.Format.GEOJSON,
+                        new double[]{-33.50}, new double[]{-70.50}, 1, (batch, p) -> records.addAll(batch));
+
+        assertEquals(4, progress.read);
+        assertEquals(2, progress.imported);
+        assertEquals(1, progress.merged);
+        assertEquals(1, progress.skipped);
+        assertEquals(100, progress.percent());
+        LocationRecord first = records.get(0);
+        assertEquals("Copec Vitacura", first.title);
+        assertEquals("Av. Vitacura 123", first.descripcion);
+        assertEquals("Bueno", first.estado);
+        assertFalse(first.esPublico);
+        assertEquals(-33.40, first.latitude, 0.0);
+        assertEquals(-70.60, first.longitude, 0.0);
+        assertNull(records.get(1).title);
+        assertTrue(records.get(1).esPublico);
+    }
+
+    @Test
+    public void csvIsReadInBatchesAndDuplicatesWithinTheFileAreMerged() throws IOException {
+        StringBuilder csv = new StringBuilder("\uFEFFnombre;latitud;longitud;descripcion;es_publico\r\n");
+        csv.append("\"Mall; Costanera\";-33,4175;-70,6065;\"Nivel -2, \"\"sector B\"\"\nJunto a ascensores\";no\r\n");
+        csv.append("Mall Costanera bis;-33,41752;-70,60652;;\r\n");
+        csv.append("\r\n");
+        csv.append("Sin coordenadas;;;;\r\n");
+        for (int i = 0; i < 10; i++) {
+            csv.append("P").append(i).append(';').append(i).append(";10;;si\r\n");
+        }
+        List<Integer> batchSizes = new ArrayList<>();
+        List<LocationRecord> records = new ArrayList<>();
+        LocationImporter.Progress progress = new LocationImporter(new LocationImporter.FieldMapping(), 25, 4)
+                .run(stream(csv.toString()), -1, LocationImporter.Format.CSV, new double[0], new double[0], 0,
+                        (batch, p) -> {
+                            batchSizes.add(batch.size());
+                            records.addAll(batch);
+                        });
+
+        assertEquals(List.of(4, 4, 3), batchSizes);
+        assertEquals(11, progress.imported);
+        assertEquals(1, progress.merged);
+        assertEquals(1, progress.skipped);
+        assertEquals(-1, progress.percent());
+        LocationRecord mall = records.get(0);
+        assertEquals("Mall; Costanera", mall.title);
+        assertEquals("Nivel -2, \"sector B\"\nJunto a ascensores", mall.descripcion);
+        assertEquals(-33.4175, mall.latitude, 0.0);
+        assertFalse(mall.esPublico);
+        assertEquals("P9", records.get(10).title);
+    }
+
+    @Test
+    public void cancelledImportKeepsCommittedBatches() throws IOException {
+        StringBuilder csv = new StringBuilder("lat,lon\n");
+        for (int i = 0; i < 100; i++) {
+            csv.append(i % 80).append(',').append(i).append('\n');
+        }
+        LocationImporter importer = new LocationImporter(new LocationImporter.FieldMapping(), 0, 10);
+        List<LocationRecord> records = new ArrayList<>();
+        LocationImporter.Progress progress = importer.run(stream(csv.toString()), csv.length(), LocationImporter.Format.CSV,
+                new double[0], new double[0], 0, (batch, p) -> {
+                    records.addAll(batch);
+                    if (records.size() == 30) importer.cancel();
+                });
+
+        assertTrue(progress.cancelled);
+        assertEquals(30, progress.imported);
+        assertEquals(30, records.size());
+    }
+
+    private static ByteArrayInputStream stream(String text) {
+        return new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,245 @@
+package com.example.appmap.core;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class LocationJournalTest {
+
+    private static final String SEED = "[{\"title\":\"A\",\"estado\":\"Bueno\",\"descripcion\":\"a\",\"latitude\":1,\"longitude\":1,\"es_publico\":true},"
+            + "{\"title\":\"B\",\"estado\":\"Decente\",\"descripcion\":\"b\",\"latitude\":2,\"longitude\":2,\"es_publico\":true}]";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File dir;
+    private boolean lastLoadMapped;
+    private boolean takePartitions;
+    private LocationPartitions lastPartitions;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = folder.newFolder();
+    }
+
+    @Test
+    public void mutationsAreReplayedOnTopOfSeed() throws Exception {
+        LocationJournal journal = newJournal();
+        assertEquals(List.of("A", "B"), titles(load(journal)));
+
+        LocationRecord added = new LocationRecord("C", "Excelente", "c", 3, 3, true);
+        added.id = 3;
+        LocationRecord updated = new LocationRecord("A2", "Bueno", "a", 1, 1, false);
+        updated.id = 1;
+        journal.appendAdd(added);
+        journal.appendUpdate(updated);
+        journal.appendDelete(2);
+        load(journal);
+
+        LocationStore store = load(newJournal());
+        assertEquals(List.of("A2", "C"), titles(store));
+        assertEquals(0, store.slotOf(1));
+        assertEquals(1, store.slotOf(3));
+        assertEquals(-1, store.slotOf(2));
+    }
+
+    @Test
+    public void tornTailIsDiscarded() throws Exception {
+        LocationJournal journal = newJournal();
+        load(journal);
+        journal.appendAdd(new LocationRecord("C", "Excelente", "c", 3, 3, true));
+        load(journal);
+
+        File journalFile = new File(dir, LocationJournal.JOURNAL_NAME);
+        long intactLength = journalFile.length();
+        try (FileOutputStream out = new FileOutputStream(journalFile, true)) {
+            out.write(new byte[]{0, 0, 0, 40, 1, 2, 3});
+        }
+
+        assertEquals(List.of("A", "B", "C"), titles(load(newJournal())));
+        assertEquals(intactLength, journalFile.length());
+    }
+
+    @Test
+    public void failedWriteIsKeptAndRetried() throws Exception {
+        File journalFile = new File(dir, LocationJournal.JOURNAL_NAME);
+        // A directory where the journal should be makes every write fail.
+        assertTrue(journalFile.mkdir());
+        LocationJournal journal = newJournal();
+        CountDownLatch failing = new CountDownLatch(1);
+        CountDownLatch recovered = new CountDownLatch(1);
+        journal.setWriteListener(now -> (now ? failing : recovered).countDown());
+        LocationRecord added = new LocationRecord("C", "Excelente", "c", 3, 3, true);
+        added.id = 3;
+        journal.appendAdd(added);
+        journal.flush();
+        assertTrue(failing.await(10, TimeUnit.SECONDS));
+        assertTrue(journal.isFailing());
+
+        assertTrue(journalFile.delete());
+        journal.flush();
+        assertTrue(recovered.await(10, TimeUnit.SECONDS));
+        assertFalse(journal.isFailing());
+        assertEquals(List.of("A", "B", "C"), titles(load(newJournal())));
+    }
+
+    @Test
+    public void largeJournalIsCompactedIntoSnapshot() throws Exception {
+        LocationJournal journal = newJournal();
+        load(journal);
+        StringBuilder description = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            description.append("descripción ");
+        }
+        int added = 0;
+        while ((long) added * description.length() < LocationJournal.COMPACT_THRESHOLD_BYTES * 2) {
+            LocationRecord record = new LocationRecord("P" + added, "Bueno", description.toString(), added, added, true);
+            record.id = 3 + added;
+            journal.appendAdd(record);
+            added++;
+        }
+        journal.appendDelete(1);
+        LocationRecord moved = new LocationRecord("B2", "Bueno", "b", -33.45, -70.65, true);
+        moved.id = 2;
+        journal.appendUpdate(moved);
+        journal.appendDelete(3);
+        LocationRecord readded = new LocationRecord("P0", "Excelente", "otra vez", 0, 0, true);
+        readded.id = 3;
+        journal.appendAdd(readded);
+        load(journal);
+
+        assertTrue(new File(dir, LocationJournal.SNAPSHOT_NAME).exists());
+        assertTrue(new File(dir, LocationJournal.JOURNAL_NAME).length() < LocationJournal.COMPACT_THRESHOLD_BYTES);
+
+        takePartitions = true;
+        LocationStore store = load(newJournal());
+        assertEquals(0, store.size());
+        assertEquals(added + 1, lastPartitions.totalCount());
+        assertEquals(List.of("P2"), titles(lastPartitions.read(lastPartitions.partitionOf(2, 2))));
+        assertEquals("B2", lastPartitions.read(lastPartitions.partitionOf(-33.45, -70.65)).get(0).title);
+
+        takePartitions = false;
+        store = load(newJournal());
+        assertTrue(lastLoadMapped);
+        assertEquals(added + 1, store.size());
+        assertEquals(-1, store.slotOf(1));
+        assertEquals("B2", store.title(store.slotOf(2)));
+        assertEquals("otra vez", store.description(store.slotOf(3)));
+        assertEquals("P" + (added - 1), store.title(store.slotOf(2 + added)));
+    }
+
+    @Test
+    public void binarySnapshotIsMappedUntilItsSourceChanges() throws Exception {
+        load(newJournal());
+        // Written from the seed before anything is handed out, so even the first load maps it.
+        assertTrue(lastLoadMapped);
+        File binary = new File(dir, LocationJournal.BINARY_SNAPSHOT_NAME);
+        assertTrue(MappedSnapshot.open(binary).isFrom(-1, 0));
+
+        LocationJournal journal = newJournal();
+        LocationRecord updated = new LocationRecord("A2", "Bueno", "a", 1, 1, false);
+        updated.id = 1;
+        journal.appendUpdate(updated);
+        assertEquals(List.of("A2", "B"), titles(load(journal)));
+        assertTrue(lastLoadMapped);
+
+        // A new seed version replaces the binary snapshot, but the journal still applies.
+        LocationStore store = load(new LocationJournal(dir, () -> new ByteArrayInputStream(SEED.getBytes(StandardCharsets.UTF_8)), 1));
+        assertTrue(MappedSnapshot.open(binary).isFrom(-1, 1));
+        assertEquals(List.of("A2", "B"), titles(store));
+    }
+
+    @Test
+    public void partitionsCanBeTakenInsteadOfTheSnapshot() throws Exception {
+        takePartitions = true;
+        // Offered from the first load on, so the seed is never handed out whole.
+        assertEquals(0, load(newJournal()).size());
+        assertEquals(2, lastPartitions.totalCount());
+
+        LocationJournal journal = newJournal();
+        LocationRecord updated = new LocationRecord("A2", "Bueno", "a", 1, 1, false);
+        updated.id = 1;
+        journal.appendUpdate(updated);
+        // The records stay in the partitions, so the update finds nothing to apply to.
+        assertEquals(0, load(journal).size());
+        assertFalse(lastLoadMapped);
+        assertEquals(2, lastPartitions.totalCount());
+        assertEquals(2, lastPartitions.maxId());
+        assertEquals("B", lastPartitions.read(lastPartitions.partitionOf(2, 2)).get(0).title);
+    }
+
+    private LocationJournal newJournal() {
+        return new LocationJournal(dir, () -> new ByteArrayInputStream(SEED.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private LocationStore load(LocationJournal journal) throws InterruptedException {
+        LocationStore locations = new LocationStore();
+        CountDownLatch done = new CountDownLatch(1);
+        lastLoadMapped = false;
+        lastPartitions = null;
+        journal.flush();
+        journal.load(100, new LocationJournal.LoadListener() {
+            @Override
+            public boolean onPartitions(LocationPartitions partitions) {
+                lastPartitions = partitions;
+                return takePartitions;
+            }
+
+            @Override
+            public void onSnapshot(MappedSnapshot snapshot) {
+                lastLoadMapped = true;
+                locations.load(snapshot);
+            }
+
+            @Override
+            public void onChunk(List<LocationRecord> chunk) {
+                for (LocationRecord record : chunk) {
+                    locations.add(record);
+                }
+            }
+
+            @Override
+            public void onReplay(List<LocationJournal.Entry> entries) {
+                for (LocationJournal.Entry entry : entries) {
+                    entry.applyTo(locations);
+                }
+            }
+
+            @Override
+            public void onLoaded() {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        return locations;
+    }
+
+    private static List<String> titles(List<LocationRecord> records) {
+        List<String> titles = new ArrayList<>();
+        for (LocationRecord record : records) {
+            titles.add(record.title);
+        }
+        return titles;
+    }
+
+    private static List<String> titles(LocationStore locations) {
+        List<String> titles = new ArrayList<>();
+        for (int slot = 0; slot < locations.size(); slot++) {
+            titles.add(locations.title(slot));
+        }
+        return titles;
+    }
+}
@@ -0,0 +1,59 @@
+package com.example.appmap.core;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LocationJsonTest {
+
+    @Test
+    public void read_deliversRecordsInChunks() throws IOException {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < 5; i++) {
+            if (i > 0) json.append(',');
+            json.append("{\"title\":\"P").append(i).append("\",\"estado\":\"Bueno\",\"descripcion\":null,")
+                    .append("\"latitude\":").append(i).append(",\"longitude\":-").append(i)
+                    .append(",\"es_publico\":true,\"extra\":{\"ignored\":[1,2]}}");
+        }
+        json.append(']');
+
+        List<Integer> chunkSizes = new ArrayList<>();
+        List<LocationRecord> records = new ArrayList<>();
+        int total = LocationJson.read(new StringReader(json.toString()), 2, chunk -> {
+            chunkSizes.add(chunk.size());
+            records.addAll(chunk);
+        });
+
+        assertEquals(5, total);
+        assertEquals(List.of(2, 2, 1), chunkSizes);
+        assertEquals("P3", records.get(3).title);
+        assertNull(records.get(3).descripcion);
+        assertEquals(-3.0, records.get(3).longitude, 0.0);
+        assertTrue(records.get(3).esPublico);
+    }
+
+    @Test
+    public void writeThenRead_roundTrips() throws IOException {
+        LocationStore original = new LocationStore();
+        original.add(new LocationRecord("Plaza", "Excelente", "Punto de recarga en el corazón", 40.7128, -74.006, true));
+        original.add(new LocationRecord("Garaje", "Inutilizable", "", -33.45, -70.66, false));
+
+        StringWriter out = new StringWriter();
+        LocationJson.write(out, original);
+
+        List<LocationRecord> decoded = new ArrayList<>();
+        LocationJson.read(new StringReader(out.toString()), 100, decoded::addAll);
+
+        assertEquals(2, decoded.size());
+        assertEquals("Punto de recarga en el corazón", decoded.get(0).descripcion);
+        assertEquals(40.7128, decoded.get(0).latitude, 0.0);
+        assertEquals("Inutilizable", decoded.get(1).estado);
+        assertFalse(decoded.get(1).esPublico);
+    }
+}
@@ -0,0 +1,124 @@
+package com.example.appmap.core;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LocationPartitionsTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void recordsAreSplitByGeohashCell() throws IOException {
+        LocationStore store = new LocationStore();
+        store.add(new LocationRecord("Plaza de Armas", "Bueno", "centro", -33.45, -70.65, true));
+        store.add(new LocationRecord("Providencia", "Excelente", null, -33.43, -70.61, false));
+        store.add(new LocationRecord("Valparaíso", "Decente", "puerto", -33.05, -71.6, true));
+        store.add(new LocationRecord("Fiyi oeste", "Bueno", null, -17, 179.9, true));
+        store.add(new LocationRecord("Fiyi este", "Bueno", null, -17, -179.9, true));
+        File dir = new File(folder.getRoot(), "parts");
+        LocationPartitions.write(dir, store, 10, 20, 30);
+
+        LocationPartitions partitions = LocationPartitions.open(dir);
+        assertTrue(partitions.isFrom(10, 20));
+        assertEquals(4, partitions.size());
+        assertEquals(5, partitions.totalCount());
+        assertEquals(5, partitions.maxId());
+        int santiago = partitions.partitionOf(-33.45, -70.65);
+        assertEquals("66jc", partitions.name(santiago));
+        assertEquals("66j5", partitions.name(partitions.partitionOf(-33.05, -71.6)));
+        assertEquals(-1, partitions.partitionOf(40, -3));
+        assertEquals(List.of("Plaza de Armas", "Providencia"), titles(partitions.read(santiago)));
+        assertNull(partitions.read(santiago).get(1).descripcion);
+        assertFalse(partitions.read(santiago).get(1).esPublico);
+
+        assertArrayEquals(new int[]{santiago}, partitions.overlapping(-33.5, -70.7, -33.4, -70.6));
+        int west = partitions.partitionOf(-17, 179.9);
+        int east = partitions.partitionOf(-17, -179.9);
+        assertEquals(2, partitions.overlapping(-17.1, 179.8, -16.9, -179.8).length);
+        assertArrayEquals(new int[]{east}, partitions.neighbors(west));
+
+        ClusterIndex clusters = new ClusterIndex();
+        partitions.addTo(clusters, id -> id == 3);
+        int[] total = new int[1];
+        clusters.query(0, -90, -180, 90, 180, cluster -> total[0] += clusters.count(0, cluster));
+        assertEquals(4, total[0]);
+    }
+
+    @Test
+    public void streamedRecordsGetStoreIdsAndCombineIntoOneSnapshot() throws IOException {
+        File dir = new File(folder.getRoot(), "parts");
+        LocationPartitions partitions;
+        try (LocationPartitions.Writer out = new LocationPartitions.Writer(dir)) {
+            String[] titles = {"Valparaíso", "Plaza de Armas", "Providencia"};
+            double[][] points = {{-33.05, -71.6}, {-33.45, -70.65}, {-33.43, -70.61}};
+            int[] ids = {7, 0, 7};
+            for (int i = 0; i < titles.length; i++) {
+                LocationRecord record = new LocationRecord(titles[i], "Bueno", i == 1 ? null : "d" + i,
+                        points[i][0], points[i][1], true);
+                record.id = ids[i];
+                out.assignId(record);
+                out.add(record);
+            }
+            partitions = out.finish(1, 2, 3);
+        }
+        assertFalse(new File(folder.getRoot(), "parts.tmp").exists());
+        assertEquals(9, partitions.maxId());
+        int santiago = partitions.partitionOf(-33.45, -70.65);
+        assertEquals(8, partitions.read(santiago).get(0).id);
+        assertEquals(9, partitions.read(santiago).get(1).id);
+
+        File combined = new File(folder.getRoot(), "locations.bin");
+        partitions.writeCombined(combined);
+        LocationStore store = new LocationStore();
+        store.load(MappedSnapshot.open(combined));
+        assertTrue(MappedSnapshot.open(combined).isFrom(1, 2));
+        assertEquals(3, store.size());
+        assertEquals("Valparaíso", store.title(store.slotOf(7)));
+        assertEquals("d0", store.description(store.slotOf(7)));
+        assertNull(store.description(store.slotOf(8)));
+        assertEquals("Providencia", store.title(store.slotOf(9)));
+        assertEquals(-70.61, store.longitude(store.slotOf(9)), 0);
+    }
+
+    @Test
+    public void rewriteReplacesEveryPartition() throws IOException {
+        LocationStore store = new LocationStore();
+        store.add(new LocationRecord("A", "Bueno", "a", -33.45, -70.65, true));
+        int moved = store.add(new LocationRecord("B", "Bueno", "b", -33.05, -71.6, true));
+        File dir = new File(folder.getRoot(), "parts");
+        LocationPartitions.write(dir, store, 1, 1, 1);
+
+        store.set(moved, new LocationRecord("B", "Bueno", "b", -33.46, -70.66, true));
+        LocationPartitions.write(dir, store, 2, 2, 2);
+        LocationPartitions partitions = LocationPartitions.open(dir);
+        assertFalse(partitions.isFrom(1, 1));
+        assertEquals(1, partitions.size());
+        assertEquals(2, partitions.count(0));
+        assertFalse(new File(dir, "66j5.bin").exists());
+
+        LocationPartitions.invalidate(dir);
+        try {
+            LocationPartitions.open(dir);
+            fail();
+        } catch (IOException expected) {
+            // no index, no partitions
+        }
+    }
+
+    private static List<String> titles(List<LocationRecord> records) {
+        List<String> titles = new ArrayList<>();
+        for (LocationRecord record : records) {
+            titles.add(record.title);
+        }
+        return titles;
+    }
+}
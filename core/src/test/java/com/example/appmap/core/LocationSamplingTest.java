@@ -0,0 +1,79 @@
+package com.example.appmap.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LocationSamplingTest {
+
+    private static final long MINUTE = 60_000;
+
+    @Test
+    public void zoneModeFollowsSpeedUntilStationary() {
+        LocationSampling sampling = new LocationSampling();
+        sampling.reset(0);
+        sampling.setZoneMode(true);
+        assertEquals(LocationSampling.GPS, sampling.plan(0).provider);
+        assertEquals(5_000, sampling.plan(0).intervalMs);
+
+        sampling.onFix(1_000, -33.45, -70.66, 5, 15f, Float.NaN);
+        assertEquals(2_000, sampling.plan(1_000).intervalMs);
+
+        // Jitter within the fix accuracy doesn't count as movement.
+        sampling.onFix(MINUTE, -33.4503, -70.66, 60, 0f, Float.NaN);
+        sampling.onFix(3 * MINUTE, -33.4501, -70.6601, 60, 0f, Float.NaN);
+        assertTrue(sampling.isStationary(3 * MINUTE));
+        assertEquals(LocationSampling.NETWORK, sampling.plan(3 * MINUTE).provider);
+
+        sampling.onFix(4 * MINUTE, -33.46, -70.66, 20, 0f, Float.NaN);
+        assertFalse(sampling.isStationary(4 * MINUTE));
+        assertEquals(2 * MINUTE, sampling.millisUntilStationary(4 * MINUTE));
+        assertEquals(LocationSampling.GPS, sampling.plan(4 * MINUTE).provider);
+    }
+
+    @Test
+    public void speedIsEstimatedFromFixesWithoutOne() {
+        LocationSampling sampling = new LocationSampling();
+        sampling.reset(0);
+        sampling.onFix(0, 40.42, -3.70, 30, Float.NaN, Float.NaN);
+        assertEquals(LocationSampling.NETWORK, sampling.plan(0).provider);
+
+        // Jitter within both fixes' accuracy is no speed.
+        sampling.onFix(10_000, 40.4203, -3.70, 30, Float.NaN, Float.NaN);
+        assertEquals(0f, sampling.speed(), 0f);
+        assertTrue(Float.isNaN(sampling.bearing()));
+        assertEquals(LocationSampling.NETWORK, sampling.plan(10_000).provider);
+
+        // About 222 m north in 20 s: driving.
+        sampling.onFix(20_000, 40.422, -3.70, 30, Float.NaN, Float.NaN);
+        assertEquals(11.1f, sampling.speed(), 0.2f);
+        assertEquals(0f, sampling.bearing(), 0.5f);
+        assertEquals(LocationSampling.GPS, sampling.plan(20_000).provider);
+
+        // A GPS fix with its own speed wins over the estimate.
+        sampling.onFix(23_000, 40.4221, -3.70, 5, 1f, 90f);
+        assertEquals(1f, sampling.speed(), 0f);
+        assertEquals(90f, sampling.bearing(), 0f);
+        assertEquals(LocationSampling.NETWORK, sampling.plan(23_000).provider);
+    }
+
+    @Test
+    public void worldModeSavesPowerUnlessDriving() {
+        LocationSampling sampling = new LocationSampling();
+        sampling.reset(0);
+        sampling.onFix(0, 40.42, -3.70, 10, 2f, Float.NaN);
+        assertEquals(LocationSampling.NETWORK, sampling.plan(0).provider);
+        sampling.onFix(1_000, 40.4201, -3.70, 10, 20f, Float.NaN);
+        assertEquals(LocationSampling.GPS, sampling.plan(1_000).provider);
+
+        sampling.setBattery(true, false);
+        LocationSampling.Plan saving = sampling.plan(1_000);
+        assertEquals(LocationSampling.NETWORK, saving.provider);
+        assertEquals(30_000, saving.intervalMs);
+
+        sampling.onFix(2_000, 40.4201, -3.70, 10, 0f, Float.NaN);
+        assertEquals(LocationSampling.PASSIVE, sampling.plan(2_000 + 5 * MINUTE).provider);
+        sampling.setBattery(true, true);
+        assertEquals(new LocationSampling.Plan(LocationSampling.NETWORK, 120_000, 50), sampling.plan(2_000 + 5 * MINUTE));
+    }
+}
@@ -0,0 +1,114 @@
+package com.example.appmap.core;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LocationSnapshotTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void olderVersionsAreUnchangedByEdits() {
+        LocationSnapshot empty = LocationSnapshot.EMPTY;
+        LocationSnapshot one = empty.with(record(3, "A"));
+        LocationSnapshot two = one.with(record(70000, "B"));
+        LocationSnapshot edited = two.with(record(3, "A2"));
+        LocationSnapshot removed = edited.without(3);
+
+        assertEquals(0, empty.size());
+        assertEquals("A", one.get(3).title);
+        assertFalse(one.contains(70000));
+        assertEquals("A", two.get(3).title);
+        assertEquals("A2", edited.get(3).title);
+        assertEquals(2, edited.size());
+        assertNull(removed.get(3));
+        assertEquals("B", removed.get(70000).title);
+        assertArrayEquals(new int[]{70000}, removed.ids());
+        assertEquals(4, removed.version());
+        assertSame(removed, removed.without(3));
+        assertEquals(0, removed.without(70000).size());
+    }
+
+    @Test
+    public void forEachVisitsIdsInOrder() {
+        LocationSnapshot snapshot = LocationSnapshot.EMPTY;
+        for (int id : new int[]{900, 5, 33, 32, 1 << 20}) {
+            snapshot = snapshot.with(record(id, "P" + id));
+        }
+        List<Integer> visited = new ArrayList<>();
+        snapshot.forEach(record -> visited.add(record.id));
+
+        assertEquals(List.of(5, 32, 33, 900, 1 << 20), visited);
+        assertArrayEquals(new int[]{5, 32, 33, 900, 1 << 20}, snapshot.ids());
+        assertFalse(snapshot.get(33).esPublico);
+        assertEquals("Bueno", snapshot.get(33).estado);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void recordsNeedAnId() {
+        LocationSnapshot.EMPTY.with(new LocationRecord("A", "Bueno", null, 0, 0, true));
+    }
+
+    @Test
+    public void builtFromMappedStoreWithoutDecodingIt() throws IOException {
+        LocationStore original = new LocationStore();
+        original.add(new LocationRecord("Plaza", "Excelente", "Cargador", -33.45, -70.6, true));
+        original.add(new LocationRecord("Bodega", null, null, 10, 20, false));
+        File file = folder.newFile();
+        MappedSnapshot.write(file, original, 1, 2, 3);
+        LocationStore store = new LocationStore();
+        store.load(MappedSnapshot.open(file));
+
+        LocationSnapshot snapshot = LocationSnapshot.of(store);
+
+        assertEquals(2, snapshot.size());
+        LocationRecord plaza = snapshot.get(original.id(0));
+        assertEquals("Plaza", plaza.title);
+        assertEquals("Cargador", plaza.descripcion);
+        assertEquals("Excelente", plaza.estado);
+        assertTrue(plaza.esPublico);
+        assertEquals(-70.6, plaza.longitude, 0.0);
+        assertNull(snapshot.get(original.id(1)).estado);
+        assertTrue(store.stringRef(0) >= 0);
+        assertNull(store.rawTitle(0));
+    }
+
+    @Test
+    public void historyUndoesAndRedoesEdits() {
+        LocationHistory history = new LocationHistory();
+        history.reset(LocationSnapshot.EMPTY.with(record(1, "A")));
+        history.put(record(1, "A2"), true);
+        history.put(record(2, "B"), true);
+        history.remove(1, true);
+        history.put(record(3, "Sync"), false);
+
+        LocationHistory.Edit delete = history.undo();
+        assertEquals("A2", delete.before.title);
+        assertNull(delete.after);
+        LocationHistory.Edit add = history.undo();
+        assertNull(add.before);
+        assertEquals("A", history.undo().before.title);
+        assertFalse(history.canUndo());
+        assertTrue(history.canRedo());
+
+        assertEquals("A2", history.redo().after.title);
+        history.put(record(4, "C"), true);
+        assertFalse(history.canRedo());
+        assertEquals(3, history.snapshot().size());
+    }
+
+    private static LocationRecord record(int id, String title) {
+        LocationRecord record = new LocationRecord(title, "Bueno", null, id, -id, false);
+        record.id = id;
+        return record;
+    }
+}
@@ -0,0 +1,123 @@
+package com.example.appmap.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LocationStoreTest {
+
+    @Test
+    public void typedColumnsRoundTrip() {
+        LocationStore store = new LocationStore();
+        int slot = store.add(new LocationRecord("Centro", "Decente", "Cerca de la plaza", -33.4, -70.6, false));
+
+        assertEquals(0, slot);
+        assertEquals("Centro", store.title(slot));
+        assertEquals(LocationStatus.DECENTE, store.status(slot));
+        assertEquals(-70.6, store.longitude(slot), 0.0);
+        assertFalse(store.isPublic(slot));
+        assertEquals("Decente", store.toRecord(slot).estado);
+    }
+
+    @Test
+    public void removeMovesLastRecordIntoSlotAndKeepsIds() {
+        LocationStore store = new LocationStore();
+        for (int i = 0; i < 100; i++) {
+            store.add(new LocationRecord("P" + i, "Bueno", null, i, -i, true));
+        }
+        int lastId = store.id(99);
+        int removedId = store.id(10);
+
+        assertEquals(99, store.remove(10));
+        assertEquals(99, store.size());
+        assertEquals("P99", store.title(10));
+        assertEquals(99.0, store.latitude(10), 0.0);
+        assertEquals(10, store.slotOf(lastId));
+        assertEquals(-1, store.slotOf(removedId));
+        assertEquals(-1, store.remove(98));
+    }
+
+    @Test
+    public void importedIdsAreKeptAndCollisionsReassigned() {
+        LocationStore store = new LocationStore();
+        LocationRecord first = new LocationRecord("A", "Bueno", null, 0, 0, true);
+        first.id = 40;
+        LocationRecord duplicate = new LocationRecord("B", "Bueno", null, 0, 0, true);
+        duplicate.id = 40;
+        LocationRecord fresh = new LocationRecord("C", "Bueno", null, 0, 0, true);
+
+        store.add(first);
+        store.add(duplicate);
+        store.add(fresh);
+
+        assertEquals(40, store.id(0));
+        assertEquals(41, duplicate.id);
+        assertEquals(42, fresh.id);
+        assertEquals(2, store.slotOf(42));
+    }
+
+    @Test
+    public void statusBitmapsFollowEditsAndRemovals() {
+        LocationStore store = new LocationStore();
+        store.add(new LocationRecord("A", "Bueno", null, 0, 0, true));
+        store.add(new LocationRecord("B", "Excelente", null, 0, 0, true));
+        store.add(new LocationRecord("C", "Bueno", null, 0, 0, true));
+        store.add(new LocationRecord("D", null, null, 0, 0, true));
+
+        store.set(0, new LocationRecord("A", "Inutilizable", null, 0, 0, true));
+        store.remove(1);
+
+        int buenoOrExcelente = LocationStatus.mask(LocationStatus.BUENO.code()) | LocationStatus.mask(LocationStatus.EXCELENTE.code());
+        assertEquals(1, store.countWithStatus(buenoOrExcelente));
+        assertEquals(List.of("C"), titlesWithStatus(store, buenoOrExcelente));
+        assertEquals(List.of("A"), titlesWithStatus(store, LocationStatus.mask(LocationStatus.INUTILIZABLE.code())));
+        assertEquals(List.of("D"), titlesWithStatus(store, LocationStatus.mask(LocationStatus.NONE)));
+        assertEquals(3, store.countWithStatus(LocationStatus.ALL_MASK));
+    }
+
+    @Test
+    public void idIndexSurvivesChurn() {
+        IdIndex index = new IdIndex(4);
+        for (int id = 1; id <= 5000; id++) {
+            index.put(id, id * 2);
+        }
+        for (int id = 1; id <= 5000; id += 3) {
+            assertTrue(index.remove(id));
+        }
+        for (int id = 1; id <= 5000; id++) {
+            assertEquals(id % 3 == 1 ? -1 : id * 2, index.get(id));
+        }
+        assertFalse(index.remove(1));
+    }
+
+    @Test
+    public void repeatedStringsArePooled() {
+        LocationStore store = new LocationStore();
+        store.add(new LocationRecord(new String("Estación"), "Bueno", new String("Zona residencial"), 0, 0, true));
+        store.add(new LocationRecord(new String("Estación"), "Bueno", new String("Zona residencial"), 1, 1, true));
+
+        assertSame(store.title(0), store.title(1));
+        assertSame(store.description(0), store.description(1));
+    }
+
+    @Test
+    public void perRecordFootprintStaysSmall() {
+        LocationStore store = new LocationStore();
+        int count = 100_000;
+        for (int i = 0; i < count; i++) {
+            store.add(new LocationRecord("Punto " + (i % 5000), LocationStatus.values()[i % 4].label(),
+                    "Punto de recarga en zona residencial.", i * 1e-4, i * 1e-4, true));
+        }
+
+        assertTrue(store.approximateBytes() / count < 64);
+    }
+
+    private static List<String> titlesWithStatus(LocationStore store, int mask) {
+        List<String> titles = new ArrayList<>();
+        store.forEachWithStatus(mask, slot -> titles.add(store.title(slot)));
+        return titles;
+    }
+}
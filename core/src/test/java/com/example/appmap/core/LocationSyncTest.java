@@ -0,0 +1,375 @@
+package com.example.appmap.core;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntPredicate;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+/** Runs devices against an in-memory backend that implements the sync protocol. */
+public class LocationSyncTest {
+
+    private static final String TOKEN = "token-de-prueba";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private HttpServer server;
+    private String baseUrl;
+    // Remote id -> latest change, as the backend would store it.
+    private final Map<String, JsonObject> records = new LinkedHashMap<>();
+    private long serverVersion;
+    private volatile boolean available = true;
+    private final List<LocationSync> syncs = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/api/" + LocationSync.CHANGES_PATH, exchange -> {
+            try {
+                if (!available) {
+                    exchange.sendResponseHeaders(503, -1);
+                } else if (!("Bearer " + TOKEN).equals(exchange.getRequestHeaders().getFirst("Authorization"))) {
+                    exchange.sendResponseHeaders(401, -1);
+                } else if (exchange.getRequestMethod().equals("POST")) {
+                    assertEquals("gzip", exchange.getRequestHeaders().getFirst("Content-Encoding"));
+                    JsonObject body;
+                    try (InputStreamReader in = new InputStreamReader(new GZIPInputStream(exchange.getRequestBody()),
+                            StandardCharsets.UTF_8)) {
+                        body = JsonParser.parseReader(in).getAsJsonObject();
+                    }
+                    respond(exchange, push(body.getAsJsonArray("changes")));
+                } else {
+                    String query = exchange.getRequestURI().getQuery();
+                    long since = Long.parseLong(query.replaceAll(".*since=(\\d+).*", "$1"));
+                    int limit = Integer.parseInt(query.replaceAll(".*limit=(\\d+).*", "$1"));
+                    respond(exchange, changesSince(since, limit));
+                }
+            } finally {
+                exchange.close();
+            }
+        });
+        server.start();
+        baseUrl = "http://127.0.0.1:" + server.getAddress().getPort() + "/api";
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        // Saved before the temporary folder is deleted.
+        for (LocationSync sync : syncs) {
+            sync.close().get(10, TimeUnit.SECONDS);
+        }
+        server.stop(0);
+    }
+
+    @Test
+    public void onlyChangedPublicRecordsTravelBetweenDevices() throws Exception {
+        Device a = new Device();
+        int plaza = a.add(new LocationRecord("Plaza", "Bueno", "techada", -33.45, -70.66, true));
+        a.add(new LocationRecord("Casa", "Excelente", null, -33.40, -70.60, false));
+        int parque = a.add(new LocationRecord("Parque", "Decente", null, -33.41, -70.61, true));
+        assertTrue(a.sync());
+        assertEquals(2, records.size());
+
+        Device b = new Device();
+        assertTrue(b.sync());
+        assertEquals(Arrays.asList("Parque", "Plaza"), b.titles());
+
+        a.edit(plaza, new LocationRecord("Plaza Mayor", "Excelente", "techada", -33.45, -70.66, true));
+        a.delete(parque);
+        long before = serverVersion;
+        assertTrue(a.sync());
+        assertEquals(before + 2, serverVersion);
+        assertTrue(b.sync());
+        assertEquals(Arrays.asList("Plaza Mayor"), b.titles());
+        assertEquals("Excelente", b.record("Plaza Mayor").estado);
+
+        // Made private: removed from the backend, kept on the device.
+        a.edit(plaza, new LocationRecord("Plaza Mayor", "Excelente", "techada", -33.45, -70.66, false));
+        assertTrue(a.sync());
+        assertTrue(b.sync());
+        assertEquals(Arrays.asList(), b.titles());
+        assertEquals(Arrays.asList("Casa", "Plaza Mayor"), a.titles());
+    }
+
+    @Test
+    public void conflictingEditsKeepTheLatestPerRecord() throws Exception {
+        Device a = new Device();
+        int x = a.add(new LocationRecord("X", "Bueno", null, 1, 1, true));
+        int y = a.add(new LocationRecord("Y", "Bueno", null, 2, 2, true));
+        assertTrue(a.sync());
+        Device b = new Device();
+        assertTrue(b.sync());
+        int bx = b.idOf("X");
+        int by = b.idOf("Y");
+
+        a.edit(x, new LocationRecord("X de A", "Bueno", null, 1, 1, true));
+        Thread.sleep(5);
+        b.edit(bx, new LocationRecord("X de B", "Bueno", null, 1, 1, true));
+        b.edit(by, new LocationRecord("Y de B", "Bueno", null, 2, 2, true));
+        Thread.sleep(5);
+        a.edit(y, new LocationRecord("Y de A", "Bueno", null, 2, 2, true));
+
+        assertTrue(a.sync());
+        assertTrue(b.sync());
+        assertTrue(a.sync());
+        assertEquals(Arrays.asList("X de B", "Y de A"), a.titles());
+        assertEquals(Arrays.asList("X de B", "Y de A"), b.titles());
+    }
+
+    @Test
+    public void editMadeDuringAPassIsNotOverwritten() throws Exception {
+        Device a = new Device();
+        int x = a.add(new LocationRecord("X", "Bueno", null, 1, 1, true));
+        assertTrue(a.sync());
+        Device b = new Device();
+        assertTrue(b.sync());
+        int bx = b.idOf("X");
+
+        a.edit(x, new LocationRecord("X de A", "Bueno", null, 1, 1, true));
+        assertTrue(a.sync());
+        Thread.sleep(5);
+        // B's pass sees X clean and pulls A's edit, but B edits X before it is applied.
+        b.beforeApply = () -> b.edit(bx, new LocationRecord("X de B", "Bueno", null, 1, 1, true));
+        assertTrue(b.sync());
+        assertEquals(Arrays.asList("X de B"), b.titles());
+
+        assertTrue(b.sync());
+        assertTrue(a.sync());
+        assertEquals(Arrays.asList("X de B"), a.titles());
+        assertEquals(Arrays.asList("X de B"), b.titles());
+    }
+
+    @Test
+    public void closeDuringAPassReturnsAtOnceAndStillSaves() throws Exception {
+        Device a = new Device();
+        a.add(new LocationRecord("X", "Bueno", null, 1, 1, true));
+        assertTrue(a.sync());
+
+        Device b = new Device();
+        CountDownLatch applying = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        // Stands in for an apply waiting on the UI thread that is busy closing.
+        b.beforeApply = () -> {
+            applying.countDown();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+        Future<Boolean> pass = b.sync.requestSync();
+        assertTrue(applying.await(10, TimeUnit.SECONDS));
+        Future<?> saved = b.sync.close();
+        assertFalse(saved.isDone());
+
+        release.countDown();
+        pass.get(10, TimeUnit.SECONDS);
+        saved.get(10, TimeUnit.SECONDS);
+        assertTrue(b.stateFile.exists());
+        assertEquals(Arrays.asList("X"), b.titles());
+    }
+
+    @Test
+    public void failedPassIsRetriedWithBackoff() throws Exception {
+        available = false;
+        Device a = new Device();
+        a.sync.retryBaseMs = 20;
+        a.sync.retryMaxMs = 100;
+        a.add(new LocationRecord("Plaza", "Bueno", null, 1, 1, true));
+        assertFalse(a.sync());
+        assertEquals(1, a.sync.consecutiveFailures());
+
+        available = true;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (a.sync.consecutiveFailures() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, a.sync.consecutiveFailures());
+        synchronized (this) {
+            assertEquals(1, records.size());
+        }
+    }
+
+    private synchronized JsonObject push(JsonArray changes) {
+        JsonArray results = new JsonArray();
+        for (JsonElement element : changes) {
+            JsonObject change = element.getAsJsonObject();
+            String id = change.get("id").getAsString();
+            JsonObject current = records.get(id);
+            long currentVersion = current == null ? 0 : current.get("version").getAsLong();
+            JsonObject result = new JsonObject();
+            result.addProperty("id", id);
+            if (change.get("base_version").getAsLong() != currentVersion) {
+                result.addProperty("status", "conflict");
+                result.add("current", current);
+            } else {
+                JsonObject stored = change.deepCopy();
+                stored.remove("base_version");
+                stored.addProperty("version", ++serverVersion);
+                records.put(id, stored);
+                result.addProperty("status", "applied");
+                result.addProperty("version", serverVersion);
+            }
+            results.add(result);
+        }
+        JsonObject response = new JsonObject();
+        response.add("results", results);
+        return response;
+    }
+
+    private synchronized JsonObject changesSince(long since, int limit) {
+        List<JsonObject> changed = new ArrayList<>();
+        for (JsonObject record : records.values()) {
+            if (record.get("version").getAsLong() > since) {
+                changed.add(record);
+            }
+        }
+        changed.sort((l, r) -> Long.compare(l.get("version").getAsLong(), r.get("version").getAsLong()));
+        JsonArray page = new JsonArray();
+        for (int i = 0; i < Math.min(limit, changed.size()); i++) {
+            page.add(changed.get(i));
+        }
+        JsonObject response = new JsonObject();
+        response.addProperty("version", page.size() == 0 ? since
+                : page.get(page.size() - 1).getAsJsonObject().get("version").getAsLong());
+        response.addProperty("more", changed.size() > limit);
+        response.add("changes", page);
+        return response;
+    }
+
+    private static void respond(HttpExchange exchange, JsonObject body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        exchange.sendResponseHeaders(200, 0);
+        try (OutputStream out = new GZIPOutputStream(exchange.getResponseBody())) {
+            out.write(body.toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /** A device's store behind {@link LocationSync.Local}, edited the way the app does it. */
+    private final class Device implements LocationSync.Local {
+        final LocationStore store = new LocationStore();
+        final LocationSync sync;
+        final File stateFile;
+        // Runs as the next apply starts, like an edit landing while a pass is under way.
+        Runnable beforeApply;
+
+        Device() throws IOException {
+            stateFile = new File(folder.newFolder(), "sync.state");
+            sync = new LocationSync(stateFile, baseUrl, () -> TOKEN, this,
+                    LocationSync.LAST_WRITER_WINS);
+            syncs.add(sync);
+        }
+
+        boolean sync() throws Exception {
+            return sync.requestSync().get(10, TimeUnit.SECONDS);
+        }
+
+        synchronized int add(LocationRecord record) {
+            store.add(record);
+            sync.recordChanged(record.id);
+            return record.id;
+        }
+
+        synchronized void edit(int id, LocationRecord record) {
+            record.id = id;
+            store.set(store.slotOf(id), record);
+            sync.recordChanged(id);
+        }
+
+        synchronized void delete(int id) {
+            store.remove(store.slotOf(id));
+            sync.recordDeleted(id);
+        }
+
+        synchronized List<String> titles() {
+            List<String> titles = new ArrayList<>();
+            for (int slot = 0; slot < store.size(); slot++) {
+                titles.add(store.title(slot));
+            }
+            titles.sort(null);
+            return titles;
+        }
+
+        synchronized int idOf(String title) {
+            for (int slot = 0; slot < store.size(); slot++) {
+                if (title.equals(store.title(slot))) return store.id(slot);
+            }
+            return -1;
+        }
+
+        synchronized LocationRecord record(String title) {
+            return store.toRecord(store.slotOf(idOf(title)));
+        }
+
+        @Override
+        public synchronized int[] ids() {
+            return Arrays.copyOf(store.ids(), store.size());
+        }
+
+        @Override
+        public synchronized LocationRecord[] read(int[] ids) {
+            LocationRecord[] records = new LocationRecord[ids.length];
+            for (int i = 0; i < ids.length; i++) {
+                int slot = store.slotOf(ids[i]);
+                records[i] = slot < 0 ? null : store.toRecord(slot);
+            }
+            return records;
+        }
+
+        @Override
+        public synchronized int[] apply(int[] localIds, List<LocationSync.Change> changes, IntPredicate editedMeanwhile) {
+            if (beforeApply != null) {
+                beforeApply.run();
+                beforeApply = null;
+            }
+            int[] applied = new int[changes.size()];
+            for (int i = 0; i < applied.length; i++) {
+                LocationSync.Change change = changes.get(i);
+                int slot = store.slotOf(localIds[i]);
+                if (localIds[i] >= 0 && editedMeanwhile.test(localIds[i])) {
+                    applied[i] = LocationSync.SKIPPED;
+                } else if (change.deleted) {
+                    if (slot >= 0) store.remove(slot);
+                    applied[i] = -1;
+                } else if (slot >= 0) {
+                    change.record.id = localIds[i];
+                    store.set(slot, change.record);
+                    applied[i] = localIds[i];
+                } else {
+                    store.add(change.record);
+                    applied[i] = change.record.id;
+                }
+            }
+            return applied;
+        }
+    }
+}
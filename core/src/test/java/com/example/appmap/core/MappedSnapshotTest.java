@@ -0,0 +1,68 @@
+package com.example.appmap.core;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+public class MappedSnapshotTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void storeLoadedFromSnapshotMatchesOriginal() throws IOException {
+        LocationStore original = new LocationStore();
+        original.add(new LocationRecord("Plaza Ñuñoa", "Excelente", "Cargador rápido ⚡", -33.45, -70.6, true));
+        original.add(new LocationRecord("Bodega", "Bueno", null, 10, 20, false));
+        original.add(new LocationRecord("", null, "sin estado", -89.9, 179.9, true));
+        original.remove(0);
+        File file = folder.newFile();
+        MappedSnapshot.write(file, original, 123, 456, 789);
+
+        MappedSnapshot snapshot = MappedSnapshot.open(file);
+        assertTrue(snapshot.isFrom(123, 456));
+        assertArrayEquals(new long[]{123, 789}, snapshot.sourceBase());
+
+        LocationStore store = new LocationStore();
+        store.load(snapshot);
+        assertEquals(original.size(), store.size());
+        for (int slot = 0; slot < store.size(); slot++) {
+            assertEquals(original.id(slot), store.id(slot));
+            assertEquals(slot, store.slotOf(original.id(slot)));
+            assertEquals(original.latitude(slot), store.latitude(slot), 0.0);
+            assertEquals(original.longitude(slot), store.longitude(slot), 0.0);
+            assertEquals(original.statusCode(slot), store.statusCode(slot));
+            assertEquals(original.isPublic(slot), store.isPublic(slot));
+            assertEquals(original.title(slot), store.title(slot));
+            assertEquals(original.description(slot), store.description(slot));
+        }
+        assertNull(store.description(1));
+        assertEquals(1, store.countWithStatus(LocationStatus.mask(LocationStatus.NONE)));
+
+        // Moving a still-undecoded record keeps its strings; new records continue the ids.
+        LocationStore lazy = new LocationStore();
+        lazy.load(MappedSnapshot.open(file));
+        assertEquals(1, lazy.remove(0));
+        assertEquals("Bodega", lazy.title(0));
+        int slot = lazy.add(new LocationRecord("Nuevo", "Bueno", null, 0, 0, true));
+        assertEquals(original.id(0) + 1, lazy.id(slot));
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedSnapshotIsRejected() throws IOException {
+        LocationStore store = new LocationStore();
+        store.add(new LocationRecord("A", "Bueno", "a", 1, 1, true));
+        File file = folder.newFile();
+        MappedSnapshot.write(file, store, -1, 0, 0);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 1);
+        }
+        MappedSnapshot.open(file);
+    }
+}
@@ -0,0 +1,64 @@
+package com.example.appmap.core;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MetricsTest {
+
+    @After
+    public void tearDown() {
+        Metrics.setEnabled(false);
+        Metrics.reset();
+    }
+
+    @Test
+    public void disabledMetricsRecordNothing() {
+        Metrics.setEnabled(false);
+        Timer timer = Metrics.timer("test.disabled");
+        long start = timer.start();
+        timer.stop(start);
+        Metrics.counter("test.disabled.count").increment();
+
+        assertEquals(0, start);
+        assertEquals(0, timer.count());
+        assertFalse(Metrics.report().contains("test.disabled"));
+    }
+
+    @Test
+    public void percentilesStayWithinBucketError() {
+        Metrics.setEnabled(true);
+        Timer timer = Metrics.timer("test.latency");
+        for (long micros = 1; micros <= 1000; micros++) {
+            timer.record(micros * 1000);
+        }
+
+        assertEquals(1000, timer.count());
+        assertEquals(1_000_000, timer.max());
+        assertEquals(500_500.0, timer.mean(), 1e-6);
+        assertEquals(500_000, timer.percentile(0.50), 500_000 * 0.125);
+        assertEquals(990_000, timer.percentile(0.99), 990_000 * 0.125);
+        assertTrue(timer.percentile(0.99) <= timer.max());
+    }
+
+    @Test
+    public void bucketsCoverTheirValues() {
+        for (long value : new long[]{0, 7, 15, 16, 17, 1000, 123_456_789L, Long.MAX_VALUE}) {
+            int bucket = Timer.bucketOf(value);
+            assertTrue(value <= Timer.upperBound(bucket));
+            assertTrue(bucket == 0 || value > Timer.upperBound(bucket - 1));
+        }
+    }
+
+    @Test
+    public void reportListsCountersAndGauges() {
+        Metrics.setEnabled(true);
+        Metrics.counter("test.bytes").add(42);
+        Metrics.gauge("test.size").set(7);
+
+        String report = Metrics.report();
+        assertTrue(report.contains("test.bytes: 42\n"));
+        assertTrue(report.contains("test.size: 7\n"));
+    }
+}
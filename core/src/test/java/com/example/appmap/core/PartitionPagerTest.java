@@ -0,0 +1,101 @@
+package com.example.appmap.core;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PartitionPagerTest {
+
+    // Width of a 4-character geohash cell in longitude.
+    private static final double CELL_DEGREES = 360.0 / 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private LocationPartitions partitions;
+    private final List<String> events = new ArrayList<>();
+
+    /** Ten partitions of ten records in a row along the equator. */
+    @Before
+    public void setUp() throws IOException {
+        LocationStore store = new LocationStore();
+        for (int cell = 0; cell < 10; cell++) {
+            for (int i = 0; i < 10; i++) {
+                store.add(new LocationRecord("P" + cell, "Bueno", null, 0.05 + i * 0.001, center(cell) + i * 0.001, true));
+            }
+        }
+        File dir = new File(folder.getRoot(), "parts");
+        LocationPartitions.write(dir, store, -1, 0, 0);
+        partitions = LocationPartitions.open(dir);
+    }
+
+    @Test
+    public void panningPrefetchesAheadAndEvictsWhatIsLeftBehind() {
+        PartitionPager pager = newPager(30);
+        assertTrue(showCell(pager, 0));
+        assertEquals(List.of("in 0", "in 1"), events);
+
+        events.clear();
+        assertTrue(showCell(pager, 2));
+        // Heading east: 3 comes before 1, and 0 makes room since 1 is kept as 2's neighbour.
+        assertEquals(List.of("in 2", "evict 0", "in 3"), events);
+        assertEquals(30, pager.residentRecords());
+
+        events.clear();
+        assertTrue(showCell(pager, 2));
+        assertTrue(events.isEmpty());
+    }
+
+    @Test
+    public void viewLargerThanTheBudgetPagesInItsMiddle() {
+        PartitionPager pager = newPager(30);
+        assertFalse(pager.show(0, center(0), 0.1, center(8)));
+        assertEquals(30, pager.residentRecords());
+        assertTrue(pager.isResident(partition(4)));
+        assertTrue(pager.isResident(partition(3)));
+        assertTrue(pager.isResident(partition(5)));
+        assertFalse(pager.isResident(partition(0)));
+    }
+
+    private PartitionPager newPager(long maxRecords) {
+        return new PartitionPager(partitions, maxRecords, new PartitionPager.Loader() {
+            @Override
+            public void pageIn(int partition) throws IOException {
+                assertEquals(10, partitions.read(partition).size());
+                events.add("in " + cellOf(partition));
+            }
+
+            @Override
+            public void evict(int partition) {
+                events.add("evict " + cellOf(partition));
+            }
+        });
+    }
+
+    private boolean showCell(PartitionPager pager, int cell) {
+        return pager.show(0.0, center(cell) - 0.1, 0.1, center(cell) + 0.1);
+    }
+
+    private int partition(int cell) {
+        return partitions.partitionOf(0.05, center(cell));
+    }
+
+    private int cellOf(int partition) {
+        for (int cell = 0; cell < 10; cell++) {
+            if (partition(cell) == partition) return cell;
+        }
+        return -1;
+    }
+
+    private static double center(int cell) {
+        return (cell + 0.5) * CELL_DEGREES;
+    }
+}
@@ -0,0 +1,78 @@
+package com.example.appmap.core;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.*;
+
+public class RefreshPipelineTest {
+
+    private final ArrayDeque<Runnable> workerQueue = new ArrayDeque<>();
+    private final ArrayDeque<Runnable> uiQueue = new ArrayDeque<>();
+    private final List<String> computed = new ArrayList<>();
+    private final List<String> applied = new ArrayList<>();
+
+    @Test
+    public void burstIsCoalescedIntoLatestRequest() {
+        RefreshPipeline<String, String> pipeline = newPipeline(null);
+        pipeline.submit("a");
+        pipeline.submit("b");
+        pipeline.submit("c");
+
+        runAll();
+        assertEquals(List.of("c"), computed);
+        assertEquals(List.of("c!"), applied);
+    }
+
+    @Test
+    public void resultIsDroppedWhenSupersededBeforeApply() {
+        RefreshPipeline<String, String> pipeline = newPipeline(null);
+        pipeline.submit("a");
+        workerQueue.poll().run();
+        pipeline.submit("b");
+
+        runAll();
+        assertEquals(List.of("a", "b"), computed);
+        assertEquals(List.of("b!"), applied);
+
+        pipeline.submit("c");
+        workerQueue.poll().run();
+        pipeline.invalidate();
+        runAll();
+        assertEquals(List.of("b!"), applied);
+    }
+
+    @Test
+    public void runningComputationIsCancelled() {
+        AtomicReference<RefreshPipeline<String, String>> holder = new AtomicReference<>();
+        holder.set(newPipeline(request -> {
+            if (request.equals("a")) holder.get().submit("b");
+        }));
+        holder.get().submit("a");
+
+        runAll();
+        assertEquals(List.of("a", "b"), computed);
+        assertEquals(List.of("b!"), applied);
+    }
+
+    private RefreshPipeline<String, String> newPipeline(Consumer<String> duringCompute) {
+        return new RefreshPipeline<>(workerQueue::add, uiQueue::add, (request, cancellation) -> {
+            computed.add(request);
+            if (duringCompute != null) duringCompute.accept(request);
+            cancellation.throwIfCancelled();
+            return request + "!";
+        }, applied::add);
+    }
+
+    private void runAll() {
+        while (!workerQueue.isEmpty() || !uiQueue.isEmpty()) {
+            Runnable task = workerQueue.isEmpty() ? uiQueue.poll() : workerQueue.poll();
+            task.run();
+        }
+    }
+}
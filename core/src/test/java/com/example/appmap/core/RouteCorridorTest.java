@@ -0,0 +1,109 @@
+package com.example.appmap.core;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class RouteCorridorTest {
+
+    @Test
+    public void pointsNearTheRouteComeInRouteOrder() {
+        double[] lats = {0.001, 0.01, -0.001, 0.0005};
+        double[] lons = {0.5, 0.2, -0.001, 0.9};
+        SpatialGrid grid = SpatialGrid.build(lats, lons, lats.length);
+        RouteCorridor route = new RouteCorridor(new double[]{0, 0, 0}, new double[]{0, 0.6, 1}, 3);
+
+        RouteCorridor.Hits hits = route.query(grid, lats, lons, 500, slot -> slot != 3);
+
+        assertEquals(2, hits.count);
+        assertEquals(2, hits.slots[0]);
+        assertEquals(0, hits.along[0], 0.0);
+        assertEquals(157, hits.offsets[0], 1);
+        assertEquals(0, hits.slots[1]);
+        assertEquals(55_597, hits.along[1], 20);
+        assertEquals(111, hits.offsets[1], 1);
+        assertEquals(111_195, route.length(), 50);
+    }
+
+    @Test
+    public void agreesWithSamplingTheRoute() {
+        Random random = new Random(11);
+        int routeSize = 3000;
+        double[] routeLats = new double[routeSize];
+        double[] routeLons = new double[routeSize];
+        routeLats[0] = -33.45;
+        routeLons[0] = -70.66;
+        for (int i = 1; i < routeSize; i++) {
+            routeLats[i] = routeLats[i - 1] + random.nextDouble() * 0.004 - 0.001;
+            routeLons[i] = routeLons[i - 1] + random.nextDouble() * 0.004 - 0.001;
+        }
+        // One long straight leg as well, which gets split.
+        routeLats[routeSize - 1] += 0.5;
+        int count = 50_000;
+        double[] lats = new double[count];
+        double[] lons = new double[count];
+        for (int i = 0; i < count; i++) {
+            int near = random.nextInt(routeSize);
+            lats[i] = routeLats[near] + random.nextGaussian() * 0.01;
+            lons[i] = routeLons[near] + random.nextGaussian() * 0.01;
+        }
+        SpatialGrid grid = SpatialGrid.build(lats, lons, count);
+        RouteCorridor route = new RouteCorridor(routeLats, routeLons, routeSize);
+        double buffer = 300;
+
+        RouteCorridor.Hits hits = route.query(grid, lats, lons, buffer, slot -> true);
+
+        Set<Integer> found = new HashSet<>();
+        for (int i = 0; i < hits.count; i++) {
+            assertTrue(found.add(hits.slots[i]));
+            assertTrue(hits.offsets[i] <= buffer);
+            if (i > 0) assertTrue(hits.along[i] >= hits.along[i - 1]);
+        }
+        double[][] vertices = route.vertices();
+        for (int slot = 0; slot < count; slot += 13) {
+            double sampled = Double.POSITIVE_INFINITY;
+            for (int v = 0; v + 1 < vertices[0].length; v++) {
+                // Pieces are at most 1 km, so one whose start is farther can't come within the buffer.
+                if (SpatialGrid.distanceMeters(lats[slot], lons[slot], vertices[0][v], vertices[1][v]) > 2500) continue;
+                for (int step = 0; step <= 20; step++) {
+                    double t = step / 20.0;
+                    double lat = vertices[0][v] + (vertices[0][v + 1] - vertices[0][v]) * t;
+                    double lon = vertices[1][v] + (vertices[1][v + 1] - vertices[1][v]) * t;
+                    sampled = Math.min(sampled, SpatialGrid.distanceMeters(lats[slot], lons[slot], lat, lon));
+                }
+            }
+            if (sampled < buffer - 5) assertTrue(found.contains(slot));
+            if (sampled > buffer + 120) assertFalse(found.contains(slot));
+        }
+    }
+
+    @Test
+    public void readsGpxAcrossTheAntimeridian() throws IOException {
+        String gpx = "<?xml version=\"1.0\"?><gpx xmlns=\"http://www.topografix.com/GPX/1/1\"><trk><trkseg>"
+                + "<trkpt lat=\"0\" lon=\"179.9\"><ele>3</ele></trkpt><trkpt lat=\"0\" lon=\"-179.9\"/>"
+                + "</trkseg></trk></gpx>";
+        RouteCorridor route = RouteCorridor.readGpx(new ByteArrayInputStream(gpx.getBytes(StandardCharsets.UTF_8)));
+        double[] lats = {0.001, 0.001};
+        double[] lons = {-180.0, 0.0};
+        SpatialGrid grid = SpatialGrid.build(lats, lons, 2);
+
+        RouteCorridor.Hits hits = route.query(grid, lats, lons, 200, slot -> true);
+
+        assertEquals(22_239, route.length(), 10);
+        assertEquals(1, hits.count);
+        assertEquals(0, hits.slots[0]);
+        assertEquals(11_119, hits.along[0], 10);
+    }
+
+    @Test(expected = IOException.class)
+    public void gpxWithoutPointsIsRejected() throws IOException {
+        RouteCorridor.readGpx(new ByteArrayInputStream("<gpx><wpt lat=\"1\" lon=\"2\"/></gpx>".getBytes(StandardCharsets.UTF_8)));
+    }
+}
@@ -0,0 +1,95 @@
+package com.example.appmap.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class SearchIndexTest {
+
+    @Test
+    public void matchesIgnoringAccentsAndCase() {
+        SearchIndex index = new SearchIndex();
+        index.put(1, "Estación Ñuñoa", "Cargador rápido");
+        index.put(2, "Plaza Italia", null);
+
+        assertEquals(List.of(1), ids(index.search("estacion", 10, null)));
+        assertEquals(List.of(1), ids(index.search("NUÑ", 10, null)));
+        assertEquals(List.of(1), ids(index.search("rapido carg", 10, null)));
+        assertEquals(List.of(1), ids(index.search("argad", 10, null)));
+        assertEquals(List.of(), ids(index.search("plaza ñuñoa", 10, null)));
+        assertEquals(List.of(), ids(index.search("  ", 10, null)));
+    }
+
+    @Test
+    public void ranksTitleAndWholeWordsFirst() {
+        SearchIndex index = new SearchIndex();
+        index.put(1, "Bodega", "Junto al cargador");
+        index.put(2, "Cargadores del centro comercial", null);
+        index.put(3, "Cargador", null);
+        index.put(4, "Estacionamiento", "Sin recargador");
+
+        assertEquals(List.of(3, 2, 1, 4), ids(index.search("cargador", 10, null)));
+        assertEquals(List.of(3, 2), ids(index.search("cargador", 2, null)));
+        assertEquals(List.of(2, 1, 4), ids(index.search("cargador", 10, id -> id != 3)));
+    }
+
+    @Test
+    public void followsEditsAndRemovals() {
+        SearchIndex index = new SearchIndex();
+        index.put(1, "Punto de recarga", null);
+        index.put(2, "Punto limpio", null);
+        index.put(1, "Estación municipal", null);
+        index.remove(2);
+        index.put(3, "Punto nuevo", null);
+
+        assertEquals(List.of(3), ids(index.search("punto", 10, null)));
+        assertEquals(List.of(1), ids(index.search("munic", 10, null)));
+        assertEquals(2, index.size());
+    }
+
+    @Test
+    public void agreesWithScanningEveryRecord() {
+        String[] words = {"cargador", "rápido", "estación", "municipal", "plaza", "ñuñoa", "recarga", "centro", "norte"};
+        Random random = new Random(5);
+        SearchIndex index = new SearchIndex();
+        List<String> titles = new ArrayList<>();
+        for (int id = 1; id <= 2000; id++) {
+            String title = words[random.nextInt(words.length)] + " " + words[random.nextInt(words.length)];
+            titles.add(title);
+            index.put(id, title, null);
+        }
+        for (int id = 1; id <= 2000; id += 3) {
+            index.remove(id);
+        }
+        for (String query : new String[]{"car", "ñu", "nor pla", "arga", "centro rapido"}) {
+            String[] queryWords = SearchIndex.words(query);
+            int expected = 0;
+            for (int id = 1; id <= 2000; id++) {
+                if (id % 3 == 1) continue;
+                String[] titleWords = SearchIndex.words(titles.get(id - 1));
+                boolean all = true;
+                for (String q : queryWords) {
+                    boolean any = false;
+                    for (String t : titleWords) {
+                        any |= q.length() >= 3 ? t.contains(q) : t.startsWith(q);
+                    }
+                    all &= any;
+                }
+                if (all) expected++;
+            }
+            assertEquals(query, expected, index.search(query, 5000, null).size());
+        }
+    }
+
+    private static List<Integer> ids(List<SearchIndex.Hit> hits) {
+        List<Integer> ids = new ArrayList<>();
+        for (SearchIndex.Hit hit : hits) {
+            ids.add(hit.id);
+        }
+        return ids;
+    }
+}
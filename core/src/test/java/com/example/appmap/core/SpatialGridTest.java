@@ -0,0 +1,161 @@
+package com.example.appmap.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class SpatialGridTest {
+
+    @Test
+    public void radiusQuery_matchesLinearScan() {
+        Random random = new Random(42);
+        int count = 20000;
+        double[] lats = new double[count];
+        double[] lons = new double[count];
+        for (int i = 0; i < count; i++) {
+            lats[i] = 40.0 + random.nextDouble() * 0.5;
+            lons[i] = -74.0 + random.nextDouble() * 0.5;
+        }
+        SpatialGrid grid = SpatialGrid.build(lats, lons, count);
+
+        for (int q = 0; q < 50; q++) {
+            double lat = 40.0 + random.nextDouble() * 0.5;
+            double lon = -74.0 + random.nextDouble() * 0.5;
+
+            List<Integer> expected = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                if (SpatialGrid.distanceMeters(lat, lon, lats[i], lons[i]) <= 4000) {
+                    expected.add(i);
+                }
+            }
+            List<Integer> actual = new ArrayList<>();
+            grid.queryRadius(lat, lon, 4000, lats, lons, actual::add);
+
+            Collections.sort(actual);
+            assertEquals(expected, actual);
+        }
+    }
+
+    @Test
+    public void radiusQuery_wrapsAroundAntimeridian() {
+        double[] lats = {0.0, 0.0, 0.0};
+        double[] lons = {179.99, -179.99, 170.0};
+        SpatialGrid grid = SpatialGrid.build(lats, lons, 3);
+
+        List<Integer> hits = new ArrayList<>();
+        grid.queryRadius(0.0, 180.0, 4000, lats, lons, hits::add);
+
+        Collections.sort(hits);
+        assertEquals(List.of(0, 1), hits);
+    }
+
+    @Test
+    public void boxQuery_matchesLinearScan() {
+        Random random = new Random(7);
+        int count = 20000;
+        double[] lats = new double[count];
+        double[] lons = new double[count];
+        for (int i = 0; i < count; i++) {
+            lats[i] = random.nextDouble() * 170.0 - 85.0;
+            lons[i] = random.nextDouble() * 360.0 - 180.0;
+        }
+        SpatialGrid grid = SpatialGrid.build(lats, lons, count);
+
+        double[][] boxes = {
+                {40.0, -75.0, 41.0, -73.0},
+                {-85.0, -180.0, 85.0, 180.0},
+                {-10.0, 170.0, 10.0, -170.0},
+        };
+        for (double[] box : boxes) {
+            boolean wraps = box[1] > box[3];
+            List<Integer> expected = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                boolean inLon = wraps ? (lons[i] >= box[1] || lons[i] <= box[3]) : (lons[i] >= box[1] && lons[i] <= box[3]);
+                if (lats[i] >= box[0] && lats[i] <= box[2] && inLon) {
+                    expected.add(i);
+                }
+            }
+            List<Integer> actual = new ArrayList<>();
+            grid.queryBox(box[0], box[1], box[2], box[3], lats, lons, actual::add);
+
+            Collections.sort(actual);
+            assertEquals(expected, actual);
+        }
+    }
+
+    @Test
+    public void removeAndMove_updateBuckets() {
+        double[] lats = {10.0, 10.001};
+        double[] lons = {10.0, 10.001};
+        SpatialGrid grid = SpatialGrid.build(lats, lons, 2);
+
+        assertTrue(grid.remove(0, lats[0], lons[0]));
+        List<Integer> hits = new ArrayList<>();
+        grid.queryRadius(10.0, 10.0, 1000, lats, lons, hits::add);
+        assertEquals(List.of(1), hits);
+
+        grid.move(1, lats[1], lons[1], -20.0, 30.0);
+        lats[1] = -20.0;
+        lons[1] = 30.0;
+        hits.clear();
+        grid.queryRadius(-20.0, 30.0, 10, lats, lons, hits::add);
+        assertEquals(List.of(1), hits);
+    }
+
+    @Test
+    public void nearest_matchesLinearScan() {
+        Random random = new Random(7);
+        int count = 20000;
+        double[] lats = new double[count];
+        double[] lons = new double[count];
+        for (int i = 0; i < count; i++) {
+            // Dense city plus a sparse world-wide scatter, across the antimeridian and near a pole.
+            boolean city = i % 4 != 0;
+            lats[i] = city ? -33.4 + random.nextDouble() * 0.3 : -89.0 + random.nextDouble() * 178.0;
+            lons[i] = city ? -70.7 + random.nextDouble() * 0.3 : -180.0 + random.nextDouble() * 360.0;
+        }
+        SpatialGrid grid = SpatialGrid.build(lats, lons, count);
+        int[] slots = new int[5];
+        double[] distances = new double[5];
+        double[][] centres = {{-33.3, -70.6}, {0.0, 179.99}, {88.5, 10.0}, {-33.0, -60.0}};
+
+        for (double[] centre : centres) {
+            for (int mod : new int[]{1, 7, 997}) {
+                SpatialGrid.SlotFilter filter = slot -> slot % mod == 0;
+                List<Double> expected = new ArrayList<>();
+                for (int i = 0; i < count; i++) {
+                    if (filter.accept(i)) {
+                        expected.add(SpatialGrid.distanceMeters(centre[0], centre[1], lats[i], lons[i]));
+                    }
+                }
+                Collections.sort(expected);
+
+                int found = grid.nearest(centre[0], centre[1], 5, Double.POSITIVE_INFINITY, lats, lons, filter, slots, distances);
+                assertEquals(5, found);
+                for (int i = 0; i < found; i++) {
+                    assertEquals(expected.get(i), distances[i], 1e-6);
+                    assertEquals(0, slots[i] % mod);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void nearest_stopsAtMaxRadius() {
+        double[] lats = {0.0, 0.0, 0.0};
+        double[] lons = {0.0, 0.01, 1.0};
+        SpatialGrid grid = SpatialGrid.build(lats, lons, 3);
+        int[] slots = new int[5];
+        double[] distances = new double[5];
+
+        assertEquals(2, grid.nearest(0.0, 0.0, 5, 5000, lats, lons, slot -> true, slots, distances));
+        assertEquals(0, slots[0]);
+        assertEquals(1, slots[1]);
+        assertEquals(0, grid.nearest(0.0, 0.0, 5, 5000, lats, lons, slot -> false, slots, distances));
+    }
+}
@@ -0,0 +1,65 @@
+package com.example.appmap.core;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class TileCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void leastRecentlyUsedTilesAreEvictedOverBudget() throws Exception {
+        File dir = folder.newFolder();
+        TileCache cache = new TileCache(dir, 300);
+        cache.put(10, 1, 1, new byte[100]);
+        cache.put(10, 1, 2, new byte[100]);
+        cache.put(10, 1, 3, new byte[100]);
+        assertNotNull(cache.get(10, 1, 1));
+
+        cache.put(10, 1, 4, new byte[100]);
+
+        assertEquals(300, cache.sizeBytes());
+        assertTrue(cache.contains(10, 1, 1));
+        assertFalse(cache.contains(10, 1, 2));
+        assertFalse(new File(dir, "10/1/2.tile").exists());
+        assertNull(cache.get(10, 1, 2));
+        assertEquals(0.5, cache.hitRate(), 1e-9);
+    }
+
+    @Test
+    public void tilesExpireByFetchTimeAcrossReopening() throws Exception {
+        File dir = folder.newFolder();
+        long hour = 60 * 60 * 1000;
+        TileCache cache = new TileCache(dir, 1000, hour);
+        cache.put(5, 1, 1, new byte[]{1});
+        cache.put(5, 1, 2, new byte[]{2});
+        assertTrue(cache.isFresh(5, 1, 1));
+        assertFalse(cache.isFresh(5, 1, 3));
+
+        assertTrue(new File(dir, "5/1/2.tile").setLastModified(System.currentTimeMillis() - 2 * hour));
+        TileCache reopened = new TileCache(dir, 1000, hour);
+        assertTrue(reopened.isFresh(5, 1, 1));
+        assertFalse(reopened.isFresh(5, 1, 2));
+        // Expired tiles are still served until replaced.
+        assertArrayEquals(new byte[]{2}, reopened.get(5, 1, 2));
+    }
+
+    @Test
+    public void reopeningKeepsTilesAndDropsLeftovers() throws Exception {
+        File dir = folder.newFolder();
+        TileCache cache = new TileCache(dir, 1000);
+        cache.put(3, 2, 1, new byte[]{1, 2, 3});
+        new File(dir, "3/2/5.tile.7.tmp").createNewFile();
+
+        TileCache reopened = new TileCache(dir, 1000);
+        assertEquals(1, reopened.tileCount());
+        assertArrayEquals(new byte[]{1, 2, 3}, reopened.get(3, 2, 1));
+        assertFalse(new File(dir, "3/2/5.tile.7.tmp").exists());
+    }
+}
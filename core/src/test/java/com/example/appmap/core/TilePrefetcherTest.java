@@ -0,0 +1,109 @@
+package com.example.appmap.core;
+
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/** Runs against a local tile server stand-in that answers /z/x/y with the tile's own path. */
+public class TilePrefetcherTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private HttpServer server;
+    private final AtomicInteger requests = new AtomicInteger();
+    private String urlTemplate;
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", exchange -> {
+            requests.incrementAndGet();
+            String path = exchange.getRequestURI().getPath();
+            if (path.startsWith("/missing")) {
+                exchange.sendResponseHeaders(404, -1);
+            } else {
+                byte[] body = path.getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+            exchange.close();
+        });
+        server.start();
+        urlTemplate = "http://127.0.0.1:" + server.getAddress().getPort() + "/{z}/{x}/{y}";
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void prefetchCachesZoneOnceAndThenServesFromDisk() throws Exception {
+        TilePrefetcher prefetcher = new TilePrefetcher(new TileCache(folder.newFolder(), 1 << 20), urlTemplate, "AppMapTest");
+
+        TilePrefetcher.Result first = prefetcher.prefetch(-33.45, -70.66, 4000, 12, 14).get(10, TimeUnit.SECONDS);
+        assertTrue(first.downloaded > 0);
+        assertEquals(0, first.failed);
+        assertEquals(first.downloaded, requests.get());
+
+        TilePrefetcher.Result second = prefetcher.prefetch(-33.45, -70.66, 4000, 12, 14).get(10, TimeUnit.SECONDS);
+        assertEquals(0, second.downloaded);
+        assertEquals(first.downloaded, second.cached);
+        assertEquals(first.downloaded, requests.get());
+
+        int[] range = TilePrefetcher.tileRange(-33.45, -70.66, 4000, 13);
+        byte[] tile = prefetcher.fetch(13, range[0], range[1]);
+        assertEquals("/13/" + range[0] + "/" + range[1], new String(tile, StandardCharsets.UTF_8));
+        assertEquals(first.downloaded, requests.get());
+        assertEquals(1.0, prefetcher.cache().hitRate(), 1e-9);
+    }
+
+    @Test
+    public void prefetchStopsAtHalfTheBudget() throws Exception {
+        TileCache cache = new TileCache(folder.newFolder(), 100);
+        TilePrefetcher prefetcher = new TilePrefetcher(cache, urlTemplate, "AppMapTest");
+
+        TilePrefetcher.Result result = prefetcher.prefetch(40.0, -3.7, 20000, 10, 16).get(10, TimeUnit.SECONDS);
+        assertTrue(result.stopped);
+        assertTrue(result.bytes >= 50 && cache.sizeBytes() <= 100);
+    }
+
+    @Test
+    public void expiredTilesAreFetchedAgainButServedOffline() throws Exception {
+        // Every tile is expired as soon as it is stored.
+        TileCache cache = new TileCache(folder.newFolder(), 1 << 20, 0);
+        cache.put(5, 1, 1, "viejo".getBytes(StandardCharsets.UTF_8));
+        TilePrefetcher offline = new TilePrefetcher(cache, urlTemplate.replace("/{z}", "/missing/{z}"), "AppMapTest");
+        assertEquals("viejo", new String(offline.fetch(5, 1, 1), StandardCharsets.UTF_8));
+
+        TilePrefetcher online = new TilePrefetcher(cache, urlTemplate, "AppMapTest");
+        assertEquals("/5/1/1", new String(online.fetch(5, 1, 1), StandardCharsets.UTF_8));
+        assertEquals(2, requests.get());
+    }
+
+    @Test
+    public void failedDownloadsAreNotCached() throws Exception {
+        TileCache cache = new TileCache(folder.newFolder(), 1 << 20);
+        TilePrefetcher prefetcher = new TilePrefetcher(cache, urlTemplate.replace("/{z}", "/missing/{z}"), "AppMapTest");
+
+        assertNull(prefetcher.fetch(5, 1, 1));
+        assertFalse(cache.contains(5, 1, 1));
+        assertEquals(0.0, cache.hitRate(), 1e-9);
+    }
+}